@@ -1,20 +1,197 @@
 package com.qianniu.llmbot;
 
 import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*********************************************
+ * 数据库表结构的版本化迁移
+ * 1）schema_version表记录已执行的迁移版本，启动时只执行尚未执行的版本，按版本号顺序执行，每个版本只执行一次；
+ * 2）多节点同时启动时使用MySQL命名锁(GET_LOCK)串行化，持有锁的节点执行迁移，其他节点等待后读取到已执行的版本直接跳过；
+ * 3）每个迁移都可重复执行(IF NOT EXISTS/先查询information_schema)，没有schema_version表的旧数据库从V1开始执行时只补充缺少的部分；
+ * 4）索引变更使用ALGORITHM=INPLACE, LOCK=NONE在线执行，不阻塞messages表的读写；
+ * 5）新的表结构变更只能追加新版本，不能修改已发布的版本；
+ * **********************************************/
 
 @Component
 public class DatabaseInitializer {
 
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseInitializer.class);
+    private static final String OLDEST_PARTITION = "p000000"; //当前月份之前的全部记录
+    private static final String MAX_PARTITION = "pmax";
+    private static final String MIGRATION_LOCK = "llmbot_schema_migration";
+    private static final int MIGRATION_LOCK_TIMEOUT_SECONDS = 60;
+
+    //messages表最初版本(V1)的字段定义
+    private static final String BASE_MESSAGE_COLUMNS_DDL = "message_id BIGINT AUTO_INCREMENT NOT NULL, "
+            + "bot_name VARCHAR(100) NOT NULL, "
+            + "user_id VARCHAR(36) NOT NULL, "
+            + "user_name VARCHAR(100) NOT NULL, "
+            + "conversation_id VARCHAR(200) NOT NULL, "
+            + "total_token_number INT DEFAULT 0, "
+            + "query_content TEXT NOT NULL, "
+            + "query_content_type TINYINT NOT NULL DEFAULT 0, "
+            + "query_token_number INT DEFAULT 0, "
+            + "answer_content TEXT NOT NULL, "
+            + "answer_content_type TINYINT NOT NULL DEFAULT 0, "
+            + "answer_token_number INT DEFAULT 0, "
+            + "created_at BIGINT NOT NULL DEFAULT 0, ";
+
+    //messages与messages_archive共用的字段定义，两表字段顺序一致
+    private static final String MESSAGE_COLUMNS_DDL = BASE_MESSAGE_COLUMNS_DDL
+            + "query_token_estimate INT NOT NULL DEFAULT 0, "
+            + "answer_token_estimate INT NOT NULL DEFAULT 0, "
+            + "msg_uuid CHAR(36) DEFAULT NULL, ";
+
+    //使用量统计汇总表共用的计数字段
+    private static final String USAGE_COUNTERS_DDL = "message_count BIGINT NOT NULL DEFAULT 0 COMMENT 'message条数', "
+            + "query_tokens BIGINT NOT NULL DEFAULT 0 COMMENT 'query token数合计', "
+            + "answer_tokens BIGINT NOT NULL DEFAULT 0 COMMENT 'answer token数合计', "
+            + "total_tokens BIGINT NOT NULL DEFAULT 0 COMMENT '总token数合计', "
+            + "first_at BIGINT NOT NULL DEFAULT 0 COMMENT '最早message时间(unix秒)', "
+            + "last_at BIGINT NOT NULL DEFAULT 0 COMMENT '最新message时间(unix秒)', ";
+
+    //回填使用的SQL写在迁移中，不调用Service，已发布的迁移不随之后的Service代码变化
+    private static final String USAGE_COUNTER_COLUMNS = "message_count, query_tokens, answer_tokens, total_tokens, first_at, last_at";
+    private static final String USAGE_AGGREGATES = "COUNT(*), COALESCE(SUM(query_token_number), 0), COALESCE(SUM(answer_token_number), 0), "
+            + "COALESCE(SUM(total_token_number), 0), MIN(created_at), MAX(created_at)";
+
+    //热表与归档表合并后的全部message，V7/V8回填使用
+    private static final String ALL_MESSAGES = "(SELECT message_id, user_id, bot_name, conversation_id, created_at, query_token_number, answer_token_number, total_token_number FROM messages "
+            + "UNION ALL SELECT message_id, user_id, bot_name, conversation_id, created_at, query_token_number, answer_token_number, total_token_number FROM messages_archive) AS all_messages";
+
     @Autowired
     JdbcTemplate jdbcTemplate;
 
-    //依赖注入时执行初始化table表，测试环境中使用；生产环境下，不会在后端代码中创建表，一般在服务器中单独创建或迁移导入
+    @Autowired
+    TransactionTemplate transactionTemplate;
+
+    @Value("${analytics.zone_offset:+08:00}") //V7回填usage_daily_stats时按该时区划分日期
+    private ZoneOffset zoneOffset;
+
+    @Value("${archive.partitioning:true}") //messages表是否按月分区
+    private boolean partitioning;
+
+    @Value("${archive.convert_existing:false}") //已存在的未分区messages表是否在启动时转换
+    private boolean convertExisting;
+
+    @Value("${archive.months_ahead:3}") //预先创建的未来月份分区数
+    private int monthsAhead;
+
+    //依赖注入时执行数据库迁移；生产环境也可以由运维单独执行，迁移版本记录在schema_version表中，应用启动时不会重复执行
     //yml文件中设置路径端口为//localhost:3306/llmbotjdbc，即已经指定了使用的database为llmbotjdbc，不必SQL语句中手动指定(USE llmbotjdbc或llmbotjdbc.users)
     @PostConstruct
     public void init() {
+        jdbcTemplate.update("CREATE TABLE IF NOT EXISTS schema_version ("
+                + "version INT NOT NULL PRIMARY KEY COMMENT '迁移版本号', "
+                + "description VARCHAR(200) NOT NULL COMMENT '迁移说明', "
+                + "applied_at BIGINT NOT NULL DEFAULT 0 COMMENT '执行时间(unix秒)', "
+                + "duration_ms BIGINT NOT NULL DEFAULT 0 COMMENT '执行耗时(毫秒)') "
+                + "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='数据库迁移版本表'");
+
+        //命名锁属于数据库会话，获取和释放必须使用同一个连接；迁移语句使用其他连接执行
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            acquireMigrationLock(connection);
+            try {
+                migrate();
+                // 未分区的messages表：空表直接转换；已有数据时按配置转换，否则只提示(转换需要重建整表)
+                if (partitioning && !isPartitioned("messages")) {
+                    if (convertExisting || isEmpty("messages")) {
+                        convertMessagesToPartitioned();
+                    } else {
+                        logger.warn("messages表未分区，设置archive.convert_existing=true后启动时转换(需重建整表，建议在低峰期执行)");
+                    }
+                }
+                ensureMessagePartitions();
+            } finally {
+                releaseMigrationLock(connection);
+            }
+            return null;
+        });
+    }
+
+    //全部迁移版本，按版本号递增排列
+    private List<Migration> migrations() {
+        return List.of(
+                new Migration(1, "创建platforms/models/users/messages基础表", this::createBaseTables),
+                new Migration(2, "messages表增加token估算字段", () -> {
+                    addColumnIfMissing("messages", "query_token_estimate", "INT NOT NULL DEFAULT 0");
+                    addColumnIfMissing("messages", "answer_token_estimate", "INT NOT NULL DEFAULT 0");
+                }),
+                new Migration(3, "messages表增加WAL重放去重标识msg_uuid", () -> {
+                    // 普通索引(非UNIQUE)，重放前按msg_uuid查询已存在的记录
+                    addColumnIfMissing("messages", "msg_uuid", "CHAR(36) DEFAULT NULL");
+                    addIndexIfMissing("messages", "idx_msg_uuid", "(msg_uuid)");
+                }),
+                new Migration(4, "创建content_dictionaries内容压缩字典表", this::createContentDictionaries),
+                new Migration(5, "创建messages_archive归档表", this::createMessagesArchive),
+                new Migration(6, "按查询负载调整索引：增加会话历史和用户时间线复合索引，删除与UNIQUE键重复的索引", this::tuneIndexes),
+                new Migration(7, "创建usage_*使用量统计汇总表并按已有message回填", this::createUsageStats),
+                new Migration(8, "创建conversations会话摘要表并回填", this::createConversations),
+                new Migration(9, "创建cache_invalidations缓存失效事件表", this::createCacheInvalidations));
+    }
+
+    //获取命名锁，其他节点正在迁移时等待
+    private void acquireMigrationLock(Connection connection) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            ps.setString(1, MIGRATION_LOCK);
+            ps.setInt(2, MIGRATION_LOCK_TIMEOUT_SECONDS);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) != 1) {
+                    throw new IllegalStateException("等待数据库迁移锁超时(" + MIGRATION_LOCK_TIMEOUT_SECONDS + "秒)，可能有其他节点正在执行迁移");
+                }
+            }
+        }
+    }
+
+    private void releaseMigrationLock(Connection connection) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            ps.setString(1, MIGRATION_LOCK);
+            ps.executeQuery().close();
+        }
+    }
+
+    //依次执行尚未执行的版本；DDL由MySQL隐式提交，版本记录在独立事务中写入(连接池关闭了自动提交)
+    private void migrate() {
+        Set<Integer> applied = new HashSet<>(jdbcTemplate.queryForList("SELECT version FROM schema_version", Integer.class));
+        for (Migration migration : migrations()) {
+            if (applied.contains(migration.version())) {
+                continue;
+            }
+            logger.info("数据库迁移V{}开始：{}", migration.version(), migration.description());
+            long start = System.currentTimeMillis();
+            migration.action().run();
+            long duration = System.currentTimeMillis() - start;
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(
+                    "INSERT INTO schema_version (version, description, applied_at, duration_ms) VALUES (?, ?, ?, ?)",
+                    migration.version(), migration.description(), System.currentTimeMillis() / 1000, duration));
+            logger.info("数据库迁移V{}完成，耗时{}ms", migration.version(), duration);
+        }
+    }
+
+    //V1：最初版本的表结构，旧数据库中已存在的表不做修改
+    private void createBaseTables() {
         // 创建platforms表
         jdbcTemplate.update("CREATE TABLE IF NOT EXISTS platforms ("
                 + "platform_id BIGINT AUTO_INCREMENT NOT NULL PRIMARY KEY COMMENT '平台唯一ID', "
@@ -58,28 +235,284 @@ public class DatabaseInitializer {
                 + "INDEX idx_uuid (uuid)) "
                 + "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci");
 
-        // 创建messages表
+        // 创建messages表；按月分区在迁移之后进行(分区表的主键必须包含分区字段，且不支持外键，user_id由应用层保证)
         jdbcTemplate.update("CREATE TABLE IF NOT EXISTS messages ("
-                + "message_id BIGINT AUTO_INCREMENT NOT NULL PRIMARY KEY, "
-                + "bot_name VARCHAR(100) NOT NULL, "
-                + "user_id VARCHAR(36) NOT NULL, "
-                + "user_name VARCHAR(100) NOT NULL, "
-                + "conversation_id VARCHAR(200) NOT NULL, "
-                + "total_token_number INT DEFAULT 0, "
-                + "query_content TEXT NOT NULL, "
-                + "query_content_type TINYINT NOT NULL DEFAULT 0, "
-                + "query_token_number INT DEFAULT 0, "
-                + "answer_content TEXT NOT NULL, "
-                + "answer_content_type TINYINT NOT NULL DEFAULT 0, "
-                + "answer_token_number INT DEFAULT 0, "
-                + "created_at BIGINT NOT NULL DEFAULT 0, "
+                + BASE_MESSAGE_COLUMNS_DDL
+                + "PRIMARY KEY (message_id), "
                 + "FOREIGN KEY (user_id) REFERENCES users(uuid), "
                 + "INDEX idx_bot (bot_name), "
                 + "INDEX idx_user (user_id), "
                 + "INDEX idx_conversation (conversation_id), "
                 + "INDEX idx_created_at (created_at)) "
                 + "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci");
-        
+    }
+
+    //V4：保存message内容压缩使用的预置字典(ContentCodec)
+    private void createContentDictionaries() {
+        jdbcTemplate.update("CREATE TABLE IF NOT EXISTS content_dictionaries ("
+                + "dict_id INT NOT NULL PRIMARY KEY COMMENT '字典ID，写入压缩内容的格式标记中', "
+                + "dictionary MEDIUMBLOB NOT NULL COMMENT 'deflate预置字典', "
+                + "sample_rows INT NOT NULL DEFAULT 0 COMMENT '训练样本行数', "
+                + "created_at BIGINT NOT NULL DEFAULT 0 COMMENT '创建时间(unix秒)') "
+                + "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='message内容压缩字典表'");
+    }
+
+    //V5：messages_archive表(冷数据)，由MessageArchiver从messages表迁入超过保留期的记录；压缩行格式，不分区
+    private void createMessagesArchive() {
+        jdbcTemplate.update("CREATE TABLE IF NOT EXISTS messages_archive ("
+                + MESSAGE_COLUMNS_DDL
+                + "PRIMARY KEY (message_id), "
+                + "INDEX idx_archive_conversation (conversation_id, message_id), "
+                + "INDEX idx_archive_user (user_id), "
+                + "INDEX idx_archive_bot (bot_name), "
+                + "INDEX idx_archive_created_at (created_at), "
+                + "INDEX idx_archive_msg_uuid (msg_uuid)) "
+                + "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci ROW_FORMAT=COMPRESSED KEY_BLOCK_SIZE=8 "
+                + "COMMENT='message归档表'");
+    }
+
+    //V6：按实际查询调整索引，先建新索引再删旧索引，保证任何时刻都有可用的索引
+    private void tuneIndexes() {
+        // 会话历史：WHERE conversation_id = ? AND message_id < ? ORDER BY message_id DESC LIMIT ?，索引内有序，无需filesort
+        addIndexIfMissing("messages", "idx_conversation_message", "(conversation_id, message_id)");
+        dropIndexIfExists("messages", "idx_conversation");
+        // 用户时间线：WHERE user_id = ? 按created_at排序(同时满足user_id外键对索引的要求)
+        addIndexIfMissing("messages", "idx_user_created", "(user_id, created_at)");
+        dropIndexIfExists("messages", "idx_user");
+        addIndexIfMissing("messages_archive", "idx_archive_user_created", "(user_id, created_at)");
+        dropIndexIfExists("messages_archive", "idx_archive_user");
+
+        // 以下索引与字段上的UNIQUE键完全重复，只增加写入和缓冲池开销
+        dropIndexIfExists("users", "idx_email");
+        dropIndexIfExists("users", "idx_uuid");
+        dropIndexIfExists("users", "idx_phone");
+        dropIndexIfExists("models", "idx_model_name");
+        dropIndexIfExists("platforms", "idx_platform_name");
+        // 按用户名查询(管理员接口)原先为全表扫描
+        addIndexIfMissing("users", "idx_name", "(name)");
+    }
+
+    //V7：使用量统计汇总表(UsageStatsService)，message写入时增量更新；建表后按messages与messages_archive回填
+    private void createUsageStats() {
+        jdbcTemplate.update("CREATE TABLE IF NOT EXISTS usage_user_stats ("
+                + "user_id VARCHAR(36) NOT NULL COMMENT '用户uuid', "
+                + USAGE_COUNTERS_DDL
+                + "PRIMARY KEY (user_id), "
+                + "INDEX idx_usage_user_total (total_tokens)) "
+                + "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='按用户汇总的使用量'");
+        jdbcTemplate.update("CREATE TABLE IF NOT EXISTS usage_model_stats ("
+                + "bot_name VARCHAR(100) NOT NULL COMMENT '模型名', "
+                + USAGE_COUNTERS_DDL
+                + "PRIMARY KEY (bot_name)) "
+                + "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='按模型汇总的使用量'");
+        jdbcTemplate.update("CREATE TABLE IF NOT EXISTS usage_daily_stats ("
+                + "stat_date DATE NOT NULL COMMENT '日期(analytics.zone_offset时区)', "
+                + "bot_name VARCHAR(100) NOT NULL COMMENT '模型名', "
+                + USAGE_COUNTERS_DDL
+                + "PRIMARY KEY (stat_date, bot_name)) "
+                + "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='按天和模型汇总的使用量'");
+        jdbcTemplate.update("CREATE TABLE IF NOT EXISTS usage_token_histogram ("
+                + "bot_name VARCHAR(100) NOT NULL COMMENT '模型名', "
+                + "bucket TINYINT NOT NULL COMMENT '总token数分段，第n段为[2^(n-1), 2^n)，0段为0', "
+                + USAGE_COUNTERS_DDL
+                + "PRIMARY KEY (bot_name, bucket)) "
+                + "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='按单条总token数分段的message条数'");
+        jdbcTemplate.update("DELETE FROM usage_user_stats");
+        jdbcTemplate.update("DELETE FROM usage_model_stats");
+        jdbcTemplate.update("DELETE FROM usage_daily_stats");
+        jdbcTemplate.update("DELETE FROM usage_token_histogram");
+        jdbcTemplate.update("INSERT INTO usage_user_stats (user_id, " + USAGE_COUNTER_COLUMNS + ") "
+                + "SELECT user_id, " + USAGE_AGGREGATES + " FROM " + ALL_MESSAGES + " GROUP BY user_id");
+        jdbcTemplate.update("INSERT INTO usage_model_stats (bot_name, " + USAGE_COUNTER_COLUMNS + ") "
+                + "SELECT bot_name, " + USAGE_AGGREGATES + " FROM " + ALL_MESSAGES + " GROUP BY bot_name");
+        jdbcTemplate.update("INSERT INTO usage_daily_stats (stat_date, bot_name, " + USAGE_COUNTER_COLUMNS + ") "
+                + "SELECT DATE_ADD('1970-01-01', INTERVAL (created_at + ?) DIV 86400 DAY) AS stat_day, bot_name, " + USAGE_AGGREGATES
+                + " FROM " + ALL_MESSAGES + " GROUP BY stat_day, bot_name", zoneOffset.getTotalSeconds());
+        //第n段为[2^(n-1), 2^n)，即总token数二进制表示的位数
+        jdbcTemplate.update("INSERT INTO usage_token_histogram (bot_name, bucket, " + USAGE_COUNTER_COLUMNS + ") "
+                + "SELECT bot_name, CASE WHEN total_token_number > 0 THEN LENGTH(BIN(total_token_number)) ELSE 0 END AS token_bucket, " + USAGE_AGGREGATES
+                + " FROM " + ALL_MESSAGES + " GROUP BY bot_name, token_bucket");
+    }
+
+    //V8：会话摘要表(ConversationService)，会话列表按(user_id, last_message_id)索引分页；建表后按messages与messages_archive回填
+    private void createConversations() {
+        jdbcTemplate.update("CREATE TABLE IF NOT EXISTS conversations ("
+                + "conversation_id VARCHAR(200) NOT NULL COMMENT '会话ID', "
+                + "user_id VARCHAR(36) NOT NULL COMMENT '用户uuid', "
+                + "bot_name VARCHAR(100) NOT NULL COMMENT '模型名', "
+                + "title VARCHAR(100) NOT NULL DEFAULT '' COMMENT '第一条message的query摘要', "
+                + "created_at BIGINT NOT NULL DEFAULT 0 COMMENT '第一条message时间(unix秒)', "
+                + "last_message_id BIGINT NOT NULL DEFAULT 0 COMMENT '最新message_id', "
+                + "last_message_at BIGINT NOT NULL DEFAULT 0 COMMENT '最新message时间(unix秒)', "
+                + "turn_count BIGINT NOT NULL DEFAULT 0 COMMENT '问答轮数', "
+                + "query_tokens BIGINT NOT NULL DEFAULT 0 COMMENT 'query token合计', "
+                + "answer_tokens BIGINT NOT NULL DEFAULT 0 COMMENT 'answer token合计', "
+                + "total_tokens BIGINT NOT NULL DEFAULT 0 COMMENT '总token合计', "
+                + "PRIMARY KEY (conversation_id), "
+                + "INDEX idx_conversation_user_last (user_id, last_message_id)) "
+                + "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='会话摘要'");
+        jdbcTemplate.update("DELETE FROM conversations");
+        jdbcTemplate.update("INSERT INTO conversations (conversation_id, user_id, bot_name, title, created_at, last_message_id, last_message_at, "
+                + "turn_count, query_tokens, answer_tokens, total_tokens) "
+                + "SELECT conversation_id, MIN(user_id), MIN(bot_name), '', MIN(created_at), MAX(message_id), MAX(created_at), COUNT(*), "
+                + "COALESCE(SUM(query_token_number), 0), COALESCE(SUM(answer_token_number), 0), COALESCE(SUM(total_token_number), 0) "
+                + "FROM " + ALL_MESSAGES + " GROUP BY conversation_id");
+        //title取第一条message的query：空白字符合并为一个空格，最多50个字符；以CHAR(1)开头的是ContentCodec编码后的内容，SQL无法解码，title留空
+        for (String table : List.of("messages", "messages_archive")) {
+            jdbcTemplate.update("UPDATE conversations c "
+                    + "JOIN (SELECT conversation_id, MIN(message_id) AS first_id FROM " + ALL_MESSAGES + " GROUP BY conversation_id) f ON f.conversation_id = c.conversation_id "
+                    + "JOIN " + table + " m ON m.message_id = f.first_id "
+                    + "SET c.title = LEFT(TRIM(REGEXP_REPLACE(m.query_content, '[[:space:]]+', ' ')), 50) "
+                    + "WHERE LEFT(m.query_content, 1) <> CHAR(1)");
+        }
+    }
+
+    //V9：缓存失效事件表(InvalidationBus的db模式)，各节点按seq升序拉取；超过保留时间的事件按created_at删除
+    private void createCacheInvalidations() {
+        jdbcTemplate.update("CREATE TABLE IF NOT EXISTS cache_invalidations ("
+                + "seq BIGINT AUTO_INCREMENT NOT NULL COMMENT '事件序号', "
+                + "origin VARCHAR(100) NOT NULL COMMENT '发布节点(节点名@启动时间)', "
+                + "topic VARCHAR(32) NOT NULL COMMENT '缓存主题', "
+                + "cache_key VARCHAR(512) NOT NULL DEFAULT '' COMMENT '失效的缓存key', "
+                + "created_at BIGINT NOT NULL DEFAULT 0 COMMENT '发布时间(unix秒)', "
+                + "PRIMARY KEY (seq), "
+                + "INDEX idx_cache_invalidations_created (created_at)) "
+                + "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='缓存失效事件'");
+    }
+
+    //确保当前月份及之后monthsAhead个月的分区已存在：从MAXVALUE分区中拆分出新的月份分区(MAXVALUE分区通常为空，拆分代价很小)
+    public void ensureMessagePartitions() {
+        if (!partitioning || !isPartitioned("messages")) {
+            return;
+        }
+        Map<String, Long> partitions = messagePartitions();
+        YearMonth month = YearMonth.now();
+        List<String> definitions = new ArrayList<>();
+        for (int i = 0; i <= monthsAhead; i++, month = month.plusMonths(1)) {
+            String name = partitionName(month);
+            long upper = monthStart(month.plusMonths(1));
+            long currentMax = partitions.values().stream().filter(v -> v != Long.MAX_VALUE).mapToLong(Long::longValue).max().orElse(0);
+            if (!partitions.containsKey(name) && upper > currentMax) {
+                definitions.add("PARTITION " + name + " VALUES LESS THAN (" + upper + ")");
+                partitions.put(name, upper);
+            }
+        }
+        if (!definitions.isEmpty()) {
+            jdbcTemplate.update("ALTER TABLE messages REORGANIZE PARTITION " + MAX_PARTITION + " INTO ("
+                    + String.join(", ", definitions) + ", PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE)");
+            logger.info("messages表新增分区{}个", definitions.size());
+        }
+    }
+
+    //删除上界不晚于cutoff且已为空(记录已全部归档)的分区，DROP PARTITION只删除分区文件，不产生逐行删除的开销
+    public int dropArchivedPartitions(long cutoff) {
+        if (!partitioning || !isPartitioned("messages")) {
+            return 0;
+        }
+        int dropped = 0;
+        for (Map.Entry<String, Long> partition : messagePartitions().entrySet()) {
+            if (partition.getValue() == Long.MAX_VALUE || partition.getValue() > cutoff) {
+                continue;
+            }
+            List<Integer> rows = jdbcTemplate.queryForList(
+                    "SELECT 1 FROM messages PARTITION (" + partition.getKey() + ") LIMIT 1", Integer.class);
+            if (rows.isEmpty()) {
+                jdbcTemplate.update("ALTER TABLE messages DROP PARTITION " + partition.getKey());
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    private boolean isPartitioned(String table) {
+        Integer count = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM information_schema.PARTITIONS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL",
+                Integer.class, table);
+        return count != null && count > 0;
+    }
+
+    //分区名 -> 上界(MAXVALUE记为Long.MAX_VALUE)，按分区顺序
+    private Map<String, Long> messagePartitions() {
+        Map<String, Long> partitions = new LinkedHashMap<>();
+        jdbcTemplate.query("SELECT PARTITION_NAME, PARTITION_DESCRIPTION FROM information_schema.PARTITIONS "
+                        + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'messages' AND PARTITION_NAME IS NOT NULL ORDER BY PARTITION_ORDINAL_POSITION",
+                rs -> {
+                    String description = rs.getString("PARTITION_DESCRIPTION");
+                    partitions.put(rs.getString("PARTITION_NAME"),
+                            "MAXVALUE".equalsIgnoreCase(description) ? Long.MAX_VALUE : Long.parseLong(description));
+                });
+        return partitions;
+    }
+
+    //旧表转换为分区表：删除外键、主键加入created_at，当前月份之前的记录全部放入最早分区，由归档任务逐步迁出
+    private void convertMessagesToPartitioned() {
+        logger.info("messages表开始转换为分区表");
+        for (String fk : jdbcTemplate.queryForList("SELECT CONSTRAINT_NAME FROM information_schema.TABLE_CONSTRAINTS "
+                + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'messages' AND CONSTRAINT_TYPE = 'FOREIGN KEY'", String.class)) {
+            jdbcTemplate.update("ALTER TABLE messages DROP FOREIGN KEY " + fk);
+        }
+        jdbcTemplate.update("ALTER TABLE messages DROP PRIMARY KEY, ADD PRIMARY KEY (message_id, created_at)");
+        jdbcTemplate.update("ALTER TABLE messages PARTITION BY RANGE (created_at) ("
+                + "PARTITION " + OLDEST_PARTITION + " VALUES LESS THAN (" + monthStart(YearMonth.now()) + "), "
+                + "PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE)");
+        logger.info("messages表已转换为分区表");
+    }
+
+    private static String partitionName(YearMonth month) {
+        return String.format("p%04d%02d", month.getYear(), month.getMonthValue());
+    }
+
+    //月份第一天0点的unix秒(服务器时区)
+    private static long monthStart(YearMonth month) {
+        return month.atDay(1).atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+    }
+
+    //字段不存在时才执行ALTER TABLE ADD COLUMN
+    private void addColumnIfMissing(String table, String column, String definition) {
+        Integer count = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND COLUMN_NAME = ?",
+                Integer.class, table, column);
+        if (count == null || count == 0) {
+            jdbcTemplate.update("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        }
+    }
+
+    //索引不存在时才执行ALTER TABLE ADD INDEX(在线执行)
+    private void addIndexIfMissing(String table, String index, String columns) {
+        if (!indexExists(table, index)) {
+            alterOnline("ALTER TABLE " + table + " ADD INDEX " + index + " " + columns);
+        }
+    }
+
+    //索引存在时才执行ALTER TABLE DROP INDEX(在线执行)
+    private void dropIndexIfExists(String table, String index) {
+        if (indexExists(table, index)) {
+            alterOnline("ALTER TABLE " + table + " DROP INDEX " + index);
+        }
+    }
+
+    private boolean indexExists(String table, String index) {
+        Integer count = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND INDEX_NAME = ?",
+                Integer.class, table, index);
+        return count != null && count > 0;
+    }
+
+    //优先以INPLACE/LOCK=NONE执行，期间表可正常读写；数据库不支持在线执行时退回默认方式
+    private void alterOnline(String ddl) {
+        try {
+            jdbcTemplate.update(ddl + ", ALGORITHM=INPLACE, LOCK=NONE");
+        } catch (DataAccessException e) {
+            logger.warn("无法在线执行，改为默认方式执行: {} ({})", ddl, e.getMessage());
+            jdbcTemplate.update(ddl);
+        }
+    }
+
+    private boolean isEmpty(String table) {
+        return jdbcTemplate.queryForList("SELECT 1 FROM " + table + " LIMIT 1", Integer.class).isEmpty();
+    }
+
+    private record Migration(int version, String description, Runnable action) {
     }
 
 }
@@ -1,10 +1,10 @@
 package com.qianniu.llmbot.Filter;
 
+import com.qianniu.llmbot.JWTtoken.JwtPrincipal;
 import com.qianniu.llmbot.JWTtoken.JwtTokenUtil;
+import com.qianniu.llmbot.JWTtoken.TokenDenylist;
 import com.qianniu.llmbot.product_entity.User;
-import com.qianniu.llmbot.product_entity.UserRegisterResponseDTO;
 import com.qianniu.llmbot.product_service.UserService;
-import io.jsonwebtoken.Claims;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
@@ -50,11 +50,16 @@ public class JwtAuthenticationFilter  extends OncePerRequestFilter {
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private TokenDenylist tokenDenylist;
+
     // 白名单路径：免过滤的放行路径，与SecurityConfig配置类中保持一致
     private static final List<String> EXCLUDED_PATHS = List.of(
             "/api/info",
             "/api/user/login",
             "/api/user/register",
+            "/api/user/refresh",
+            "/api/internal",
             "/api/chat",
             "/api/model/getnames",
             "/api/model/getplatform"
@@ -99,50 +104,37 @@ public class JwtAuthenticationFilter  extends OncePerRequestFilter {
 
     //完整的处理token,包括Name非空(未校验Name相符)、有效期、版本号，通过后提取roles作为会员角色权限
     private void processTokenAuthentication(String jwtToken) {
-        String jwtEmailName= jwtTokenUtil.getNameFromToken(jwtToken); //从token中获取携带的Name(email)
-        Claims claims = jwtTokenUtil.getAllClaimsFromToken(jwtToken);
-        Integer jwtTokenVersion = (Integer)claims.get("tokenVersion");//提取版本号
+        JwtPrincipal principal = jwtTokenUtil.verify(jwtToken); //验证签名并解析，结果按token缓存
+        String jwtEmailName= principal.email(); //从token中获取携带的Name(email)
+        Integer jwtTokenVersion = principal.tokenVersion();//提取版本号
 
 
         //基础资格鉴定：Name(email)非空 且 token在有效期内
-        if (jwtEmailName == null || jwtTokenUtil.isTokenExpired(jwtToken)) {
+        if (jwtEmailName == null || principal.isExpired()) {
             throw new RuntimeException("无效的Token: 用户名不存在或Token已过期");
         }
 
-        //这里增加鉴定版本号
-        if (!jwtTokenVersion.equals(userService.getTokenVersionByEmail(jwtEmailName))) {
+        //refresh token只能用于换取access token
+        if (principal.refresh()) {
+            throw new RuntimeException("无效的Token: refresh token不能用于访问接口");
+        }
+
+        //这里增加鉴定版本号：只查询内存中的吊销名单(登出、充值、会员降级)，不查询数据库
+        if (tokenDenylist.isRevoked(jwtEmailName, jwtTokenVersion)) {
             throw new RuntimeException("无效的Token: token为旧版本已失效");
         }
 
         // 这里增加会员角色鉴定：提取role判断如果是MEMEBER或者SUPER_MEMEBER，判断会员时间是否过期；
         // 过期则将提取的role恢复成NORMAL,注入到请求头的Authentication以便后续响应函数自动识别
-        List<String> roles = jwtTokenUtil.extractRolesFromToken(claims);
-        User userOld = userService.getUserByEmail(jwtEmailName); //查询user信息
-        if(roles.get(0).equals("ROLE_MEMBER") || roles.get(0).equals("ROLE_SUPER_MEMBER")) {
-            //判断过期，系统函数默认为毫秒，数据库存储为秒
-            if(System.currentTimeMillis() > (userOld.getMembershipExpiry() * 1000))
-            {
-                userService.updateRoleByEmail(0, jwtEmailName); //更新user信息，重置role为NORMAL用户、重置membershipExpiry会员到期时间为0
-                userService.updateTokenVersionByEmail(jwtEmailName); //更新用户 tokenVersion 版本号
-                User userNew = userService.getUserByEmail(jwtEmailName); //查询更新后的user信息
-                UserRegisterResponseDTO userDto = UserRegisterResponseDTO.fromUser(userNew); //user信息脱敏
-
-                roles.set(0, "ROLE_NORMAL"); //替换当前token中获取的role，后续响应函数会员角色鉴定使用
-
-                // 将user信息封装生成token
-                String token = jwtTokenUtil.generateToken(userDto.getEmail(),userDto.getRoleName(),userDto.getName(), userDto.getTokenVersion());
-
-                //将新token返回客户端（实际未操作需用户重新login），生产环境下即时注入响应Header
-                logger.info("会员到期，已恢复为普通用户！新token为：" + token);
-                //response.setHeader("Authorization", "Bearer " + newToken);
-                //response.setHeader("Access-Control-Expose-Headers", "Authorization");
-
-            }
+        // 数据库中的降级(role、tokenVersion)由MembershipSweeper定时批量执行，这里只比较缓存中的到期时间
+        User.Role role = principal.role();
+        if(role.isMembership() && userService.getAuthState(jwtEmailName).isMembershipExpired()) {
+            role = User.Role.NORMAL; //替换当前token中获取的role，后续响应函数会员角色鉴定使用
         }
 
         //将role注入到Authentication中，便于后续请求响应函数通过注解方法控制会员权限
         //会员到期中，role会被改为NORMAL注入上下文，本次请求后续响应函数会员权限校验时立刻阻止
-        setAuthentication(jwtEmailName, roles);  //将鉴定后的信息注入上下文
+        setAuthentication(jwtEmailName, List.of(role.authority()));  //将鉴定后的信息注入上下文
     }
 
     //通过 setAuthentication() 方法将roles角色信息注入到 SecurityContext 后,后续响应函数即可通过注解启动自动会员校验
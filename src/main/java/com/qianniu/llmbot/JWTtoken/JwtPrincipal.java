@@ -0,0 +1,17 @@
+package com.qianniu.llmbot.JWTtoken;
+
+import com.qianniu.llmbot.product_entity.User;
+
+/*********************************************
+ * 已验证签名的jwt token载荷，由JwtTokenUtil.verify返回(不可变，可在请求间缓存)
+ * 1）email为token的subject，作为用户唯一标识；role已由roles字段转换为枚举(refresh token不携带角色，为null)；
+ * 2）tokenVersion与TokenDenylist中记录的最小有效版本号比较，登出或充值后旧token失效；
+ * 3）refresh为true时是refresh token，只能用于/api/user/refresh换取新的access token，不能访问其他接口；
+ * **********************************************/
+
+public record JwtPrincipal(String email, User.Role role, String nickName, Integer tokenVersion, long expiresAtMillis, boolean refresh) {
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAtMillis;
+    }
+}
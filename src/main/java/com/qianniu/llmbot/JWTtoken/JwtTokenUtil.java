@@ -1,5 +1,6 @@
 package com.qianniu.llmbot.JWTtoken;
 
+import com.qianniu.llmbot.product_entity.User;
 import com.qianniu.llmbot.product_service.UserService;
 import io.jsonwebtoken.*;
 import io.jsonwebtoken.security.Keys;
@@ -9,19 +10,29 @@ import jakarta.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /*********************************************
  * JWT Token的生成与处理
  * 1）yml配置参数读入：jwt.secret、jwt.expiration；
  * 2）Token的生成：用户登录login成功才会生成token,其中会注入权限字段roles
- * 3）Token的处理：提取Name、提取载荷claim(含权限字段roles)
+ * 3）Token的处理：verify验证签名并解析为JwtPrincipal(email、role、nickName、tokenVersion、过期时间)，调用方只需解析一次；
+ * 4）SecretKey与JwtParser在启动时创建一次；验证通过的token按SHA-256摘要缓存(不保存token原文)，到期自动失效，缓存条数有上限；
+ * 5）token分为两类(typ字段)：access token有效期短(jwt.expiration)，访问接口时只在内存中校验(签名 + TokenDenylist)；
+ *    refresh token有效期长(jwt.refresh_expiration)，只用于换取新的access token，换取时与数据库中的tokenVersion比较；
+ *    没有typ字段的旧token视为格式错误，需要重新登录；
  * **********************************************/
 
 @Component
@@ -31,18 +42,58 @@ public class JwtTokenUtil {
     @Value("${jwt.secret}") // 从yml配置文件读取密钥
     private String secret;
 
-    @Value("${jwt.expiration}") // ADMIn管理员Token过期时间，默认1小时
+    @Value("${jwt.expiration}") // access token过期时间(秒)
     private Long expiration;
 
-    @Value("${jwt.expiration_admin}") // Token过期时间
+    @Value("${jwt.expiration_admin}") // ADMIN管理员access token过期时间(秒)
     private Long expiration_admin;
 
+    @Value("${jwt.refresh_expiration:1209600}") // refresh token过期时间(秒)，默认14天
+    private Long refreshExpiration;
+
+    @Value("${jwt.refresh_expiration_admin:28800}") // ADMIN管理员refresh token过期时间(秒)，默认8小时
+    private Long refreshExpirationAdmin;
+
+    public static final String REFRESH_TOKEN_HEADER = "X-Refresh-Token"; //响应头中返回refresh token
+    private static final String TYPE_ACCESS = "access";
+    public static final String EXPIRED_MESSAGE = "Token已过期"; //verify抛出的过期异常信息，调用方据此提示使用refresh token
+    private static final String TYPE_REFRESH = "refresh";
+
+    @Value("${jwt.cache_max_entries:10000}") // 已验证token缓存的最大条数，0表示不缓存
+    private int cacheMaxEntries;
+
     final Logger logger = LoggerFactory.getLogger(getClass());
 
+    //token摘要的前128位作为缓存键，避免保存token原文
+    private record TokenKey(long high, long low) {
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private SecretKey secretKey;
+    private JwtParser jwtParser; //线程安全，所有请求共用
+    private final ConcurrentHashMap<TokenKey, JwtPrincipal> verified = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong cacheEvictions = new AtomicLong();
+    private final AtomicLong verifyFailures = new AtomicLong();
+
     public JwtTokenUtil(UserService userService) {
         this.userService = userService;
     }
 
+    @PostConstruct
+    public void init() {
+        secretKey = createSecretKey();
+        jwtParser = Jwts.parser().verifyWith(secretKey).build();
+    }
+
     public String getSecret() {
         return secret;
     }
@@ -52,7 +103,7 @@ public class JwtTokenUtil {
     }
 
     // yml中密钥必须至少32字符（HS256要求256位）
-    private SecretKey getSecretKey() {
+    private SecretKey createSecretKey() {
         // 添加null检查
         if (secret == null) {
             logger.info("JWT密钥未配置！请检查application.yml中的jwt.secret设置");
@@ -66,11 +117,16 @@ public class JwtTokenUtil {
         return Keys.hmacShaKeyFor(secret.getBytes());
     }
 
-    //用户登录后生成token，将传入的user信息生成唯一的jwt令牌token返回请求客户端
+    //access token的最长有效期(毫秒)，TokenDenylist中的条目保留这么久之后，被吊销的access token都已过期
+    public long getMaxAccessTtlMillis() {
+        return Math.max(expiration, expiration_admin) * 1000;
+    }
+
+    //用户登录后生成access token，将传入的user信息生成唯一的jwt令牌token返回请求客户端
     public String generateToken(String emailName, String roleName, String nickName, Integer tokenVersion) {
-        SecretKey key = getSecretKey();// 确保yml配置密钥有效
         Map<String, Object> claims = new HashMap<>();
 
+        claims.put("typ", TYPE_ACCESS);
         claims.put("roles", List.of("ROLE_" + roleName));
         claims.put("nickName", nickName);
 
@@ -87,10 +143,31 @@ public class JwtTokenUtil {
                 .subject(emailName) // 新版API直接设置subject
                 .issuedAt(new Date())
                 .expiration(new Date(System.currentTimeMillis() + expirationTime * 1000)) //YML配置、数据库中存储为秒，系统函数默计算默认为毫秒
-                .signWith(key, SignatureAlgorithm.HS256) // 自动推断算法
+                .signWith(secretKey, SignatureAlgorithm.HS256) // 自动推断算法
                 .compact();
     }
 
+    //生成refresh token，只携带email与tokenVersion；登出、充值、会员降级(tokenVersion + 1)后失效
+    public String generateRefreshToken(String emailName, String roleName, Integer tokenVersion) {
+        long expirationTime = roleName.equals("ADMIN") ? refreshExpirationAdmin : refreshExpiration;
+        return Jwts.builder()
+                .claims(Map.of("typ", TYPE_REFRESH, "tokenVersion", tokenVersion))
+                .subject(emailName)
+                .issuedAt(new Date())
+                .expiration(new Date(System.currentTimeMillis() + expirationTime * 1000))
+                .signWith(secretKey, SignatureAlgorithm.HS256)
+                .compact();
+    }
+
+    //登录、充值、换取token成功后的响应头：Authorization为access token，X-Refresh-Token为refresh token
+    public HttpHeaders tokenHeaders(String emailName, String roleName, String nickName, Integer tokenVersion) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Authorization", "Bearer " + generateToken(emailName, roleName, nickName, tokenVersion));
+        headers.set(REFRESH_TOKEN_HEADER, generateRefreshToken(emailName, roleName, tokenVersion));
+        headers.set("Access-Control-Expose-Headers", "Authorization, " + REFRESH_TOKEN_HEADER); // 允许前端读取
+        return headers;
+    }
+
     //从请求头Header中提取token
     public String extractToken(HttpServletRequest request) {
         String header = request.getHeader("Authorization");
@@ -100,56 +177,119 @@ public class JwtTokenUtil {
         return null;
     }
 
-    // 从 Token 中提取Name,这里传入的是email，作为唯一标识
-    public String getNameFromToken(String token) {
-        return getClaimFromToken(token, Claims::getSubject);
+    // 验证token签名并解析载荷；同一token再次验证时直接返回缓存结果(未过期时)
+    // token无效、签名错误或已过期时抛出RuntimeException(过期时信息为EXPIRED_MESSAGE)
+    public JwtPrincipal verify(String token) {
+        if (token == null || token.isEmpty()) {
+            throw new RuntimeException("Token格式错误");
+        }
+        TokenKey key = cacheMaxEntries > 0 ? digest(token) : null;
+        if (key != null) {
+            JwtPrincipal cached = verified.get(key);
+            if (cached != null) {
+                if (!cached.isExpired()) {
+                    cacheHits.incrementAndGet();
+                    return cached;
+                }
+                verified.remove(key, cached); //已过期，重新解析时抛出"Token已过期"
+            }
+            cacheMisses.incrementAndGet();
+        }
+        JwtPrincipal principal = parse(token);
+        if (key != null) {
+            if (verified.size() >= cacheMaxEntries) {
+                evict();
+            }
+            verified.put(key, principal);
+        }
+        return principal;
     }
 
-    // 从token中提取roles权限字段
-    public List<String> extractRolesFromToken(Claims claims) {
-        try {
-            return (List<String>) claims.get("roles");
-        } catch (Exception e) {
-            logger.warn("无法从Token中提取角色信息: {}", e.getMessage());
-            return Collections.emptyList();
-        }
+    // 从 Token 中提取Name,这里传入的是email，作为唯一标识
+    public String getNameFromToken(String token) {
+        return verify(token).email();
     }
 
     // 检查 Token 是否过期
     public Boolean isTokenExpired(String token) {
-        final Date expiration = getExpirationDateFromToken(token);
-        return expiration.before(new Date());
-    }
-
-    // 获取 Token 的过期时间
-    public Date getExpirationDateFromToken(String token) {
-        return getClaimFromToken(token, Claims::getExpiration);
-    }
-
-    // 通用方法：从 Token 中提取指定信息
-    private <T> T getClaimFromToken(String token, Function<Claims, T> claimsResolver) {
-        final Claims claims = getAllClaimsFromToken(token);
-        return claimsResolver.apply(claims);
+        return verify(token).isExpired();
     }
 
-    // 解析 Token 的所有 Claims（有效载荷）
-    public Claims getAllClaimsFromToken(String token) {
+    // 解析 Token 的所有 Claims（有效载荷）并转换为JwtPrincipal
+    private JwtPrincipal parse(String token) {
         try {
-            return Jwts.parser()
-                    .verifyWith(getSecretKey())
-                    .build()
-                    .parseSignedClaims(token)
-                    .getPayload();
+            Claims claims = jwtParser.parseSignedClaims(token).getPayload();
+            Object type = claims.get("typ");
+            if (!TYPE_ACCESS.equals(type) && !TYPE_REFRESH.equals(type)) {
+                throw new MalformedJwtException("Token缺少类型信息");
+            }
+            if (!(claims.get("tokenVersion") instanceof Integer tokenVersion)) {
+                throw new MalformedJwtException("Token缺少版本号");
+            }
+            boolean refresh = TYPE_REFRESH.equals(type);
+            User.Role role = null;
+            if (!refresh) {
+                Object roles = claims.get("roles");
+                if (!(roles instanceof List<?> roleList) || roleList.isEmpty()) {
+                    throw new MalformedJwtException("Token缺少角色信息");
+                }
+                role = User.Role.fromAuthority(String.valueOf(roleList.get(0)));
+            }
+            Date expiresAt = claims.getExpiration();
+            return new JwtPrincipal(claims.getSubject(), role, (String) claims.get("nickName"), tokenVersion,
+                    expiresAt == null ? Long.MAX_VALUE : expiresAt.getTime(), refresh);
         } catch (ExpiredJwtException e) {
-            throw new RuntimeException("Token已过期", e);
+            verifyFailures.incrementAndGet();
+            throw new RuntimeException(EXPIRED_MESSAGE, e);
         } catch (MalformedJwtException e) {
+            verifyFailures.incrementAndGet();
             throw new RuntimeException("Token格式错误", e);
         } catch (SignatureException e) {
+            verifyFailures.incrementAndGet();
             throw new RuntimeException("Token签名无效", e);
         } catch (Exception e) {
+            verifyFailures.incrementAndGet();
             throw new RuntimeException("解析Token失败: " + e.getMessage(), e);
         }
     }
 
-}
+    private static TokenKey digest(String token) {
+        MessageDigest sha256 = SHA256.get();
+        ByteBuffer hash = ByteBuffer.wrap(sha256.digest(token.getBytes(StandardCharsets.US_ASCII)));
+        return new TokenKey(hash.getLong(), hash.getLong());
+    }
+
+    //缓存已满：先删除已过期的，仍超过上限的90%时任意删除部分条目
+    private synchronized void evict() {
+        if (verified.size() < cacheMaxEntries) {
+            return;
+        }
+        purgeExpired();
+        int target = cacheMaxEntries * 9 / 10;
+        Iterator<TokenKey> keys = verified.keySet().iterator();
+        while (verified.size() > target && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+            cacheEvictions.incrementAndGet();
+        }
+    }
 
+    //定时删除已过期的缓存条目
+    @Scheduled(fixedDelayString = "${jwt.cache_purge_interval_ms:60000}", initialDelayString = "${jwt.cache_purge_interval_ms:60000}")
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+        verified.values().removeIf(principal -> now >= principal.expiresAtMillis());
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("cachedTokens", verified.size());
+        stats.put("maxEntries", cacheMaxEntries);
+        stats.put("hits", cacheHits.get());
+        stats.put("misses", cacheMisses.get());
+        stats.put("evictions", cacheEvictions.get());
+        stats.put("verifyFailures", verifyFailures.get());
+        return stats;
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.qianniu.llmbot.JWTtoken;
+
+import com.qianniu.llmbot.cluster.InvalidationBus;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*********************************************
+ * 已吊销token的内存名单，access token只在内存中校验，不再每个请求查询数据库中的tokenVersion
+ * 1）按email记录最小有效版本号：tokenVersion小于该值的token均已吊销(登出、充值、会员降级时tokenVersion + 1)；
+ * 2）每个用户只保留一条，保留时间为access token的最长有效期，之后被吊销的access token都已过期，条目自动删除；
+ *    refresh token换取access token时与数据库中的tokenVersion比较，不依赖本名单；
+ * 3）启动时从users表加载最近updatedAt在保留时间内的用户，重启的节点不会漏掉重启前的吊销；
+ * 4）吊销经InvalidationBus的token主题通知其他节点(key为"版本号:email")，接收方按版本号取较大值合并，重复、乱序接收结果相同；
+ *    可能漏掉事件时按3）重新加载；
+ * **********************************************/
+
+@Component
+@DependsOn("databaseInitializer") //users表由DatabaseInitializer创建
+public class TokenDenylist {
+    private static final Logger logger = LoggerFactory.getLogger(TokenDenylist.class);
+    public static final String INVALIDATION_TOPIC = "token";
+
+    //email的token版本号小于minVersion时已吊销，条目在expiresAtMillis之后删除
+    public record Revocation(String email, int minVersion, long expiresAtMillis) {
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final InvalidationBus invalidationBus;
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, Revocation> revocations = new ConcurrentHashMap<>();
+
+    private final AtomicLong revoked = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong rejectedChecks = new AtomicLong();
+
+    public TokenDenylist(JdbcTemplate jdbcTemplate, InvalidationBus invalidationBus,
+                         @Value("${jwt.expiration}") long expiration,
+                         @Value("${jwt.expiration_admin}") long expirationAdmin) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.invalidationBus = invalidationBus;
+        this.ttlMillis = Math.max(expiration, expirationAdmin) * 1000;
+        invalidationBus.subscribe(INVALIDATION_TOPIC, this::receive, this::open);
+    }
+
+    //加载保留时间内tokenVersion可能变化过的用户(updatedAt在保留时间内)
+    @PostConstruct
+    public void open() {
+        long cutoff = (System.currentTimeMillis() - ttlMillis) / 1000;
+        jdbcTemplate.query("SELECT email, tokenVersion, updatedAt FROM users WHERE updatedAt >= ?", rs -> {
+            merge(new Revocation(rs.getString(1), rs.getInt(2), rs.getLong(3) * 1000 + ttlMillis));
+        }, cutoff);
+        logger.info("已加载{}条token吊销记录", revocations.size());
+    }
+
+    //token是否已吊销
+    public boolean isRevoked(String email, Integer tokenVersion) {
+        Revocation revocation = revocations.get(email);
+        if (revocation == null || tokenVersion == null) {
+            return tokenVersion == null;
+        }
+        if (tokenVersion < revocation.minVersion() && System.currentTimeMillis() < revocation.expiresAtMillis()) {
+            rejectedChecks.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    //在更新tokenVersion的事务内调用，通知其他节点(事务提交后生效)
+    public void publish(Map<String, Integer> newVersions) {
+        newVersions.forEach((email, version) -> invalidationBus.publish(INVALIDATION_TOPIC, version + ":" + email));
+    }
+
+    //本节点吊销(tokenVersion已更新为newVersions中的值，事务已提交)
+    public void revoke(Map<String, Integer> newVersions) {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        newVersions.forEach((email, version) -> merge(new Revocation(email, version, expiresAt)));
+        revoked.addAndGet(newVersions.size());
+    }
+
+    //其他节点的吊销，key为"版本号:email"
+    private void receive(String key) {
+        int separator = key.indexOf(':');
+        merge(new Revocation(key.substring(separator + 1), Integer.parseInt(key.substring(0, separator)), System.currentTimeMillis() + ttlMillis));
+        received.incrementAndGet();
+    }
+
+    //合并：版本号取较大值，保留时间取较晚值；与接收顺序、次数无关
+    private void merge(Revocation incoming) {
+        revocations.merge(incoming.email(), incoming, (current, next) -> new Revocation(current.email(),
+                Math.max(current.minVersion(), next.minVersion()), Math.max(current.expiresAtMillis(), next.expiresAtMillis())));
+    }
+
+    //删除已过保留时间的条目
+    @Scheduled(fixedDelayString = "${jwt.cache_purge_interval_ms:60000}", initialDelayString = "${jwt.cache_purge_interval_ms:60000}")
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+        revocations.values().removeIf(revocation -> now >= revocation.expiresAtMillis());
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", revocations.size());
+        stats.put("ttlSeconds", ttlMillis / 1000);
+        stats.put("revoked", revoked.get());
+        stats.put("received", received.get());
+        stats.put("rejectedChecks", rejectedChecks.get());
+        return stats;
+    }
+}
@@ -3,6 +3,7 @@ package com.qianniu.llmbot;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.web.reactive.function.client.WebClient;
 
 /*响应函数中的同步与异步方法：
@@ -25,6 +26,7 @@ import org.springframework.web.reactive.function.client.WebClient;
 
 
 @SpringBootApplication
+@EnableScheduling //启用@Scheduled定时任务(WAL重放等后台任务)，线程数由spring.task.scheduling.pool.size配置
 public class LlmbotApplication {
 
     public static void main(String[] args) {
@@ -0,0 +1,117 @@
+package com.qianniu.llmbot.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/*********************************************
+ * 一致性哈希环(不可变)：每个节点按virtualNodes个虚拟节点分布在64位哈希环上，key归属顺时针方向的第一个虚拟节点
+ * 1）节点按地址排序去重后构建，相同成员的环在所有节点上完全一致，与配置顺序无关；
+ * 2）增加一个节点只会从其他节点各分走一小段，删除一个节点只有该节点的key移动到相邻节点，其余key归属不变；
+ * 3）哈希为FNV-1a + murmur3 fmix64(与BloomFilter相同)，虚拟节点越多各节点分到的比例越均匀；
+ * **********************************************/
+
+public final class ConsistentHashRing {
+    private static final double RING_SIZE = Math.pow(2, 64);
+
+    private record Point(long hash, String owner) {
+    }
+
+    private final List<String> nodes;
+    private final int virtualNodes;
+    private final long[] points; //升序排列的虚拟节点哈希值
+    private final String[] owners; //与points对应的节点
+
+    private ConsistentHashRing(List<String> nodes, int virtualNodes, long[] points, String[] owners) {
+        this.nodes = nodes;
+        this.virtualNodes = virtualNodes;
+        this.points = points;
+        this.owners = owners;
+    }
+
+    public static ConsistentHashRing of(Collection<String> nodes, int virtualNodes) {
+        List<String> sorted = List.copyOf(new TreeSet<>(nodes));
+        int replicas = Math.max(1, virtualNodes);
+        Point[] entries = new Point[sorted.size() * replicas];
+        int i = 0;
+        for (String node : sorted) {
+            for (int v = 0; v < replicas; v++) {
+                entries[i++] = new Point(hash64(node + "#" + v), node);
+            }
+        }
+        //哈希值相同(极少出现)时按节点地址排序，保证各节点构建的环一致
+        Arrays.sort(entries, Comparator.comparingLong(Point::hash).thenComparing(Point::owner));
+        long[] points = new long[entries.length];
+        String[] owners = new String[entries.length];
+        for (int j = 0; j < entries.length; j++) {
+            points[j] = entries[j].hash();
+            owners[j] = entries[j].owner();
+        }
+        return new ConsistentHashRing(sorted, replicas, points, owners);
+    }
+
+    //key所属的节点，环为空时返回null
+    public String ownerOf(String key) {
+        return points.length == 0 ? null : owners[index(hash64(key))];
+    }
+
+    //顺时针方向第一个不小于hash的虚拟节点，超过最后一个时回到第一个
+    private int index(long hash) {
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i == points.length ? 0 : i;
+    }
+
+    //与other相比归属发生变化的哈希空间比例(0~1)，即成员变化时需要移动的key的比例
+    public double movedFraction(ConsistentHashRing other) {
+        if (points.length == 0 || other.points.length == 0) {
+            return points.length == other.points.length ? 0 : 1;
+        }
+        long[] merged = new long[points.length + other.points.length];
+        System.arraycopy(points, 0, merged, 0, points.length);
+        System.arraycopy(other.points, 0, merged, points.length, other.points.length);
+        Arrays.sort(merged);
+        double moved = 0;
+        long previous = merged[merged.length - 1];
+        for (long point : merged) {
+            //(previous, point]区间在两个环中分别归属point之后的第一个虚拟节点
+            if (!owners[index(point)].equals(other.owners[other.index(point)])) {
+                moved += unsignedDistance(previous, point);
+            }
+            previous = point;
+        }
+        return moved / RING_SIZE;
+    }
+
+    private static double unsignedDistance(long from, long to) {
+        long distance = to - from;
+        return (distance >>> 1) * 2.0 + (distance & 1);
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    static long hash64(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,221 @@
+package com.qianniu.llmbot.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import reactor.core.publisher.Flux;
+
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*********************************************
+ * 对话请求的会话亲和路由(可选)：同一conversation_id始终由同一个节点处理，历史记录缓存只在该节点上命中
+ * 1）cluster.self_url与cluster.peers组成一致性哈希环(虚拟节点)，各节点配置一致时对会话归属的判断相同；
+ * 2）会话不属于本节点时，把请求(包括Authorization)转发给所属节点，响应流经本节点原样返回客户端；
+ *    转发的请求带X-Affinity-Forwarded与集群密钥请求头，接收方一律在本地处理，不会再次转发(成员视图短暂不一致时也不会循环)；
+ *    密钥校验不通过时忽略X-Affinity-Forwarded，按哈希环正常路由(客户端不能伪造该请求头绕过路由)；
+ * 3）定时检查peer(GET /api/internal/ping)，不可用的节点移出哈希环、恢复后加回，只有该节点负责的会话移动；
+ *    转发在建立连接阶段失败(连接被拒绝、连接超时、域名无法解析)时立即移出该节点，本次请求改为本地处理；
+ *    请求可能已发出的失败(连接中途断开、响应错误)不回落本地，返回错误，避免同一问题被两个节点各调用一次模型；
+ * 4）统计本地命中、转发、接收转发、回落本地、密钥校验失败的次数与本地命中率；
+ * **********************************************/
+
+@Component
+public class ConversationRouter {
+    private static final Logger logger = LoggerFactory.getLogger(ConversationRouter.class);
+    public static final String FORWARDED_HEADER = "X-Affinity-Forwarded";
+
+    private final boolean enabled;
+    private final String selfUrl;
+    private final List<String> peers;
+    private final int virtualNodes;
+    private final String clusterSecret;
+    private final WebClient webClient;
+
+    private final Set<String> downPeers = ConcurrentHashMap.newKeySet();
+    private volatile ConsistentHashRing ring;
+    private volatile double lastMovedFraction;
+
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder forwardedIn = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder forwardFailures = new LongAdder();
+    private final LongAdder rejectedForwardHeaders = new LongAdder();
+    private final LongAdder membershipChanges = new LongAdder();
+    private final Map<String, LongAdder> forwardedByPeer = new ConcurrentHashMap<>();
+
+    public ConversationRouter(WebClient.Builder webClientBuilder,
+                              @Value("${cluster.affinity_enabled:false}") boolean affinityEnabled,
+                              @Value("${cluster.self_url:}") String selfUrl,
+                              @Value("${cluster.peers:}") String peers,
+                              @Value("${cluster.secret:}") String clusterSecret,
+                              @Value("${cluster.virtual_nodes:160}") int virtualNodes) {
+        this.selfUrl = selfUrl.trim();
+        this.peers = Arrays.stream(peers.split(",")).map(String::trim)
+                .filter(peer -> !peer.isEmpty() && !peer.equals(this.selfUrl)).distinct().toList();
+        this.virtualNodes = virtualNodes;
+        this.clusterSecret = clusterSecret;
+        this.webClient = webClientBuilder.build();
+        this.enabled = affinityEnabled && !this.selfUrl.isEmpty() && !clusterSecret.isEmpty() && !this.peers.isEmpty();
+        if (affinityEnabled && !enabled) {
+            logger.warn("会话亲和路由需要配置cluster.self_url、cluster.secret与cluster.peers，当前未启用");
+        }
+        this.ring = buildRing();
+    }
+
+    private ConsistentHashRing buildRing() {
+        List<String> members = new ArrayList<>();
+        members.add(selfUrl);
+        peers.stream().filter(peer -> !downPeers.contains(peer)).forEach(members::add);
+        return ConsistentHashRing.of(members, virtualNodes);
+    }
+
+    //成员变化时重建哈希环，记录归属变化的比例
+    private synchronized void rebuildRing(String reason) {
+        ConsistentHashRing rebuilt = buildRing();
+        lastMovedFraction = ring.movedFraction(rebuilt);
+        ring = rebuilt;
+        membershipChanges.increment();
+        logger.info("会话哈希环已更新({}): 成员{}, {}%的会话改变归属", reason, rebuilt.getNodes(),
+                String.format("%.1f", lastMovedFraction * 100));
+    }
+
+    private void markDown(String peer, String reason) {
+        if (downPeers.add(peer)) {
+            rebuildRing(peer + "不可用: " + reason);
+        }
+    }
+
+    private void markUp(String peer) {
+        if (downPeers.remove(peer)) {
+            rebuildRing(peer + "已恢复");
+        }
+    }
+
+    //返回会话所属的其他节点地址；未启用、本节点所属、或请求已由其他节点转发过(携带正确的集群密钥)时返回null(本地处理)
+    public String ownerOf(String conversationId, String forwardedBy, String secret) {
+        if (!enabled) {
+            return null;
+        }
+        if (forwardedBy != null) {
+            if (isClusterSecret(secret)) {
+                forwardedIn.increment();
+                return null;
+            }
+            rejectedForwardHeaders.increment();
+        }
+        String owner = ring.ownerOf(conversationId);
+        if (owner == null || owner.equals(selfUrl)) {
+            localHits.increment();
+            return null;
+        }
+        return owner;
+    }
+
+    //把对话请求转发给owner，响应流原样返回；建立连接失败(请求一定未送达)时改为local处理
+    public Flux<String> forward(String owner, String path, String authHeader, Object body, Supplier<Flux<String>> local) {
+        forwarded.increment();
+        forwardedByPeer.computeIfAbsent(owner, peer -> new LongAdder()).increment();
+        AtomicBoolean started = new AtomicBoolean();
+        return webClient.post()
+                .uri(owner + path)
+                .header(HttpHeaders.AUTHORIZATION, authHeader)
+                .header(FORWARDED_HEADER, selfUrl)
+                .header(InvalidationBus.CLUSTER_SECRET_HEADER, clusterSecret)
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .bodyValue(body)
+                .retrieve()
+                .bodyToFlux(String.class)
+                .doOnNext(chunk -> started.set(true))
+                .onErrorResume(e -> !started.get(), e -> {
+                    if (isConnectFailure(e)) { //请求未送达owner，本地处理不会重复调用模型
+                        fallbacks.increment();
+                        markDown(owner, e.getMessage());
+                        return local.get();
+                    }
+                    forwardFailures.increment();
+                    logger.warn("对话请求转发到{}失败: {}", owner, e.getMessage());
+                    return Flux.just("错误：会话所在节点处理失败，请稍后重试！");
+                });
+    }
+
+    //WebClientRequestException也包括请求发出之后的I/O失败，只有原因为建立连接失败时才能确定owner没有收到请求
+    private static boolean isConnectFailure(Throwable e) {
+        if (!(e instanceof WebClientRequestException)) {
+            return false;
+        }
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException) { //netty的ConnectTimeoutException继承自ConnectException
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //常量时间比较集群密钥
+    private boolean isClusterSecret(String secret) {
+        return secret != null && MessageDigest.isEqual(clusterSecret.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    //检查各peer是否可用，状态变化时重建哈希环
+    @Scheduled(fixedDelayString = "${cluster.affinity_health_interval_ms:5000}", initialDelayString = "${cluster.affinity_health_interval_ms:5000}")
+    public void checkPeers() {
+        if (!enabled) {
+            return;
+        }
+        for (String peer : peers) {
+            webClient.get()
+                    .uri(peer + "/api/internal/ping")
+                    .header(InvalidationBus.CLUSTER_SECRET_HEADER, clusterSecret)
+                    .retrieve()
+                    .toBodilessEntity()
+                    .timeout(Duration.ofSeconds(2))
+                    .subscribe(response -> markUp(peer), e -> markDown(peer, e.getMessage()));
+        }
+    }
+
+    public Map<String, Object> stats() {
+        long local = localHits.sum();
+        long out = forwarded.sum();
+        Map<String, Object> perPeer = new LinkedHashMap<>();
+        forwardedByPeer.forEach((peer, count) -> perPeer.put(peer, count.sum()));
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("self", selfUrl);
+        stats.put("members", ring.getNodes());
+        stats.put("downPeers", List.copyOf(downPeers));
+        stats.put("virtualNodes", ring.getVirtualNodes());
+        stats.put("localHits", local);
+        stats.put("forwarded", out);
+        stats.put("localHitRatio", local + out == 0 ? 0 : (double) local / (local + out));
+        stats.put("forwardedIn", forwardedIn.sum());
+        stats.put("fallbacks", fallbacks.sum());
+        stats.put("forwardFailures", forwardFailures.sum());
+        stats.put("rejectedForwardHeaders", rejectedForwardHeaders.sum());
+        stats.put("forwardedByPeer", perPeer);
+        stats.put("membershipChanges", membershipChanges.sum());
+        stats.put("lastMovedFraction", lastMovedFraction);
+        return stats;
+    }
+}
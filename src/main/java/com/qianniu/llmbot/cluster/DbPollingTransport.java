@@ -0,0 +1,217 @@
+package com.qianniu.llmbot.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*********************************************
+ * db模式：失效事件写入cache_invalidations表，各节点定时按seq拉取，不需要节点之间互相访问
+ * 1）事件与数据修改在同一个事务内写入，提交后才对其他节点可见，回滚时一起撤销，不会丢失也不会多出；
+ * 2）按seq升序拉取并记录已拉取的最大seq，同一事件只应用一次；
+ * 3）自增seq在插入时分配、提交时才可见，较小的seq可能晚于较大的seq出现：跳过的seq记为空缺，之后每次拉取时补查，
+ *    超过gap_timeout仍未出现(事务回滚或异常长的事务)时使全部订阅者整体失效；空缺过多时直接整体失效；
+ * 4）启动时从当前最大seq开始，此前的事件对刚启动的空缓存没有影响；超过保留时间的事件定时删除，
+ *    定时任务不在调用方的事务内(连接池auto-commit为false)，每批DELETE在各自的事务中提交；
+ * **********************************************/
+
+public class DbPollingTransport implements InvalidationTransport {
+    private static final Logger logger = LoggerFactory.getLogger(DbPollingTransport.class);
+    private static final int MAX_GAPS = 10000;
+
+    //事件表的读写
+    public interface Log {
+        void append(InvalidationEvent event);
+
+        long maxSeq();
+
+        List<InvalidationEvent> readAfter(long seq, int limit);
+
+        List<InvalidationEvent> readSeqs(Collection<Long> seqs);
+
+        int purgeBefore(long createdAtSeconds);
+    }
+
+    private final Log log;
+    private final int batchSize;
+    private final long gapTimeoutMillis;
+    private final long retentionSeconds;
+
+    private InvalidationBus bus;
+    private boolean initialized;
+    private long lastSeq;
+    private final TreeMap<Long, Long> gaps = new TreeMap<>(); //空缺的seq -> 发现时间
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder polled = new LongAdder();
+    private final LongAdder gapsFilled = new LongAdder();
+    private final LongAdder gapsExpired = new LongAdder();
+    private final LongAdder pollFailures = new LongAdder();
+
+    public DbPollingTransport(Log log, int batchSize, long gapTimeoutMillis, long retentionSeconds) {
+        this.log = log;
+        this.batchSize = Math.max(1, batchSize);
+        this.gapTimeoutMillis = gapTimeoutMillis;
+        this.retentionSeconds = retentionSeconds;
+    }
+
+    @Override
+    public synchronized void open(InvalidationBus bus) {
+        this.bus = bus;
+        try {
+            lastSeq = log.maxSeq();
+            initialized = true;
+        } catch (RuntimeException e) {
+            logger.warn("读取失效事件表失败，首次拉取时重试: {}", e.getMessage());
+        }
+    }
+
+    //在调用方的事务内写入
+    @Override
+    public void publish(InvalidationEvent event) {
+        log.append(event);
+        appended.increment();
+    }
+
+    @Override
+    public synchronized void poll() {
+        long now = System.currentTimeMillis();
+        boolean missed = false;
+        try {
+            if (!initialized) {
+                lastSeq = log.maxSeq();
+                initialized = true;
+                return;
+            }
+            //补查此前跳过的seq
+            if (!gaps.isEmpty()) {
+                for (InvalidationEvent event : log.readSeqs(gaps.keySet())) {
+                    if (gaps.remove(event.seq()) != null) {
+                        gapsFilled.increment();
+                        polled.increment();
+                        bus.deliver(event);
+                    }
+                }
+                Iterator<Long> firstSeen = gaps.values().iterator();
+                while (firstSeen.hasNext()) {
+                    if (now - firstSeen.next() >= gapTimeoutMillis) {
+                        firstSeen.remove();
+                        gapsExpired.increment();
+                        missed = true;
+                    }
+                }
+            }
+            List<InvalidationEvent> events;
+            do {
+                events = log.readAfter(lastSeq, batchSize);
+                for (InvalidationEvent event : events) {
+                    long skipped = event.seq() - lastSeq - 1;
+                    if (skipped > MAX_GAPS - gaps.size()) {
+                        missed = true;
+                    } else {
+                        for (long seq = lastSeq + 1; seq < event.seq(); seq++) {
+                            gaps.put(seq, now);
+                        }
+                    }
+                    lastSeq = event.seq();
+                    polled.increment();
+                    bus.deliver(event);
+                }
+            } while (events.size() >= batchSize);
+        } catch (RuntimeException e) {
+            pollFailures.increment();
+            logger.warn("拉取失效事件失败: {}", e.getMessage());
+        }
+        if (missed) {
+            bus.resetAll("失效事件表中的seq空缺未补齐");
+        }
+    }
+
+    //删除超过保留时间的事件，多个节点同时执行时结果相同
+    @Override
+    public void purge() {
+        try {
+            int deleted = log.purgeBefore(System.currentTimeMillis() / 1000 - retentionSeconds);
+            if (deleted > 0) {
+                logger.info("已删除{}条过期的失效事件", deleted);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("删除过期的失效事件失败: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("lastSeq", lastSeq);
+        stats.put("pendingGaps", gaps.size());
+        stats.put("appended", appended.sum());
+        stats.put("polled", polled.sum());
+        stats.put("gapsFilled", gapsFilled.sum());
+        stats.put("gapsExpired", gapsExpired.sum());
+        stats.put("pollFailures", pollFailures.sum());
+        return stats;
+    }
+
+    //cache_invalidations表(DatabaseInitializer V9)
+    public static class JdbcLog implements Log {
+        private static final int PURGE_BATCH = 10000;
+        private static final RowMapper<InvalidationEvent> EVENT_MAPPER = (rs, rowNum) ->
+                new InvalidationEvent(rs.getString(2), rs.getLong(1), rs.getString(3), rs.getString(4));
+
+        private final JdbcTemplate jdbcTemplate;
+        private final TransactionTemplate transactionTemplate; //purge不在调用方的事务内，每批删除单独提交
+
+        public JdbcLog(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate) {
+            this.jdbcTemplate = jdbcTemplate;
+            this.transactionTemplate = transactionTemplate;
+        }
+
+        @Override
+        public void append(InvalidationEvent event) {
+            jdbcTemplate.update("INSERT INTO cache_invalidations (origin, topic, cache_key, created_at) VALUES (?, ?, ?, UNIX_TIMESTAMP())",
+                    event.origin(), event.topic(), event.key());
+        }
+
+        @Override
+        public long maxSeq() {
+            Long seq = jdbcTemplate.queryForObject("SELECT COALESCE(MAX(seq), 0) FROM cache_invalidations", Long.class);
+            return seq == null ? 0 : seq;
+        }
+
+        @Override
+        public List<InvalidationEvent> readAfter(long seq, int limit) {
+            return jdbcTemplate.query("SELECT seq, origin, topic, cache_key FROM cache_invalidations WHERE seq > ? ORDER BY seq LIMIT ?",
+                    EVENT_MAPPER, seq, limit);
+        }
+
+        @Override
+        public List<InvalidationEvent> readSeqs(Collection<Long> seqs) {
+            return jdbcTemplate.query("SELECT seq, origin, topic, cache_key FROM cache_invalidations WHERE seq IN ("
+                    + String.join(",", Collections.nCopies(seqs.size(), "?")) + ") ORDER BY seq", EVENT_MAPPER, seqs.toArray());
+        }
+
+        @Override
+        public int purgeBefore(long createdAtSeconds) {
+            int total = 0;
+            int deleted;
+            do {
+                Integer rows = transactionTemplate.execute(status ->
+                        jdbcTemplate.update("DELETE FROM cache_invalidations WHERE created_at < ? LIMIT ?", createdAtSeconds, PURGE_BATCH));
+                deleted = rows == null ? 0 : rows;
+                total += deleted;
+            } while (deleted >= PURGE_BATCH);
+            return total;
+        }
+    }
+}
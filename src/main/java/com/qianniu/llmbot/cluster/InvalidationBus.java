@@ -0,0 +1,204 @@
+package com.qianniu.llmbot.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.util.retry.Retry;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/*********************************************
+ * 多节点部署时的缓存失效总线：一个节点修改数据后，其他节点的内存缓存(用户鉴权状态、token吊销名单、模型目录、会话历史记录)随之失效
+ * 1）缓存按主题(topic)订阅：onInvalidate按key失效单条，onReset在可能漏掉事件时整体失效/重新加载；
+ * 2）修改数据的事务内调用publish，只通知其他节点，本节点的缓存由调用方自己失效(与之前相同)；
+ * 3）cluster.bus_mode选择传输方式：db为事件表轮询(不需要节点互通)，peer为向cluster.peers直接推送(延迟更低，需要cluster.secret)；
+ * 4）两种方式都按序号去重、按序号顺序应用，重复、重试的事件只应用一次；无法确认是否漏掉事件时一律整体失效，宁可多查一次数据库；
+ *    失效本身是幂等的(删除缓存条目、重新加载)，整体失效后缓存从数据库读取最新数据；
+ * **********************************************/
+
+@Component
+@DependsOn("databaseInitializer") //db模式的cache_invalidations表由DatabaseInitializer创建
+public class InvalidationBus {
+    private static final Logger logger = LoggerFactory.getLogger(InvalidationBus.class);
+    public static final String CLUSTER_SECRET_HEADER = "X-Cluster-Secret";
+
+    private record Subscriber(Consumer<String> onInvalidate, Runnable onReset) {
+    }
+
+    private final String origin;
+    private final String mode;
+    private final String clusterSecret;
+    private final InvalidationTransport transport;
+    private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder handlerFailures = new LongAdder();
+    private final LongAdder resets = new LongAdder();
+    private volatile String lastResetReason = "";
+
+    @Autowired
+    public InvalidationBus(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, WebClient.Builder webClientBuilder,
+                           @Value("${cluster.bus_mode:peer}") String mode,
+                           @Value("${cluster.node_id:}") String nodeId,
+                           @Value("${cluster.peers:}") String peers,
+                           @Value("${cluster.secret:}") String clusterSecret,
+                           @Value("${cluster.bus_batch_size:500}") int batchSize,
+                           @Value("${cluster.bus_queue_capacity:10000}") int queueCapacity,
+                           @Value("${cluster.bus_gap_timeout_ms:60000}") long gapTimeoutMillis,
+                           @Value("${cluster.bus_retention_seconds:3600}") long retentionSeconds) {
+        this((nodeId.isBlank() ? UUID.randomUUID().toString().substring(0, 8) : nodeId) + "@" + System.currentTimeMillis(),
+                mode, clusterSecret, switch (mode) {
+                    case "db" -> new DbPollingTransport(new DbPollingTransport.JdbcLog(jdbcTemplate, transactionTemplate), batchSize, gapTimeoutMillis, retentionSeconds);
+                    case "peer" -> new PeerTransport(peerList(peers, clusterSecret), httpSender(webClientBuilder.build(), clusterSecret),
+                            queueCapacity, batchSize, retentionSeconds * 1000);
+                    default -> throw new IllegalArgumentException("cluster.bus_mode只能为db或peer: " + mode);
+                });
+    }
+
+    //origin在节点的每次启动中唯一
+    InvalidationBus(String origin, String mode, String clusterSecret, InvalidationTransport transport) {
+        this.origin = origin;
+        this.mode = mode;
+        this.clusterSecret = clusterSecret;
+        this.transport = transport;
+        transport.open(this);
+        logger.info("缓存失效总线: 模式{}, 节点{}", mode, origin);
+    }
+
+    private static List<String> peerList(String peers, String clusterSecret) {
+        List<String> list = Arrays.stream(peers.split(",")).map(String::trim).filter(peer -> !peer.isEmpty()).toList();
+        if (!list.isEmpty() && clusterSecret.isEmpty()) {
+            logger.warn("已配置cluster.peers但未配置cluster.secret，缓存失效事件不会发送到其他节点");
+            return List.of();
+        }
+        return list;
+    }
+
+    private static BiFunction<String, List<InvalidationEvent>, CompletableFuture<?>> httpSender(WebClient webClient, String clusterSecret) {
+        return (peer, batch) -> webClient.post()
+                .uri(peer + "/api/internal/invalidations")
+                .header(CLUSTER_SECRET_HEADER, clusterSecret)
+                .bodyValue(batch)
+                .retrieve()
+                .toBodilessEntity()
+                .timeout(Duration.ofSeconds(3))
+                .retryWhen(Retry.backoff(3, Duration.ofMillis(200)))
+                .toFuture();
+    }
+
+    //每个主题只能有一个订阅者；onReset在可能漏掉事件时调用
+    public void subscribe(String topic, Consumer<String> onInvalidate, Runnable onReset) {
+        if (subscribers.putIfAbsent(topic, new Subscriber(onInvalidate, onReset)) != null) {
+            throw new IllegalStateException("缓存失效主题已被订阅: " + topic);
+        }
+    }
+
+    //通知其他节点topic下key对应的数据已修改；在修改数据的事务内调用，回滚时不会通知
+    public void publish(String topic, String key) {
+        transport.publish(new InvalidationEvent(origin, 0, topic, key));
+        published.increment();
+    }
+
+    //其他节点推送的事件(peer模式)，返回实际应用的条数
+    public int receive(List<InvalidationEvent> batch) {
+        return transport.receive(batch);
+    }
+
+    String origin() {
+        return origin;
+    }
+
+    boolean isLocal(String eventOrigin) {
+        return origin.equals(eventOrigin);
+    }
+
+    //应用一条其他节点的事件；本节点发布的事件已由调用方在本地失效
+    void deliver(InvalidationEvent event) {
+        if (isLocal(event.origin())) {
+            return;
+        }
+        Subscriber subscriber = subscribers.get(event.topic());
+        if (subscriber == null) {
+            return; //本节点没有该主题的缓存(滚动升级期间新版本节点发布的主题)
+        }
+        try {
+            subscriber.onInvalidate().accept(event.key());
+            delivered.increment();
+        } catch (RuntimeException e) {
+            handlerFailures.increment();
+            logger.error("应用缓存失效事件失败: {}", event, e);
+        }
+    }
+
+    //全部订阅者整体失效
+    void resetAll(String reason) {
+        resets.increment();
+        lastResetReason = reason;
+        logger.warn("缓存整体失效: {}", reason);
+        subscribers.forEach((topic, subscriber) -> {
+            try {
+                subscriber.onReset().run();
+            } catch (RuntimeException e) {
+                handlerFailures.increment();
+                logger.error("缓存{}整体失效失败", topic, e);
+            }
+        });
+    }
+
+    //校验其他节点请求携带的集群密钥(常量时间比较)；未配置密钥时拒绝
+    public boolean isClusterSecret(String secret) {
+        return !clusterSecret.isEmpty() && secret != null
+                && MessageDigest.isEqual(clusterSecret.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    //db模式拉取事件，peer模式无操作
+    @Scheduled(fixedDelayString = "${cluster.bus_poll_interval_ms:1000}", initialDelayString = "${cluster.bus_poll_interval_ms:1000}")
+    public void poll() {
+        transport.poll();
+    }
+
+    //peer模式通告最新序号，db模式无操作
+    @Scheduled(fixedDelayString = "${cluster.bus_heartbeat_interval_ms:5000}", initialDelayString = "${cluster.bus_heartbeat_interval_ms:5000}")
+    public void heartbeat() {
+        transport.heartbeat();
+    }
+
+    @Scheduled(fixedDelayString = "${cluster.bus_purge_interval_ms:60000}", initialDelayString = "${cluster.bus_purge_interval_ms:60000}")
+    public void purge() {
+        transport.purge();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", mode);
+        stats.put("origin", origin);
+        stats.put("topics", subscribers.keySet());
+        stats.put("published", published.sum());
+        stats.put("delivered", delivered.sum());
+        stats.put("handlerFailures", handlerFailures.sum());
+        stats.put("resets", resets.sum());
+        stats.put("lastResetReason", lastResetReason);
+        stats.put("transport", transport.stats());
+        return stats;
+    }
+}
@@ -0,0 +1,10 @@
+package com.qianniu.llmbot.cluster;
+
+/*********************************************
+ * 缓存失效事件：origin节点修改了topic下key对应的数据，其他节点需要使本地缓存失效
+ * 1）origin为发布节点的标识(节点名@启动时间)，节点重启后视为新的来源；
+ * 2）seq为事件序号：peer模式下为origin内的连续序号，db模式下为cache_invalidations表的自增seq；
+ * **********************************************/
+
+public record InvalidationEvent(String origin, long seq, String topic, String key) {
+}
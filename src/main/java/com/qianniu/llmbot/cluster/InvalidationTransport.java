@@ -0,0 +1,38 @@
+package com.qianniu.llmbot.cluster;
+
+import java.util.List;
+import java.util.Map;
+
+/*********************************************
+ * InvalidationBus在节点之间传递失效事件的方式
+ * 1）publish在修改数据的事务内调用：db模式随事务写入事件表，peer模式在事务提交后发送，回滚时都不会传出；
+ * 2）收到的事件按序号去重、排序后交给InvalidationBus.deliver；发现可能漏掉事件时调用InvalidationBus.resetAll；
+ * **********************************************/
+
+public interface InvalidationTransport {
+
+    //InvalidationBus创建时调用一次
+    void open(InvalidationBus bus);
+
+    //发布事件，event.seq()由传输方式分配
+    void publish(InvalidationEvent event);
+
+    //接收其他节点推送的事件(peer模式)，返回实际应用的条数
+    default int receive(List<InvalidationEvent> batch) {
+        return 0;
+    }
+
+    //定时拉取事件(db模式)
+    default void poll() {
+    }
+
+    //定时向其他节点通告本节点的最新序号(peer模式)，接收方据此发现丢失的最后一批事件
+    default void heartbeat() {
+    }
+
+    //定时清理过期的状态或记录
+    default void purge() {
+    }
+
+    Map<String, Object> stats();
+}
@@ -0,0 +1,240 @@
+package com.qianniu.llmbot.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/*********************************************
+ * peer模式：失效事件由发布节点直接推送给cluster.peers中的其他节点(POST /api/internal/invalidations)
+ * 1）事务提交后才分配序号并放入每个peer的发送队列，序号在本节点(origin)内连续递增，回滚的事务不占用序号；
+ * 2）每个peer同一时刻只有一批请求在发送，前一批完成(成功或重试后仍失败)后才发送下一批，接收方按序号顺序收到；
+ * 3）接收方按origin记录已应用的最大序号：不大于该序号的事件为重试造成的重复，直接忽略(幂等)；
+ *    序号不连续说明中间的事件已丢失(发送失败、队列溢出、本节点重启)，应用后使全部订阅者整体失效，不会保留旧数据；
+ * 4）发送队列有上限，peer长时间不可用时丢弃最早的事件，由接收方的序号检查发现并整体失效；
+ * 5）只靠下一个事件发现空缺时，丢失的最后一批事件要等到本节点再次发布才被发现：定时向队列已空的peer发送心跳，
+ *    携带本节点已分配的最大序号，接收方已应用的序号小于它时整体失效；心跳不交给订阅者，同时刷新origin的活跃时间；
+ * **********************************************/
+
+public class PeerTransport implements InvalidationTransport {
+    private static final Logger logger = LoggerFactory.getLogger(PeerTransport.class);
+    static final String HEARTBEAT_TOPIC = "_heartbeat"; //seq为发送节点已分配的最大序号，key为空
+
+    private record OriginState(long lastSeq, long lastSeenAt) {
+    }
+
+    private final List<String> peers;
+    private final BiFunction<String, List<InvalidationEvent>, CompletableFuture<?>> sender;
+    private final int queueCapacity;
+    private final int batchSize;
+    private final long originRetentionMillis;
+    private final Map<String, Channel> channels = new LinkedHashMap<>(); //构造后不再修改
+
+    private InvalidationBus bus;
+    private final Object publishLock = new Object();
+    private long nextSeq; //publishLock内修改
+    private final Map<String, OriginState> origins = new HashMap<>(); //this锁内修改
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder gaps = new LongAdder();
+    private final LongAdder heartbeats = new LongAdder();
+
+    //sender将一批事件发送到peer，返回的future完成表示对方已接收
+    public PeerTransport(List<String> peers, BiFunction<String, List<InvalidationEvent>, CompletableFuture<?>> sender,
+                         int queueCapacity, int batchSize, long originRetentionMillis) {
+        this.peers = List.copyOf(peers);
+        this.sender = sender;
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.originRetentionMillis = originRetentionMillis;
+        this.peers.forEach(peer -> channels.put(peer, new Channel(peer)));
+    }
+
+    @Override
+    public void open(InvalidationBus bus) {
+        this.bus = bus;
+    }
+
+    //事务内调用时在提交后发送，回滚时不发送
+    @Override
+    public void publish(InvalidationEvent event) {
+        if (channels.isEmpty()) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    enqueue(event);
+                }
+            });
+        } else {
+            enqueue(event);
+        }
+    }
+
+    //分配序号与放入队列在同一把锁内完成，每个peer队列中的序号严格递增
+    private void enqueue(InvalidationEvent event) {
+        synchronized (publishLock) {
+            InvalidationEvent sequenced = new InvalidationEvent(event.origin(), ++nextSeq, event.topic(), event.key());
+            channels.values().forEach(channel -> channel.offer(sequenced));
+        }
+        channels.values().forEach(Channel::drain);
+    }
+
+    //队列为空的peer放入一条心跳；在publishLock内读取序号，心跳排在已分配序号的事件之后
+    @Override
+    public void heartbeat() {
+        if (channels.isEmpty()) {
+            return;
+        }
+        synchronized (publishLock) {
+            if (nextSeq == 0) {
+                return; //尚未发布过事件
+            }
+            InvalidationEvent beat = new InvalidationEvent(bus.origin(), nextSeq, HEARTBEAT_TOPIC, null);
+            channels.values().forEach(channel -> channel.offerIfIdle(beat));
+        }
+        channels.values().forEach(Channel::drain);
+    }
+
+    @Override
+    public synchronized int receive(List<InvalidationEvent> batch) {
+        long now = System.currentTimeMillis();
+        int applied = 0;
+        boolean missed = false;
+        for (InvalidationEvent event : batch) {
+            if (bus.isLocal(event.origin())) {
+                continue; //peers中包含本节点地址时收到自己发布的事件
+            }
+            OriginState state = origins.get(event.origin());
+            long lastSeq = state == null ? 0 : state.lastSeq();
+            if (HEARTBEAT_TOPIC.equals(event.topic())) {
+                heartbeats.increment();
+                if (event.seq() > lastSeq) {
+                    gaps.increment();
+                    missed = true;
+                }
+                origins.put(event.origin(), new OriginState(Math.max(lastSeq, event.seq()), now));
+                continue;
+            }
+            if (event.seq() <= lastSeq) {
+                duplicates.increment();
+                continue;
+            }
+            if (event.seq() != lastSeq + 1) {
+                gaps.increment();
+                missed = true;
+            }
+            origins.put(event.origin(), new OriginState(event.seq(), now));
+            bus.deliver(event);
+            applied++;
+        }
+        received.add(applied);
+        if (missed) {
+            bus.resetAll("来自其他节点的失效事件序号不连续");
+        }
+        return applied;
+    }
+
+    //删除长时间没有事件的origin(已下线或重启的节点)；仍在运行的节点之后再发送时按序号不连续处理
+    @Override
+    public synchronized void purge() {
+        long cutoff = System.currentTimeMillis() - originRetentionMillis;
+        origins.values().removeIf(state -> state.lastSeenAt() < cutoff);
+    }
+
+    @Override
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("peers", peers);
+        stats.put("queued", channels.values().stream().mapToInt(Channel::depth).sum());
+        stats.put("sent", sent.sum());
+        stats.put("sendFailures", sendFailures.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("received", received.sum());
+        stats.put("duplicates", duplicates.sum());
+        stats.put("gaps", gaps.sum());
+        stats.put("heartbeats", heartbeats.sum());
+        stats.put("origins", origins.size());
+        return stats;
+    }
+
+    //发往一个peer的有序队列
+    private final class Channel {
+        private final String peer;
+        private final ArrayDeque<InvalidationEvent> queue = new ArrayDeque<>();
+        private boolean inFlight;
+
+        Channel(String peer) {
+            this.peer = peer;
+        }
+
+        synchronized void offer(InvalidationEvent event) {
+            if (queue.size() >= queueCapacity) {
+                queue.pollFirst();
+                dropped.increment();
+            }
+            queue.addLast(event);
+        }
+
+        //心跳只在没有待发送、正在发送的事件时放入，队列中的事件本身已携带序号
+        synchronized void offerIfIdle(InvalidationEvent event) {
+            if (!inFlight && queue.isEmpty()) {
+                queue.addLast(event);
+            }
+        }
+
+        synchronized int depth() {
+            return queue.size();
+        }
+
+        //没有正在发送的请求时取出一批发送，完成后继续发送剩余的事件
+        void drain() {
+            List<InvalidationEvent> batch;
+            synchronized (this) {
+                if (inFlight || queue.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(Math.min(batchSize, queue.size()));
+                while (batch.size() < batchSize && !queue.isEmpty()) {
+                    batch.add(queue.pollFirst());
+                }
+                inFlight = true;
+            }
+            CompletableFuture<?> future;
+            try {
+                future = sender.apply(peer, batch);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            future.whenComplete((response, e) -> {
+                if (e == null) {
+                    sent.add(batch.size());
+                } else {
+                    sendFailures.increment();
+                    dropped.add(batch.size());
+                    logger.warn("失效事件发送到{}失败({}条): {}", peer, batch.size(), e.getMessage());
+                }
+                synchronized (this) {
+                    inFlight = false;
+                }
+                drain();
+            });
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.qianniu.llmbot.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+
+/*********************************************
+ * 数据源配置：主库连接池 + 可选的只读副本(从库)连接池，按事务是否只读路由
+ * 1）应用使用的DataSource为LazyConnectionDataSourceProxy，事务开始时不立即获取物理连接，执行第一条语句时才按连接的只读标记选择连接池；
+ * 2）@Transactional(readOnly = true)的事务以及手动setReadOnly(true)的连接使用从库，其余全部使用主库；
+ * 3）从库复制延迟超过阈值或不可用时，只读事务自动改用主库(ReplicaLagMonitor)；
+ * 4）replica.enabled=false(默认)时不创建从库连接池，全部使用主库；本地测试可启动两个MySQL实例(从库配置主从复制或导入相同表结构)；
+ * **********************************************/
+
+@Configuration
+public class DataSourceConfig {
+
+    //主库连接池，连接参数读取spring.datasource，连接池参数读取spring.datasource.hikari
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("llmbot-primary");
+        return dataSource;
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "replica.enabled", havingValue = "true")
+    public HikariDataSource replicaDataSource(@Qualifier("primaryDataSource") HikariDataSource primary,
+                                              @Value("${replica.url}") String url,
+                                              @Value("${replica.username:${spring.datasource.username}}") String username,
+                                              @Value("${replica.password:${spring.datasource.password}}") String password,
+                                              @Value("${replica.maximum_pool_size:10}") int maximumPoolSize) {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setPoolName("llmbot-replica");
+        dataSource.setDriverClassName(primary.getDriverClassName());
+        dataSource.setJdbcUrl(url);
+        dataSource.setUsername(username);
+        dataSource.setPassword(password);
+        dataSource.setMaximumPoolSize(maximumPoolSize);
+        dataSource.setMinimumIdle(1);
+        dataSource.setReadOnly(true);                                   //从库连接均为只读，误写入时直接报错
+        dataSource.setAutoCommit(primary.isAutoCommit());               //与主库一致，事务内的设置由LazyConnectionDataSourceProxy统一处理
+        dataSource.setConnectionTimeout(primary.getConnectionTimeout());
+        dataSource.setValidationTimeout(primary.getValidationTimeout());
+        dataSource.setMaxLifetime(primary.getMaxLifetime());
+        dataSource.setKeepaliveTime(primary.getKeepaliveTime());
+        return dataSource;
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "replica.enabled", havingValue = "true")
+    public ReplicaLagMonitor replicaLagMonitor(@Qualifier("replicaDataSource") HikariDataSource replicaDataSource,
+                                               @Value("${replica.max_lag_seconds:5}") long maxLagSeconds) {
+        return new ReplicaLagMonitor(replicaDataSource, maxLagSeconds);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "replica.enabled", havingValue = "true")
+    public ReplicaRoutingDataSource replicaRoutingDataSource(@Qualifier("primaryDataSource") HikariDataSource primaryDataSource,
+                                                             @Qualifier("replicaDataSource") HikariDataSource replicaDataSource,
+                                                             ReplicaLagMonitor replicaLagMonitor) {
+        return new ReplicaRoutingDataSource(primaryDataSource, replicaDataSource, replicaLagMonitor);
+    }
+
+    //应用(JdbcTemplate、事务管理器、JPA)使用的DataSource
+    @Bean
+    @Primary
+    public DataSource dataSource(@Qualifier("primaryDataSource") HikariDataSource primaryDataSource,
+                                 ObjectProvider<ReplicaRoutingDataSource> replicaRoutingDataSource) {
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(primaryDataSource);
+        ReplicaRoutingDataSource readOnlyDataSource = replicaRoutingDataSource.getIfAvailable();
+        if (readOnlyDataSource != null) {
+            dataSource.setReadOnlyDataSource(readOnlyDataSource);
+        }
+        return dataSource;
+    }
+}
@@ -0,0 +1,111 @@
+package com.qianniu.llmbot.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*********************************************
+ * 只读副本(从库)的复制延迟检测，决定只读事务是否可以路由到从库
+ * 1）定时在从库执行SHOW REPLICA STATUS(MySQL 8.0.22之前为SHOW SLAVE STATUS)，读取复制延迟秒数；
+ * 2）延迟超过max_lag_seconds、复制线程未运行(延迟为NULL)或连接失败时，只读事务改为路由到主库，恢复后自动切回；
+ * 3）从库未配置复制(本地用两个独立实例测试)时查询结果为空，视为无延迟；
+ * **********************************************/
+
+public class ReplicaLagMonitor {
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaLagMonitor.class);
+
+    private final DataSource replicaDataSource;
+    private final long maxLagSeconds;
+
+    private volatile boolean usable;
+    private volatile long lagSeconds = -1;     //-1表示未知
+    private volatile String lastError;
+    private volatile boolean legacyStatusSyntax; //SHOW REPLICA STATUS不可用时改用SHOW SLAVE STATUS
+    private final AtomicLong lastCheckedAt = new AtomicLong();
+    private final AtomicLong unusableTransitions = new AtomicLong();
+
+    public ReplicaLagMonitor(DataSource replicaDataSource, long maxLagSeconds) {
+        this.replicaDataSource = replicaDataSource;
+        this.maxLagSeconds = maxLagSeconds;
+    }
+
+    public boolean isReplicaUsable() {
+        return usable;
+    }
+
+    @Scheduled(fixedDelayString = "${replica.check_interval_ms:5000}", initialDelay = 0)
+    public void check() {
+        try (Connection connection = replicaDataSource.getConnection()) {
+            Long lag = readLagSeconds(connection);
+            lagSeconds = lag == null ? -1 : lag;
+            lastError = lag == null ? "复制线程未运行" : null;
+            setUsable(lag != null && lag <= maxLagSeconds);
+        } catch (SQLException e) {
+            markUnavailable(e);
+        } finally {
+            lastCheckedAt.set(System.currentTimeMillis() / 1000);
+        }
+    }
+
+    //获取从库连接失败时立即标记不可用，等待下次检测恢复
+    public void markUnavailable(SQLException e) {
+        lastError = e.getMessage();
+        setUsable(false);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("usable", usable);
+        stats.put("lagSeconds", lagSeconds);
+        stats.put("maxLagSeconds", maxLagSeconds);
+        stats.put("lastCheckedAt", lastCheckedAt.get());
+        stats.put("unusableTransitions", unusableTransitions.get());
+        stats.put("lastError", lastError == null ? "" : lastError);
+        return stats;
+    }
+
+    //返回复制延迟秒数；复制线程未运行时为null；不是从库时为0
+    private Long readLagSeconds(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = queryStatus(statement)) {
+            if (!rs.next()) {
+                return 0L;
+            }
+            long lag = rs.getLong(legacyStatusSyntax ? "Seconds_Behind_Master" : "Seconds_Behind_Source");
+            return rs.wasNull() ? null : lag;
+        }
+    }
+
+    private ResultSet queryStatus(Statement statement) throws SQLException {
+        if (!legacyStatusSyntax) {
+            try {
+                return statement.executeQuery("SHOW REPLICA STATUS");
+            } catch (SQLSyntaxErrorException e) {
+                legacyStatusSyntax = true;
+            }
+        }
+        return statement.executeQuery("SHOW SLAVE STATUS");
+    }
+
+    private void setUsable(boolean nowUsable) {
+        if (usable != nowUsable) {
+            if (nowUsable) {
+                logger.info("只读副本可用，只读事务路由到从库，当前延迟{}秒", lagSeconds);
+            } else {
+                unusableTransitions.incrementAndGet();
+                logger.warn("只读副本不可用，只读事务改为路由到主库: 延迟{}秒, {}", lagSeconds, lastError);
+            }
+        }
+        usable = nowUsable;
+    }
+}
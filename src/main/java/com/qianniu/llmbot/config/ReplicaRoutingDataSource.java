@@ -0,0 +1,57 @@
+package com.qianniu.llmbot.config;
+
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*********************************************
+ * 只读连接的路由：从库可用(延迟在阈值内)时使用从库连接池，否则使用主库连接池
+ * 作为LazyConnectionDataSourceProxy的readOnlyDataSource，只有只读事务(或手动setReadOnly(true)的连接)才会经过这里
+ * **********************************************/
+
+public class ReplicaRoutingDataSource extends AbstractDataSource {
+    private final DataSource primaryDataSource;
+    private final DataSource replicaDataSource;
+    private final ReplicaLagMonitor lagMonitor;
+
+    private final LongAdder replicaConnections = new LongAdder();
+    private final LongAdder primaryFallbacks = new LongAdder();
+
+    public ReplicaRoutingDataSource(DataSource primaryDataSource, DataSource replicaDataSource, ReplicaLagMonitor lagMonitor) {
+        this.primaryDataSource = primaryDataSource;
+        this.replicaDataSource = replicaDataSource;
+        this.lagMonitor = lagMonitor;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (lagMonitor.isReplicaUsable()) {
+            try {
+                Connection connection = replicaDataSource.getConnection();
+                replicaConnections.increment();
+                return connection;
+            } catch (SQLException e) {
+                lagMonitor.markUnavailable(e); //从库连接失败，本次及之后的只读事务使用主库，直到下次检测恢复
+            }
+        }
+        primaryFallbacks.increment();
+        return primaryDataSource.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new UnsupportedOperationException("只读路由不支持指定用户名密码获取连接");
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>(lagMonitor.stats());
+        stats.put("replicaConnections", replicaConnections.sum());
+        stats.put("primaryFallbacks", primaryFallbacks.sum());
+        return stats;
+    }
+}
@@ -2,6 +2,7 @@ package com.qianniu.llmbot.config;
 
 import com.qianniu.llmbot.Filter.JwtAuthenticationFilter;
 import com.qianniu.llmbot.JWTtoken.JwtTokenUtil;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
@@ -46,10 +47,10 @@ public class SecurityConfig {
         this.jwtTokenUtil = jwtTokenUtil;
     }
 
-    //配置哈希加密，调用passwordEncoder时发挥作用
+    //配置哈希加密，调用passwordEncoder时发挥作用；cost可配置，修改后已有密码在登录成功时重新哈希(PasswordHashingService)
     @Bean
-    public PasswordEncoder passwordEncoder() {
-        return new BCryptPasswordEncoder(); // 默认使用 BCrypt 算法
+    public PasswordEncoder passwordEncoder(@Value("${password.bcrypt_cost:10}") int bcryptCost) {
+        return new BCryptPasswordEncoder(bcryptCost); // 使用 BCrypt 算法
     }
 
     //开放路径："/api/**"下的所有端点，其他端点需要认证; 需要在JWT Filter中同步开放白名单路径
@@ -67,6 +68,8 @@ public class SecurityConfig {
                         .requestMatchers(HttpMethod.OPTIONS, "/**").permitAll()
                         // 放行其他公开端点,需要同步在JWT Filter中放开
                         .requestMatchers("/api/info", "/api/user/register", "/api/user/login", "/api/chat/**", "/api/user/login","/api/model/getnames","/api/model/getplatform").permitAll()
+                        // 换取token(携带refresh token)、节点间内部接口(校验集群密钥)
+                        .requestMatchers("/api/user/refresh", "/api/internal/**").permitAll()
                         .anyRequest().authenticated())
                 .addFilterBefore(jwtAuthenticationFilter(), UsernamePasswordAuthenticationFilter.class)
                 .exceptionHandling(exceptions -> exceptions
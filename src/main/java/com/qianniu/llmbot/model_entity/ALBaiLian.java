@@ -3,10 +3,14 @@ package com.qianniu.llmbot.model_entity;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /*********************************************
  * 阿里百炼平台API Key
  * 1）在访问阿里百炼平台的模型API时，需要注入到HTTP请求Header中，否则不允许访问；
- * 2）key参数、timeout参数、modelname_qwtb模型名称，在yml文件中配置
+ * 2）keys参数为Key池(多个账号Key，逗号分隔)，未配置时退回使用单个key参数；cooldown为Key被限流(429)后的基础冷却时间(毫秒)；
+ * 3）key参数、timeout参数、modelname_qwtb模型名称，在yml文件中配置
  * **********************************************/
 
 //阿里百炼控制台API Key，核心字段为api key(token令牌)、timeout(超时)，yml文件中预定义
@@ -14,6 +18,8 @@ import org.springframework.stereotype.Component;
 @ConfigurationProperties(prefix = "apiplatform.alibailian")
 public class ALBaiLian {
     private String key;
+    private List<String> keys = new ArrayList<>();
+    private long cooldown = 1000;
     private int timeout;
     private String modelname_qwtb;
 
@@ -25,6 +31,22 @@ public class ALBaiLian {
         this.key = key;
     }
 
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    public void setKeys(List<String> keys) {
+        this.keys = keys;
+    }
+
+    public long getCooldown() {
+        return cooldown;
+    }
+
+    public void setCooldown(long cooldown) {
+        this.cooldown = cooldown;
+    }
+
     public int getTimeout() {
         return timeout;
     }
@@ -1,12 +1,11 @@
 package com.qianniu.llmbot.model_entity;
 
 
+import com.qianniu.llmbot.product_service.ModelProfile;
 import com.qianniu.llmbot.product_service.UserService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.config.ConfigurableBeanFactory;
-import org.springframework.context.annotation.Scope;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
 
@@ -18,31 +17,12 @@ import java.util.Map;
  * 1）模型api的官方请求参数——body定义, url与api单独在Header注入
  * 2）根据模型的特征(文本模型)、输入tokens数量自定义的相关参数(非官方)；
  * 3）所有参数需要先通过modelRegister写入到数据库中，在启动时通过初始化自动读取相关参数，其中API参数Map通过转换成String后存储在model表中的"model_parameters"字段中
+ * 4）参数由ModelCatalog编译为不可变的ModelProfile，本实体不保存请求相关状态，单例在并发请求间共享；
  * **********************************************/
 
 //阿里文本模型实体
 @Component
-@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE) // 每次注入时创建新实例
 public class AL_TextModel {
-    //模型官方定义的请求携带8个基础参数，即body中的参数，由数据库读入配置
-    private String model;
-    private boolean stream;
-    private boolean incrementalOutput;
-    private double temperature;
-    private double topP;
-    private double repetitionPenalty;
-    private String resultFormat;
-    private boolean enableSearch;
-    private int maxTokens;
-
-    //模型官方定义的url，单独注入请求Header，不是body参数不需要注入body
-    private String url;
-    //根据官方的输入token数量自定义的参数，不需要注入body
-    private int recordNumbers;
-
-    //根据官方介绍自定义的模型类型参数(0文本-1语音-2图片-3视频)，不需要注入body
-    private int contentType;
-
     private static final Logger logger = LoggerFactory.getLogger(UserService.class);//日志记录器，日志输出时会自动标记类名（如 UserService），便于过滤和排查问题。
 
     @Autowired
@@ -73,118 +53,22 @@ public class AL_TextModel {
         }
     }
 
-    // Getters and Setters
-    public String getModel() {
-        return model;
-    }
-
-    public void setModel(String model) {
-        this.model = model;
-    }
-
-    public String getUrl() {
-        return url;
-    }
-
-    public void setUrl(String url) {
-        this.url = url;
-    }
-
-    public boolean isStream() {
-        return stream;
-    }
-
-    public void setStream(boolean stream) {
-        this.stream = stream;
-    }
-
-    public boolean isIncrementalOutput() {
-        return incrementalOutput;
-    }
-
-    public void setIncrementalOutput(boolean incrementalOutput) {
-        this.incrementalOutput = incrementalOutput;
-    }
-
-    public double getTemperature() {
-        return temperature;
-    }
-
-    public void setTemperature(double temperature) {
-        this.temperature = temperature;
-    }
-
-    public double getTopP() {
-        return topP;
-    }
-
-    public void setTopP(double topP) {
-        this.topP = topP;
-    }
-
-    public double getRepetitionPenalty() {
-        return repetitionPenalty;
-    }
-
-    public void setRepetitionPenalty(double repetitionPenalty) {
-        this.repetitionPenalty = repetitionPenalty;
-    }
-
-    public String getResultFormat() {
-        return resultFormat;
-    }
-
-    public void setResultFormat(String resultFormat) {
-        this.resultFormat = resultFormat;
-    }
-
-    public boolean isEnableSearch() {
-        return enableSearch;
-    }
-
-    public void setEnableSearch(boolean enableSearch) {
-        this.enableSearch = enableSearch;
-    }
-
-    public int getMaxTokens() {
-        return maxTokens;
-    }
-
-    public void setMaxTokens(int maxTokens) {
-        this.maxTokens = maxTokens;
-    }
-
-    public int getRecordNumbers() {
-        return recordNumbers;
-    }
-
-    public void setRecordNumbers(int recordNumbers) {
-        this.recordNumbers = recordNumbers;
-    }
-
-    public int getContentType() {
-        return contentType;
-    }
-
-    public void setContentType(int contentType) {
-        this.contentType = contentType;
-    }
-
-    // 构造完整格式的请求基础参数（不包括 input.messages）
-    public Map<String, Object> getBaseRequestParams() {
+    //由模型目录中不可变的模型配置构造完整格式的请求基础参数（不包括 input.messages），每次请求新建Map，实例本身无状态
+    public Map<String, Object> getBaseRequestParams(ModelProfile model) {
+        ModelProfile.ALParameters modelParameters = model.requireAL();
         Map<String, Object> params = new HashMap<>();
-        params.put("model", model);
+        params.put("model", model.getModelName());
 
         // 构造 parameters 部分
         Map<String, Object> parameters = new HashMap<>();
-        parameters.put("stream", stream);
-        parameters.put("incremental_output", incrementalOutput);
-        parameters.put("temperature", temperature);
-        parameters.put("top_p", topP);
-        parameters.put("repetition_penalty", repetitionPenalty);
-        parameters.put("result_format", resultFormat);
-        parameters.put("enable_search", enableSearch);
-        parameters.put("max_tokens", maxTokens);
+        parameters.put("stream", modelParameters.stream());
+        parameters.put("incremental_output", modelParameters.incrementalOutput());
+        parameters.put("temperature", modelParameters.temperature());
+        parameters.put("top_p", modelParameters.topP());
+        parameters.put("repetition_penalty", modelParameters.repetitionPenalty());
+        parameters.put("result_format", modelParameters.resultFormat());
+        parameters.put("enable_search", modelParameters.enableSearch());
+        parameters.put("max_tokens", modelParameters.maxTokens());
 
         params.put("parameters", parameters);
         return params;
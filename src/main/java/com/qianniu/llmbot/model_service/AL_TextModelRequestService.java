@@ -24,7 +24,7 @@ import java.util.concurrent.TimeUnit;
 
 /*********************************************
  * 根据官方参数定义的阿里百炼qwen-turbo模型的请求方法WebClient
- * 1）将官方api key参数、timeout参数注入Header，同时设置Header中的相关字段(根据官网请求实例)；
+ * 1）将timeout参数注入Header，api key改为每次请求时从Key池中按负载选择注入(支持多账号、429限流退避)，同时设置Header中的相关字段(根据官网请求实例)；
  * 2）将请求url、基础参数注入body；查询历史记录message并构造聊天格式+最新的user prompt注入body；
  * 3）携带完整body发送请求，获得流式响应Chunk;
  * **********************************************/
@@ -35,20 +35,22 @@ public class AL_TextModelRequestService {
 
     private final ALBaiLian alBaiLian;
     private final WebClient webClient;
+    private final ApiKeyPool keyPool;
     private final MessageService messageService;
 
     @Autowired
     public AL_TextModelRequestService(ALBaiLian alBaiLian, WebClient.Builder webClientBuilder, MessageService messageService) {
         this.alBaiLian = alBaiLian;
+        this.keyPool = new ApiKeyPool("alibailian", ApiKeyPool.keyList(alBaiLian.getKeys(), alBaiLian.getKey()), alBaiLian.getCooldown());
         this.webClient = configureWebClient(webClientBuilder);
         this.messageService = messageService;
     }
 
-    //向第三方API(qwen-turbo模型)的HTTP请求webClient的Header中，注入ALBaiLian平台中的参数key、timeout(由yml配置读入)，以及阿里百炼特有在Header中指定X-DashScope-SSE为enable
+    //向第三方API(qwen-turbo模型)的HTTP请求webClient的Header中，注入ALBaiLian平台中的参数timeout(由yml配置读入)，以及阿里百炼特有在Header中指定X-DashScope-SSE为enable
+    //WebClient.Builder为全局单例Bean，先clone()再配置，避免不同平台的默认Header互相污染
     private WebClient configureWebClient(WebClient.Builder webClientBuilder) {
-        return webClientBuilder
+        return webClientBuilder.clone()
                 .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                .defaultHeader("Authorization", "Bearer " + alBaiLian.getKey()) // 注入阿里百炼平台的Key
                 .defaultHeader("X-DashScope-SSE", "enable") // 添加阿里百炼SSE支持
                 // 配置响应超时（作用于整个WebClient实例）
                 .clientConnector(new ReactorClientHttpConnector(
@@ -61,13 +63,15 @@ public class AL_TextModelRequestService {
                 .build();
     }
 
-    //历史message记录如果超过N条，保留最后N条，实际应该按照token数量考虑
-    //注入模型的RecordNumbers固定参数(由yml配置读入)，即最多历史记录条数，与模型的最大输入token数相关
-    public List<Map<String, String>> getHistoryMessage(String conversation_id, int n) {
-        // 1. 查询最新的N条消息记录，查询结果按message_id降序排列(由大到小)
-        List<Message> messages = messageService.getLatestMessagesByConversationId(conversation_id, n);
-        // 2. 重新调整结果按message_id升序排序(由小到大)
-        messages.sort(Comparator.comparingLong(Message::getMessageId));
+    //qwen/ERNIE词表，用于本地估算历史记录与新message的token数量
+    public static final TokenEstimator.Vocabulary VOCABULARY = TokenEstimator.Vocabulary.QWEN;
+
+    //历史message记录按token预算截取：由新到旧累计估算token数，直到填满tokenBudget(模型参数history-tokens)，最多maxTurns轮
+    public List<Map<String, String>> getHistoryMessage(String conversation_id, int tokenBudget, int maxTurns) {
+        // 1. 由新到旧读取预算内的消息记录，查询结果按message_id降序排列(由大到小)
+        List<Message> messages = messageService.getLatestMessagesWithinTokenBudget(conversation_id, tokenBudget, maxTurns, VOCABULARY);
+        // 2. 反转为按message_id升序排序(由小到大)
+        Collections.reverse(messages);
         // 3. 构建历史消息列表
         List<Map<String, String>> history = new ArrayList<>();
 
@@ -108,21 +112,49 @@ public class AL_TextModelRequestService {
         return buildRequestBody(Params,messages); //将完整的message+基础参数形成完整的请求body
     }
 
-    //响应函数调用：向第三方API的HTTP请求webClient的body和URL中，注入完整body + URL发送HTTP请求; 默认设置返回流式响应，HTTP请求中Authorization(Key)、Timeout已在初始化时预定义
+    //响应函数调用：向第三方API的HTTP请求webClient的body和URL中，注入完整body + URL发送HTTP请求; 默认设置返回流式响应，Timeout已在初始化时预定义，Authorization(Key)每次请求从Key池选择
     //注入模型的官方定义的请求url固定参数(由数据库读入配置)
     public Flux<String> sendRequest(String url, Map<String, Object> body) {
-        return webClient.post()  //POST请求
-                .uri(url)   //向请求中注入模型的URL参数
-                .bodyValue(body)  //向请求中注入body
-                .retrieve()  //发送请求并获取响应
-                .onStatus(    //处理错误状态码
-                        status -> status.isError(),
-                        response -> response.bodyToMono(String.class)
-                                .flatMap(error -> Mono.error(new RuntimeException("API Error: " + error)))
-                )
-                .bodyToFlux(String.class)   //流式响应的异步方法，将响应体转换为字符串流（Flux）
+        //Flux.defer保证每次订阅(包括retryWhen重试)都重新从Key池选择Key，被限流的Key进入冷却后重试会自动换Key
+        return Flux.defer(() -> {
+                    ApiKeyPool.KeySlot keySlot = keyPool.acquire();
+                    return webClient.post()  //POST请求
+                            .uri(url)   //向请求中注入模型的URL参数
+                            .header(HttpHeaders.AUTHORIZATION, "Bearer " + keySlot.getKey()) //注入本次请求选中的Key
+                            .bodyValue(body)  //向请求中注入body
+                            .retrieve()  //发送请求并获取响应
+                            .onStatus(    //处理错误状态码，429时当前Key进入冷却
+                                    status -> status.isError(),
+                                    response -> {
+                                        if (response.statusCode().value() == 429) {
+                                            keyPool.markRateLimited(keySlot, parseRetryAfter(response.headers().asHttpHeaders()));
+                                        }
+                                        return response.bodyToMono(String.class)
+                                                .flatMap(error -> Mono.error(new RuntimeException("API Error: " + error)));
+                                    }
+                            )
+                            .bodyToFlux(String.class)   //流式响应的异步方法，将响应体转换为字符串流（Flux）
+                            .doFinally(signal -> keyPool.release(keySlot, signal));
+                })
                 .retryWhen(Retry.backoff(3, Duration.ofMillis(100))  //最多重试 3 次,初始延迟 100ms
                         .filter(ex -> !(ex instanceof IllegalArgumentException)));
     }
 
+    //解析429响应中的Retry-After(秒)，无法解析时返回0，由Key池按指数退避计算冷却时间
+    private long parseRetryAfter(HttpHeaders headers) {
+        String retryAfter = headers.getFirst(HttpHeaders.RETRY_AFTER);
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public ApiKeyPool getKeyPool() {
+        return keyPool;
+    }
+
 }
@@ -0,0 +1,163 @@
+package com.qianniu.llmbot.model_service;
+
+import reactor.core.publisher.SignalType;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*********************************************
+ * 单个API平台的Key池，每次请求时按负载选择Key，替代WebClient默认Header中固定的单个Key
+ * 1）选择策略：在未处于冷却期的Key中，选择当前在途请求数(inFlight)最少的Key，相同则选择最久未使用的Key；
+ * 2）限流退避：Key收到429时进入冷却期，优先使用Retry-After，否则按连续429次数指数退避；请求成功后清零；
+ * 3）所有Key都在冷却期时，选择最早结束冷却的Key(降级使用)，不直接拒绝请求；
+ * 4）snapshot()输出每个Key的实时统计(Key脱敏)，用于metrics接口查看；
+ * **********************************************/
+
+public class ApiKeyPool {
+    private static final int MAX_BACKOFF_SHIFT = 5; //指数退避上限：基础冷却时间 * 2^5
+
+    private final String platform;
+    private final long baseCooldownMillis;
+    private final List<KeySlot> slots;
+
+    public ApiKeyPool(String platform, List<String> keys, long baseCooldownMillis) {
+        if (keys == null || keys.isEmpty()) {
+            throw new IllegalArgumentException(platform + "平台未配置API Key");
+        }
+        this.platform = platform;
+        this.baseCooldownMillis = baseCooldownMillis > 0 ? baseCooldownMillis : 1000;
+        List<KeySlot> list = new ArrayList<>();
+        for (String key : keys) {
+            if (key != null && !key.isBlank()) {
+                list.add(new KeySlot(key.trim()));
+            }
+        }
+        if (list.isEmpty()) {
+            throw new IllegalArgumentException(platform + "平台未配置有效的API Key");
+        }
+        this.slots = List.copyOf(list);
+    }
+
+    //Key池实际使用的Key列表：优先keys(忽略空值)，未配置时使用单个key
+    public static List<String> keyList(List<String> keys, String key) {
+        List<String> list = new ArrayList<>();
+        if (keys != null) {
+            keys.stream().filter(k -> k != null && !k.isBlank()).forEach(list::add);
+        }
+        if (list.isEmpty() && key != null && !key.isBlank()) {
+            list.add(key);
+        }
+        return list;
+    }
+
+    public String getPlatform() {
+        return platform;
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    //为一次请求选择Key，调用方必须在请求结束时调用release
+    public KeySlot acquire() {
+        long now = System.currentTimeMillis();
+        KeySlot best = null;
+        KeySlot earliestCooling = null;
+        for (KeySlot slot : slots) {
+            if (slot.cooldownUntil > now) {
+                if (earliestCooling == null || slot.cooldownUntil < earliestCooling.cooldownUntil) {
+                    earliestCooling = slot;
+                }
+                continue;
+            }
+            if (best == null
+                    || slot.inFlight.get() < best.inFlight.get()
+                    || (slot.inFlight.get() == best.inFlight.get() && slot.lastAcquired.get() < best.lastAcquired.get())) {
+                best = slot;
+            }
+        }
+        if (best == null) {
+            best = earliestCooling; //全部冷却中，降级选择最早恢复的Key
+        }
+        best.inFlight.incrementAndGet();
+        best.lastAcquired.set(now);
+        best.requests.increment();
+        return best;
+    }
+
+    //请求结束(成功/失败/取消)时归还Key；success为true时清零连续429计数
+    public void release(KeySlot slot, boolean success, boolean failure) {
+        slot.inFlight.decrementAndGet();
+        if (success) {
+            slot.successes.increment();
+            slot.consecutiveRateLimited.set(0);
+        } else if (failure) {
+            slot.failures.increment();
+        }
+    }
+
+    //响应流结束时(doFinally)归还Key：完成计为成功，错误计为失败，取消(客户端断开)两者都不计
+    public void release(KeySlot slot, SignalType signal) {
+        release(slot, signal == SignalType.ON_COMPLETE, signal == SignalType.ON_ERROR);
+    }
+
+    //Key被上游限流(HTTP 429)，retryAfterMillis<=0时按连续429次数指数退避
+    public void markRateLimited(KeySlot slot, long retryAfterMillis) {
+        slot.rateLimited.increment();
+        int times = slot.consecutiveRateLimited.incrementAndGet();
+        long backoff = baseCooldownMillis << Math.min(times - 1, MAX_BACKOFF_SHIFT);
+        long cooldown = Math.max(retryAfterMillis, backoff);
+        slot.cooldownUntil = System.currentTimeMillis() + cooldown;
+    }
+
+    //实时统计，Key脱敏后输出
+    public List<Map<String, Object>> snapshot() {
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (KeySlot slot : slots) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", slot.maskedKey);
+            item.put("inFlight", slot.inFlight.get());
+            item.put("requests", slot.requests.sum());
+            item.put("successes", slot.successes.sum());
+            item.put("failures", slot.failures.sum());
+            item.put("rateLimited", slot.rateLimited.sum());
+            item.put("coolingDown", slot.cooldownUntil > now);
+            item.put("cooldownRemainingMs", Math.max(0, slot.cooldownUntil - now));
+            result.add(item);
+        }
+        return result;
+    }
+
+    //单个Key的状态
+    public static final class KeySlot {
+        private final String key;
+        private final String maskedKey;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger consecutiveRateLimited = new AtomicInteger();
+        private final AtomicLong lastAcquired = new AtomicLong();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder rateLimited = new LongAdder();
+        private volatile long cooldownUntil;
+
+        KeySlot(String key) {
+            this.key = key;
+            this.maskedKey = key.length() <= 10 ? "****" : key.substring(0, 6) + "****" + key.substring(key.length() - 4);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getMaskedKey() {
+            return maskedKey;
+        }
+    }
+}
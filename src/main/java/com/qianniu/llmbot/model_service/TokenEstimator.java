@@ -0,0 +1,126 @@
+package com.qianniu.llmbot.model_service;
+
+/*********************************************
+ * 本地token数量估算器，不调用平台的tokenizer接口
+ * 1）按字符类别分段估算：CJK汉字按字计、英文单词按字母数折算、数字按位数折算、标点符号按个计，空白不计(换行段计1)；
+ * 2）不同平台的词表粒度不同，qwen(阿里百炼)与ERNIE(百度千帆)使用各自的折算系数；
+ * 3）估算结果只用于历史记录的token预算截断，宁可略微高估，不能明显低估；
+ * **********************************************/
+
+public final class TokenEstimator {
+
+    //词表类型及折算系数(系数均为 x100 的整数，避免浮点累加)
+    public enum Vocabulary {
+        //qwen词表：约1.4个汉字/token，英文约4字母/token，数字逐位切分，每条消息模板开销约4 token
+        QWEN(70, 400, 100, 4),
+        //ERNIE词表：中文词粒度更粗，约1.5个汉字/token，英文约3.5字母/token，数字约3位/token，每条消息开销约3 token
+        ERNIE(65, 350, 300, 3);
+
+        private final int cjkTokensPer100Chars;
+        private final int latinCharsPer100Tokens;
+        private final int digitsPer100Tokens;
+        private final int messageOverhead;
+
+        Vocabulary(int cjkTokensPer100Chars, int latinCharsPer100Tokens, int digitsPer100Tokens, int messageOverhead) {
+            this.cjkTokensPer100Chars = cjkTokensPer100Chars;
+            this.latinCharsPer100Tokens = latinCharsPer100Tokens;
+            this.digitsPer100Tokens = digitsPer100Tokens;
+            this.messageOverhead = messageOverhead;
+        }
+
+        public int getMessageOverhead() {
+            return messageOverhead;
+        }
+    }
+
+    private TokenEstimator() {
+    }
+
+    //估算一段文本的token数量(不含消息模板开销)
+    public static int estimate(String text, Vocabulary vocabulary) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        long cjkChars = 0;
+        long otherTokens = 0;
+        long latinRunTokens100 = 0; //x100
+        long digitRunTokens100 = 0; //x100
+        int latinRun = 0;
+        int digitRun = 0;
+        boolean newlineRun = false;
+
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+
+            boolean latin = cp < 0x80 && Character.isLetter(cp);
+            boolean digit = cp < 0x80 && Character.isDigit(cp);
+            if (!latin && latinRun > 0) {
+                latinRunTokens100 += ceilDiv(latinRun * 10000L, vocabulary.latinCharsPer100Tokens);
+                latinRun = 0;
+            }
+            if (!digit && digitRun > 0) {
+                digitRunTokens100 += ceilDiv(digitRun * 10000L, vocabulary.digitsPer100Tokens);
+                digitRun = 0;
+            }
+
+            if (latin) {
+                latinRun++;
+                newlineRun = false;
+            } else if (digit) {
+                digitRun++;
+                newlineRun = false;
+            } else if (cp == '\n' || cp == '\r') {
+                if (!newlineRun) {
+                    otherTokens++;
+                    newlineRun = true;
+                }
+            } else if (Character.isWhitespace(cp)) {
+                //空格通常与后一个词合并为同一个token，不单独计数
+            } else if (isCjk(cp)) {
+                cjkChars++;
+                newlineRun = false;
+            } else if (Character.isSupplementaryCodePoint(cp)) {
+                otherTokens += 2; //emoji等补充平面字符通常被切分为多个字节级token
+                newlineRun = false;
+            } else {
+                otherTokens++; //标点符号、其他符号
+                newlineRun = false;
+            }
+        }
+        if (latinRun > 0) {
+            latinRunTokens100 += ceilDiv(latinRun * 10000L, vocabulary.latinCharsPer100Tokens);
+        }
+        if (digitRun > 0) {
+            digitRunTokens100 += ceilDiv(digitRun * 10000L, vocabulary.digitsPer100Tokens);
+        }
+
+        long total100 = cjkChars * vocabulary.cjkTokensPer100Chars + latinRunTokens100 + digitRunTokens100;
+        long total = ceilDiv(total100, 100) + otherTokens;
+        return (int) Math.min(Integer.MAX_VALUE, total);
+    }
+
+    //估算一问一答两条消息的token数量(含消息模板开销)
+    public static int estimateTurn(int queryTokens, int answerTokens, Vocabulary vocabulary) {
+        return queryTokens + answerTokens + 2 * vocabulary.messageOverhead;
+    }
+
+    private static boolean isCjk(int cp) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(cp);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_B
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_SYMBOLS_AND_PUNCTUATION
+                || block == Character.UnicodeBlock.HALFWIDTH_AND_FULLWIDTH_FORMS
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+
+    private static long ceilDiv(long a, long b) {
+        return (a + b - 1) / b;
+    }
+}
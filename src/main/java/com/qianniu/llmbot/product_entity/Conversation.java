@@ -0,0 +1,141 @@
+package com.qianniu.llmbot.product_entity;
+
+import jakarta.persistence.*;
+
+/*********************************************
+ * Conversation实体：会话摘要，用于前端侧边栏的会话列表，不包含message内容
+ * 1）conversation_id与messages表一致(格式: botname_userid)，每写入一条message时增量更新；
+ * 2）title为会话第一条message的query内容摘要，创建后不再修改；
+ * **********************************************/
+
+@Entity
+@Table(name = "conversations")
+public class Conversation {
+    @Id
+    @Column(name = "conversation_id", length = 200)
+    private String conversationId;
+
+    @Column(name = "user_id", nullable = false, length = 36)
+    private String userId;
+
+    @Column(name = "bot_name", nullable = false, length = 100)
+    private String botName;
+
+    @Column(name = "title", nullable = false, length = 100)
+    private String title;
+
+    @Column(name = "created_at", nullable = false) // 第一条message的时间，Unix时间戳(秒)
+    private Long createdAt = 0L;
+
+    @Column(name = "last_message_id", nullable = false)
+    private Long lastMessageId = 0L;
+
+    @Column(name = "last_message_at", nullable = false) // 最新一条message的时间，Unix时间戳(秒)
+    private Long lastMessageAt = 0L;
+
+    @Column(name = "turn_count", nullable = false)
+    private Long turnCount = 0L; // 问答轮数(message条数)
+
+    @Column(name = "query_tokens", nullable = false)
+    private Long queryTokens = 0L;
+
+    @Column(name = "answer_tokens", nullable = false)
+    private Long answerTokens = 0L;
+
+    @Column(name = "total_tokens", nullable = false)
+    private Long totalTokens = 0L;
+
+    public String getConversationId() {
+        return conversationId;
+    }
+
+    public void setConversationId(String conversationId) {
+        this.conversationId = conversationId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getBotName() {
+        return botName;
+    }
+
+    public void setBotName(String botName) {
+        this.botName = botName;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public Long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Long getLastMessageId() {
+        return lastMessageId;
+    }
+
+    public void setLastMessageId(Long lastMessageId) {
+        this.lastMessageId = lastMessageId;
+    }
+
+    public Long getLastMessageAt() {
+        return lastMessageAt;
+    }
+
+    public void setLastMessageAt(Long lastMessageAt) {
+        this.lastMessageAt = lastMessageAt;
+    }
+
+    public Long getTurnCount() {
+        return turnCount;
+    }
+
+    public void setTurnCount(Long turnCount) {
+        this.turnCount = turnCount;
+    }
+
+    public Long getQueryTokens() {
+        return queryTokens;
+    }
+
+    public void setQueryTokens(Long queryTokens) {
+        this.queryTokens = queryTokens;
+    }
+
+    public Long getAnswerTokens() {
+        return answerTokens;
+    }
+
+    public void setAnswerTokens(Long answerTokens) {
+        this.answerTokens = answerTokens;
+    }
+
+    public Long getTotalTokens() {
+        return totalTokens;
+    }
+
+    public void setTotalTokens(Long totalTokens) {
+        this.totalTokens = totalTokens;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Conversation[conversationId=%s, userId=%s, botName=%s, title=%s, lastMessageId=%s, lastMessageAt=%s, turnCount=%s, totalTokens=%s]",
+                conversationId, userId, botName, title, lastMessageId, lastMessageAt, turnCount, totalTokens);
+    }
+}
@@ -57,6 +57,17 @@ public class Message {
     @Column(name = "created_at", nullable = false) // Unix时间戳(秒)
     private Long createdAt = 0L;
 
+    // 本地估算的token数量，写入时计算，用于历史记录按token预算截断
+    @Column(name = "query_token_estimate")
+    private Integer queryTokenEstimate = 0;  // query内容本身的估算token数(不含历史记录)
+
+    @Column(name = "answer_token_estimate")
+    private Integer answerTokenEstimate = 0;  // answer内容的token数(优先使用平台返回的实际值)
+
+    // 构造message时生成的唯一标识，WAL重放时用于去重(自增主键在写入数据库前不存在)
+    @Column(name = "msg_uuid", length = 36)
+    private String msgUuid;
+
     // Getters and Setters
     public Long getMessageId() {
         return messageId;
@@ -162,6 +173,30 @@ public class Message {
         this.createdAt = createdAt;
     }
 
+    public Integer getQueryTokenEstimate() {
+        return queryTokenEstimate;
+    }
+
+    public void setQueryTokenEstimate(Integer queryTokenEstimate) {
+        this.queryTokenEstimate = queryTokenEstimate;
+    }
+
+    public Integer getAnswerTokenEstimate() {
+        return answerTokenEstimate;
+    }
+
+    public void setAnswerTokenEstimate(Integer answerTokenEstimate) {
+        this.answerTokenEstimate = answerTokenEstimate;
+    }
+
+    public String getMsgUuid() {
+        return msgUuid;
+    }
+
+    public void setMsgUuid(String msgUuid) {
+        this.msgUuid = msgUuid;
+    }
+
     // 内容类型枚举
     public enum ContentType {
         TEXT(0), IMAGE(1), AUDIO(2), VIDEO(3);
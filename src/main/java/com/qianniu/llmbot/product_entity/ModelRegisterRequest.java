@@ -1,5 +1,7 @@
 package com.qianniu.llmbot.product_entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.validation.constraints.AssertTrue;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 import jakarta.validation.constraints.Size;
@@ -7,6 +9,7 @@ import jakarta.validation.constraints.Size;
 /*********************************************
  * Model注册Register请求的Request实体自定义各字段，用于接收新注册的model各字段，并进行自动校验；
  * 校验成功后，才能写入到数据库的完整model,自动增加主键、创建时间等参数；
+ * modelAllowRoles须为角色名JSON数组(NORMAL/MEMBER/SUPER_MEMBER/ADMIN，可带ROLE_前缀)，注册时编译为User.Role位掩码；
  * **********************************************/
 
 public class ModelRegisterRequest {
@@ -27,6 +30,26 @@ public class ModelRegisterRequest {
     @NotBlank(message = "允许角色不能为空")
     private String modelAllowRoles;  // 接收JSON数组字符串
 
+    // 允许角色格式校验，@NotBlank已校验非空
+    @JsonIgnore
+    @AssertTrue(message = "允许角色必须为JSON数组，元素为NORMAL、MEMBER、SUPER_MEMBER、ADMIN(可带ROLE_前缀)，且至少包含一个角色")
+    public boolean isModelAllowRolesValid() {
+        if (modelAllowRoles == null || modelAllowRoles.isBlank()) {
+            return true;
+        }
+        try {
+            return User.Role.parseMask(modelAllowRoles) != 0;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // 允许角色的位掩码，校验通过后调用
+    @JsonIgnore
+    public int getModelAllowRoleMask() {
+        return User.Role.parseMask(modelAllowRoles);
+    }
+
     // Getters and Setters
     public String getModelName() {
         return modelName;
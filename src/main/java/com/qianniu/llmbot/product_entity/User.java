@@ -1,8 +1,13 @@
 package com.qianniu.llmbot.product_entity;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.persistence.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 
@@ -59,6 +64,7 @@ public class User {
     public enum Role {
         NORMAL(0), MEMBER(1), SUPER_MEMBER(2), ADMIN(3);
 
+        private static final ObjectMapper JSON = new ObjectMapper();
         private final int value;
 
         Role(int value) {
@@ -77,6 +83,78 @@ public class User {
             }
             throw new IllegalArgumentException("Invalid role value: " + value);
         }
+
+        // 位掩码：每个角色占一位，模型允许的角色集合按位或，鉴权为一次按位与
+        public int mask() {
+            return 1 << value;
+        }
+
+        // jwt token及Spring Security中的角色名(ROLE_NORMAL等)
+        public String authority() {
+            return "ROLE_" + name();
+        }
+
+        public boolean isMembership() {
+            return this == MEMBER || this == SUPER_MEMBER;
+        }
+
+        // 角色名解析，允许带或不带ROLE_前缀
+        public static Role fromAuthority(String authority) {
+            String name = authority == null ? "" : authority.trim();
+            if (name.startsWith("ROLE_")) {
+                name = name.substring(5);
+            }
+            for (Role role : Role.values()) {
+                if (role.name().equals(name)) {
+                    return role;
+                }
+            }
+            throw new IllegalArgumentException("Invalid role name: " + authority);
+        }
+
+        // 角色名列表转换为位掩码，存在无效角色名时抛出IllegalArgumentException
+        public static int maskOf(Iterable<String> authorities) {
+            int mask = 0;
+            for (String authority : authorities) {
+                mask |= fromAuthority(authority).mask();
+            }
+            return mask;
+        }
+
+        // 解析JSON数组字符串(如["ROLE_MEMBER","ROLE_SUPER_MEMBER"])为位掩码，model_allowroles的注册校验与模型目录共用
+        // 不是字符串数组(含null、空内容)或存在无效角色名时抛出IllegalArgumentException
+        public static int parseMask(String json) {
+            String[] authorities;
+            try {
+                authorities = JSON.readValue(json == null ? "" : json, String[].class);
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Allowed roles must be a JSON array of strings: " + json, e);
+            }
+            if (authorities == null) {
+                throw new IllegalArgumentException("Allowed roles must be a JSON array of strings: " + json);
+            }
+            return maskOf(Arrays.asList(authorities));
+        }
+
+        // 位掩码转换为角色名列表(ROLE_前缀，按value排序)，用于写入model_allowroles
+        public static List<String> authoritiesOf(int mask) {
+            List<String> authorities = new ArrayList<>();
+            for (Role role : Role.values()) {
+                if ((mask & role.mask()) != 0) {
+                    authorities.add(role.authority());
+                }
+            }
+            return authorities;
+        }
+
+        // 位掩码转换为JSON数组字符串，角色名只含字母和下划线，无需转义
+        public static String toJson(int mask) {
+            List<String> quoted = new ArrayList<>();
+            for (String authority : authoritiesOf(mask)) {
+                quoted.add("\"" + authority + "\"");
+            }
+            return "[" + String.join(",", quoted) + "]";
+        }
     }
 
     // Getters and Setters
@@ -0,0 +1,221 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.cluster.InvalidationBus;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*********************************************
+ * 已注册账号(email、phone)的布隆过滤器，注册时先判断"一定未注册"，不必查询数据库
+ * 1）启动时按id分批读取users表构建，容量取配置的预期条数与现有条数2倍中的较大值；
+ * 2）本节点注册成功后立即加入；其他节点注册的账号经InvalidationBus的account主题推送后加入(事务提交后送达)，
+ *    定时任务再按id增量同步兜底，每次回读最近sync_overlap个id，覆盖自增id先分配、后提交的插入；总线可能漏掉事件时立即同步一次；
+ *    推送与同步之间仍有短暂窗口，因此登录不依赖"一定未注册"的结论，只有注册(随后由唯一索引兜底)使用；
+ * 3）email列为utf8mb4_unicode_ci(不区分大小写)，按小写加入和查询；非ASCII的email一律视为可能存在，交给数据库判断；
+ *    phone列为ascii_bin，按原值处理；
+ * 4）布隆过滤器不会漏报，可能误报：mightHave返回true时仍需查询数据库；
+ * **********************************************/
+
+@Component
+@DependsOn("databaseInitializer") //users表由DatabaseInitializer创建
+public class AccountExistenceFilter {
+    private static final Logger logger = LoggerFactory.getLogger(AccountExistenceFilter.class);
+    public static final String INVALIDATION_TOPIC = "account"; //key为"email\nphone"，收到后加入过滤器
+
+    private record Filters(BloomFilter emails, BloomFilter phones) {
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final InvalidationBus invalidationBus;
+    private final boolean enabled;
+    private final int expectedEntries;
+    private final double falsePositiveRate;
+    private final int batchSize;
+    private final long syncOverlap;
+
+    private volatile Filters filters;
+    private volatile boolean ready; //构建完成前一律视为可能存在
+    private final AtomicLong syncedId = new AtomicLong();
+
+    private final LongAdder definitelyAbsent = new LongAdder();
+    private final LongAdder mightBePresent = new LongAdder();
+    private final AtomicLong entries = new AtomicLong();
+    private final LongAdder received = new LongAdder();
+
+    public AccountExistenceFilter(JdbcTemplate jdbcTemplate, InvalidationBus invalidationBus,
+                                  @Value("${account_filter.enabled:true}") boolean enabled,
+                                  @Value("${account_filter.expected_entries:1000000}") int expectedEntries,
+                                  @Value("${account_filter.false_positive_rate:0.01}") double falsePositiveRate,
+                                  @Value("${account_filter.batch_size:10000}") int batchSize,
+                                  @Value("${account_filter.sync_overlap:1000}") long syncOverlap) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.enabled = enabled;
+        this.expectedEntries = Math.max(1, expectedEntries);
+        this.falsePositiveRate = falsePositiveRate;
+        this.batchSize = Math.max(1, batchSize);
+        this.syncOverlap = Math.max(0, syncOverlap);
+        this.invalidationBus = invalidationBus;
+        invalidationBus.subscribe(INVALIDATION_TOPIC, this::receive, this::sync);
+    }
+
+    @PostConstruct
+    public void open() {
+        if (enabled) {
+            rebuild();
+        }
+    }
+
+    //重新构建两个过滤器，构建期间继续使用旧的过滤器
+    public synchronized void rebuild() {
+        try {
+            Long count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM users", Long.class);
+            int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(expectedEntries, (count == null ? 0 : count) * 2));
+            Filters rebuilt = new Filters(BloomFilter.create(capacity, falsePositiveRate), BloomFilter.create(capacity, falsePositiveRate));
+            syncedId.set(0);
+            long loaded = load(rebuilt, 0);
+            filters = rebuilt;
+            entries.set(loaded);
+            ready = true;
+            logger.info("账号布隆过滤器已构建: {}个账号, 容量{}", loaded, capacity);
+        } catch (Exception e) {
+            logger.error("账号布隆过滤器构建失败，登录、注册将直接查询数据库", e);
+        }
+    }
+
+    //增量同步其他节点注册的账号
+    @Scheduled(fixedDelayString = "${account_filter.sync_interval_ms:5000}", initialDelayString = "${account_filter.sync_interval_ms:5000}")
+    public synchronized void sync() {
+        Filters current = filters;
+        if (!enabled || current == null) {
+            return;
+        }
+        try {
+            entries.addAndGet(load(current, Math.max(0, syncedId.get() - syncOverlap)));
+        } catch (Exception e) {
+            logger.warn("账号布隆过滤器同步失败: {}", e.getMessage());
+        }
+    }
+
+    //按id分批读取afterId之后的账号加入过滤器，返回此前未同步过(id大于已同步id)的条数
+    private long load(Filters target, long afterId) {
+        long previousSyncedId = syncedId.get();
+        long loaded = 0;
+        long lastId = afterId;
+        int rows;
+        do {
+            long[] last = {lastId};
+            int[] count = {0, 0}; //读取条数、新增条数
+            jdbcTemplate.query("SELECT id, email, phone FROM users WHERE id > ? ORDER BY id LIMIT ?", rs -> {
+                last[0] = rs.getLong(1);
+                put(target, rs.getString(2), rs.getString(3));
+                count[0]++;
+                if (last[0] > previousSyncedId) {
+                    count[1]++;
+                }
+            }, lastId, batchSize);
+            rows = count[0];
+            lastId = last[0];
+            loaded += count[1];
+        } while (rows >= batchSize);
+        syncedId.accumulateAndGet(lastId, Math::max);
+        return loaded;
+    }
+
+    //本节点注册时调用(插入之后)；事务回滚时多出的条目只会造成误报，不影响正确性
+    public void add(String email, String phone) {
+        Filters current = filters;
+        if (current != null) {
+            put(current, email, phone);
+        }
+    }
+
+    //在注册的事务内调用，通知其他节点(事务提交后送达)
+    public void publish(String email, String phone) {
+        if (enabled) {
+            invalidationBus.publish(INVALIDATION_TOPIC, (email == null ? "" : email) + "\n" + (phone == null ? "" : phone));
+        }
+    }
+
+    //其他节点注册的账号
+    private void receive(String key) {
+        int separator = key.indexOf('\n');
+        if (separator < 0) {
+            return;
+        }
+        String email = key.substring(0, separator);
+        String phone = key.substring(separator + 1);
+        add(email.isEmpty() ? null : email, phone.isEmpty() ? null : phone);
+        received.increment();
+    }
+
+    private static void put(Filters target, String email, String phone) {
+        String emailKey = emailKey(email);
+        if (emailKey != null) {
+            target.emails().put(emailKey);
+        }
+        if (phone != null) {
+            target.phones().put(phone);
+        }
+    }
+
+    //email可能已注册时返回true；返回false表示一定未注册
+    public boolean mightHaveEmail(String email) {
+        String key = emailKey(email);
+        return record(key == null || !ready || filters.emails().mightContain(key));
+    }
+
+    //phone可能已注册时返回true；返回false表示一定未注册
+    public boolean mightHavePhone(String phone) {
+        return record(phone == null || !ready || filters.phones().mightContain(phone));
+    }
+
+    private boolean record(boolean mightBe) {
+        (mightBe ? mightBePresent : definitelyAbsent).increment();
+        return mightBe;
+    }
+
+    //按数据库排序规则归一化：去掉末尾空格(PAD SPACE)并转小写；非ASCII时返回null
+    private static String emailKey(String email) {
+        if (email == null) {
+            return null;
+        }
+        String trimmed = email.stripTrailing();
+        for (int i = 0; i < trimmed.length(); i++) {
+            if (trimmed.charAt(i) > 0x7f) {
+                return null;
+            }
+        }
+        return trimmed.toLowerCase(Locale.ROOT);
+    }
+
+    public Map<String, Object> stats() {
+        Filters current = filters;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("ready", ready);
+        stats.put("entries", entries.get());
+        stats.put("syncedId", syncedId.get());
+        stats.put("received", received.sum());
+        if (current != null) {
+            stats.put("capacity", current.emails().getExpectedEntries());
+            stats.put("bitsPerFilter", current.emails().getBitSize());
+            stats.put("hashFunctions", current.emails().getHashFunctions());
+            stats.put("emailFillRatio", current.emails().fillRatio());
+            stats.put("phoneFillRatio", current.phones().fillRatio());
+        }
+        stats.put("definitelyAbsent", definitelyAbsent.sum());
+        stats.put("mightBePresent", mightBePresent.sum());
+        return stats;
+    }
+}
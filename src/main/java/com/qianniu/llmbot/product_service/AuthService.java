@@ -6,13 +6,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.security.authentication.BadCredentialsException;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.CompletableFuture;
+
 /*********************************************
  * User Service中用户登录lonin的单独定义AuthService
  * 1) 定义两种login方法——loginByEmail、loginByPhone；
  * 2）登录方法中先进行密码验证(加密)，验证成功后更新user表中的LastLogin时间字段、返回脱敏user信息；
+ * 3）密码校验在PasswordHashingService的专用线程池中执行，登录方法返回CompletableFuture，不占用请求线程；校验之后的数据库更新不在哈希线程中执行；
+ *    提交哈希之前先经LoginThrottle按IP和账号限流；哈希cost与配置不同时，登录成功后在后台重新哈希并更新；
+ * 4）登录不使用账号布隆过滤器的"一定未注册"结论：其他节点刚注册的账号可能尚未同步到本节点的过滤器，一律查询数据库；
  * **********************************************/
 
 //用户登录login时，用于查询user表中的加密账号，并进行加密对比鉴定
@@ -21,48 +25,63 @@ public class AuthService {
     private static final Logger logger = LoggerFactory.getLogger(UserService.class);//日志记录器，日志输出时会自动标记类名（如 UserService），便于过滤和排查问题。
 
     private final UserService userService;
-    private final PasswordEncoder passwordEncoder; // Spring Security的加密器
+    private final PasswordHashingService passwordHashingService; //密码哈希专用线程池
+    private final LoginThrottle loginThrottle;
 
-    public AuthService(UserService userService, PasswordEncoder passwordEncoder) {
+    public AuthService(UserService userService, PasswordHashingService passwordHashingService, LoginThrottle loginThrottle) {
         this.userService = userService;
-        this.passwordEncoder = passwordEncoder;
+        this.passwordHashingService = passwordHashingService;
+        this.loginThrottle = loginThrottle;
     }
 
-    public UserRegisterResponseDTO loginByEmail(String email, String rawPassword) {
+    //限流或账号不存在时直接抛出异常(LockedException、BadCredentialsException)，密码错误时返回的future以BadCredentialsException失败
+    public CompletableFuture<UserRegisterResponseDTO> loginByEmail(String email, String rawPassword, String clientIp) {
+        loginThrottle.acquireIp(clientIp);
+        loginThrottle.checkAccount(email);
         try {
             User user = userService.getUserByEmail(email);//通过email账号查询目标user信息
-
-            // 密码验证
-            if (!passwordEncoder.matches(rawPassword, user.getPasswordHash())) {
-                throw new BadCredentialsException("邮箱或密码错误！");
-            }
-
-            UserRegisterResponseDTO response = UserRegisterResponseDTO.fromUser(user);
-            userService.updateLastLogin(user.getId()); //更新登录时间
-            return response;
-
+            return verifyPassword(user, email, rawPassword, "邮箱或密码错误！");
         } catch (EmptyResultDataAccessException e) {
             throw new BadCredentialsException("该邮箱未注册！");
         }
     }
 
-    public UserRegisterResponseDTO loginByPhone(String phone, String rawPassword) {
+    public CompletableFuture<UserRegisterResponseDTO> loginByPhone(String phone, String rawPassword, String clientIp) {
+        loginThrottle.acquireIp(clientIp);
+        loginThrottle.checkAccount(phone);
         try {
             User user = userService.getUserByPhone(phone);
+            return verifyPassword(user, phone, rawPassword, "手机号或密码错误！");
+        } catch (EmptyResultDataAccessException e) {
+            throw new BadCredentialsException("该手机号未注册！");
+        }
+    }
 
-            // 密码验证
-            if (!passwordEncoder.matches(rawPassword, user.getPasswordHash())) {
-                throw new BadCredentialsException("手机号或密码错误！");
+    //密码验证在哈希线程池中执行，成功后(在applicationTaskExecutor中)更新登录时间、返回脱敏user信息
+    private CompletableFuture<UserRegisterResponseDTO> verifyPassword(User user, String account, String rawPassword, String failMessage) {
+        return passwordHashingService.matches(rawPassword, user.getPasswordHash()).thenApply(matched -> {
+            if (!matched) {
+                loginThrottle.recordFailure(account);
+                throw new BadCredentialsException(failMessage);
             }
+            loginThrottle.recordSuccess(account);
 
             UserRegisterResponseDTO response = UserRegisterResponseDTO.fromUser(user);
             userService.updateLastLogin(user.getId()); //更新登录时间
+            if (passwordHashingService.needsRehash(user.getPasswordHash())) {
+                rehash(user, rawPassword);
+            }
             return response;
+        });
+    }
 
-        } catch (EmptyResultDataAccessException e) {
-            throw new BadCredentialsException("该手机号未注册！");
-        }
-
+    //按当前配置的cost重新哈希，失败不影响本次登录，下次登录时重试
+    private void rehash(User user, String rawPassword) {
+        passwordHashingService.encode(rawPassword)
+                .thenAccept(newHash -> userService.updatePasswordHashById(user.getId(), user.getPasswordHash(), newHash))
+                .exceptionally(e -> {
+                    logger.warn("密码重新哈希失败 - ID: {}: {}", user.getId(), e.getMessage());
+                    return null;
+                });
     }
 }
-
@@ -0,0 +1,67 @@
+package com.qianniu.llmbot.product_service;
+
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import java.lang.ref.WeakReference;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/*********************************************
+ * 按列序号取值的RowMapper基类，替代BeanPropertyRowMapper(每行都通过反射匹配属性并做类型转换)
+ * 1）子类声明实体对应的列名(与@Column的name一致)，并直接调用实体的setter赋值，不使用反射；
+ * 2）每个结果集只根据ResultSetMetaData解析一次列名对应的列序号，之后的行直接按序号取值；
+ *   列序号按ResultSet实例缓存，不依赖rowNum，手动调用mapRow或映射过程中嵌套其他查询时也不会用错列；
+ * 3）查询结果中不存在的列(只查询部分字段时)不赋值，保留实体的默认值，与BeanPropertyRowMapper一致；
+ * 4）同一个实例被多个线程共享，列序号与对应的ResultSet保存在ThreadLocal中(弱引用，不延长已关闭结果集的生命周期)；
+ * **********************************************/
+
+public abstract class ColumnIndexRowMapper<T> implements RowMapper<T> {
+    private final String[] columns;
+    private final ThreadLocal<ResolvedColumns> resolvedColumns = new ThreadLocal<>();
+
+    protected ColumnIndexRowMapper(String... columns) {
+        this.columns = columns;
+    }
+
+    @Override
+    public final T mapRow(ResultSet rs, int rowNum) throws SQLException {
+        ResolvedColumns resolved = resolvedColumns.get();
+        if (resolved == null || resolved.resultSet.get() != rs) { //新的结果集，或同一线程中交替映射多个结果集
+            resolved = new ResolvedColumns(new WeakReference<>(rs), resolve(rs.getMetaData()));
+            resolvedColumns.set(resolved);
+        }
+        return map(rs, resolved.indexes);
+    }
+
+    //indexes[i]为第i个声明列在结果集中的序号(从1开始)，0表示结果集中没有该列
+    protected abstract T map(ResultSet rs, int[] indexes) throws SQLException;
+
+    private int[] resolve(ResultSetMetaData metaData) throws SQLException {
+        int[] indexes = new int[columns.length];
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            String label = JdbcUtils.lookupColumnName(metaData, i);
+            for (int c = 0; c < columns.length; c++) {
+                if (indexes[c] == 0 && columns[c].equalsIgnoreCase(label)) {
+                    indexes[c] = i;
+                    break;
+                }
+            }
+        }
+        return indexes;
+    }
+
+    private record ResolvedColumns(WeakReference<ResultSet> resultSet, int[] indexes) {
+    }
+
+    protected static Long getLong(ResultSet rs, int index) throws SQLException {
+        long value = rs.getLong(index);
+        return value == 0 && rs.wasNull() ? null : value;
+    }
+
+    protected static Integer getInteger(ResultSet rs, int index) throws SQLException {
+        int value = rs.getInt(index);
+        return value == 0 && rs.wasNull() ? null : value;
+    }
+}
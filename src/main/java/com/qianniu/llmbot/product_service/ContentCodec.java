@@ -0,0 +1,257 @@
+package com.qianniu.llmbot.product_service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*********************************************
+ * messages表query_content/answer_content的存储编码，写入时压缩、读取时透明解压
+ * 1）压缩算法为deflate + 预置字典(preset dictionary)，字典从本系统已有的对话内容中训练，保存在content_dictionaries表；
+ * 2）存储格式：压缩内容为 "\u0001z" + 字典ID(36进制，0表示无字典) + ":" + base64(deflate数据)，列类型仍为TEXT；
+ *    以"\u0001"开头的原文加 "\u0001r:" 前缀原样存储，其余内容(旧数据、短内容)均为原文，读取时不做处理；
+ * 3）只压缩长度超过min_chars的内容，且压缩后(含base64)必须比原文UTF-8字节数更短，否则保存原文；
+ * 4）其他节点训练的新字典在首次遇到时按ID从数据库加载；
+ * 5）统计写入的原始/存储字节数、读取解码耗时，用于评估节省的存储和读取延迟的影响；
+ * **********************************************/
+
+@Component
+@DependsOn("databaseInitializer") //content_dictionaries表由DatabaseInitializer创建
+public class ContentCodec {
+    private static final Logger logger = LoggerFactory.getLogger(ContentCodec.class);
+    private static final String COMPRESSED_PREFIX = "\u0001z";
+    private static final String RAW_PREFIX = "\u0001r:";
+    private static final int MAX_DICTIONARY_BYTES = 32 * 1024; //deflate窗口大小，字典超出部分无效
+    private static final int GRAM_CHARS = 8;                   //字典训练的片段长度(字符)
+    private static final int MAX_TRAINING_CHARS = 4 * 1024 * 1024;
+    private static final int MAX_CANDIDATE_GRAMS = 8192;         //参与字典选取的候选片段数上限
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    private final boolean enabled;
+    private final int minChars;
+    private final int level;
+
+    private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+    private volatile int currentDictionaryId; //0表示尚未训练字典，使用无字典的deflate
+
+    private final LongAdder encodedValues = new LongAdder();
+    private final LongAdder compressedValues = new LongAdder();
+    private final LongAdder originalBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder decodedValues = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+
+    public ContentCodec(@Value("${compression.enabled:true}") boolean enabled,
+                        @Value("${compression.min_chars:256}") int minChars,
+                        @Value("${compression.level:6}") int level) {
+        this.enabled = enabled;
+        this.minChars = minChars;
+        this.level = level;
+    }
+
+    @PostConstruct
+    public void loadDictionaries() {
+        jdbcTemplate.query("SELECT dict_id, dictionary FROM content_dictionaries", rs -> {
+            dictionaries.put(rs.getInt("dict_id"), rs.getBytes("dictionary"));
+        });
+        currentDictionaryId = dictionaries.keySet().stream().mapToInt(Integer::intValue).max().orElse(0);
+        logger.info("content字典已加载{}个，当前字典ID={}", dictionaries.size(), currentDictionaryId);
+    }
+
+    public int getCurrentDictionaryId() {
+        return currentDictionaryId;
+    }
+
+    //写入数据库前编码
+    public String encode(String content) {
+        if (content == null) {
+            return null;
+        }
+        if (!enabled || content.length() < minChars) {
+            return content.startsWith("\u0001") ? RAW_PREFIX + content : content;
+        }
+        byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+        int dictId = currentDictionaryId;
+        byte[] dictionary = dictId == 0 ? null : dictionaries.get(dictId);
+        Deflater deflater = new Deflater(level);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            String encoded = COMPRESSED_PREFIX + Integer.toString(dictId, 36) + ":" + Base64.getEncoder().encodeToString(out.toByteArray());
+            encodedValues.increment();
+            originalBytes.add(raw.length);
+            if (encoded.length() >= raw.length) { //压缩后(base64为ASCII，字符数即字节数)不比原文小
+                storedBytes.add(raw.length);
+                return content.startsWith("\u0001") ? RAW_PREFIX + content : content;
+            }
+            compressedValues.increment();
+            storedBytes.add(encoded.length());
+            return encoded;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //从数据库读取后解码，原文(含旧数据)原样返回
+    public String decode(String stored) {
+        if (stored == null || stored.isEmpty() || stored.charAt(0) != '\u0001') {
+            return stored;
+        }
+        if (stored.startsWith(RAW_PREFIX)) {
+            return stored.substring(RAW_PREFIX.length());
+        }
+        if (!stored.startsWith(COMPRESSED_PREFIX)) {
+            return stored;
+        }
+        long start = System.nanoTime();
+        int colon = stored.indexOf(':', COMPRESSED_PREFIX.length());
+        int dictId = Integer.parseInt(stored.substring(COMPRESSED_PREFIX.length(), colon), 36);
+        byte[] compressed = Base64.getDecoder().decode(stored.substring(colon + 1));
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary(dictId));
+                    continue;
+                }
+                if (n == 0 && inflater.needsInput()) {
+                    throw new DataFormatException("压缩数据不完整");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("message内容解压失败: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+            decodedValues.increment();
+            decodeNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    //从最近的对话内容中训练新字典并设为当前字典，返回新字典ID
+    //连接池关闭了自动提交，字典必须在事务中写入，否则连接归还时被回滚
+    @Transactional
+    public synchronized int trainDictionary(int sampleRows) {
+        List<String> samples = new ArrayList<>();
+        int[] totalChars = {0};
+        jdbcTemplate.query("SELECT query_content, answer_content FROM messages ORDER BY message_id DESC LIMIT ?", rs -> {
+            for (String column : new String[]{"query_content", "answer_content"}) {
+                String text = decode(rs.getString(column));
+                if (text != null && totalChars[0] < MAX_TRAINING_CHARS) {
+                    samples.add(text);
+                    totalChars[0] += text.length();
+                }
+            }
+        }, sampleRows);
+        byte[] dictionary = buildDictionary(samples);
+        if (dictionary.length == 0) {
+            throw new IllegalStateException("样本内容不足，无法训练字典");
+        }
+        Integer maxId = jdbcTemplate.queryForObject("SELECT COALESCE(MAX(dict_id), 0) FROM content_dictionaries", Integer.class);
+        int dictId = (maxId != null ? maxId : 0) + 1;
+        jdbcTemplate.update("INSERT INTO content_dictionaries (dict_id, dictionary, sample_rows, created_at) VALUES (?, ?, ?, ?)",
+                dictId, dictionary, sampleRows, System.currentTimeMillis() / 1000);
+        dictionaries.put(dictId, dictionary);
+        currentDictionaryId = dictId;
+        logger.info("content字典训练完成，ID={}，大小{}字节，样本{}条", dictId, dictionary.length, samples.size());
+        return dictId;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("currentDictionaryId", currentDictionaryId);
+        stats.put("dictionaries", dictionaries.size());
+        stats.put("encodedValues", encodedValues.sum());
+        stats.put("compressedValues", compressedValues.sum());
+        stats.put("originalBytes", originalBytes.sum());
+        stats.put("storedBytes", storedBytes.sum());
+        stats.put("savedBytes", originalBytes.sum() - storedBytes.sum());
+        stats.put("decodedValues", decodedValues.sum());
+        long decoded = decodedValues.sum();
+        stats.put("avgDecodeMicros", decoded == 0 ? 0 : decodeNanos.sum() / 1000.0 / decoded);
+        return stats;
+    }
+
+    private byte[] dictionary(int dictId) {
+        return dictionaries.computeIfAbsent(dictId, id -> jdbcTemplate.queryForObject(
+                "SELECT dictionary FROM content_dictionaries WHERE dict_id = ?", byte[].class, id));
+    }
+
+    //字典训练：统计样本中重复出现的固定长度片段，按(出现次数 x 字节数)排序选取，直到字典填满
+    //deflate对距离越近的匹配编码越短，价值最高的片段放在字典末尾
+    static byte[] buildDictionary(List<String> samples) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String sample : samples) {
+            for (int i = 0; i + GRAM_CHARS <= sample.length(); i += 2) {
+                counts.merge(sample.substring(i, i + GRAM_CHARS), 1, Integer::sum);
+            }
+        }
+        List<Map.Entry<String, Integer>> grams = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() >= 3 && !entry.getKey().isBlank()) {
+                grams.add(entry);
+            }
+        }
+        grams.sort((a, b) -> Long.compare(
+                (long) b.getValue() * b.getKey().getBytes(StandardCharsets.UTF_8).length,
+                (long) a.getValue() * a.getKey().getBytes(StandardCharsets.UTF_8).length));
+
+        List<byte[]> selected = new ArrayList<>();
+        StringBuilder included = new StringBuilder();
+        int size = 0;
+        for (Map.Entry<String, Integer> gram : grams.subList(0, Math.min(grams.size(), MAX_CANDIDATE_GRAMS))) {
+            if (included.indexOf(gram.getKey()) >= 0) {
+                continue; //已被之前选取的片段覆盖
+            }
+            byte[] bytes = gram.getKey().getBytes(StandardCharsets.UTF_8);
+            if (size + bytes.length > MAX_DICTIONARY_BYTES) {
+                break;
+            }
+            selected.add(bytes);
+            included.append(gram.getKey()).append('\u0000');
+            size += bytes.length;
+        }
+        byte[] dictionary = new byte[size];
+        int position = size;
+        for (byte[] bytes : selected) { //价值高的先选取，从末尾向前放置
+            position -= bytes.length;
+            System.arraycopy(bytes, 0, dictionary, position, bytes.length);
+        }
+        return dictionary;
+    }
+}
@@ -0,0 +1,273 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.cluster.InvalidationBus;
+import com.qianniu.llmbot.product_entity.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*********************************************
+ * 活跃会话的历史记录内存缓存(堆内)，避免每次非新对话都查询messages表的TEXT字段
+ * 1）每个conversation_id一个环形缓冲区，保存最新的N轮问答(紧凑的只读记录)，始终等于该会话最新的min(N, 总轮数)轮；
+ * 2）全局按估算字节数限额，超出时按LRU淘汰最久未访问的会话；
+ * 3）写入：message提交后追加到已缓存的会话(未缓存的会话不追加，下次读取时从数据库整体加载)；
+ * 4）加载：数据库读取与并发写入存在竞争，按conversation_id分段记录写入序号，加载期间同段有写入则放弃本次缓存；
+ * 5）多节点部署时，写入/归档message的事务内经InvalidationBus的history主题通知其他节点，其他节点使该会话的缓存失效；
+ *    总线可能漏掉事件时清空全部缓存；
+ * **********************************************/
+
+@Component
+public class ConversationHistoryCache {
+    private static final int STRIPES = 1024; //写入序号分段数
+    public static final String INVALIDATION_TOPIC = "history"; //key为conversation_id
+
+    private final InvalidationBus invalidationBus;
+    private final int turnsPerConversation;
+    private final long maxBytes;
+    private final boolean enabled;
+
+    //按访问顺序排序的LinkedHashMap实现LRU，所有操作在this锁内完成
+    private final LinkedHashMap<String, Ring> rings = new LinkedHashMap<>(256, 0.75f, true);
+    private final AtomicLongArray stripeWriteSeq = new AtomicLongArray(STRIPES);
+    private long totalBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public ConversationHistoryCache(InvalidationBus invalidationBus,
+                                    @Value("${historycache.turns:50}") int turnsPerConversation,
+                                    @Value("${historycache.max_bytes:67108864}") long maxBytes,
+                                    @Value("${historycache.enabled:true}") boolean enabled) {
+        this.turnsPerConversation = Math.max(1, turnsPerConversation);
+        this.maxBytes = maxBytes;
+        this.enabled = enabled;
+        this.invalidationBus = invalidationBus;
+        invalidationBus.subscribe(INVALIDATION_TOPIC, this::invalidate, this::invalidateAll);
+    }
+
+    public int getTurnsPerConversation() {
+        return turnsPerConversation;
+    }
+
+    //读取会话最新的n轮记录(按message_id降序，由新到旧)；缓存不能完整提供n轮时返回null
+    public List<Message> getLatest(String conversationId, int n) {
+        if (!enabled) {
+            return null;
+        }
+        synchronized (this) {
+            Ring ring = rings.get(conversationId);
+            //环未满说明已缓存该会话的全部记录；环已满时只能提供不超过容量的轮数
+            if (ring == null || (n > ring.size && ring.size == ring.turns.length)) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return ring.newestFirst(n);
+        }
+    }
+
+    //数据库加载前调用，返回该会话所在分段的写入序号，作为putLoaded的参数
+    public long beginLoad(String conversationId) {
+        return stripeWriteSeq.get(stripe(conversationId));
+    }
+
+    //从数据库加载的最新记录(由新到旧，条数为LIMIT turnsPerConversation的结果)放入缓存
+    //加载期间同分段有新写入时放弃，避免缓存缺少刚写入的记录
+    public void putLoaded(String conversationId, List<Message> newestFirst, long loadSeq) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            if (stripeWriteSeq.get(stripe(conversationId)) != loadSeq || rings.containsKey(conversationId)) {
+                return;
+            }
+            Ring ring = new Ring(turnsPerConversation);
+            int count = Math.min(newestFirst.size(), turnsPerConversation);
+            for (int i = count - 1; i >= 0; i--) { //由旧到新依次追加
+                ring.append(HistoryTurn.of(newestFirst.get(i)));
+            }
+            rings.put(conversationId, ring);
+            totalBytes += ring.bytes;
+            evictIfNeeded();
+        }
+    }
+
+    //message已提交数据库后追加；会话未缓存时只更新写入序号
+    public void append(Message message) {
+        if (!enabled) {
+            return;
+        }
+        String conversationId = message.getConversationId();
+        synchronized (this) {
+            stripeWriteSeq.incrementAndGet(stripe(conversationId));
+            Ring ring = rings.get(conversationId);
+            if (ring == null) {
+                return;
+            }
+            //加载时已包含该记录(数据库读取发生在提交之后)则跳过，避免重复
+            if (ring.size > 0 && message.getMessageId() != null && message.getMessageId() <= ring.newest().messageId()) {
+                return;
+            }
+            long before = ring.bytes;
+            ring.append(HistoryTurn.of(message));
+            totalBytes += ring.bytes - before;
+            evictIfNeeded();
+        }
+    }
+
+    //使会话缓存失效(如删除/归档记录后)
+    public void invalidate(String conversationId) {
+        synchronized (this) {
+            stripeWriteSeq.incrementAndGet(stripe(conversationId));
+            Ring ring = rings.remove(conversationId);
+            if (ring != null) {
+                totalBytes -= ring.bytes;
+            }
+        }
+        invalidations.increment();
+    }
+
+    //清空全部会话缓存(总线可能漏掉事件时)；所有分段的写入序号加一，放弃进行中的加载
+    public synchronized void invalidateAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripeWriteSeq.incrementAndGet(i);
+        }
+        rings.clear();
+        totalBytes = 0;
+        invalidations.increment();
+    }
+
+    //在写入/归档message的事务内调用，通知其他节点这些会话的记录已变化(事务提交后生效)
+    public void publish(Collection<String> conversationIds) {
+        if (enabled) {
+            conversationIds.forEach(conversationId -> invalidationBus.publish(INVALIDATION_TOPIC, conversationId));
+        }
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("conversations", rings.size());
+        stats.put("bytes", totalBytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("turnsPerConversation", turnsPerConversation);
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("invalidations", invalidations.sum());
+        return stats;
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, Ring>> iterator = rings.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Ring eldest = iterator.next().getValue();
+            totalBytes -= eldest.bytes;
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    private static int stripe(String conversationId) {
+        return (conversationId.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    //单个会话的环形缓冲区，只在外部锁内访问
+    private static final class Ring {
+        private final HistoryTurn[] turns;
+        private int head; //下一个写入位置
+        private int size;
+        private long bytes;
+
+        Ring(int capacity) {
+            this.turns = new HistoryTurn[capacity];
+        }
+
+        void append(HistoryTurn turn) {
+            HistoryTurn replaced = turns[head];
+            if (replaced != null) {
+                bytes -= replaced.estimatedBytes();
+            } else {
+                size++;
+            }
+            turns[head] = turn;
+            bytes += turn.estimatedBytes();
+            head = (head + 1) % turns.length;
+        }
+
+        HistoryTurn newest() {
+            return turns[(head - 1 + turns.length) % turns.length];
+        }
+
+        List<Message> newestFirst(int n) {
+            int count = Math.min(n, size);
+            List<Message> result = new ArrayList<>(count);
+            for (int i = 1; i <= count; i++) {
+                result.add(turns[(head - i + turns.length) % turns.length].toMessage());
+            }
+            return result;
+        }
+    }
+
+    //紧凑的只读历史记录，与messages表一行对应
+    record HistoryTurn(long messageId, String botName, String userId, String userName, String conversationId,
+                       int totalTokenNumber, String queryContent, int queryContentType, int queryTokenNumber,
+                       String answerContent, int answerContentType, int answerTokenNumber, long createdAt,
+                       int queryTokenEstimate, int answerTokenEstimate) {
+
+        static HistoryTurn of(Message m) {
+            return new HistoryTurn(
+                    m.getMessageId() != null ? m.getMessageId() : 0L,
+                    m.getBotName(), m.getUserId(), m.getUserName(), m.getConversationId(),
+                    intValue(m.getTotalTokenNumber()),
+                    m.getQueryContent(), intValue(m.getQueryContentType()), intValue(m.getQueryTokenNumber()),
+                    m.getAnswerContent(), intValue(m.getAnswerContentType()), intValue(m.getAnswerTokenNumber()),
+                    m.getCreatedAt() != null ? m.getCreatedAt() : 0L,
+                    intValue(m.getQueryTokenEstimate()), intValue(m.getAnswerTokenEstimate()));
+        }
+
+        Message toMessage() {
+            Message m = new Message();
+            m.setMessageId(messageId);
+            m.setBotName(botName);
+            m.setUserId(userId);
+            m.setUserName(userName);
+            m.setConversationId(conversationId);
+            m.setTotalTokenNumber(totalTokenNumber);
+            m.setQueryContent(queryContent);
+            m.setQueryContentType(queryContentType);
+            m.setQueryTokenNumber(queryTokenNumber);
+            m.setAnswerContent(answerContent);
+            m.setAnswerContentType(answerContentType);
+            m.setAnswerTokenNumber(answerTokenNumber);
+            m.setCreatedAt(createdAt);
+            m.setQueryTokenEstimate(queryTokenEstimate);
+            m.setAnswerTokenEstimate(answerTokenEstimate);
+            return m;
+        }
+
+        //估算堆内占用：对象头与基本字段 + 各字符串(对象头 + 字符数组)
+        long estimatedBytes() {
+            return 96 + stringBytes(botName) + stringBytes(userId) + stringBytes(userName)
+                    + stringBytes(conversationId) + stringBytes(queryContent) + stringBytes(answerContent);
+        }
+
+        private static long stringBytes(String s) {
+            return s == null ? 0 : 40 + 2L * s.length();
+        }
+
+        private static int intValue(Integer value) {
+            return value != null ? value : 0;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.Conversation;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*********************************************
+ * conversations表结果集到Conversation实体的映射，列名与Conversation的@Column一致
+ * **********************************************/
+
+public class ConversationRowMapper extends ColumnIndexRowMapper<Conversation> {
+    private static final int CONVERSATION_ID = 0;
+    private static final int USER_ID = 1;
+    private static final int BOT_NAME = 2;
+    private static final int TITLE = 3;
+    private static final int CREATED_AT = 4;
+    private static final int LAST_MESSAGE_ID = 5;
+    private static final int LAST_MESSAGE_AT = 6;
+    private static final int TURN_COUNT = 7;
+    private static final int QUERY_TOKENS = 8;
+    private static final int ANSWER_TOKENS = 9;
+    private static final int TOTAL_TOKENS = 10;
+
+    public ConversationRowMapper() {
+        super("conversation_id", "user_id", "bot_name", "title", "created_at", "last_message_id", "last_message_at",
+                "turn_count", "query_tokens", "answer_tokens", "total_tokens");
+    }
+
+    @Override
+    protected Conversation map(ResultSet rs, int[] indexes) throws SQLException {
+        Conversation conversation = new Conversation();
+        int i;
+        if ((i = indexes[CONVERSATION_ID]) != 0) conversation.setConversationId(rs.getString(i));
+        if ((i = indexes[USER_ID]) != 0) conversation.setUserId(rs.getString(i));
+        if ((i = indexes[BOT_NAME]) != 0) conversation.setBotName(rs.getString(i));
+        if ((i = indexes[TITLE]) != 0) conversation.setTitle(rs.getString(i));
+        if ((i = indexes[CREATED_AT]) != 0) conversation.setCreatedAt(getLong(rs, i));
+        if ((i = indexes[LAST_MESSAGE_ID]) != 0) conversation.setLastMessageId(getLong(rs, i));
+        if ((i = indexes[LAST_MESSAGE_AT]) != 0) conversation.setLastMessageAt(getLong(rs, i));
+        if ((i = indexes[TURN_COUNT]) != 0) conversation.setTurnCount(getLong(rs, i));
+        if ((i = indexes[QUERY_TOKENS]) != 0) conversation.setQueryTokens(getLong(rs, i));
+        if ((i = indexes[ANSWER_TOKENS]) != 0) conversation.setAnswerTokens(getLong(rs, i));
+        if ((i = indexes[TOTAL_TOKENS]) != 0) conversation.setTotalTokens(getLong(rs, i));
+        return conversation;
+    }
+}
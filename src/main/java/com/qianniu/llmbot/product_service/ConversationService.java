@@ -0,0 +1,148 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.Conversation;
+import com.qianniu.llmbot.product_entity.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*********************************************
+ * 会话摘要(conversations表)的维护与查询，前端会话列表只查询该表，不读取messages
+ * 1）message写入时在同一事务内增量更新(INSERT ... ON DUPLICATE KEY UPDATE)，新会话以第一条message的query摘要作为title；
+ * 2）批量写入先在内存中按conversation_id合并，按conversation_id排序后一条批量语句写入，并发事务加锁顺序一致；
+ * 3）用户会话列表按最新message由新到旧keyset分页，使用(user_id, last_message_id)索引，一次查询完成；
+ * 4）rebuild按messages与messages_archive全量重建(V8迁移使用等价的SQL回填，编码存储的title需由rebuild补全)；
+ * **********************************************/
+
+@Component
+@Transactional
+public class ConversationService {
+    private static final Logger logger = LoggerFactory.getLogger(ConversationService.class);
+    private static final int TITLE_LENGTH = 50;      //title最多字符数(按码点计)
+    private static final int REBUILD_TITLE_BATCH = 500;
+
+    private static final String UPSERT_SQL = "INSERT INTO conversations (conversation_id, user_id, bot_name, title, created_at, "
+            + "last_message_id, last_message_at, turn_count, query_tokens, answer_tokens, total_tokens) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) "
+            + "ON DUPLICATE KEY UPDATE "
+            + "created_at = LEAST(created_at, VALUES(created_at)), "
+            + "last_message_id = GREATEST(last_message_id, VALUES(last_message_id)), "
+            + "last_message_at = GREATEST(last_message_at, VALUES(last_message_at)), "
+            + "turn_count = turn_count + VALUES(turn_count), "
+            + "query_tokens = query_tokens + VALUES(query_tokens), "
+            + "answer_tokens = answer_tokens + VALUES(answer_tokens), "
+            + "total_tokens = total_tokens + VALUES(total_tokens)";
+    //热表与归档表合并后的全部message，仅rebuild使用
+    private static final String ALL_MESSAGES = "(SELECT message_id, user_id, bot_name, conversation_id, created_at, query_token_number, answer_token_number, total_token_number FROM messages "
+            + "UNION ALL SELECT message_id, user_id, bot_name, conversation_id, created_at, query_token_number, answer_token_number, total_token_number FROM messages_archive) m";
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    @Lazy //rebuild时按message_id读取第一条message生成title，延迟注入避免循环依赖
+    MessageService messageService;
+
+    RowMapper<Conversation> conversationRowMapper = new ConversationRowMapper();
+
+    //将新写入的message累加到所属会话，由MessageService在写入message的同一事务内调用
+    public void record(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        Map<String, Conversation> deltas = new HashMap<>();
+        for (Message m : messages) {
+            Conversation c = deltas.get(m.getConversationId());
+            if (c == null) {
+                c = new Conversation();
+                c.setConversationId(m.getConversationId());
+                c.setUserId(m.getUserId());
+                c.setBotName(m.getBotName());
+                c.setTitle(titleOf(m.getQueryContent())); //只在新建会话时使用，同一批中取最早的一条
+                c.setCreatedAt(m.getCreatedAt());
+                deltas.put(m.getConversationId(), c);
+            } else if (m.getCreatedAt() < c.getCreatedAt()) {
+                c.setTitle(titleOf(m.getQueryContent()));
+                c.setCreatedAt(m.getCreatedAt());
+            }
+            c.setLastMessageId(Math.max(c.getLastMessageId(), m.getMessageId()));
+            c.setLastMessageAt(Math.max(c.getLastMessageAt(), m.getCreatedAt()));
+            c.setTurnCount(c.getTurnCount() + 1);
+            c.setQueryTokens(c.getQueryTokens() + value(m.getQueryTokenNumber()));
+            c.setAnswerTokens(c.getAnswerTokens() + value(m.getAnswerTokenNumber()));
+            c.setTotalTokens(c.getTotalTokens() + value(m.getTotalTokenNumber()));
+        }
+        List<Object[]> rows = new ArrayList<>(deltas.size());
+        deltas.values().stream()
+                .sorted((a, b) -> a.getConversationId().compareTo(b.getConversationId()))
+                .forEach(c -> rows.add(new Object[]{c.getConversationId(), c.getUserId(), c.getBotName(), c.getTitle(), c.getCreatedAt(),
+                        c.getLastMessageId(), c.getLastMessageAt(), c.getTurnCount(), c.getQueryTokens(), c.getAnswerTokens(), c.getTotalTokens()}));
+        jdbcTemplate.batchUpdate(UPSERT_SQL, rows);
+    }
+
+    //按照userId分页查询会话列表(最新有消息的会话在前)，cursor为上一页返回的游标，为空时查询第一页
+    @Transactional(readOnly = true)
+    public KeysetPage<Conversation> getConversationsByUserId(String user_id, String cursor, int pageSize) {
+        int size = PageCursor.clampPageSize(pageSize);
+        String filter = "conversations:" + user_id;
+        long[] after = PageCursor.decode(cursor, filter, 1);
+        List<Conversation> rows = after == null
+                ? jdbcTemplate.query("SELECT * FROM conversations WHERE user_id = ? ORDER BY last_message_id DESC LIMIT ?",
+                        conversationRowMapper, user_id, size + 1)
+                : jdbcTemplate.query("SELECT * FROM conversations WHERE user_id = ? AND last_message_id < ? ORDER BY last_message_id DESC LIMIT ?",
+                        conversationRowMapper, user_id, after[0], size + 1);
+        return KeysetPage.of(rows, size, last -> PageCursor.encode(filter, last.getLastMessageId()));
+    }
+
+    //按照conversationId查询单个会话，不存在时抛出EmptyResultDataAccessException
+    @Transactional(readOnly = true)
+    public Conversation getConversation(String conversation_id) {
+        return jdbcTemplate.queryForObject("SELECT * FROM conversations WHERE conversation_id = ?", conversationRowMapper, conversation_id);
+    }
+
+    //按messages与messages_archive全量重建；message内容为压缩存储，title由第一条message解码后生成
+    public void rebuild() {
+        long start = System.currentTimeMillis();
+        jdbcTemplate.update("DELETE FROM conversations");
+        jdbcTemplate.update("INSERT INTO conversations (conversation_id, user_id, bot_name, title, created_at, last_message_id, last_message_at, "
+                + "turn_count, query_tokens, answer_tokens, total_tokens) "
+                + "SELECT conversation_id, MIN(user_id), MIN(bot_name), '', MIN(created_at), MAX(message_id), MAX(created_at), COUNT(*), "
+                + "COALESCE(SUM(query_token_number), 0), COALESCE(SUM(answer_token_number), 0), COALESCE(SUM(total_token_number), 0) "
+                + "FROM " + ALL_MESSAGES + " GROUP BY conversation_id");
+        List<Long> firstIds = jdbcTemplate.queryForList("SELECT MIN(message_id) FROM " + ALL_MESSAGES + " GROUP BY conversation_id", Long.class);
+        for (int from = 0; from < firstIds.size(); from += REBUILD_TITLE_BATCH) {
+            List<Message> firstMessages = messageService.getMessagesByIds(firstIds.subList(from, Math.min(from + REBUILD_TITLE_BATCH, firstIds.size())));
+            List<Object[]> titles = new ArrayList<>(firstMessages.size());
+            for (Message m : firstMessages) {
+                titles.add(new Object[]{titleOf(m.getQueryContent()), m.getConversationId()});
+            }
+            jdbcTemplate.batchUpdate("UPDATE conversations SET title = ? WHERE conversation_id = ?", titles);
+        }
+        logger.info("conversations表重建完成，{}个会话，耗时{}ms", firstIds.size(), System.currentTimeMillis() - start);
+    }
+
+    //query内容的摘要：空白字符合并为一个空格，最多TITLE_LENGTH个字符
+    static String titleOf(String queryContent) {
+        if (queryContent == null) {
+            return "";
+        }
+        String title = queryContent.strip().replaceAll("\\s+", " ");
+        if (title.codePointCount(0, title.length()) > TITLE_LENGTH) {
+            title = title.substring(0, title.offsetByCodePoints(0, TITLE_LENGTH));
+        }
+        return title;
+    }
+
+    private static long value(Integer n) {
+        return n == null ? 0 : n;
+    }
+}
@@ -0,0 +1,19 @@
+package com.qianniu.llmbot.product_service;
+
+/*********************************************
+ * 注册时email或phone违反users表唯一索引，由UserService.registerUser将DuplicateKeyException转换而来
+ * 1）field为冲突的字段名(email或phone)，Controller据此返回409及对应的错误信息；
+ * **********************************************/
+
+public class DuplicateAccountException extends IllegalArgumentException {
+    private final String field;
+
+    public DuplicateAccountException(String field, Throwable cause) {
+        super(field + " already registered", cause);
+        this.field = field;
+    }
+
+    public String getField() {
+        return field;
+    }
+}
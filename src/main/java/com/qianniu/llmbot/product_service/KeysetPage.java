@@ -0,0 +1,25 @@
+package com.qianniu.llmbot.product_service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/*********************************************
+ * keyset分页查询的一页结果，nextCursor为null表示已是最后一页
+ * **********************************************/
+
+public record KeysetPage<T>(List<T> items, String nextCursor) {
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+
+    //查询时多取一条判断是否还有下一页，多取的一条不返回
+    static <T> KeysetPage<T> of(List<T> rows, int pageSize, Function<T, String> cursorOf) {
+        if (rows.size() <= pageSize) {
+            return new KeysetPage<>(rows, null);
+        }
+        List<T> items = new ArrayList<>(rows.subList(0, pageSize));
+        return new KeysetPage<>(items, cursorOf.apply(items.get(pageSize - 1)));
+    }
+}
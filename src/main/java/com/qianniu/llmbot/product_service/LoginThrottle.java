@@ -0,0 +1,96 @@
+package com.qianniu.llmbot.product_service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.authentication.LockedException;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*********************************************
+ * 登录/注册尝试的限流(本节点内存计数，固定时间窗口)，在提交密码哈希之前检查，被限流的请求不消耗哈希线程
+ * 1）按账号(email或phone)统计密码错误次数，窗口内达到上限后拒绝该账号的登录，登录成功时清零；
+ * 2）按客户端IP统计全部尝试次数(包括注册)，窗口内超过上限后拒绝；
+ * 3）被限流时抛出LockedException，由Controller返回429；过期窗口由定时任务清理；
+ * **********************************************/
+
+@Component
+public class LoginThrottle {
+    private record Window(long startMillis, int count) {
+    }
+
+    private final int maxAccountFailures;
+    private final int maxIpAttempts;
+    private final long windowMillis;
+
+    private final ConcurrentHashMap<String, Window> accountFailures = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Window> ipAttempts = new ConcurrentHashMap<>();
+
+    private final LongAdder accountThrottled = new LongAdder();
+    private final LongAdder ipThrottled = new LongAdder();
+
+    public LoginThrottle(@Value("${password.max_account_failures:5}") int maxAccountFailures,
+                         @Value("${password.max_ip_attempts:30}") int maxIpAttempts,
+                         @Value("${password.throttle_window_seconds:300}") long windowSeconds) {
+        this.maxAccountFailures = Math.max(1, maxAccountFailures);
+        this.maxIpAttempts = Math.max(1, maxIpAttempts);
+        this.windowMillis = Math.max(1, windowSeconds) * 1000;
+    }
+
+    //记录一次来自ip的尝试，窗口内超过上限时抛出LockedException
+    public void acquireIp(String ip) {
+        Window window = ipAttempts.compute(ip, (k, w) -> increment(w, System.currentTimeMillis()));
+        if (window.count() > maxIpAttempts) {
+            ipThrottled.increment();
+            throw new LockedException("尝试次数过多，请稍后再试");
+        }
+    }
+
+    //账号在窗口内密码错误次数已达上限时抛出LockedException
+    public void checkAccount(String account) {
+        Window window = accountFailures.get(account);
+        if (window != null && !isExpired(window, System.currentTimeMillis()) && window.count() >= maxAccountFailures) {
+            accountThrottled.increment();
+            throw new LockedException("密码错误次数过多，请稍后再试");
+        }
+    }
+
+    public void recordFailure(String account) {
+        accountFailures.compute(account, (k, w) -> increment(w, System.currentTimeMillis()));
+    }
+
+    public void recordSuccess(String account) {
+        accountFailures.remove(account);
+    }
+
+    private Window increment(Window window, long now) {
+        return window == null || isExpired(window, now) ? new Window(now, 1) : new Window(window.startMillis(), window.count() + 1);
+    }
+
+    private boolean isExpired(Window window, long now) {
+        return now - window.startMillis() >= windowMillis;
+    }
+
+    //删除已过期的窗口
+    @Scheduled(fixedDelayString = "${password.throttle_purge_interval_ms:60000}")
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+        accountFailures.values().removeIf(w -> isExpired(w, now));
+        ipAttempts.values().removeIf(w -> isExpired(w, now));
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("windowSeconds", windowMillis / 1000);
+        stats.put("maxAccountFailures", maxAccountFailures);
+        stats.put("maxIpAttempts", maxIpAttempts);
+        stats.put("trackedAccounts", accountFailures.size());
+        stats.put("trackedIps", ipAttempts.size());
+        stats.put("accountThrottled", accountThrottled.sum());
+        stats.put("ipThrottled", ipThrottled.sum());
+        return stats;
+    }
+}
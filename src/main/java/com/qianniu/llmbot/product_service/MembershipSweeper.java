@@ -0,0 +1,129 @@
+package com.qianniu.llmbot.product_service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*********************************************
+ * 会员到期降级的后台任务，替代原来在认证过滤器和对话请求中逐个查询、降级并生成新token的做法
+ * 1）定时扫描：按idx_membership索引范围查询已到期的会员，分批执行一条UPDATE(role=NORMAL、membershipExpiry=0、tokenVersion+1)；
+ * 2）到期时间轮：每次扫描后把下一个扫描周期内到期的会员按到期秒放入内存时间轮，每秒检查一次，到期即降级，不必等待下一次扫描；
+ * 3）请求路径只比较UserAuthStateCache中的到期时间，已到期但尚未降级的会员按NORMAL处理，不再写数据库；
+ * 4）多节点部署时每个节点都会执行，UPDATE再次校验到期时间，重复执行不会重复降级；
+ * **********************************************/
+
+@Component
+@DependsOn("databaseInitializer") //users表由DatabaseInitializer创建
+public class MembershipSweeper {
+    private static final Logger logger = LoggerFactory.getLogger(MembershipSweeper.class);
+
+    private final UserService userService;
+    private final boolean enabled;
+    private final long sweepIntervalSeconds;
+    private final int batchSize;
+
+    //到期时间轮：到期时间(unix秒) -> email，所有操作在wheel锁内完成
+    private final TreeMap<Long, Set<String>> wheel = new TreeMap<>();
+
+    private final AtomicLong lastSweepAt = new AtomicLong();
+    private final AtomicLong lastSweepDemoted = new AtomicLong();
+    private final AtomicLong sweepDemoted = new AtomicLong();
+    private final AtomicLong wheelDemoted = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public MembershipSweeper(UserService userService,
+                             @Value("${membership.sweep_enabled:true}") boolean enabled,
+                             @Value("${membership.sweep_interval_ms:60000}") long sweepIntervalMs,
+                             @Value("${membership.sweep_batch_size:500}") int batchSize) {
+        this.userService = userService;
+        this.enabled = enabled;
+        this.sweepIntervalSeconds = Math.max(1, sweepIntervalMs / 1000);
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    //扫描已到期的会员并分批降级，然后重新装载下一个扫描周期内到期的会员到时间轮
+    @Scheduled(fixedDelayString = "${membership.sweep_interval_ms:60000}", initialDelayString = "${membership.sweep_initial_delay_ms:5000}")
+    public synchronized void sweep() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        long demoted = 0;
+        try {
+            List<String> emails;
+            do {
+                emails = userService.getExpiredMemberEmails(now, batchSize);
+                demoted += userService.demoteExpiredMembers(emails, now);
+            } while (emails.size() >= batchSize);
+
+            Map<String, Long> upcoming = userService.getMembersExpiringBetween(now, now + sweepIntervalSeconds);
+            synchronized (wheel) {
+                wheel.clear();
+                upcoming.forEach((email, expiry) -> wheel.computeIfAbsent(expiry, k -> new HashSet<>()).add(email));
+            }
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            logger.error("会员到期扫描失败，已降级{}个会员", demoted, e);
+        }
+        lastSweepAt.set(now);
+        lastSweepDemoted.set(demoted);
+        sweepDemoted.addAndGet(demoted);
+        if (demoted > 0) {
+            logger.info("会员到期扫描完成，本次降级{}个会员", demoted);
+        }
+    }
+
+    //每秒检查时间轮，取出已到期的会员批量降级
+    @Scheduled(fixedDelayString = "${membership.wheel_tick_ms:1000}", initialDelayString = "${membership.wheel_tick_ms:1000}")
+    public void tick() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        List<String> due = new ArrayList<>();
+        synchronized (wheel) {
+            Map<Long, Set<String>> expired = wheel.headMap(now, true);
+            expired.values().forEach(due::addAll);
+            expired.clear();
+        }
+        for (int from = 0; from < due.size(); from += batchSize) {
+            List<String> batch = due.subList(from, Math.min(due.size(), from + batchSize));
+            try {
+                wheelDemoted.addAndGet(userService.demoteExpiredMembers(batch, now));
+            } catch (Exception e) {
+                //未降级的会员由下一次定时扫描处理
+                failures.incrementAndGet();
+                logger.warn("会员到期降级失败({}个)，等待下一次扫描: {}", batch.size(), e.getMessage());
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        int pending;
+        synchronized (wheel) {
+            pending = wheel.values().stream().mapToInt(Set::size).sum();
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("sweepIntervalSeconds", sweepIntervalSeconds);
+        stats.put("wheelPending", pending);
+        stats.put("lastSweepAt", lastSweepAt.get());
+        stats.put("lastSweepDemoted", lastSweepDemoted.get());
+        stats.put("sweepDemoted", sweepDemoted.get());
+        stats.put("wheelDemoted", wheelDemoted.get());
+        stats.put("failures", failures.get());
+        return stats;
+    }
+}
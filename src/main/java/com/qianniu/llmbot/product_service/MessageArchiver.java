@@ -0,0 +1,95 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.DatabaseInitializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*********************************************
+ * messages表冷热分层的后台归档任务
+ * 1）每天定时执行：先确保未来月份的分区已创建，再把created_at早于保留期(age_days)的记录分批迁入messages_archive表；
+ * 2）每批在一个事务内复制并删除，批量较小，避免长事务和大量锁；
+ * 3）归档完成后删除已为空的过期分区，热表只保留最近的数据，索引和缓冲池占用随之保持稳定；
+ * 4）多节点部署时每个节点都会执行，按message_id分批复制(INSERT IGNORE)和删除，重复执行不会产生重复记录；
+ * 5）归档可能持续较长时间，定时任务线程池(spring.task.scheduling.pool.size)需多于1个线程，避免阻塞其他定时任务；
+ * **********************************************/
+
+@Component
+public class MessageArchiver {
+    private static final Logger logger = LoggerFactory.getLogger(MessageArchiver.class);
+
+    private final MessageService messageService;
+    private final DatabaseInitializer databaseInitializer;
+    private final boolean enabled;
+    private final int ageDays;
+    private final int batchSize;
+
+    private final AtomicLong lastRunAt = new AtomicLong();
+    private final AtomicLong lastArchived = new AtomicLong();
+    private final AtomicLong totalArchived = new AtomicLong();
+    private final AtomicLong droppedPartitions = new AtomicLong();
+
+    public MessageArchiver(MessageService messageService, DatabaseInitializer databaseInitializer,
+                           @Value("${archive.enabled:true}") boolean enabled,
+                           @Value("${archive.age_days:180}") int ageDays,
+                           @Value("${archive.batch_size:1000}") int batchSize) {
+        this.messageService = messageService;
+        this.databaseInitializer = databaseInitializer;
+        this.enabled = enabled;
+        this.ageDays = Math.max(1, ageDays);
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    @Scheduled(cron = "${archive.cron:0 30 3 * * *}") //默认每天03:30执行
+    public void run() {
+        try {
+            databaseInitializer.ensureMessagePartitions();
+        } catch (Exception e) {
+            logger.error("messages表分区维护失败", e);
+        }
+        if (!enabled) {
+            return;
+        }
+        archive();
+    }
+
+    //归档早于保留期的记录，返回本次归档条数
+    public synchronized long archive() {
+        long cutoff = System.currentTimeMillis() / 1000 - ageDays * 86400L;
+        long archived = 0;
+        try {
+            int moved;
+            do {
+                moved = messageService.archiveBatch(cutoff, batchSize);
+                archived += moved;
+            } while (moved >= batchSize);
+            droppedPartitions.addAndGet(databaseInitializer.dropArchivedPartitions(cutoff));
+        } catch (Exception e) {
+            logger.error("message归档失败，已归档{}条", archived, e);
+        }
+        lastRunAt.set(System.currentTimeMillis() / 1000);
+        lastArchived.set(archived);
+        totalArchived.addAndGet(archived);
+        if (archived > 0) {
+            logger.info("message归档完成，本次迁入归档表{}条", archived);
+        }
+        return archived;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("ageDays", ageDays);
+        stats.put("lastRunAt", lastRunAt.get());
+        stats.put("lastArchived", lastArchived.get());
+        stats.put("totalArchived", totalArchived.get());
+        stats.put("droppedPartitions", droppedPartitions.get());
+        return stats;
+    }
+}
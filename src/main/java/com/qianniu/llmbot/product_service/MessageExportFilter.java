@@ -0,0 +1,38 @@
+package com.qianniu.llmbot.product_service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*********************************************
+ * message导出的筛选条件，各条件为null时不限制，多个条件同时满足
+ * fromCreatedAt/toCreatedAt为unix秒，区间为[from, to)
+ * **********************************************/
+
+public record MessageExportFilter(String botName, String userId, String conversationId, Long fromCreatedAt, Long toCreatedAt) {
+
+    //生成WHERE子句(无条件时为空字符串)，参数按顺序追加到args
+    String where(List<Object> args) {
+        List<String> conditions = new ArrayList<>();
+        if (botName != null) {
+            conditions.add("bot_name = ?");
+            args.add(botName);
+        }
+        if (userId != null) {
+            conditions.add("user_id = ?");
+            args.add(userId);
+        }
+        if (conversationId != null) {
+            conditions.add("conversation_id = ?");
+            args.add(conversationId);
+        }
+        if (fromCreatedAt != null) {
+            conditions.add("created_at >= ?");
+            args.add(fromCreatedAt);
+        }
+        if (toCreatedAt != null) {
+            conditions.add("created_at < ?");
+            args.add(toCreatedAt);
+        }
+        return conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+    }
+}
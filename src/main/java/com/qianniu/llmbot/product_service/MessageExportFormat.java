@@ -0,0 +1,79 @@
+package com.qianniu.llmbot.product_service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qianniu.llmbot.product_entity.Message;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/*********************************************
+ * message导出的输出格式，逐条写出，不缓存整个结果
+ * 1）NDJSON：每行一个Message的JSON对象；
+ * 2）CSV：首行为列名，字段含逗号、引号或换行时加引号并将引号转义为两个引号(RFC 4180)；开头写入UTF-8 BOM，Excel打开中文不乱码；
+ * **********************************************/
+
+public enum MessageExportFormat {
+    NDJSON("application/x-ndjson", "ndjson"),
+    CSV("text/csv", "csv");
+
+    private static final String CSV_HEADER = "message_id,bot_name,user_id,user_name,conversation_id,created_at,"
+            + "query_content_type,query_content,query_token_number,answer_content_type,answer_content,answer_token_number,total_token_number";
+
+    private final String contentType;
+    private final String extension;
+
+    MessageExportFormat(String contentType, String extension) {
+        this.contentType = contentType;
+        this.extension = extension;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public void writeHeader(Writer writer) throws IOException {
+        if (this == CSV) {
+            writer.write('\uFEFF');
+            writer.write(CSV_HEADER);
+            writer.write('\n');
+        }
+    }
+
+    public void writeRow(Writer writer, Message message, ObjectMapper objectMapper) throws IOException {
+        if (this == NDJSON) {
+            writer.write(objectMapper.writeValueAsString(message));
+            writer.write('\n');
+            return;
+        }
+        Object[] values = {message.getMessageId(), message.getBotName(), message.getUserId(), message.getUserName(),
+                message.getConversationId(), message.getCreatedAt(), message.getQueryContentType(), message.getQueryContent(),
+                message.getQueryTokenNumber(), message.getAnswerContentType(), message.getAnswerContent(),
+                message.getAnswerTokenNumber(), message.getTotalTokenNumber()};
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeCsvField(writer, values[i] == null ? "" : values[i].toString());
+        }
+        writer.write('\n');
+    }
+
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
@@ -0,0 +1,60 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.Message;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*********************************************
+ * messages/messages_archive表结果集到Message实体的映射，列名与Message的@Column一致
+ * 只做原样映射，query/answer内容的解码由MessageService完成
+ * **********************************************/
+
+public class MessageRowMapper extends ColumnIndexRowMapper<Message> {
+    private static final int MESSAGE_ID = 0;
+    private static final int BOT_NAME = 1;
+    private static final int USER_ID = 2;
+    private static final int USER_NAME = 3;
+    private static final int CONVERSATION_ID = 4;
+    private static final int TOTAL_TOKEN_NUMBER = 5;
+    private static final int QUERY_CONTENT = 6;
+    private static final int QUERY_CONTENT_TYPE = 7;
+    private static final int QUERY_TOKEN_NUMBER = 8;
+    private static final int ANSWER_CONTENT = 9;
+    private static final int ANSWER_CONTENT_TYPE = 10;
+    private static final int ANSWER_TOKEN_NUMBER = 11;
+    private static final int CREATED_AT = 12;
+    private static final int QUERY_TOKEN_ESTIMATE = 13;
+    private static final int ANSWER_TOKEN_ESTIMATE = 14;
+    private static final int MSG_UUID = 15;
+
+    public MessageRowMapper() {
+        super("message_id", "bot_name", "user_id", "user_name", "conversation_id", "total_token_number",
+                "query_content", "query_content_type", "query_token_number",
+                "answer_content", "answer_content_type", "answer_token_number",
+                "created_at", "query_token_estimate", "answer_token_estimate", "msg_uuid");
+    }
+
+    @Override
+    protected Message map(ResultSet rs, int[] indexes) throws SQLException {
+        Message message = new Message();
+        int i;
+        if ((i = indexes[MESSAGE_ID]) != 0) message.setMessageId(getLong(rs, i));
+        if ((i = indexes[BOT_NAME]) != 0) message.setBotName(rs.getString(i));
+        if ((i = indexes[USER_ID]) != 0) message.setUserId(rs.getString(i));
+        if ((i = indexes[USER_NAME]) != 0) message.setUserName(rs.getString(i));
+        if ((i = indexes[CONVERSATION_ID]) != 0) message.setConversationId(rs.getString(i));
+        if ((i = indexes[TOTAL_TOKEN_NUMBER]) != 0) message.setTotalTokenNumber(getInteger(rs, i));
+        if ((i = indexes[QUERY_CONTENT]) != 0) message.setQueryContent(rs.getString(i));
+        if ((i = indexes[QUERY_CONTENT_TYPE]) != 0) message.setQueryContentType(getInteger(rs, i));
+        if ((i = indexes[QUERY_TOKEN_NUMBER]) != 0) message.setQueryTokenNumber(getInteger(rs, i));
+        if ((i = indexes[ANSWER_CONTENT]) != 0) message.setAnswerContent(rs.getString(i));
+        if ((i = indexes[ANSWER_CONTENT_TYPE]) != 0) message.setAnswerContentType(getInteger(rs, i));
+        if ((i = indexes[ANSWER_TOKEN_NUMBER]) != 0) message.setAnswerTokenNumber(getInteger(rs, i));
+        if ((i = indexes[CREATED_AT]) != 0) message.setCreatedAt(getLong(rs, i));
+        if ((i = indexes[QUERY_TOKEN_ESTIMATE]) != 0) message.setQueryTokenEstimate(getInteger(rs, i));
+        if ((i = indexes[ANSWER_TOKEN_ESTIMATE]) != 0) message.setAnswerTokenEstimate(getInteger(rs, i));
+        if ((i = indexes[MSG_UUID]) != 0) message.setMsgUuid(rs.getString(i));
+        return message;
+    }
+}
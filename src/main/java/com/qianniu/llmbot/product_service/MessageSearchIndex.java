@@ -0,0 +1,483 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.Message;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.cjk.CJKAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.QueryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/*********************************************
+ * 对话历史的本地全文索引(Lucene)，支持按关键词搜索query/answer内容
+ * 1）按user_id哈希分为shards个分片，每个分片为本地磁盘上独立的索引目录；用户搜索自己的记录只查询一个分片，管理员不限用户时查询全部分片后合并；
+ * 2）CJKAnalyzer分词：中日韩文字按相邻两字切分(bigram)，其他文字按词切分并转小写；搜索词的全部分词都需命中(query或answer任一字段)；
+ * 3）MessageService写入message的事务提交后增量索引，以message_id为唯一键(updateDocument)，WAL重放等重复写入不会产生重复结果；
+ *    索引只保存分词和筛选字段，不保存原文，搜索结果按message_id回表(热表与归档表)读取；
+ * 4）每refresh_interval_ms刷新一次可见结果(近实时)，每commit_interval_ms提交一次到磁盘并记录提交时间；
+ *    启动后从最早的提交时间往前catch_up_seconds开始补建索引(覆盖上次提交之后、进程退出之前写入的message)，分片数变化或索引不存在时全量重建；
+ * 5）搜索结果按相关度由高到低、相同时按message_id由新到旧排序，使用searchAfter游标分页；
+ * 6）多节点部署时其他节点写入的message由定时任务按message_id增量同步：每次回读最近sync_overlap个id(覆盖自增id先分配、后提交的插入)，
+ *    只读取尚未索引的message，各节点的索引最终包含全部message，搜索结果与处理请求的节点无关；
+ * **********************************************/
+
+@Component
+public class MessageSearchIndex {
+    private static final Logger logger = LoggerFactory.getLogger(MessageSearchIndex.class);
+    private static final String F_ID = "message_id";
+    private static final String F_USER = "user_id";
+    private static final String F_BOT = "bot_name";
+    private static final String F_CONVERSATION = "conversation_id";
+    private static final String F_QUERY = "query";
+    private static final String F_ANSWER = "answer";
+    private static final String COMMITTED_AT = "committed_at";
+    private static final String SHARDS_FILE = "shards";
+    private static final float QUERY_BOOST = 2f; //用户自己的提问比回答更能代表该轮对话的主题
+    private static final int SYNC_BATCH = 500;
+    private static final Sort SORT = new Sort(SortField.FIELD_SCORE, new SortField(F_ID, SortField.Type.LONG, true));
+
+    private final MessageService messageService;
+    private final boolean enabled;
+    private final Path dir;
+    private final int shardCount;
+    private final long catchUpSeconds;
+    private final long syncOverlap;
+    private final Analyzer analyzer = new CJKAnalyzer();
+
+    private Shard[] shards;
+    private volatile long catchUpFrom = -1; //-1表示不需要补建，0表示全量重建
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private volatile boolean rebuildPending; //补建开始到成功完成之间为true
+    private volatile long rebuildFrom;       //补建未完成时提交记录的时间：进程中途退出或补建失败后，下次启动从该时间重新补建
+    private final AtomicLong syncedId = new AtomicLong(-1); //已同步的最大message_id，-1表示尚未确定起点
+    private final ConcurrentSkipListSet<Long> recentIds = new ConcurrentSkipListSet<>(); //回读范围内已索引的message_id，同步时跳过
+
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder indexFailures = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder synced = new LongAdder();
+    private final AtomicLong lastRebuildCount = new AtomicLong();
+    private final AtomicLong lastCommitAt = new AtomicLong();
+
+    public MessageSearchIndex(@Lazy MessageService messageService,
+                              @Value("${search.enabled:true}") boolean enabled,
+                              @Value("${search.dir:./data/search}") String dir,
+                              @Value("${search.shards:8}") int shardCount,
+                              @Value("${search.catch_up_seconds:600}") long catchUpSeconds,
+                              @Value("${search.sync_overlap:1000}") long syncOverlap) {
+        this.messageService = messageService;
+        this.enabled = enabled;
+        this.dir = Paths.get(dir);
+        this.shardCount = Math.max(1, shardCount);
+        this.catchUpSeconds = Math.max(0, catchUpSeconds);
+        this.syncOverlap = Math.max(0, syncOverlap);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    //打开各分片的索引；分片数与上次不同时清空重建(同一用户的记录必须位于同一分片)
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(dir);
+        Path shardsPath = dir.resolve(SHARDS_FILE);
+        boolean recreate = !Files.exists(shardsPath)
+                || Integer.parseInt(Files.readString(shardsPath, StandardCharsets.US_ASCII).trim()) != shardCount;
+        if (recreate) {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path path : files.filter(p -> p.getFileName().toString().startsWith("shard-")).toList()) {
+                    deleteRecursively(path);
+                }
+            }
+        }
+        shards = new Shard[shardCount];
+        long oldestCommit = Long.MAX_VALUE;
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = Shard.open(dir.resolve(String.format("shard-%03d", i)), analyzer);
+            oldestCommit = Math.min(oldestCommit, shards[i].committedAt);
+        }
+        Files.writeString(shardsPath, Integer.toString(shardCount), StandardCharsets.US_ASCII);
+        catchUpFrom = recreate || oldestCommit == 0 ? 0 : Math.max(1, oldestCommit - catchUpSeconds);
+        rebuildFrom = catchUpFrom;
+        rebuildPending = true; //启动补建前的定时提交不能推进提交时间
+        logger.info("message搜索索引已打开，分片{}个，{}", shardCount, catchUpFrom == 0 ? "需要全量建立索引" : "从" + catchUpFrom + "开始补建索引");
+    }
+
+    //数据库迁移完成、应用启动后在后台补建索引，不阻塞启动
+    @EventListener(ApplicationReadyEvent.class)
+    public void catchUpAfterStartup() {
+        if (enabled) {
+            initSyncedId(); //此后写入的message由增量同步补充索引
+        }
+        if (enabled && catchUpFrom >= 0) {
+            long from = catchUpFrom;
+            catchUpFrom = -1;
+            startRebuild(from == 0 ? null : from);
+        }
+    }
+
+    //后台按created_at >= fromCreatedAt(为null时全部)的message重建索引，已在执行时返回false
+    public boolean startRebuild(Long fromCreatedAt) {
+        if (!enabled || !rebuilding.compareAndSet(false, true)) {
+            return false;
+        }
+        long from = fromCreatedAt == null ? 0 : fromCreatedAt;
+        rebuildFrom = rebuildPending ? Math.min(rebuildFrom, from) : from;
+        rebuildPending = true;
+        Thread thread = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                List<Message> batch = new ArrayList<>();
+                long count = messageService.streamMessages(new MessageExportFilter(null, null, null, fromCreatedAt, null), message -> {
+                    batch.add(message);
+                    if (batch.size() == 500) {
+                        index(batch);
+                        batch.clear();
+                    }
+                });
+                index(batch);
+                rebuildPending = false;
+                commit();
+                lastRebuildCount.set(count);
+                logger.info("message搜索索引补建完成，{}条，耗时{}ms", count, System.currentTimeMillis() - start);
+            } catch (RuntimeException e) {
+                logger.error("message搜索索引补建失败", e);
+            } finally {
+                rebuilding.set(false);
+            }
+        }, "message-search-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    //增量同步其他节点写入的message：读取回读范围内尚未索引的message_id，按id回表读取后索引
+    @Scheduled(fixedDelayString = "${search.sync_interval_ms:5000}", initialDelayString = "${search.sync_interval_ms:5000}")
+    public synchronized void sync() {
+        if (!enabled || (syncedId.get() < 0 && !initSyncedId())) {
+            return;
+        }
+        try {
+            long lastId = Math.max(0, syncedId.get() - syncOverlap);
+            List<Long> ids;
+            do {
+                ids = messageService.getMessageIdsAfter(lastId, SYNC_BATCH);
+                List<Long> missing = ids.stream().filter(id -> !recentIds.contains(id)).toList();
+                List<Message> messages = messageService.getMessagesByIds(missing);
+                index(messages);
+                synced.add(messages.size());
+                if (!ids.isEmpty()) {
+                    lastId = ids.get(ids.size() - 1);
+                }
+            } while (ids.size() >= SYNC_BATCH);
+            long current = syncedId.accumulateAndGet(lastId, Math::max);
+            recentIds.headSet(current - syncOverlap, true).clear();
+        } catch (RuntimeException e) {
+            logger.warn("message搜索索引增量同步失败: {}", e.getMessage());
+        }
+    }
+
+    private boolean initSyncedId() {
+        try {
+            syncedId.compareAndSet(-1, messageService.getMaxMessageId());
+            return true;
+        } catch (RuntimeException e) {
+            logger.warn("读取最大message_id失败，稍后重试: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    //索引已写入数据库的message(由MessageService在事务提交后调用)；索引失败只记录日志，不影响message写入
+    public void index(List<Message> messages) {
+        if (!enabled || messages.isEmpty()) {
+            return;
+        }
+        for (Message m : messages) {
+            try {
+                shardOf(m.getUserId()).writer.updateDocument(new Term(F_ID, Long.toString(m.getMessageId())), toDocument(m));
+                long floor = syncedId.get();
+                if (floor >= 0 && m.getMessageId() > floor - syncOverlap) { //补建的旧message不在回读范围内，不占用内存
+                    recentIds.add(m.getMessageId());
+                }
+                indexed.increment();
+            } catch (IOException | RuntimeException e) {
+                indexFailures.increment();
+                logger.warn("message索引失败: message_id={}, {}", m.getMessageId(), e.getMessage());
+            }
+        }
+    }
+
+    //搜索message：userId为null时搜索全部用户(管理员)，botName/conversationId为null时不限制；cursor为上一页返回的游标
+    public KeysetPage<Message> search(String userId, String botName, String conversationId, String text, String cursor, int pageSize) {
+        if (!enabled) {
+            throw new IllegalStateException("message搜索未启用");
+        }
+        int size = PageCursor.clampPageSize(pageSize);
+        String filter = "search:" + userId + ":" + botName + ":" + conversationId + ":" + text;
+        long[] after = PageCursor.decode(cursor, filter, 2);
+        Query query = buildQuery(userId, botName, conversationId, text, after == null ? null : after[1]);
+        //上一页最后一条的排序值；排序值相同的只有该条本身，已在查询中排除，doc不参与比较
+        FieldDoc afterDoc = after == null ? null
+                : new FieldDoc(-1, Float.NaN, new Object[]{Float.intBitsToFloat((int) after[0]), after[1]});
+        searches.increment();
+
+        Shard[] targets = userId == null ? shards : new Shard[]{shardOf(userId)};
+        TopFieldDocs[] shardHits = new TopFieldDocs[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            shardHits[i] = targets[i].search(query, afterDoc, size + 1, i);
+        }
+        TopDocs merged = targets.length == 1 ? shardHits[0] : TopDocs.merge(SORT, size + 1, shardHits);
+
+        List<Hit> hits = new ArrayList<>(merged.scoreDocs.length);
+        for (ScoreDoc scoreDoc : merged.scoreDocs) {
+            Object[] fields = ((FieldDoc) scoreDoc).fields;
+            hits.add(new Hit((Long) fields[1], (Float) fields[0]));
+        }
+        KeysetPage<Hit> page = KeysetPage.of(hits, size, last -> PageCursor.encode(filter, Float.floatToIntBits(last.score()), last.messageId()));
+        List<Long> ids = page.items().stream().map(Hit::messageId).toList();
+        Map<Long, Message> byId = new HashMap<>();
+        for (Message message : messageService.getMessagesByIds(ids)) {
+            byId.put(message.getMessageId(), message);
+        }
+        List<Message> messages = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Message message = byId.get(id); //索引中存在、数据库中已删除的记录跳过
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return new KeysetPage<>(messages, page.nextCursor());
+    }
+
+    //刷新各分片的搜索视图，新索引的message可被搜索到
+    @Scheduled(fixedDelayString = "${search.refresh_interval_ms:1000}", initialDelayString = "${search.refresh_interval_ms:1000}")
+    public void refresh() {
+        if (!enabled) {
+            return;
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.searcherManager.maybeRefresh();
+            } catch (IOException e) {
+                logger.warn("message搜索索引刷新失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    //提交各分片的变更到磁盘，提交数据记录本次提交的时间(此前已写入数据库的message均已索引)；补建期间记录补建的起始时间
+    @Scheduled(fixedDelayString = "${search.commit_interval_ms:60000}", initialDelayString = "${search.commit_interval_ms:60000}")
+    public synchronized void commit() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        long mark = rebuildPending ? rebuildFrom : now;
+        for (Shard shard : shards) {
+            try {
+                shard.commit(mark);
+            } catch (IOException e) {
+                logger.warn("message搜索索引提交失败: {}", e.getMessage());
+            }
+        }
+        lastCommitAt.set(now);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("shards", shardCount);
+        long docs = 0;
+        if (enabled) {
+            for (Shard shard : shards) {
+                docs += shard.writer.getDocStats().numDocs;
+            }
+        }
+        stats.put("documents", docs);
+        stats.put("indexed", indexed.sum());
+        stats.put("indexFailures", indexFailures.sum());
+        stats.put("searches", searches.sum());
+        stats.put("syncedId", syncedId.get());
+        stats.put("synced", synced.sum());
+        stats.put("rebuilding", rebuilding.get());
+        stats.put("lastRebuildCount", lastRebuildCount.get());
+        stats.put("lastCommitAt", lastCommitAt.get());
+        return stats;
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (!enabled || shards == null) {
+            return;
+        }
+        commit();
+        for (Shard shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                logger.warn("message搜索索引关闭失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    private Shard shardOf(String userId) {
+        return shards[Math.floorMod(userId.hashCode(), shardCount)];
+    }
+
+    private Query buildQuery(String userId, String botName, String conversationId, String text, Long excludeMessageId) {
+        QueryBuilder builder = new QueryBuilder(analyzer);
+        Query queryField = builder.createBooleanQuery(F_QUERY, text, BooleanClause.Occur.MUST);
+        Query answerField = builder.createBooleanQuery(F_ANSWER, text, BooleanClause.Occur.MUST);
+        if (queryField == null || answerField == null) {
+            throw new IllegalArgumentException("搜索内容没有可检索的词");
+        }
+        BooleanQuery.Builder textQuery = new BooleanQuery.Builder()
+                .add(new BoostQuery(queryField, QUERY_BOOST), BooleanClause.Occur.SHOULD)
+                .add(answerField, BooleanClause.Occur.SHOULD)
+                .setMinimumNumberShouldMatch(1);
+        BooleanQuery.Builder query = new BooleanQuery.Builder().add(textQuery.build(), BooleanClause.Occur.MUST);
+        if (userId != null) {
+            query.add(new TermQuery(new Term(F_USER, userId)), BooleanClause.Occur.FILTER);
+        }
+        if (botName != null) {
+            query.add(new TermQuery(new Term(F_BOT, botName)), BooleanClause.Occur.FILTER);
+        }
+        if (conversationId != null) {
+            query.add(new TermQuery(new Term(F_CONVERSATION, conversationId)), BooleanClause.Occur.FILTER);
+        }
+        if (excludeMessageId != null) {
+            query.add(new TermQuery(new Term(F_ID, Long.toString(excludeMessageId))), BooleanClause.Occur.MUST_NOT);
+        }
+        return query.build();
+    }
+
+    private static Document toDocument(Message m) {
+        Document doc = new Document();
+        doc.add(new StringField(F_ID, Long.toString(m.getMessageId()), Field.Store.NO));
+        doc.add(new NumericDocValuesField(F_ID, m.getMessageId()));
+        doc.add(new StringField(F_USER, m.getUserId(), Field.Store.NO));
+        doc.add(new StringField(F_BOT, m.getBotName(), Field.Store.NO));
+        doc.add(new StringField(F_CONVERSATION, m.getConversationId(), Field.Store.NO));
+        doc.add(new TextField(F_QUERY, m.getQueryContent() == null ? "" : m.getQueryContent(), Field.Store.NO));
+        doc.add(new TextField(F_ANSWER, m.getAnswerContent() == null ? "" : m.getAnswerContent(), Field.Store.NO));
+        return doc;
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path p : files.sorted((a, b) -> b.getNameCount() - a.getNameCount()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    private record Hit(long messageId, float score) {
+    }
+
+    //单个分片：IndexWriter负责写入，SearcherManager提供近实时的搜索视图
+    private static final class Shard {
+        final FSDirectory directory;
+        final IndexWriter writer;
+        final SearcherManager searcherManager;
+        final long committedAt; //打开时最近一次提交记录的时间，0表示新建
+
+        private Shard(FSDirectory directory, IndexWriter writer, SearcherManager searcherManager, long committedAt) {
+            this.directory = directory;
+            this.writer = writer;
+            this.searcherManager = searcherManager;
+            this.committedAt = committedAt;
+        }
+
+        static Shard open(Path path, Analyzer analyzer) throws IOException {
+            FSDirectory directory = FSDirectory.open(path);
+            long committedAt = 0;
+            if (DirectoryReader.indexExists(directory)) {
+                try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                    String value = reader.getIndexCommit().getUserData().get(COMMITTED_AT);
+                    committedAt = value == null ? 0 : Long.parseLong(value);
+                }
+            }
+            IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(analyzer).setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
+            return new Shard(directory, writer, new SearcherManager(writer, null), committedAt);
+        }
+
+        TopFieldDocs search(Query query, FieldDoc after, int n, int shardIndex) {
+            try {
+                IndexSearcher searcher = searcherManager.acquire();
+                try {
+                    TopFieldDocs docs = searcher.searchAfter(after, query, n, SORT, true);
+                    for (ScoreDoc scoreDoc : docs.scoreDocs) {
+                        scoreDoc.shardIndex = shardIndex;
+                    }
+                    return docs;
+                } finally {
+                    searcherManager.release(searcher);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        //没有新文档时也提交，更新提交时间，避免下次启动补建的范围过大
+        void commit(long committedAt) throws IOException {
+            writer.setLiveCommitData(Map.of(COMMITTED_AT, Long.toString(committedAt)).entrySet());
+            writer.commit();
+        }
+
+        void close() throws IOException {
+            searcherManager.close();
+            writer.close();
+            directory.close();
+        }
+    }
+}
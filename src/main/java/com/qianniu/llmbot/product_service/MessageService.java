@@ -1,31 +1,58 @@
 package com.qianniu.llmbot.product_service;
 
+import com.qianniu.llmbot.model_service.TokenEstimator;
 import com.qianniu.llmbot.product_entity.Message;
 import com.qianniu.llmbot.product_entity.User;
 import jakarta.persistence.Column;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.jdbc.core.BatchPreparedStatementSetter;
-import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /*********************************************
  * Message Service中用户message的相关行为方法定义
  * 1) 新message注册，注册函数方法仅内部使用，即Chat响应函数内调用，外部无法调用(未在Controller中定义请求响应函数方法)；
  * 2)按照各字段查询message;
+ * 3)写入时按模型词表估算query/answer的token数量，历史记录按token预算由新到旧截取;
+ * 4)会话最新的历史记录优先从ConversationHistoryCache读取，写入提交后同步追加到缓存，并通知其他节点使该会话的缓存失效;
+ * 5)对话结束后的message由MessageWriteBehindQueue缓冲后调用batchRegisterMessages批量写入;
+ * 6)query/answer内容写入时经ContentCodec压缩编码，读取时透明解码，未压缩的旧数据原样读取;
+ * 7)超过保留期的记录由MessageArchiver迁入messages_archive表，查询方法同时覆盖热表和归档表;
+ * 8)管理员列表查询使用keyset分页(PageCursor)，每页条数有上限，不一次性加载全部结果;批量导出使用流式结果集逐条输出;
+ * 9)写入message的同一事务内由UsageStatsService增量更新使用量汇总表，统计接口不扫描messages表;
+ * 10)写入提交后交给MessageSearchIndex增量建立全文索引，搜索结果按message_id回表读取;
+ * 11)写入message的同一事务内由ConversationService更新conversations会话摘要表，会话列表不扫描messages表;
  * **********************************************/
 
 @Component
@@ -36,67 +63,357 @@ public class MessageService {
     @Autowired
     JdbcTemplate jdbcTemplate;
 
-    RowMapper<Message> messageRowMapper = new BeanPropertyRowMapper<>(Message.class);//将数据库查询结果集ResultSet的每一行自动映射到Message实体实例中
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired
+    ConversationHistoryCache historyCache;
+
+    @Autowired
+    ContentCodec contentCodec;
+
+    @Autowired
+    UsageStatsService usageStatsService;
+
+    @Autowired
+    ConversationService conversationService;
+
+    @Autowired
+    @Lazy //搜索索引补建时依赖MessageService流式读取，延迟注入避免循环依赖
+    MessageSearchIndex searchIndex;
+
+    @Autowired
+    @Lazy //写缓冲队列依赖MessageService进行批量写入，延迟注入避免循环依赖
+    MessageWriteBehindQueue writeBehindQueue;
+
+    private static final int HISTORY_PAGE_SIZE = 10; //按token预算读取历史记录时每次查询的轮数
+    private static final int EXPORT_NET_WRITE_TIMEOUT_SECONDS = 600;
+    private static final String[] BY_MESSAGE_ID = {"message_id"};
+    private static final String[] BY_CREATED_AT = {"created_at", "message_id"};
 
-    //按照messageId查询单个message，queryForObject只用于处理单行结果
+    RowMapper<Message> columnRowMapper = new MessageRowMapper();//将数据库查询结果集ResultSet的每一行按列序号映射到Message实体实例中
+
+    //映射后对query/answer内容解码(压缩内容解压，原文原样返回)
+    RowMapper<Message> messageRowMapper = (rs, rowNum) -> {
+        Message message = columnRowMapper.mapRow(rs, rowNum);
+        if (message != null) {
+            message.setQueryContent(contentCodec.decode(message.getQueryContent()));
+            message.setAnswerContent(contentCodec.decode(message.getAnswerContent()));
+        }
+        return message;
+    };
+
+    //按照messageId查询单个message，queryForObject只用于处理单行结果；热表与归档表合并查询
+    @Transactional(readOnly = true)
     public Message getMessageByMessageId(Long message_id) {
-        return jdbcTemplate.queryForObject("SELECT * FROM messages WHERE message_id = ?", messageRowMapper, message_id);
+        List<Message> messages = queryAllTiers("message_id = ?", message_id);
+        if (messages.isEmpty()) {
+            throw new EmptyResultDataAccessException(1);
+        }
+        return messages.get(0);
+    }
+
+    //按message_id批量查询(搜索结果回表)，热表与归档表合并查询，返回顺序不确定，不存在的id忽略
+    @Transactional(readOnly = true)
+    public List<Message> getMessagesByIds(List<Long> messageIds) {
+        if (messageIds.isEmpty()) {
+            return List.of();
+        }
+        String where = "message_id IN (" + String.join(",", Collections.nCopies(messageIds.size(), "?")) + ")";
+        Object[] args = new Object[messageIds.size() * 2];
+        for (int i = 0; i < messageIds.size(); i++) {
+            args[i] = messageIds.get(i);
+            args[i + messageIds.size()] = messageIds.get(i);
+        }
+        return jdbcTemplate.query("SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE " + where
+                + " UNION ALL SELECT " + MESSAGE_COLUMNS + " FROM messages_archive WHERE " + where, messageRowMapper, args);
+    }
+
+    //热表中message_id > afterMessageId的最多limit个message_id(升序)，搜索索引按此增量同步其他节点写入的message
+    @Transactional(readOnly = true)
+    public List<Long> getMessageIdsAfter(long afterMessageId, int limit) {
+        return jdbcTemplate.queryForList("SELECT message_id FROM messages WHERE message_id > ? ORDER BY message_id LIMIT ?",
+                Long.class, afterMessageId, limit);
+    }
+
+    @Transactional(readOnly = true)
+    public long getMaxMessageId() {
+        Long max = jdbcTemplate.queryForObject("SELECT COALESCE(MAX(message_id), 0) FROM messages", Long.class);
+        return max == null ? 0 : max;
     }
 
-    //按照botName查询多个message，query处理多行结果
-    public List<Message> getMessageByBotName(String bot_name) {
-        return jdbcTemplate.query("SELECT * FROM messages WHERE bot_name = ?", messageRowMapper, bot_name);
+    //按照botName分页查询message(由新到旧)，cursor为上一页返回的游标，为空时查询第一页
+    @Transactional(readOnly = true)
+    public KeysetPage<Message> getMessageByBotName(String bot_name, String cursor, int pageSize) {
+        return queryPage("bot:" + bot_name, "bot_name = ?", bot_name, BY_MESSAGE_ID, cursor, pageSize);
     }
 
-    //按照userId查询多个message，query处理多行结果
-    public List<Message> getMessageByUserId(String user_id) {
-        return jdbcTemplate.query("SELECT * FROM messages WHERE user_id = ?", messageRowMapper, user_id);
+    //按照userId分页查询message(用户时间线，按created_at由新到旧)，使用(user_id, created_at)索引
+    @Transactional(readOnly = true)
+    public KeysetPage<Message> getMessageByUserId(String user_id, String cursor, int pageSize) {
+        return queryPage("user:" + user_id, "user_id = ?", user_id, BY_CREATED_AT, cursor, pageSize);
     }
 
-    //按照conversationId查询多个message，query处理多行结果,botname_userid
-    public List<Message> getMessageByConversationId(String conversation_id) {
-        return jdbcTemplate.query("SELECT * FROM messages WHERE conversation_id = ?", messageRowMapper, conversation_id);
+    //按照conversationId分页查询message,botname_userid
+    @Transactional(readOnly = true)
+    public KeysetPage<Message> getMessageByConversationId(String conversation_id, String cursor, int pageSize) {
+        return queryPage("conversation:" + conversation_id, "conversation_id = ?", conversation_id, BY_MESSAGE_ID, cursor, pageSize);
     }
 
-    //按照queryContentType查询多个message，query处理多行结果,0=文本,1=图片,2=语音
-    public List<Message> getMessageByQueryContentType(Integer query_content_type) {
-        return jdbcTemplate.query("SELECT * FROM messages WHERE query_content_type = ?", messageRowMapper, query_content_type);
+    //按照queryContentType分页查询message,0=文本,1=图片,2=语音
+    @Transactional(readOnly = true)
+    public KeysetPage<Message> getMessageByQueryContentType(Integer query_content_type, String cursor, int pageSize) {
+        return queryPage("qct:" + query_content_type, "query_content_type = ?", query_content_type, BY_MESSAGE_ID, cursor, pageSize);
     }
 
-    //按照answerContentType查询多个message，query处理多行结果,0=文本,1=图片,2=语音
-    public List<Message> getMessageByAnswerContentType(Integer answer_content_type) {
-        return jdbcTemplate.query("SELECT * FROM messages WHERE answer_content_type = ?", messageRowMapper, answer_content_type);
+    //按照answerContentType分页查询message,0=文本,1=图片,2=语音
+    @Transactional(readOnly = true)
+    public KeysetPage<Message> getMessageByAnswerContentType(Integer answer_content_type, String cursor, int pageSize) {
+        return queryPage("act:" + answer_content_type, "answer_content_type = ?", answer_content_type, BY_MESSAGE_ID, cursor, pageSize);
     }
 
-    //按照upTotalTokenNumber查询多个message
-    public List<Message> getMessageByUpTotalTokenNumber(Integer up_total_token_number) {
-        return jdbcTemplate.query("SELECT * FROM messages WHERE total_token_number > ?", messageRowMapper, up_total_token_number);
+    //按照upTotalTokenNumber分页查询message(无索引，沿主键由新到旧扫描，取满一页即停止)
+    @Transactional(readOnly = true)
+    public KeysetPage<Message> getMessageByUpTotalTokenNumber(Integer up_total_token_number, String cursor, int pageSize) {
+        return queryPage("tt:" + up_total_token_number, "total_token_number > ?", up_total_token_number, BY_MESSAGE_ID, cursor, pageSize);
     }
 
-    //按照upQueryTokenNumber查询多个message
-    public List<Message> getMessageByUpQueryTokenNumber(Integer up_query_token_number) {
-        return jdbcTemplate.query("SELECT * FROM messages WHERE query_token_number > ?", messageRowMapper, up_query_token_number);
+    //按照upQueryTokenNumber分页查询message
+    @Transactional(readOnly = true)
+    public KeysetPage<Message> getMessageByUpQueryTokenNumber(Integer up_query_token_number, String cursor, int pageSize) {
+        return queryPage("qt:" + up_query_token_number, "query_token_number > ?", up_query_token_number, BY_MESSAGE_ID, cursor, pageSize);
     }
 
-    //按照upAnswerTokenNumber查询多个message
-    public List<Message> getMessageByUpAnswerTokenNumber(Integer up_answer_token_number) {
-        return jdbcTemplate.query("SELECT * FROM messages WHERE answer_token_number > ?", messageRowMapper, up_answer_token_number);
+    //按照upAnswerTokenNumber分页查询message
+    @Transactional(readOnly = true)
+    public KeysetPage<Message> getMessageByUpAnswerTokenNumber(Integer up_answer_token_number, String cursor, int pageSize) {
+        return queryPage("at:" + up_answer_token_number, "answer_token_number > ?", up_answer_token_number, BY_MESSAGE_ID, cursor, pageSize);
     }
 
-    //按照conversation_id查询最新的N条记录，时间排序以自增主键message_id为依据(值越大约新)
+    //keyset分页：热表和归档表各自按排序键从游标位置向前取pageSize+1条(索引有序读取)，合并后取前pageSize+1条
+    //keyColumns为降序排序键，最后一列为message_id(唯一)；同一事务内两次读取使用同一快照，归档迁移不会造成重复或遗漏
+    private KeysetPage<Message> queryPage(String filter, String where, Object arg, String[] keyColumns, String cursor, int pageSize) {
+        long[] after = PageCursor.decode(cursor, filter, keyColumns.length);
+        int size = PageCursor.clampPageSize(pageSize);
+        List<Object> tierArgs = new ArrayList<>();
+        tierArgs.add(arg);
+        StringBuilder tierWhere = new StringBuilder(" WHERE ").append(where);
+        if (after != null) {
+            if (keyColumns.length == 1) {
+                tierWhere.append(" AND message_id < ?");
+                tierArgs.add(after[0]);
+            } else {
+                tierWhere.append(" AND (").append(keyColumns[0]).append(" < ? OR (").append(keyColumns[0]).append(" = ? AND message_id < ?))");
+                tierArgs.add(after[0]);
+                tierArgs.add(after[0]);
+                tierArgs.add(after[1]);
+            }
+        }
+        String orderBy = " ORDER BY " + String.join(" DESC, ", keyColumns) + " DESC LIMIT ?";
+        tierArgs.add(size + 1);
+        List<Object> args = new ArrayList<>(tierArgs);
+        args.addAll(tierArgs);
+        args.add(size + 1);
+        List<Message> rows = jdbcTemplate.query("(SELECT " + MESSAGE_COLUMNS + " FROM messages" + tierWhere + orderBy + ")"
+                + " UNION ALL (SELECT " + MESSAGE_COLUMNS + " FROM messages_archive" + tierWhere + orderBy + ")" + orderBy,
+                messageRowMapper, args.toArray());
+        return KeysetPage.of(rows, size, last -> keyColumns.length == 1
+                ? PageCursor.encode(filter, last.getMessageId())
+                : PageCursor.encode(filter, last.getCreatedAt(), last.getMessageId()));
+    }
+
+    //按条件流式读取message并逐条回调，返回条数；先读归档表再读热表，各自按message_id升序，内存占用与结果条数无关
+    //MySQL驱动在fetchSize=Integer.MIN_VALUE时逐行从服务器读取(流式结果集)，读取期间该连接不能执行其他语句，
+    //因此不加入事务、直接从连接池单独取连接，解码时加载字典等查询使用其他连接
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public long streamMessages(MessageExportFilter filter, Consumer<Message> consumer) {
+        List<Object> args = new ArrayList<>();
+        String where = filter.where(args);
+        long count = 0;
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setReadOnly(true);
+            long previousNetWriteTimeout;
+            try (Statement statement = connection.createStatement()) {
+                //客户端读取较慢时(下载限速)，避免服务器等待写出超时而中断结果集；会话变量随连接回到连接池，结束时恢复原值
+                try (ResultSet rs = statement.executeQuery("SELECT @@SESSION.net_write_timeout")) {
+                    rs.next();
+                    previousNetWriteTimeout = rs.getLong(1);
+                }
+                statement.execute("SET SESSION net_write_timeout = " + EXPORT_NET_WRITE_TIMEOUT_SECONDS);
+            }
+            try {
+                for (String table : new String[]{"messages_archive", "messages"}) {
+                    try (PreparedStatement ps = connection.prepareStatement("SELECT " + MESSAGE_COLUMNS + " FROM " + table + where + " ORDER BY message_id",
+                            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                        ps.setFetchSize(Integer.MIN_VALUE);
+                        for (int i = 0; i < args.size(); i++) {
+                            ps.setObject(i + 1, args.get(i));
+                        }
+                        try (ResultSet rs = ps.executeQuery()) {
+                            int rowNum = 0;
+                            while (rs.next()) {
+                                try {
+                                    consumer.accept(messageRowMapper.mapRow(rs, rowNum++));
+                                } catch (RuntimeException e) {
+                                    //客户端断开等原因中止：先取消服务器端查询，否则关闭流式结果集时驱动要读完剩余的全部行
+                                    ps.cancel();
+                                    throw e;
+                                }
+                                count++;
+                            }
+                        }
+                    }
+                }
+            } finally {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("SET SESSION net_write_timeout = " + previousNetWriteTimeout);
+                } catch (SQLException e) {
+                    logger.warn("恢复导出连接的net_write_timeout失败: {}", e.getMessage());
+                }
+            }
+        } catch (SQLException e) {
+            throw new DataRetrievalFailureException("message导出查询失败，已输出" + count + "条", e);
+        }
+        return count;
+    }
+
+    //热表messages与归档表messages_archive使用相同条件查询后合并(UNION ALL)，同一条记录只会存在于其中一个表；只用于结果有限的查询
+    private List<Message> queryAllTiers(String where, Object arg) {
+        return jdbcTemplate.query("SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE " + where
+                + " UNION ALL SELECT " + MESSAGE_COLUMNS + " FROM messages_archive WHERE " + where, messageRowMapper, arg, arg);
+    }
+
+    //按conversation_id由新到旧读取message_id < beforeMessageId的最多limit条记录；热表不足时继续读取归档表
+    private List<Message> queryOlderTurns(String columns, String conversation_id, long beforeMessageId, int limit) {
+        List<Message> messages = jdbcTemplate.query("SELECT " + columns + " FROM messages WHERE conversation_id = ? AND message_id < ? ORDER BY message_id DESC LIMIT ?",
+                messageRowMapper, conversation_id, beforeMessageId, limit);
+        if (messages.size() < limit) {
+            long archiveBefore = messages.isEmpty() ? beforeMessageId : messages.get(messages.size() - 1).getMessageId();
+            messages = new ArrayList<>(messages);
+            messages.addAll(jdbcTemplate.query("SELECT " + columns + " FROM messages_archive WHERE conversation_id = ? AND message_id < ? ORDER BY message_id DESC LIMIT ?",
+                    messageRowMapper, conversation_id, archiveBefore, limit - messages.size()));
+        }
+        return messages;
+    }
+
+    //按照conversation_id查询最新的N条记录(由新到旧)，时间排序以自增主键message_id为依据(值越大约新)
+    //该会话还有未写入数据库的message时先写入；数据库不可用仍未写入的(等待重试或在WAL中等待重放，尚无message_id)作为最新的几轮排在前面
     public List<Message> getLatestMessagesByConversationId(String conversation_id, int N) {
-        return jdbcTemplate.query("SELECT * FROM messages WHERE conversation_id = ? ORDER BY message_id DESC LIMIT ?", messageRowMapper, conversation_id, N);
+        List<Message> unwritten = writeBehindQueue.flushPending(conversation_id);
+        List<Message> stored = getLatestStoredMessages(conversation_id, N);
+        if (unwritten.isEmpty()) {
+            return stored;
+        }
+        List<Message> messages = new ArrayList<>(N);
+        Set<String> unwrittenUuids = new HashSet<>();
+        for (int i = unwritten.size() - 1; i >= 0 && messages.size() < N; i--) {
+            messages.add(unwritten.get(i));
+            unwrittenUuids.add(unwritten.get(i).getMsgUuid());
+        }
+        for (Message message : stored) {
+            if (messages.size() >= N) {
+                break;
+            }
+            if (!unwrittenUuids.contains(message.getMsgUuid())) { //已提交但确认丢失的message
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    //已写入数据库的最新N条记录(由新到旧)：优先读取内存缓存；未命中时按缓存容量一次性加载该会话最新的记录并放入缓存
+    private List<Message> getLatestStoredMessages(String conversation_id, int N) {
+        List<Message> cached = historyCache.getLatest(conversation_id, N);
+        if (cached != null) {
+            return cached;
+        }
+        long loadSeq = historyCache.beginLoad(conversation_id);
+        List<Message> messages = queryOlderTurns(MESSAGE_COLUMNS, conversation_id, Long.MAX_VALUE, Math.max(N, historyCache.getTurnsPerConversation()));
+        historyCache.putLoaded(conversation_id, messages, loadSeq);
+        return messages.size() > N ? new ArrayList<>(messages.subList(0, N)) : messages;
+    }
+
+    //按conversation_id由新到旧读取历史记录，累计估算token数直到填满tokenBudget，最多maxTurns轮；返回结果按message_id降序(由新到旧)
+    //只要有一轮放不下即停止，保证历史记录连续；早期未写入估算值的记录(估算值为0)按vocabulary即时估算
+    //缓存容量以内的轮数从内存读取，超出部分再分页查询数据库
+    public List<Message> getLatestMessagesWithinTokenBudget(String conversation_id, int tokenBudget, int maxTurns, TokenEstimator.Vocabulary vocabulary) {
+        List<Message> result = new ArrayList<>();
+        if (tokenBudget <= 0 || maxTurns <= 0) {
+            return result;
+        }
+        int cachedTurns = Math.min(maxTurns, historyCache.getTurnsPerConversation());
+        List<Message> latest = getLatestMessagesByConversationId(conversation_id, cachedTurns);
+        int usedTokens = 0;
+        long beforeMessageId = Long.MAX_VALUE;
+        for (Message message : latest) {
+            int turnTokens = estimateTurnTokens(message, vocabulary);
+            if (usedTokens + turnTokens > tokenBudget) {
+                return result;
+            }
+            usedTokens += turnTokens;
+            result.add(message);
+            if (message.getMessageId() != null) { //尚未写入数据库的轮次没有message_id
+                beforeMessageId = message.getMessageId();
+            }
+        }
+        if (latest.size() < cachedTurns) {
+            return result; //已读取到该会话最早的记录
+        }
+
+        int pageSize = Math.min(maxTurns, HISTORY_PAGE_SIZE);
+        while (result.size() < maxTurns) {
+            List<Message> page = queryOlderTurns(
+                    "message_id, query_content, answer_content, answer_token_number, query_token_estimate, answer_token_estimate, created_at",
+                    conversation_id, beforeMessageId, pageSize);
+            for (Message message : page) {
+                int turnTokens = estimateTurnTokens(message, vocabulary);
+                if (usedTokens + turnTokens > tokenBudget || result.size() >= maxTurns) {
+                    return result;
+                }
+                usedTokens += turnTokens;
+                result.add(message);
+                beforeMessageId = message.getMessageId();
+            }
+            if (page.size() < pageSize) {
+                break; //已读取到该会话最早的记录
+            }
+        }
+        return result;
+    }
+
+    //单轮问答的估算token数，优先使用写入时的估算值
+    private int estimateTurnTokens(Message message, TokenEstimator.Vocabulary vocabulary) {
+        int queryTokens = message.getQueryTokenEstimate() != null && message.getQueryTokenEstimate() > 0
+                ? message.getQueryTokenEstimate()
+                : TokenEstimator.estimate(message.getQueryContent(), vocabulary);
+        int answerTokens = message.getAnswerTokenEstimate() != null && message.getAnswerTokenEstimate() > 0
+                ? message.getAnswerTokenEstimate()
+                : TokenEstimator.estimate(message.getAnswerContent(), vocabulary);
+        return TokenEstimator.estimateTurn(queryTokens, answerTokens, vocabulary);
     }
 
 
 
-    //新message注册，传入11个外部参数，然后内部再生成1个At参数
+    //新message注册，传入11个外部参数+模型词表，然后内部再生成1个At参数、2个token估算参数
     //在API请求响应函数中执行(问&答聊天记录)，不在MessageController中通过客户端的路径请求注册新message
     public Message messageRegister(String botName, String userId, String userName,
                                    String conversationId,Integer totalTokenNumber,
                                    String queryContent, Integer queryContentType, Integer queryTokenNumber,
-                                   String answerContent, Integer answerContentType, Integer answerTokenNumber) {
+                                   String answerContent, Integer answerContentType, Integer answerTokenNumber,
+                                   TokenEstimator.Vocabulary vocabulary) {
+        return insertMessage(buildMessage(botName, userId, userName, conversationId, totalTokenNumber,
+                queryContent, queryContentType, queryTokenNumber,
+                answerContent, answerContentType, answerTokenNumber, vocabulary));
+    }
+
+    //构造待写入的message(不访问数据库)，生成createdAt和2个token估算参数；写入可由insertMessage单条执行，或交由写缓冲队列批量执行
+    public Message buildMessage(String botName, String userId, String userName,
+                                String conversationId,Integer totalTokenNumber,
+                                String queryContent, Integer queryContentType, Integer queryTokenNumber,
+                                String answerContent, Integer answerContentType, Integer answerTokenNumber,
+                                TokenEstimator.Vocabulary vocabulary) {
         Message message = new Message();
+        message.setMsgUuid(UUID.randomUUID().toString());
         message.setBotName(botName);
         message.setUserId(userId);
         message.setUserName(userName);
@@ -109,34 +426,26 @@ public class MessageService {
         message.setAnswerContent(answerContent != null ? answerContent : "");
         message.setAnswerContentType(answerContentType != null ? answerContentType : 0);
         message.setAnswerTokenNumber(answerTokenNumber != null ? answerTokenNumber : 0);
+        //query估算本身内容(平台返回的query_token_number包含历史记录)；answer优先使用平台返回的实际token数
+        message.setQueryTokenEstimate(TokenEstimator.estimate(message.getQueryContent(), vocabulary));
+        message.setAnswerTokenEstimate(message.getAnswerTokenNumber() > 0
+                ? message.getAnswerTokenNumber()
+                : TokenEstimator.estimate(message.getAnswerContent(), vocabulary));
+        return message;
+    }
 
+    //单条写入已构造的message，返回设置了自增主键的message
+    public Message insertMessage(Message message) {
         // 使用JdbcTemplate插入数据并获取自增主键
         KeyHolder holder = new GeneratedKeyHolder();  //获取数据库自动生成的主键
         //jdbcTemplate.execute("SET FOREIGN_KEY_CHECKS = 0");   // 1. 临时禁用外键检查
         //logger.info("开发模式，写入message表暂时禁用外键约束检查(尚未构建user表)");
 
-        //写入message表，外部12个字段+表内1个自增主键
+        //写入message表，外部15个字段+表内1个自增主键
         try {
             if (1 != jdbcTemplate.update((conn) -> {
-                var ps = conn.prepareStatement(
-                        "INSERT INTO messages (" +
-                                "bot_name, user_id, user_name, conversation_id, total_token_number," +
-                                "query_content, query_content_type, query_token_number, " +
-                                "answer_content, answer_content_type, answer_token_number, " +
-                                "created_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?,?)",
-                        Statement.RETURN_GENERATED_KEYS);
-                ps.setString(1, message.getBotName());
-                ps.setString(2, message.getUserId());
-                ps.setString(3, message.getUserName());
-                ps.setString(4, message.getConversationId());
-                ps.setInt(5, message.getTotalTokenNumber());
-                ps.setString(6, message.getQueryContent());
-                ps.setInt(7, message.getQueryContentType());
-                ps.setInt(8, message.getQueryTokenNumber());
-                ps.setString(9, message.getAnswerContent());
-                ps.setInt(10, message.getAnswerContentType());
-                ps.setInt(11, message.getAnswerTokenNumber());
-                ps.setLong(12, message.getCreatedAt());
+                var ps = conn.prepareStatement(INSERT_MESSAGE_SQL, Statement.RETURN_GENERATED_KEYS);
+                setInsertParameters(ps, message);
                 return ps;
             }, holder)) {
                 throw new RuntimeException("Message insert failed.");
@@ -146,55 +455,202 @@ public class MessageService {
         }
 
         message.setMessageId(holder.getKey().longValue());// 设置自增主键
+        usageStatsService.record(List.of(message));
+        conversationService.record(List.of(message));
+        historyCache.publish(List.of(message.getConversationId()));
+        appendToHistoryCacheAfterCommit(List.of(message));
+        runAfterCommit(() -> searchIndex.index(List.of(message)));
         return message;
     }
 
-    //异步存储消息（适合流式场景）
+    //异步存储消息（适合流式场景）；未启用@EnableAsync时同步执行，流式对话已改用MessageWriteBehindQueue批量写入
     @Async
     public CompletableFuture<Message> asyncMessageRegister(String botName, String userId, String userName,
                                                            String conversationId,Integer totalTokenNumber,
                                                            String queryContent, Integer queryContentType, Integer queryTokenNumber,
-                                                           String answerContent, Integer answerContentType, Integer answerTokenNumber) {
+                                                           String answerContent, Integer answerContentType, Integer answerTokenNumber,
+                                                           TokenEstimator.Vocabulary vocabulary) {
         return CompletableFuture.completedFuture(
                 messageRegister(botName, userId, userName, conversationId, totalTokenNumber,
                         queryContent, queryContentType, queryTokenNumber,
-                        answerContent, answerContentType, answerTokenNumber)
+                        answerContent, answerContentType, answerTokenNumber, vocabulary)
         );
     }
 
-    //批量存储List<Message>消息（适合需要事务的场景）
-    @Transactional
+    //批量存储List<Message>消息（适合需要事务的场景），同一事务内按List顺序写入，并为每条message设置自增主键
+    //写缓冲队列可能在对话请求的事务内刷写(读取历史记录前)，使用单独的事务：返回即已提交，失败只回滚本批，不影响调用方的事务
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
     public void batchRegisterMessages(List<Message> messages) {
-        jdbcTemplate.batchUpdate(
-                "INSERT INTO messages (" +
-                        "bot_name, user_id, user_name, conversation_id, total_token_number," +
-                        "query_content, query_content_type, query_token_number, " +
-                        "answer_content, answer_content_type, answer_token_number, " +
-                        "created_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?,?)",
-                new BatchPreparedStatementSetter() {
-                    @Override
-                    public void setValues(PreparedStatement ps, int i) throws SQLException {
-                        Message m = messages.get(i);
-                        ps.setString(1, m.getBotName());
-                        ps.setString(2, m.getUserId());
-                        ps.setString(3, m.getUserName());
-                        ps.setString(4, m.getConversationId());
-                        ps.setInt(5, m.getTotalTokenNumber());
-                        ps.setString(6, m.getQueryContent());
-                        ps.setInt(7, m.getQueryContentType());
-                        ps.setInt(8, m.getQueryTokenNumber());
-                        ps.setString(9, m.getAnswerContent());
-                        ps.setInt(10, m.getAnswerContentType());
-                        ps.setInt(11, m.getAnswerTokenNumber());
-                        ps.setLong(12, m.getCreatedAt());
-                    }
+        if (messages.isEmpty()) {
+            return;
+        }
+        insertBatch(messages);
+        appendToHistoryCacheAfterCommit(messages);
+    }
 
-                    @Override
-                    public int getBatchSize() {
-                        return messages.size();
+    //WAL重放写入：按msg_uuid跳过已存在的message(写入数据库后、WAL检查点推进前宕机的情况，可能已被归档)，其余批量写入，返回实际写入条数
+    //重放的message会获得新的自增主键，历史记录按message_id排序；同一会话由写缓冲队列与WAL保证按原顺序重放，更早的轮次写入前不写入之后的轮次
+    //重放的message可能早于缓存中已有的记录，提交后使相关会话的历史缓存失效，下次读取时重新加载；与batchRegisterMessages相同，使用单独的事务
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public int replayMessages(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        String where = "msg_uuid IN (" + String.join(",", Collections.nCopies(messages.size(), "?")) + ")";
+        Object[] args = new Object[messages.size() * 2];
+        for (int i = 0; i < messages.size(); i++) {
+            args[i] = messages.get(i).getMsgUuid();
+            args[i + messages.size()] = messages.get(i).getMsgUuid();
+        }
+        Set<String> existing = new HashSet<>(jdbcTemplate.queryForList("SELECT msg_uuid FROM messages WHERE " + where
+                + " UNION ALL SELECT msg_uuid FROM messages_archive WHERE " + where, String.class, args));
+        List<Message> missing = new ArrayList<>();
+        for (Message m : messages) {
+            if (!existing.contains(m.getMsgUuid())) {
+                missing.add(m);
+            }
+        }
+        if (missing.isEmpty()) {
+            return 0;
+        }
+        insertBatch(missing);
+        Set<String> conversationIds = new HashSet<>();
+        missing.forEach(m -> conversationIds.add(m.getConversationId()));
+        runAfterCommit(() -> conversationIds.forEach(historyCache::invalidate));
+        return missing.size();
+    }
+
+    private void insertBatch(List<Message> messages) {
+        jdbcTemplate.execute((ConnectionCallback<Void>) conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(INSERT_MESSAGE_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                for (Message m : messages) {
+                    setInsertParameters(ps, m);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    int i = 0;
+                    while (keys.next() && i < messages.size()) {
+                        messages.get(i++).setMessageId(keys.getLong(1));
+                    }
+                    if (i != messages.size()) {
+                        throw new SQLException("Message batch insert returned " + i + " keys for " + messages.size() + " rows.");
                     }
                 }
-        );
+            }
+            return null;
+        });
+        usageStatsService.record(messages);
+        conversationService.record(messages);
+        historyCache.publish(messages.stream().map(Message::getConversationId).distinct().toList());
+        List<Message> written = List.copyOf(messages); //调用方可能复用列表
+        runAfterCommit(() -> searchIndex.index(written));
+    }
+
+    //压缩效果报告：抽样最新的sampleRows条记录，统计存储字节数与原文字节数、已压缩的字段数、解码平均耗时
+    @Transactional(readOnly = true)
+    public Map<String, Object> compressionReport(int sampleRows) {
+        long[] totals = new long[5]; //0:字段数 1:已压缩字段数 2:存储字节 3:原文字节 4:解码纳秒
+        jdbcTemplate.query("SELECT query_content, answer_content FROM messages ORDER BY message_id DESC LIMIT ?", rs -> {
+            for (String column : new String[]{"query_content", "answer_content"}) {
+                String stored = rs.getString(column);
+                if (stored == null) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                String original = contentCodec.decode(stored);
+                totals[4] += System.nanoTime() - start;
+                totals[0]++;
+                if (!stored.equals(original)) {
+                    totals[1]++;
+                }
+                totals[2] += stored.getBytes(StandardCharsets.UTF_8).length;
+                totals[3] += original.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }, sampleRows);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("sampledValues", totals[0]);
+        report.put("compressedValues", totals[1]);
+        report.put("storedBytes", totals[2]);
+        report.put("originalBytes", totals[3]);
+        report.put("savedBytes", totals[3] - totals[2]);
+        report.put("ratio", totals[2] == 0 ? 0 : (double) totals[3] / totals[2]);
+        report.put("avgDecodeMicros", totals[0] == 0 ? 0 : totals[4] / 1000.0 / totals[0]);
+        report.put("codec", contentCodec.stats());
+        return report;
+    }
+
+    //归档一批created_at早于cutoff的记录：复制到messages_archive后从messages删除，返回本批条数
+    //同一事务内完成，提交后使相关会话的历史缓存失效
+    @Transactional
+    public int archiveBatch(long cutoff, int batchSize) {
+        List<Long> ids = jdbcTemplate.queryForList(
+                "SELECT message_id FROM messages WHERE created_at < ? ORDER BY created_at LIMIT ?", Long.class, cutoff, batchSize);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        String placeholders = String.join(",", Collections.nCopies(ids.size(), "?"));
+        Object[] args = new Object[ids.size() + 1];
+        for (int i = 0; i < ids.size(); i++) {
+            args[i] = ids.get(i);
+        }
+        args[ids.size()] = cutoff;
+        String where = " WHERE message_id IN (" + placeholders + ") AND created_at < ?";
+        Set<String> conversationIds = new HashSet<>(jdbcTemplate.queryForList(
+                "SELECT DISTINCT conversation_id FROM messages" + where, String.class, args));
+        jdbcTemplate.update("INSERT IGNORE INTO messages_archive (" + MESSAGE_COLUMNS + ") SELECT " + MESSAGE_COLUMNS + " FROM messages" + where, args);
+        int deleted = jdbcTemplate.update("DELETE FROM messages" + where, args);
+        historyCache.publish(conversationIds);
+        runAfterCommit(() -> conversationIds.forEach(historyCache::invalidate));
+        return deleted;
+    }
+
+    //messages与messages_archive的全部字段(两表字段一致)
+    private static final String MESSAGE_COLUMNS = "message_id, bot_name, user_id, user_name, conversation_id, total_token_number, " +
+            "query_content, query_content_type, query_token_number, answer_content, answer_content_type, answer_token_number, " +
+            "created_at, query_token_estimate, answer_token_estimate, msg_uuid";
+
+    private static final String INSERT_MESSAGE_SQL = "INSERT INTO messages (" +
+            "bot_name, user_id, user_name, conversation_id, total_token_number," +
+            "query_content, query_content_type, query_token_number, " +
+            "answer_content, answer_content_type, answer_token_number, " +
+            "created_at, query_token_estimate, answer_token_estimate, msg_uuid) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private void setInsertParameters(PreparedStatement ps, Message m) throws SQLException {
+        ps.setString(1, m.getBotName());
+        ps.setString(2, m.getUserId());
+        ps.setString(3, m.getUserName());
+        ps.setString(4, m.getConversationId());
+        ps.setInt(5, m.getTotalTokenNumber());
+        ps.setString(6, contentCodec.encode(m.getQueryContent()));
+        ps.setInt(7, m.getQueryContentType());
+        ps.setInt(8, m.getQueryTokenNumber());
+        ps.setString(9, contentCodec.encode(m.getAnswerContent()));
+        ps.setInt(10, m.getAnswerContentType());
+        ps.setInt(11, m.getAnswerTokenNumber());
+        ps.setLong(12, m.getCreatedAt());
+        ps.setInt(13, m.getQueryTokenEstimate() != null ? m.getQueryTokenEstimate() : 0);
+        ps.setInt(14, m.getAnswerTokenEstimate() != null ? m.getAnswerTokenEstimate() : 0);
+        ps.setString(15, m.getMsgUuid());
+    }
+
+    //事务提交后再追加到历史缓存，避免回滚的记录进入缓存
+    private void appendToHistoryCacheAfterCommit(List<Message> messages) {
+        runAfterCommit(() -> messages.forEach(historyCache::append));
+    }
+
+    //当前存在事务时在提交后执行，否则立即执行
+    private static void runAfterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
     }
 
 }
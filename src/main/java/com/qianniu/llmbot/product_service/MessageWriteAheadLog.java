@@ -0,0 +1,696 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.Message;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/*********************************************
+ * 对话message的本地预写日志(WAL)，数据库慢或不可用时不丢失已完成的回答
+ * 1）每条message先追加写入本地磁盘的内存映射段文件(wal-<起始序号>.log)，再进入写缓冲队列写入数据库；
+ *    记录格式：magic(4) + payload长度(4) + crc32(4) + 序号(8) + payload，段文件末尾未写入部分全为0；
+ * 2）写入数据库成功后标记序号已持久化，检查点(checkpoint文件)只沿连续的已持久化序号推进，检查点之前的段文件可删除；
+ * 3）重放：定时任务读取检查点之后、未持久化且不在写缓冲队列中的记录(上次运行遗留、或写缓冲队列写入失败)，按msg_uuid去重后写入数据库；
+ * 4）段文件尾部的半条记录(进程崩溃时写入中断)通过magic/长度/crc校验识别并忽略；
+ * 5）默认不逐条fsync：进程崩溃时内存映射页仍由操作系统写回，操作系统崩溃时可能丢失最近的记录(可配置sync=true)；
+ * 6）批量重放失败时逐条重放：数据库不可用等暂时性错误等待下次重放；单条记录本身的错误(超长、无法解码等)按序号计数，
+ *    达到max_replay_attempts次后移入quarantine.log(格式与段文件记录相同)，检查点越过该记录继续推进，不会一直占用磁盘；
+ * 7）重放写入的message获得新的自增主键，历史记录按message_id排序，因此同一会话必须按序号依次写入：
+ *    有记录等待重放的会话(上次运行遗留或写缓冲队列交回)处于保留状态，写缓冲队列不写入该会话之后的message，而是交给WAL排在其后；
+ *    逐条重放时某条记录失败，本次重放跳过同一会话之后的记录；该会话的记录全部写入(或移入quarantine.log)后解除保留；
+ * 8）读取会话历史前由写缓冲队列调用replayConversation，立即重放该会话等待重放的记录，仍未写入的记录返回给调用方合并到历史记录中；
+ * **********************************************/
+
+@Component
+public class MessageWriteAheadLog {
+    private static final Logger logger = LoggerFactory.getLogger(MessageWriteAheadLog.class);
+    private static final int MAGIC = 0x4D57414C; //"MWAL"
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8;
+    private static final byte PAYLOAD_VERSION = 1;
+    private static final int REPLAY_BATCH = 200;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String QUARANTINE_FILE = "quarantine.log";
+
+    private final MessageService messageService;
+    private final boolean enabled;
+    private final Path dir;
+    private final int segmentBytes;
+    private final boolean sync;
+    private final int maxReplayAttempts;
+
+    private final List<Segment> segments = new ArrayList<>(); //按起始序号升序，最后一个为当前写入段
+    private long nextSeq = 1;
+    private volatile long checkpoint;
+    private long savedCheckpoint = -1;
+    private final ConcurrentSkipListSet<Long> persistedAboveCheckpoint = new ConcurrentSkipListSet<>();
+    private final Map<Long, String> inFlight = new ConcurrentHashMap<>(); //已交给写缓冲队列、尚未有结果的序号 -> conversation_id
+    private final Map<Long, String> held = new ConcurrentHashMap<>(); //等待重放的序号 -> conversation_id
+    private final Map<String, Integer> heldByConversation = new ConcurrentHashMap<>(); //各会话等待重放的记录数
+    private final Map<Long, Integer> replayAttempts = new ConcurrentHashMap<>(); //单条重放失败的次数
+    private final Object replayLock = new Object(); //定时重放与读取历史前的单会话重放互斥，避免同一记录并发写入
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder appendFailures = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder replayDuplicates = new LongAdder();
+    private final LongAdder deletedSegments = new LongAdder();
+    private final LongAdder replayRowFailures = new LongAdder();
+    private final LongAdder quarantined = new LongAdder();
+
+    public MessageWriteAheadLog(MessageService messageService,
+                                @Value("${wal.enabled:true}") boolean enabled,
+                                @Value("${wal.dir:./data/wal}") String dir,
+                                @Value("${wal.segment_bytes:67108864}") int segmentBytes,
+                                @Value("${wal.sync:false}") boolean sync,
+                                @Value("${wal.max_replay_attempts:5}") int maxReplayAttempts) {
+        this.messageService = messageService;
+        this.enabled = enabled;
+        this.dir = Paths.get(dir);
+        this.segmentBytes = Math.max(1 << 20, segmentBytes);
+        this.sync = sync;
+        this.maxReplayAttempts = Math.max(1, maxReplayAttempts);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    //启动时加载检查点和已有段文件，确定下一个序号；新记录总是写入新的段文件
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(dir);
+        Path checkpointPath = dir.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpointPath)) {
+            checkpoint = Long.parseLong(Files.readString(checkpointPath, StandardCharsets.US_ASCII).trim());
+            savedCheckpoint = checkpoint;
+        }
+        long maxSeq = checkpoint;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : files.filter(MessageWriteAheadLog::isSegmentFile).sorted().toList()) {
+                Segment segment = Segment.open(path, firstSeqOf(path));
+                if (segment.lastSeq == 0) { //创建后尚未写入记录的段文件，删除以免与新段文件重名
+                    segment.close();
+                    Files.delete(path);
+                    continue;
+                }
+                segments.add(segment);
+                maxSeq = Math.max(maxSeq, segment.lastSeq);
+                holdUnpersisted(segment);
+            }
+        }
+        nextSeq = maxSeq + 1;
+        logger.info("message WAL已加载，段文件{}个，检查点={}，待重放{}条，涉及会话{}个",
+                segments.size(), checkpoint, nextSeq - 1 - checkpoint, heldByConversation.size());
+    }
+
+    //上次运行遗留的未持久化记录，对应会话在重放完成前保持保留状态
+    private void holdUnpersisted(Segment segment) {
+        for (Record record : segment.read()) {
+            if (record.seq <= checkpoint) {
+                continue;
+            }
+            try {
+                hold(record.seq, decode(record.payload).getConversationId());
+            } catch (IOException e) {
+                //无法解码的记录由重放任务移入隔离文件
+            }
+        }
+    }
+
+    //追加一条message，返回序号；WAL不可用时返回-1，调用方照常写入数据库
+    public long append(Message message) {
+        if (!enabled) {
+            return -1;
+        }
+        try {
+            byte[] payload = encode(message);
+            synchronized (this) {
+                long seq = nextSeq;
+                Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                if (active == null || !active.writable || active.remaining() < HEADER_BYTES + payload.length) {
+                    if (active != null) {
+                        active.seal();
+                    }
+                    active = Segment.create(dir.resolve(segmentName(seq)), seq, Math.max(segmentBytes, HEADER_BYTES + payload.length));
+                    segments.add(active);
+                }
+                active.write(seq, payload, sync);
+                nextSeq++;
+                inFlight.put(seq, message.getConversationId());
+                appended.increment();
+                return seq;
+            }
+        } catch (IOException | RuntimeException e) {
+            appendFailures.increment();
+            logger.error("message写入WAL失败，直接写入数据库: {}", e.getMessage());
+            return -1;
+        }
+    }
+
+    //该序号的message已提交到数据库
+    public void markPersisted(long seq) {
+        if (seq <= 0) {
+            return;
+        }
+        inFlight.remove(seq);
+        if (seq > checkpoint) {
+            persistedAboveCheckpoint.add(seq);
+            advanceCheckpoint();
+        }
+    }
+
+    //该序号的message写入数据库失败(或因会话处于保留状态未写入)，保留在WAL中等待重放，该会话之后的message排在其后
+    public void markFailed(long seq) {
+        if (seq <= 0) {
+            return;
+        }
+        String conversationId = inFlight.remove(seq);
+        if (conversationId != null) {
+            hold(seq, conversationId);
+        }
+    }
+
+    //该会话是否有等待重放的记录；为true时写缓冲队列不能先写入该会话之后的message
+    public boolean isHeld(String conversationId) {
+        return heldByConversation.containsKey(conversationId);
+    }
+
+    //立即重放该会话等待重放的记录(读取历史记录前调用)，返回仍未写入的message(按序号)；数据库不可用时不抛出异常
+    public List<Message> replayConversation(String conversationId) {
+        if (!isHeld(conversationId)) {
+            return List.of();
+        }
+        synchronized (replayLock) {
+            List<Record> records = new ArrayList<>();
+            List<Message> messages = new ArrayList<>();
+            for (Segment segment : unpersistedSegments()) {
+                for (Record record : read(segment)) {
+                    if (!conversationId.equals(held.get(record.seq))) {
+                        continue;
+                    }
+                    try {
+                        messages.add(decode(record.payload));
+                        records.add(record);
+                    } catch (IOException e) {
+                        quarantine(record, "无法解码: " + e.getMessage());
+                    }
+                }
+            }
+            try {
+                replayBatch(new ArrayList<>(records), new ArrayList<>(messages), new HashSet<>());
+            } catch (RuntimeException e) {
+                logger.warn("会话{}的WAL记录重放失败，稍后重试: {}", conversationId, e.getMessage());
+            }
+            List<Message> unwritten = new ArrayList<>();
+            for (int i = 0; i < records.size(); i++) {
+                if (held.containsKey(records.get(i).seq)) {
+                    unwritten.add(messages.get(i));
+                }
+            }
+            return unwritten;
+        }
+    }
+
+    //定时重放未持久化的记录，保存检查点并删除已完全持久化的段文件
+    @Scheduled(fixedDelayString = "${wal.replay_interval_ms:5000}", initialDelayString = "${wal.replay_interval_ms:5000}")
+    public void maintain() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            replay();
+        } catch (Exception e) {
+            logger.warn("message WAL重放失败，稍后重试: {}", e.getMessage());
+        }
+        try {
+            saveCheckpoint();
+            deletePersistedSegments();
+        } catch (IOException e) {
+            logger.warn("message WAL检查点保存失败: {}", e.getMessage());
+        }
+    }
+
+    //按序号读取检查点之后、未持久化且不在写缓冲队列中的记录，去重后写入数据库
+    public void replay() throws IOException {
+        synchronized (replayLock) {
+            synchronized (this) {
+                //未持久化的记录都还在写缓冲队列中时无需扫描段文件
+                if (nextSeq - 1 - checkpoint - persistedAboveCheckpoint.size() <= inFlight.size()) {
+                    return;
+                }
+            }
+            List<Record> pending = new ArrayList<>();
+            List<Message> batch = new ArrayList<>();
+            Set<String> blocked = new HashSet<>(); //本次重放中有记录未能写入的会话，跳过其后的记录
+            for (Segment segment : unpersistedSegments()) {
+                for (Record record : read(segment)) {
+                    if (record.seq <= checkpoint || persistedAboveCheckpoint.contains(record.seq) || inFlight.containsKey(record.seq)) {
+                        continue;
+                    }
+                    Message message;
+                    try {
+                        message = decode(record.payload);
+                    } catch (IOException e) {
+                        quarantine(record, "无法解码: " + e.getMessage()); //重试也不会成功
+                        continue;
+                    }
+                    pending.add(record);
+                    batch.add(message);
+                    if (batch.size() >= REPLAY_BATCH) {
+                        replayBatch(pending, batch, blocked);
+                    }
+                }
+            }
+            replayBatch(pending, batch, blocked);
+        }
+    }
+
+    //包含检查点之后记录的段文件
+    private synchronized List<Segment> unpersistedSegments() {
+        List<Segment> snapshot = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.lastSeq > checkpoint) {
+                snapshot.add(segment);
+            }
+        }
+        return snapshot;
+    }
+
+    //当前写入段可能正在追加
+    private synchronized List<Record> read(Segment segment) {
+        return segment.read();
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            saveCheckpoint();
+        } catch (IOException e) {
+            logger.warn("message WAL检查点保存失败: {}", e.getMessage());
+        }
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("nextSeq", nextSeq);
+        stats.put("checkpoint", checkpoint);
+        stats.put("unpersisted", Math.max(0, nextSeq - 1 - checkpoint - persistedAboveCheckpoint.size()));
+        stats.put("inFlight", inFlight.size());
+        stats.put("held", held.size());
+        stats.put("heldConversations", heldByConversation.size());
+        stats.put("segments", segments.size());
+        stats.put("appended", appended.sum());
+        stats.put("appendFailures", appendFailures.sum());
+        stats.put("replayed", replayed.sum());
+        stats.put("replayDuplicates", replayDuplicates.sum());
+        stats.put("deletedSegments", deletedSegments.sum());
+        stats.put("replayRowFailures", replayRowFailures.sum());
+        stats.put("retryingRecords", replayAttempts.size());
+        stats.put("quarantined", quarantined.sum());
+        return stats;
+    }
+
+    //批量重放，失败时逐条重放以隔离单条记录的错误；暂时性错误直接抛出，等待下次重放
+    //blocked中的会话已有更早的记录未能写入，其后的记录留到下次重放，保证同一会话按序号写入
+    private void replayBatch(List<Record> records, List<Message> batch, Set<String> blocked) {
+        try {
+            if (!blocked.isEmpty()) {
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    if (blocked.contains(batch.get(i).getConversationId())) {
+                        records.remove(i);
+                        batch.remove(i);
+                    }
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                int inserted = messageService.replayMessages(batch);
+                replayed.add(inserted);
+                replayDuplicates.add(batch.size() - inserted);
+                for (Record record : records) {
+                    replayed(record.seq);
+                }
+                logger.info("message WAL重放{}条，其中已存在{}条", batch.size(), batch.size() - inserted);
+            } catch (RuntimeException e) {
+                if (isTransient(e)) {
+                    throw e;
+                }
+                logger.warn("message WAL批量重放失败，改为逐条重放{}条: {}", batch.size(), e.getMessage());
+                for (int i = 0; i < batch.size(); i++) {
+                    Message message = batch.get(i);
+                    if (!blocked.contains(message.getConversationId()) && !replayOne(records.get(i), message)) {
+                        blocked.add(message.getConversationId());
+                    }
+                }
+            }
+        } finally {
+            records.clear();
+            batch.clear();
+        }
+    }
+
+    //逐条重放，返回该记录是否已有结果(写入、已存在或移入隔离文件)
+    private boolean replayOne(Record record, Message message) {
+        try {
+            int inserted = messageService.replayMessages(List.of(message));
+            replayed.add(inserted);
+            replayDuplicates.add(1 - inserted);
+            replayed(record.seq);
+            return true;
+        } catch (RuntimeException e) {
+            if (isTransient(e)) {
+                throw e;
+            }
+            replayRowFailures.increment();
+            int attempts = replayAttempts.merge(record.seq, 1, Integer::sum);
+            if (attempts >= maxReplayAttempts) {
+                return quarantine(record, e.getMessage());
+            }
+            logger.warn("message WAL记录{}重放失败(第{}次)，msg_uuid={}: {}", record.seq, attempts, message.getMsgUuid(), e.getMessage());
+            return false;
+        }
+    }
+
+    private void replayed(long seq) {
+        replayAttempts.remove(seq);
+        release(seq);
+        markPersisted(seq);
+    }
+
+    private void hold(long seq, String conversationId) {
+        if (conversationId == null) {
+            return;
+        }
+        held.put(seq, conversationId);
+        heldByConversation.merge(conversationId, 1, Integer::sum);
+    }
+
+    private void release(long seq) {
+        String conversationId = held.remove(seq);
+        if (conversationId != null) {
+            heldByConversation.computeIfPresent(conversationId, (k, count) -> count <= 1 ? null : count - 1);
+        }
+    }
+
+    //数据库不可用、连接或事务无法建立等与记录内容无关的错误，不计入单条记录的失败次数
+    private static boolean isTransient(RuntimeException e) {
+        return e instanceof TransientDataAccessException || e instanceof RecoverableDataAccessException
+                || e instanceof DataAccessResourceFailureException || e instanceof TransactionException;
+    }
+
+    //把无法重放的记录追加到隔离文件(格式与段文件记录相同，可人工处理后重新导入)，检查点越过该记录；返回是否已移入
+    private boolean quarantine(Record record, String reason) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + record.payload.length);
+        frame.putInt(MAGIC).putInt(record.payload.length).putInt(crcOf(record.seq, record.payload)).putLong(record.seq).put(record.payload);
+        frame.flip();
+        try (FileChannel channel = FileChannel.open(dir.resolve(QUARANTINE_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            logger.error("message WAL记录{}写入隔离文件失败，保留在WAL中: {}", record.seq, e.getMessage());
+            return false;
+        }
+        quarantined.increment();
+        logger.error("message WAL记录{}无法重放，已移入{}: {}", record.seq, QUARANTINE_FILE, reason);
+        replayed(record.seq);
+        return true;
+    }
+
+    private static int crcOf(long seq, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(0, seq));
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    //检查点只沿连续的已持久化序号推进
+    private synchronized void advanceCheckpoint() {
+        long next = checkpoint + 1;
+        while (persistedAboveCheckpoint.remove(next)) {
+            checkpoint = next;
+            next++;
+        }
+    }
+
+    //先写临时文件再原子替换，避免检查点文件写入一半
+    private synchronized void saveCheckpoint() throws IOException {
+        if (checkpoint == savedCheckpoint) {
+            return;
+        }
+        Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.writeString(tmp, Long.toString(checkpoint), StandardCharsets.US_ASCII);
+        Files.move(tmp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedCheckpoint = checkpoint;
+    }
+
+    //删除全部记录都已持久化(且已保存到检查点文件)的非当前段文件
+    private synchronized void deletePersistedSegments() throws IOException {
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            long lastSeq = segments.get(1).firstSeq - 1;
+            if (lastSeq > savedCheckpoint) {
+                break;
+            }
+            oldest.close();
+            Files.deleteIfExists(oldest.path);
+            segments.remove(0);
+            deletedSegments.increment();
+        }
+    }
+
+    private static boolean isSegmentFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    private static long firstSeqOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    //序号补零，文件名按字典序即按序号排序
+    private static String segmentName(long firstSeq) {
+        return SEGMENT_PREFIX + String.format("%020d", firstSeq) + SEGMENT_SUFFIX;
+    }
+
+    static byte[] encode(Message m) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(PAYLOAD_VERSION);
+        writeString(out, m.getMsgUuid());
+        writeString(out, m.getBotName());
+        writeString(out, m.getUserId());
+        writeString(out, m.getUserName());
+        writeString(out, m.getConversationId());
+        out.writeInt(m.getTotalTokenNumber());
+        writeString(out, m.getQueryContent());
+        out.writeInt(m.getQueryContentType());
+        out.writeInt(m.getQueryTokenNumber());
+        writeString(out, m.getAnswerContent());
+        out.writeInt(m.getAnswerContentType());
+        out.writeInt(m.getAnswerTokenNumber());
+        out.writeLong(m.getCreatedAt());
+        out.writeInt(m.getQueryTokenEstimate() != null ? m.getQueryTokenEstimate() : 0);
+        out.writeInt(m.getAnswerTokenEstimate() != null ? m.getAnswerTokenEstimate() : 0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static Message decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte version = in.readByte();
+        if (version != PAYLOAD_VERSION) {
+            throw new IOException("不支持的WAL记录版本: " + version);
+        }
+        Message m = new Message();
+        m.setMsgUuid(readString(in));
+        m.setBotName(readString(in));
+        m.setUserId(readString(in));
+        m.setUserName(readString(in));
+        m.setConversationId(readString(in));
+        m.setTotalTokenNumber(in.readInt());
+        m.setQueryContent(readString(in));
+        m.setQueryContentType(in.readInt());
+        m.setQueryTokenNumber(in.readInt());
+        m.setAnswerContent(readString(in));
+        m.setAnswerContentType(in.readInt());
+        m.setAnswerTokenNumber(in.readInt());
+        m.setCreatedAt(in.readLong());
+        m.setQueryTokenEstimate(in.readInt());
+        m.setAnswerTokenEstimate(in.readInt());
+        return m;
+    }
+
+    //writeUTF限制64KB，answer可能更长，使用长度前缀 + UTF-8字节；null记为-1
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private record Record(long seq, byte[] payload) {
+    }
+
+    //单个内存映射段文件，所有写操作在外部锁内执行
+    private static final class Segment {
+        private final Path path;
+        private final long firstSeq;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private long lastSeq; //段内最后一条有效记录的序号，空段为0
+        private boolean writable;
+
+        private Segment(Path path, long firstSeq, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.firstSeq = firstSeq;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path path, long firstSeq, int size) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(path, firstSeq, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            segment.writable = true;
+            return segment;
+        }
+
+        //打开已有段文件(只读)，扫描有效记录确定lastSeq
+        static Segment open(Path path, long firstSeq) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            Segment segment = new Segment(path, firstSeq, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            List<Record> records = segment.read();
+            segment.lastSeq = records.isEmpty() ? 0 : records.get(records.size() - 1).seq;
+            return segment;
+        }
+
+        int remaining() {
+            return buffer.remaining();
+        }
+
+        void write(long seq, byte[] payload, boolean sync) {
+            int start = buffer.position();
+            //先写除magic外的部分，最后写magic，读取时magic有效即表示记录完整写入
+            buffer.position(start + 4);
+            buffer.putInt(payload.length);
+            buffer.putInt(crcOf(seq, payload));
+            buffer.putLong(seq);
+            buffer.put(payload);
+            buffer.putInt(start, MAGIC);
+            lastSeq = seq;
+            if (sync) {
+                buffer.force();
+            }
+        }
+
+        void seal() {
+            buffer.force();
+            writable = false;
+        }
+
+        //顺序读取有效记录，遇到空白或损坏的记录即停止(段尾)
+        List<Record> read() {
+            ByteBuffer view = buffer.duplicate();
+            view.position(0);
+            int limit = writable ? buffer.position() : view.limit();
+            List<Record> records = new ArrayList<>();
+            while (view.position() + HEADER_BYTES <= limit) {
+                int start = view.position();
+                if (view.getInt() != MAGIC) {
+                    break;
+                }
+                int length = view.getInt();
+                int expectedCrc = view.getInt();
+                long seq = view.getLong();
+                if (length < 0 || view.position() + length > limit) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                view.get(payload);
+                if (crcOf(seq, payload) != expectedCrc) {
+                    logger.warn("WAL段文件{}在位置{}的记录校验失败，忽略之后的内容", path.getFileName(), start);
+                    break;
+                }
+                records.add(new Record(seq, payload));
+            }
+            return records;
+        }
+
+        void close() {
+            try {
+                if (writable) {
+                    buffer.force();
+                }
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.Message;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*********************************************
+ * 流式对话结束后message的写缓冲队列(write-behind)，替代每条message单独INSERT
+ * 1）有界队列 + 单个刷写线程：攒满batch_size条或最早一条等待超过max_delay_ms时，调用MessageService.batchRegisterMessages批量写入；
+ * 2）顺序：入队FIFO，刷写线程在队列外等待攒批(不持有flushLock)，只在取批并写入时持有flushLock，同一会话的message按入队顺序提交(自增主键递增)；
+ * 3）背压：队列满时生产者最多等待offer_timeout_ms，仍然失败则由调用线程在flushLock内先写出队列中已有的message再写入本条(caller-runs)，不丢弃也不乱序；
+ * 4）批量写入失败时在同一次持锁内逐条写入：超长、约束冲突等单条数据错误只标记该条失败，其余message正常写入；
+ *    数据库连接等暂时性错误的剩余message放回重试队列头部，下一次取批先取重试队列，退避期间刷写线程不写入任何message，之后的message不会先于重试的message提交；
+ *    退避时间从retry_backoff_ms起翻倍，最长max_retry_backoff_ms；重试队列最早一条持续失败超过retry_window_ms(覆盖数据库重启、主从切换等)后才交给WAL；
+ *    批量写入可能已提交但确认丢失，逐条写入与重试均经过MessageService.replayMessages按msg_uuid去重；
+ * 5）读取会话历史前调用flushPending，该会话有未写入(包括等待重试)的message时只取出该会话的message立即写入，保证下一轮对话能读到上一轮，
+ *    不等待其他会话积压的message；写入在MessageService的单独事务(REQUIRES_NEW)内提交，提交后才标记WAL已持久化，失败不影响对话请求的事务；
+ *    数据库不可用仍未写入的message(包括WAL中等待重放的)返回给调用方，作为最新的几轮合并到历史记录中；
+ * 6）应用关闭时停止刷写线程并写出队列中剩余的message；
+ * 7）入队前先追加到本地WAL(MessageWriteAheadLog)，写入数据库成功后标记已持久化；单条数据错误与超出重试时间的message保留在WAL中由重放任务补写；
+ *    WAL中有等待重放记录的会话处于保留状态，该会话之后的message不写入数据库，同样交给WAL按序号排在其后，不会先于更早的轮次提交；
+ * **********************************************/
+
+@Component
+public class MessageWriteBehindQueue {
+    private static final Logger logger = LoggerFactory.getLogger(MessageWriteBehindQueue.class);
+
+    private final MessageService messageService;
+    private final MessageWriteAheadLog writeAheadLog;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long maxDelayMillis;
+    private final long offerTimeoutMillis;
+    private final long retryBackoffMillis;
+    private final long maxRetryBackoffMillis;
+    private final long retryWindowMillis;
+    private final BlockingQueue<Pending> queue;
+
+    private final Object flushLock = new Object();
+    private final Deque<Pending> retryHead = new ArrayDeque<>(); //因暂时性错误等待重试的message，按原顺序排在队列之前，由flushLock保护
+    private volatile long retryNotBefore; //重试队列非空时的下一次重试时间，为0表示没有等待重试的message
+    private final Map<String, AtomicInteger> pendingByConversation = new ConcurrentHashMap<>();
+    private volatile boolean running;
+    private Thread flusher;
+
+    //统计指标
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder flushedMessages = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder callerRunsFlushes = new LongAdder();
+    private final LongAdder failedMessages = new LongAdder();
+    private final LongAdder rowErrors = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder heldBack = new LongAdder();
+    private final AtomicInteger lastBatchSize = new AtomicInteger();
+    private final AtomicInteger maxBatchSize = new AtomicInteger();
+    private final AtomicLong lastFlushMillis = new AtomicLong();
+
+    public MessageWriteBehindQueue(MessageService messageService, MessageWriteAheadLog writeAheadLog,
+                                   @Value("${writebehind.enabled:true}") boolean enabled,
+                                   @Value("${writebehind.capacity:10000}") int capacity,
+                                   @Value("${writebehind.batch_size:100}") int batchSize,
+                                   @Value("${writebehind.max_delay_ms:200}") long maxDelayMillis,
+                                   @Value("${writebehind.offer_timeout_ms:50}") long offerTimeoutMillis,
+                                   @Value("${writebehind.retry_backoff_ms:100}") long retryBackoffMillis,
+                                   @Value("${writebehind.max_retry_backoff_ms:5000}") long maxRetryBackoffMillis,
+                                   @Value("${writebehind.retry_window_ms:300000}") long retryWindowMillis) {
+        this.messageService = messageService;
+        this.writeAheadLog = writeAheadLog;
+        this.enabled = enabled;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxDelayMillis = Math.max(1, maxDelayMillis);
+        this.offerTimeoutMillis = Math.max(0, offerTimeoutMillis);
+        this.retryBackoffMillis = Math.max(1, retryBackoffMillis);
+        this.maxRetryBackoffMillis = Math.max(this.retryBackoffMillis, maxRetryBackoffMillis);
+        this.retryWindowMillis = Math.max(0, retryWindowMillis);
+        this.queue = new ArrayBlockingQueue<>(Math.max(this.batchSize, capacity));
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        flusher = new Thread(this::runFlusher, "message-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+        logger.info("message写缓冲队列已启动，capacity={}, batchSize={}, maxDelay={}ms", queue.remainingCapacity(), batchSize, maxDelayMillis);
+    }
+
+    //提交一条已构造的message(messageId尚未生成)，队列满时按背压策略处理；写缓冲关闭时直接单条写入
+    public void submit(Message message) {
+        long walSeq = writeAheadLog.append(message);
+        if (!enabled || !running) {
+            try {
+                messageService.insertMessage(message);
+                writeAheadLog.markPersisted(walSeq);
+            } catch (RuntimeException e) {
+                writeAheadLog.markFailed(walSeq);
+                throw e;
+            }
+            return;
+        }
+        Pending pending = new Pending(message, System.currentTimeMillis(), walSeq);
+        pendingByConversation.computeIfAbsent(message.getConversationId(), k -> new AtomicInteger()).incrementAndGet();
+        enqueued.increment();
+        try {
+            if (queue.offer(pending, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                int depth = queue.size();
+                if (depth == 1 || depth >= batchSize) { //开始计时或已攒满，唤醒刷写线程
+                    LockSupport.unpark(flusher);
+                }
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //队列持续满载，由调用线程写出重试队列与队列已有的message后再写入本条，保证同一会话的顺序
+        callerRunsFlushes.increment();
+        synchronized (flushLock) {
+            List<Pending> batch = drain(Integer.MAX_VALUE);
+            batch.add(pending);
+            writeInChunks(batch);
+        }
+    }
+
+    //该会话有尚未写入数据库的message时立即写入该会话的message(读取历史记录前调用)，其他会话的message仍由刷写线程写入
+    //先重放WAL中该会话等待重放的记录，再写入队列中的message；返回仍未写入的message(由旧到新)
+    public List<Message> flushPending(String conversationId) {
+        List<Message> unwritten = new ArrayList<>(writeAheadLog.replayConversation(conversationId));
+        AtomicInteger count = pendingByConversation.get(conversationId);
+        if (count == null || count.get() <= 0) {
+            return unwritten;
+        }
+        synchronized (flushLock) {
+            List<Pending> pendings = drainConversation(conversationId);
+            writeInChunks(pendings);
+            for (Pending pending : pendings) {
+                if (!pending.persisted) {
+                    unwritten.add(pending.message);
+                }
+            }
+        }
+        return unwritten;
+    }
+
+    //立即写出重试队列与队列中的全部message(不等待退避时间)
+    public void flushAll() {
+        synchronized (flushLock) {
+            writeInChunks(drain(Integer.MAX_VALUE));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (flusher != null) {
+            flusher.interrupt();
+            try {
+                flusher.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flushAll();
+        synchronized (flushLock) {
+            if (!retryHead.isEmpty()) { //数据库仍不可用，剩余message由WAL重放补写
+                giveUp(new ArrayList<>(retryHead));
+            }
+        }
+        logger.info("message写缓冲队列已关闭，累计写入{}条", flushedMessages.sum());
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("queueDepth", queue.size());
+        synchronized (flushLock) {
+            stats.put("retryDepth", retryHead.size());
+        }
+        stats.put("remainingCapacity", queue.remainingCapacity());
+        stats.put("pendingConversations", pendingByConversation.size());
+        stats.put("enqueued", enqueued.sum());
+        stats.put("flushedMessages", flushedMessages.sum());
+        stats.put("batches", batches.sum());
+        long batchCount = batches.sum();
+        stats.put("avgBatchSize", batchCount == 0 ? 0 : (double) flushedMessages.sum() / batchCount);
+        stats.put("lastBatchSize", lastBatchSize.get());
+        stats.put("maxBatchSize", maxBatchSize.get());
+        stats.put("lastFlushMs", lastFlushMillis.get());
+        stats.put("callerRunsFlushes", callerRunsFlushes.sum());
+        stats.put("failedMessages", failedMessages.sum());
+        stats.put("rowErrors", rowErrors.sum());
+        stats.put("retries", retries.sum());
+        stats.put("heldBack", heldBack.sum());
+        return stats;
+    }
+
+    //刷写线程：不持有flushLock等待，直到批满或最早一条超过maxDelay，再在flushLock内取批并写入；有等待重试的message时先等到退避结束
+    private void runFlusher() {
+        while (running) {
+            try {
+                long waitMillis;
+                long notBefore = retryNotBefore;
+                if (notBefore != 0) {
+                    waitMillis = notBefore - System.currentTimeMillis();
+                } else {
+                    Pending first = queue.peek();
+                    waitMillis = first == null ? maxDelayMillis : first.enqueuedAt + maxDelayMillis - System.currentTimeMillis();
+                    if (queue.size() >= batchSize) {
+                        waitMillis = 0;
+                    }
+                }
+                if (waitMillis > 0) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMillis));
+                    continue; //被唤醒或等待超时后重新检查
+                }
+                synchronized (flushLock) {
+                    requeue(write(drain(batchSize)));
+                }
+            } catch (Exception e) {
+                logger.error("message写缓冲刷写线程异常", e);
+            }
+        }
+    }
+
+    //调用方持有flushLock；先取等待重试的message，再取队列中的message，最多max条
+    private List<Pending> drain(int max) {
+        List<Pending> batch = new ArrayList<>(Math.min(max, retryHead.size() + queue.size()));
+        while (batch.size() < max && !retryHead.isEmpty()) {
+            batch.add(retryHead.pollFirst());
+        }
+        if (batch.size() < max) {
+            queue.drainTo(batch, max - batch.size());
+        }
+        return batch;
+    }
+
+    //调用方持有flushLock；按原顺序取出重试队列与队列中属于该会话的message
+    private List<Pending> drainConversation(String conversationId) {
+        List<Pending> batch = new ArrayList<>();
+        for (Iterator<Pending> it = retryHead.iterator(); it.hasNext(); ) {
+            Pending pending = it.next();
+            if (conversationId.equals(pending.message.getConversationId())) {
+                batch.add(pending);
+                it.remove();
+            }
+        }
+        if (retryHead.isEmpty()) {
+            retryNotBefore = 0;
+        }
+        for (Iterator<Pending> it = queue.iterator(); it.hasNext(); ) { //生产者只在队尾追加，迭代中删除不影响新入队的message
+            Pending pending = it.next();
+            if (conversationId.equals(pending.message.getConversationId())) {
+                batch.add(pending);
+                it.remove();
+            }
+        }
+        return batch;
+    }
+
+    //调用方持有flushLock；某一批出现暂时性错误后，该批剩余及之后的message按原顺序放回重试队列
+    private void writeInChunks(List<Pending> pendings) {
+        for (int from = 0; from < pendings.size(); from += batchSize) {
+            int to = Math.min(pendings.size(), from + batchSize);
+            List<Pending> unwritten = write(pendings.subList(from, to));
+            if (!unwritten.isEmpty()) {
+                List<Pending> retry = new ArrayList<>(unwritten);
+                retry.addAll(pendings.subList(to, pendings.size()));
+                requeue(retry);
+                return;
+            }
+        }
+    }
+
+    //批量写入一批message，失败时逐条写入以隔离单条数据错误；调用方持有flushLock，返回因暂时性错误未写入的message(按原顺序)
+    //WAL中有更早记录等待重放的会话，其message交给WAL排在其后，不先于更早的轮次写入
+    private List<Pending> write(List<Pending> batch) {
+        List<Pending> pendings = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            if (isHeld(pending)) {
+                holdBack(pending);
+            } else {
+                pendings.add(pending);
+            }
+        }
+        if (pendings.isEmpty()) {
+            return List.of();
+        }
+        long start = System.currentTimeMillis();
+        try {
+            if (pendings.get(0).retried) { //重试的message可能已提交(确认丢失)，按msg_uuid去重写入
+                messageService.replayMessages(messagesOf(pendings));
+            } else {
+                messageService.batchRegisterMessages(messagesOf(pendings));
+            }
+            persisted(pendings, start);
+            return List.of();
+        } catch (Exception e) {
+            logger.warn("message批量写入失败，共{}条，改为逐条写入: {}", pendings.size(), e.getMessage());
+        }
+        for (int i = 0; i < pendings.size(); i++) {
+            Pending pending = pendings.get(i);
+            if (isHeld(pending)) { //同一会话更早的message刚因数据错误交给WAL
+                holdBack(pending);
+                continue;
+            }
+            try {
+                messageService.replayMessages(List.of(pending.message)); //批量写入可能已提交，按msg_uuid去重
+                persisted(List.of(pending), start);
+            } catch (DataIntegrityViolationException e) {
+                //该条数据本身无法写入，重试也不会成功，不影响其余message
+                rowErrors.increment();
+                logger.error("message写入失败(数据错误)，msg_uuid={}: {}", pending.message.getMsgUuid(), e.getMessage());
+                failed(List.of(pending));
+            } catch (Exception e) {
+                //数据库不可用等暂时性错误，本条及之后的message按原顺序重试
+                return pendings.subList(i, pendings.size());
+            }
+        }
+        return List.of();
+    }
+
+    //调用方持有flushLock；未写入的message按原顺序放回重试队列头部(排在尚未取出的重试message之前)，按指数退避等待重试
+    //最早一条持续失败超过retryWindow时交出重试队列中的全部message，保留在WAL中由重放任务按原顺序补写
+    private void requeue(List<Pending> pendings) {
+        if (pendings.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (int i = pendings.size() - 1; i >= 0; i--) {
+            Pending pending = pendings.get(i);
+            pending.retried = true;
+            retryHead.addFirst(pending);
+        }
+        Pending first = retryHead.peekFirst();
+        if (first.firstFailedAt == 0) {
+            first.firstFailedAt = now;
+        }
+        int attempts = ++first.attempts; //首条已失败的写入次数
+        if (now - first.firstFailedAt >= retryWindowMillis) {
+            giveUp(new ArrayList<>(retryHead));
+            return;
+        }
+        retries.increment();
+        retryNotBefore = now + Math.min(maxRetryBackoffMillis, retryBackoffMillis << Math.min(attempts - 1, 20));
+    }
+
+    //调用方持有flushLock；超出重试时间仍失败的message保留在WAL中，对应会话之后的message排在其后
+    private void giveUp(List<Pending> pendings) {
+        retryHead.clear();
+        retryNotBefore = 0;
+        logger.error("message写入持续失败，共{}条{}", pendings.size(),
+                writeAheadLog.isEnabled() ? "，保留在WAL中等待重放" : "，已丢弃");
+        failed(pendings);
+    }
+
+    //该会话在WAL中有更早的message等待重放
+    private boolean isHeld(Pending pending) {
+        return pending.walSeq > 0 && writeAheadLog.isHeld(pending.message.getConversationId());
+    }
+
+    //交给WAL排在该会话更早的记录之后，由重放任务按序号写入
+    private void holdBack(Pending pending) {
+        writeAheadLog.markFailed(pending.walSeq);
+        heldBack.increment();
+        done(List.of(pending));
+    }
+
+    private static List<Message> messagesOf(List<Pending> pendings) {
+        List<Message> messages = new ArrayList<>(pendings.size());
+        for (Pending pending : pendings) {
+            messages.add(pending.message);
+        }
+        return messages;
+    }
+
+    //写入已提交(MessageService的写入方法使用单独的事务)
+    private void persisted(List<Pending> pendings, long start) {
+        for (Pending pending : pendings) {
+            pending.persisted = true;
+            writeAheadLog.markPersisted(pending.walSeq);
+        }
+        flushedMessages.add(pendings.size());
+        batches.increment();
+        lastBatchSize.set(pendings.size());
+        maxBatchSize.accumulateAndGet(pendings.size(), Math::max);
+        lastFlushMillis.set(System.currentTimeMillis() - start);
+        if (retryHead.isEmpty()) {
+            retryNotBefore = 0;
+        }
+        done(pendings);
+    }
+
+    private void failed(List<Pending> pendings) {
+        for (Pending pending : pendings) {
+            writeAheadLog.markFailed(pending.walSeq);
+        }
+        failedMessages.add(pendings.size());
+        done(pendings);
+    }
+
+    private void done(List<Pending> pendings) {
+        for (Pending pending : pendings) {
+            pendingByConversation.computeIfPresent(pending.message.getConversationId(),
+                    (k, count) -> count.decrementAndGet() <= 0 ? null : count);
+        }
+    }
+
+    private static final class Pending {
+        final Message message;
+        final long enqueuedAt;
+        final long walSeq;
+        boolean retried; //曾因暂时性错误放回重试队列，由flushLock保护
+        int attempts; //暂时性错误的写入次数
+        long firstFailedAt; //首次因暂时性错误写入失败的时间
+        boolean persisted;
+
+        Pending(Message message, long enqueuedAt, long walSeq) {
+            this.message = message;
+            this.enqueuedAt = enqueuedAt;
+            this.walSeq = walSeq;
+        }
+    }
+}
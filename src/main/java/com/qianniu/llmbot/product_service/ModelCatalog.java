@@ -0,0 +1,148 @@
+package com.qianniu.llmbot.product_service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qianniu.llmbot.cluster.InvalidationBus;
+import com.qianniu.llmbot.product_entity.Model;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*********************************************
+ * 模型目录：启动时将models与platforms表一次性加载到内存，编译为不可变的ModelProfile，对话请求解析模型时不访问数据库
+ * 1）每次加载生成一个新的不可变快照，通过volatile引用整体替换，读取方无需加锁，不会看到新旧混合的数据；
+ * 2）本节点注册模型的事务提交后立即刷新(ModelService.registerModel)；
+ * 3）其他节点注册模型时经InvalidationBus的model主题通知，本节点随之刷新；
+ *    直接修改数据库的变更，由定时任务比较两张表的校验值(行数 + CRC32合计)发现，变化时重新加载；
+ * 4）加载失败时保留上一个快照继续服务；
+ * **********************************************/
+
+@Component
+@DependsOn("databaseInitializer") //models/platforms表由DatabaseInitializer创建
+public class ModelCatalog {
+    private static final Logger logger = LoggerFactory.getLogger(ModelCatalog.class);
+    public static final String INVALIDATION_TOPIC = "model"; //key为模型名，任一模型变化都重新加载整个目录
+
+    //两张表内容的校验值，任一字段变化都会改变CRC32合计
+    private static final String VERSION_SQL = "SELECT CONCAT("
+            + "(SELECT COUNT(*) FROM models), ':', "
+            + "(SELECT COALESCE(SUM(CRC32(CONCAT_WS('|', model_id, model_name, model_type, model_url, model_parameters, model_allowroles))), 0) FROM models), ':', "
+            + "(SELECT COUNT(*) FROM platforms), ':', "
+            + "(SELECT COALESCE(SUM(CRC32(CONCAT_WS('|', platform_id, platform_name, models))), 0) FROM platforms))";
+
+    private record Snapshot(String version, Map<String, ModelProfile> models, List<String> modelNames,
+                            Map<String, List<String>> platformModels, long loadedAt) {
+        static final Snapshot EMPTY = new Snapshot("", Map.of(), List.of(), Map.of(), 0);
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ModelRowMapper modelRowMapper = new ModelRowMapper();
+    private final int defaultHistoryTokens;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong reloadFailures = new AtomicLong();
+    private final AtomicLong versionChecks = new AtomicLong();
+
+    public ModelCatalog(JdbcTemplate jdbcTemplate, InvalidationBus invalidationBus,
+                        @Value("${history.default_token_budget:2000}") int defaultHistoryTokens) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.defaultHistoryTokens = defaultHistoryTokens;
+        invalidationBus.subscribe(INVALIDATION_TOPIC, modelName -> refresh(), this::refresh);
+    }
+
+    @PostConstruct
+    public void open() {
+        refresh();
+    }
+
+    //重新加载两张表并替换快照；并发调用时串行执行，后执行的一次读取到最新数据
+    public synchronized void refresh() {
+        try {
+            String version = jdbcTemplate.queryForObject(VERSION_SQL, String.class);
+            List<Model> rows = jdbcTemplate.query("SELECT * FROM models ORDER BY model_id", modelRowMapper);
+            Map<String, ModelProfile> models = new LinkedHashMap<>();
+            List<String> modelNames = new ArrayList<>(rows.size());
+            for (Model model : rows) {
+                ModelProfile profile = ModelProfile.compile(model, objectMapper, defaultHistoryTokens);
+                if (profile.getInvalidReason() != null) {
+                    logger.warn("模型{}配置无效，对话请求将被拒绝: {}", model.getModelName(), profile.getInvalidReason());
+                }
+                models.put(model.getModelName(), profile);
+                modelNames.add(model.getModelName());
+            }
+            Map<String, List<String>> platformModels = new HashMap<>();
+            jdbcTemplate.query("SELECT platform_name, models FROM platforms", rs -> {
+                platformModels.put(rs.getString(1), Collections.singletonList(rs.getString(2)));
+            });
+            snapshot = new Snapshot(version, Collections.unmodifiableMap(models), List.copyOf(modelNames),
+                    Collections.unmodifiableMap(platformModels), System.currentTimeMillis());
+            reloads.incrementAndGet();
+            logger.info("模型目录已加载: {}个模型, {}个平台", models.size(), platformModels.size());
+        } catch (Exception e) {
+            reloadFailures.incrementAndGet();
+            logger.error("模型目录加载失败，继续使用上一次加载的数据", e);
+        }
+    }
+
+    //定时比较校验值，只在变化时重新加载
+    @Scheduled(fixedDelayString = "${model_catalog.check_interval_ms:30000}", initialDelayString = "${model_catalog.check_interval_ms:30000}")
+    public void checkVersion() {
+        try {
+            versionChecks.incrementAndGet();
+            String version = jdbcTemplate.queryForObject(VERSION_SQL, String.class);
+            if (!snapshot.version().equals(version)) {
+                logger.info("模型目录已变化({} -> {})，重新加载", snapshot.version(), version);
+                refresh();
+            }
+        } catch (Exception e) {
+            logger.warn("模型目录校验失败: {}", e.getMessage());
+        }
+    }
+
+    //按模型名查询，不存在时抛出IllegalArgumentException
+    public ModelProfile getProfile(String modelName) {
+        ModelProfile profile = modelName == null ? null : snapshot.models().get(modelName);
+        if (profile == null) {
+            throw new IllegalArgumentException("模型不存在: " + modelName);
+        }
+        return profile;
+    }
+
+    //全部模型名，按model_id排序
+    public List<String> getModelNames() {
+        return snapshot.modelNames();
+    }
+
+    //平台的模型列表(platforms表models字段)，平台不存在时为空列表
+    public List<String> getModelsByPlatformName(String platformName) {
+        return snapshot.platformModels().getOrDefault(platformName, List.of());
+    }
+
+    public Map<String, Object> stats() {
+        Snapshot current = snapshot;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("models", current.models().size());
+        stats.put("invalidModels", current.models().values().stream().filter(p -> p.getInvalidReason() != null).map(ModelProfile::getModelName).toList());
+        stats.put("platforms", current.platformModels().size());
+        stats.put("version", current.version());
+        stats.put("loadedAt", current.loadedAt());
+        stats.put("reloads", reloads.get());
+        stats.put("reloadFailures", reloadFailures.get());
+        stats.put("versionChecks", versionChecks.get());
+        return stats;
+    }
+}
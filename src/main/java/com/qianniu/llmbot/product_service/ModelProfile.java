@@ -0,0 +1,155 @@
+package com.qianniu.llmbot.product_service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qianniu.llmbot.product_entity.Model;
+import com.qianniu.llmbot.product_entity.User;
+
+/*********************************************
+ * 编译后的模型配置(不可变)，由ModelCatalog加载models表时生成，对话请求直接读取，不再查询数据库和解析JSON
+ * 1）model_parameters按阿里百炼、百度千帆两种参数格式分别解析为ALParameters/BDParameters，缺少必需参数的格式为null，使用时给出原因；
+ * 2）model_allowroles按User.Role.parseMask(与注册校验相同)编译为位掩码，鉴权为一次按位与，按角色精确匹配(ROLE_MEMBER不匹配ROLE_SUPER_MEMBER)；
+ *   不是有效的角色名JSON数组时不允许任何角色使用，并记录为配置无效；
+ * 3）未配置history-tokens时使用history.default_token_budget；
+ * **********************************************/
+
+public final class ModelProfile {
+    //阿里百炼模型参数
+    public record ALParameters(boolean stream, boolean incrementalOutput, double temperature, double topP, double repetitionPenalty,
+                               String resultFormat, boolean enableSearch, int maxTokens, int recordNumbers) {
+    }
+
+    //百度千帆模型参数
+    public record BDParameters(boolean stream, boolean includeUsage, double temperature, double topP, double penaltyScore,
+                               int maxTokens, int recordNumbers) {
+    }
+
+    private final long modelId;
+    private final String modelName;
+    private final int modelType;
+    private final String modelUrl;
+    private final int allowRoleMask;
+    private final int historyTokens;
+    private final ALParameters al;
+    private final BDParameters bd;
+    private final String invalidReason; //al与bd均不可用或model_allowroles无效时的原因
+
+    private ModelProfile(Model model, int allowRoleMask, int historyTokens, ALParameters al, BDParameters bd, String invalidReason) {
+        this.modelId = model.getModelId() == null ? 0 : model.getModelId();
+        this.modelName = model.getModelName();
+        this.modelType = model.getModelType() == null ? 0 : model.getModelType();
+        this.modelUrl = model.getModelUrl();
+        this.allowRoleMask = allowRoleMask;
+        this.historyTokens = historyTokens;
+        this.al = al;
+        this.bd = bd;
+        this.invalidReason = invalidReason;
+    }
+
+    //解析models表的一行；model_parameters不是有效JSON时两种参数格式均不可用，但模型仍出现在目录中
+    static ModelProfile compile(Model model, ObjectMapper objectMapper, int defaultHistoryTokens) {
+        int allowRoleMask = 0;
+        String invalidRoles = null;
+        try {
+            allowRoleMask = User.Role.parseMask(model.getModelAllowroles()); //与注册时的校验使用同一解析
+        } catch (IllegalArgumentException e) {
+            invalidRoles = "model_allowroles无效，任何角色都不能使用: " + e.getMessage();
+        }
+        JsonNode parameters;
+        try {
+            parameters = objectMapper.readTree(model.getModelParameters() == null ? "{}" : model.getModelParameters());
+        } catch (Exception e) {
+            return new ModelProfile(model, allowRoleMask, defaultHistoryTokens, null, null, "model_parameters不是有效的JSON: " + e.getMessage());
+        }
+        int historyTokens = parameters.has("history-tokens") ? parameters.get("history-tokens").asInt() : defaultHistoryTokens;
+        String missingAL = missing(parameters, "stream", "incremental_output", "temperature", "top-p", "repetition_penalty",
+                "result_format", "enable_search", "max_tokens", "record-numbers");
+        ALParameters al = missingAL != null ? null : new ALParameters(
+                parameters.get("stream").asBoolean(),
+                parameters.get("incremental_output").asBoolean(),
+                parameters.get("temperature").asDouble(),
+                parameters.get("top-p").asDouble(),
+                parameters.get("repetition_penalty").asDouble(),
+                parameters.get("result_format").asText(),
+                parameters.get("enable_search").asBoolean(),
+                parameters.get("max_tokens").asInt(),
+                parameters.get("record-numbers").asInt());
+        String missingBD = missing(parameters, "stream", "include-usage", "temperature", "top-p", "penalty-score", "max-tokens", "record-numbers");
+        BDParameters bd = missingBD != null ? null : new BDParameters(
+                parameters.get("stream").asBoolean(),
+                parameters.get("include-usage").asBoolean(),
+                parameters.get("temperature").asDouble(),
+                parameters.get("top-p").asDouble(),
+                parameters.get("penalty-score").asDouble(),
+                parameters.get("max-tokens").asInt(),
+                parameters.get("record-numbers").asInt());
+        String invalidReason = al == null && bd == null
+                ? "model_parameters缺少参数: " + missingAL + "(阿里百炼) / " + missingBD + "(百度千帆)" : invalidRoles;
+        return new ModelProfile(model, allowRoleMask, historyTokens, al, bd, invalidReason);
+    }
+
+    //返回第一个缺少的参数名，全部存在时返回null
+    private static String missing(JsonNode parameters, String... names) {
+        for (String name : names) {
+            if (!parameters.hasNonNull(name)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    //阿里百炼参数，缺少必需参数时抛出IllegalArgumentException
+    public ALParameters requireAL() {
+        if (al == null) {
+            throw new IllegalArgumentException(invalidReason != null ? invalidReason : "模型" + modelName + "不是阿里百炼参数格式");
+        }
+        return al;
+    }
+
+    //百度千帆参数，缺少必需参数时抛出IllegalArgumentException
+    public BDParameters requireBD() {
+        if (bd == null) {
+            throw new IllegalArgumentException(invalidReason != null ? invalidReason : "模型" + modelName + "不是百度千帆参数格式");
+        }
+        return bd;
+    }
+
+    //角色是否可以使用该模型
+    public boolean isRoleAllowed(User.Role role) {
+        return (allowRoleMask & role.mask()) != 0;
+    }
+
+    public long getModelId() {
+        return modelId;
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    public int getModelType() {
+        return modelType;
+    }
+
+    public String getModelUrl() {
+        return modelUrl;
+    }
+
+    public int getAllowRoleMask() {
+        return allowRoleMask;
+    }
+
+    public int getHistoryTokens() {
+        return historyTokens;
+    }
+
+    public String getInvalidReason() {
+        return invalidReason;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ModelProfile[modelId=%s, modelName=%s, modelType=%s, allowRoles=%s, al=%s, bd=%s]",
+                modelId, modelName, modelType, User.Role.authoritiesOf(allowRoleMask), al != null, bd != null);
+    }
+}
@@ -0,0 +1,38 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.Model;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*********************************************
+ * models表结果集到Model实体的映射，列名与Model的@Column一致
+ * **********************************************/
+
+public class ModelRowMapper extends ColumnIndexRowMapper<Model> {
+    private static final int MODEL_ID = 0;
+    private static final int MODEL_NAME = 1;
+    private static final int MODEL_TYPE = 2;
+    private static final int MODEL_URL = 3;
+    private static final int MODEL_PARAMETERS = 4;
+    private static final int MODEL_ALLOWROLES = 5;
+    private static final int CREATED_DATETIME = 6;
+
+    public ModelRowMapper() {
+        super("model_id", "model_name", "model_type", "model_url", "model_parameters", "model_allowroles", "created_datetime");
+    }
+
+    @Override
+    protected Model map(ResultSet rs, int[] indexes) throws SQLException {
+        Model model = new Model();
+        int i;
+        if ((i = indexes[MODEL_ID]) != 0) model.setModelId(getLong(rs, i));
+        if ((i = indexes[MODEL_NAME]) != 0) model.setModelName(rs.getString(i));
+        if ((i = indexes[MODEL_TYPE]) != 0) model.setModelType(getInteger(rs, i));
+        if ((i = indexes[MODEL_URL]) != 0) model.setModelUrl(rs.getString(i));
+        if ((i = indexes[MODEL_PARAMETERS]) != 0) model.setModelParameters(rs.getString(i));
+        if ((i = indexes[MODEL_ALLOWROLES]) != 0) model.setModelAllowroles(rs.getString(i));
+        if ((i = indexes[CREATED_DATETIME]) != 0) model.setCreatedDatetime(rs.getString(i));
+        return model;
+    }
+}
@@ -1,5 +1,6 @@
 package com.qianniu.llmbot.product_service;
 
+import com.qianniu.llmbot.cluster.InvalidationBus;
 import com.qianniu.llmbot.product_entity.Message;
 import com.qianniu.llmbot.product_entity.Model;
 import com.qianniu.llmbot.product_entity.UserRegisterResponseDTO;
@@ -9,13 +10,14 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.jdbc.core.BeanPropertyRowMapper;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.sql.PreparedStatement;
 import java.sql.Statement;
@@ -27,6 +29,7 @@ import java.util.Objects;
 /*********************************************
  * Model Service中用户model的相关行为方法定义
  * 1) 新model注册、根据各字段查询model；
+ * 2) 对话请求使用ModelCatalog中的内存快照，注册成功的事务提交后通知ModelCatalog刷新，并经InvalidationBus通知其他节点刷新；
  * **********************************************/
 
 @Component
@@ -37,7 +40,13 @@ public class ModelService {
     @Autowired
     JdbcTemplate jdbcTemplate;
 
-    RowMapper<Model> modelRowMapper = new BeanPropertyRowMapper<>(Model.class);//将数据库查询结果集ResultSet的每一行自动映射到Model实体实例中
+    @Autowired
+    ModelCatalog modelCatalog;
+
+    @Autowired
+    InvalidationBus invalidationBus;
+
+    RowMapper<Model> modelRowMapper = new ModelRowMapper();//将数据库查询结果集ResultSet的每一行按列序号映射到Model实体实例中
 
     //根据platform_name查询platforms表中的models信息
     public List<String> getModelsByPlatformName(String platformName) {
@@ -127,6 +136,8 @@ public class ModelService {
 
             // 设置生成的ID
             model.setModelId(keyHolder.getKey().longValue());
+            invalidationBus.publish(ModelCatalog.INVALIDATION_TOPIC, modelName);
+            refreshCatalogAfterCommit();
             return model;
 
         } catch (DuplicateKeyException e) {
@@ -136,5 +147,17 @@ public class ModelService {
         }
     }
 
-
+    //事务提交后刷新模型目录，回滚时不刷新
+    private void refreshCatalogAfterCommit() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    modelCatalog.refresh();
+                }
+            });
+        } else {
+            modelCatalog.refresh();
+        }
+    }
 }
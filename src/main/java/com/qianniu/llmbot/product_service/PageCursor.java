@@ -0,0 +1,68 @@
+package com.qianniu.llmbot.product_service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.CRC32;
+
+/*********************************************
+ * 管理员列表查询的分页游标(keyset分页)，对客户端不透明
+ * 1）游标内容为上一页最后一条记录的排序键(如message_id/id)，下一页从该位置继续按索引查询，不使用OFFSET；
+ * 2）游标包含查询条件的指纹，换了查询条件后继续使用旧游标时拒绝，避免返回错误的数据；
+ * 3）格式为 base64url("v1:" + 指纹 + ":" + 排序键...)，无效或不匹配的游标抛出IllegalArgumentException；
+ * **********************************************/
+
+public final class PageCursor {
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 200;
+    private static final String VERSION = "v1";
+
+    private PageCursor() {
+    }
+
+    //每页条数限制在1~MAX_PAGE_SIZE之间
+    public static int clampPageSize(int pageSize) {
+        return Math.max(1, Math.min(MAX_PAGE_SIZE, pageSize));
+    }
+
+    public static String encode(String filter, long... keys) {
+        StringBuilder payload = new StringBuilder(VERSION).append(':').append(fingerprint(filter));
+        for (long key : keys) {
+            payload.append(':').append(key);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(payload.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    //返回游标中的排序键；cursor为空表示第一页，返回null
+    public static long[] decode(String cursor, String filter, int keyCount) {
+        if (cursor == null || cursor.isBlank()) {
+            return null;
+        }
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("无效的分页游标");
+        }
+        if (parts.length != keyCount + 2 || !VERSION.equals(parts[0])) {
+            throw new IllegalArgumentException("无效的分页游标");
+        }
+        if (!fingerprint(filter).equals(parts[1])) {
+            throw new IllegalArgumentException("分页游标与查询条件不匹配");
+        }
+        long[] keys = new long[keyCount];
+        try {
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = Long.parseLong(parts[i + 2]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("无效的分页游标");
+        }
+        return keys;
+    }
+
+    private static String fingerprint(String filter) {
+        CRC32 crc = new CRC32();
+        crc.update(filter.getBytes(StandardCharsets.UTF_8));
+        return Long.toString(crc.getValue(), 36);
+    }
+}
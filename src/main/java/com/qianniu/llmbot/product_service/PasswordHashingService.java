@@ -0,0 +1,125 @@
+package com.qianniu.llmbot.product_service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/*********************************************
+ * 密码哈希(BCrypt)的专用线程池，登录、注册的哈希计算不再占用Tomcat请求线程
+ * 1）线程数默认等于CPU核数，等待队列有上限，队列已满时立即拒绝(RejectedExecutionException)，登录高峰不会拖慢对话请求；
+ * 2）使用SecurityConfig中的PasswordEncoder，cost由password.bcrypt_cost配置；已有哈希的cost与配置不同时needsRehash返回true，登录成功后重新哈希；
+ * 3）返回的future在applicationTaskExecutor中完成：调用方的后续处理(更新登录时间、写入users表等JDBC操作)不在哈希线程中执行，数据库变慢时不会占满哈希线程；
+ * 4）统计哈希耗时(次数、合计、最大值)、队列长度、拒绝次数；
+ * **********************************************/
+
+@Component
+public class PasswordHashingService {
+    private final PasswordEncoder passwordEncoder;
+    private final int bcryptCost;
+    private final int threads;
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+    private final Executor callbackExecutor; //哈希完成后执行调用方后续处理的线程池
+
+    private final LongAdder hashes = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final AtomicLong maxHashNanos = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+
+    public PasswordHashingService(PasswordEncoder passwordEncoder,
+                                  @Value("${password.bcrypt_cost:10}") int bcryptCost,
+                                  @Value("${password.hash_threads:0}") int threads,
+                                  @Value("${password.queue_capacity:64}") int queueCapacity,
+                                  @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME) Executor callbackExecutor) {
+        this.passwordEncoder = passwordEncoder;
+        this.callbackExecutor = callbackExecutor;
+        this.bcryptCost = bcryptCost;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.queueCapacity = Math.max(1, queueCapacity);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(this.queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "password-hash-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    //对明文密码哈希，队列已满时返回的future以RejectedExecutionException失败
+    public CompletableFuture<String> encode(String rawPassword) {
+        return submit(() -> passwordEncoder.encode(rawPassword));
+    }
+
+    //校验明文密码与已有哈希是否匹配
+    public CompletableFuture<Boolean> matches(String rawPassword, String passwordHash) {
+        return submit(() -> passwordEncoder.matches(rawPassword, passwordHash));
+    }
+
+    //哈希的cost与当前配置不同时需要重新哈希(包括调高和调低)，哈希格式为$2a$10$...
+    public boolean needsRehash(String passwordHash) {
+        if (passwordHash == null || passwordHash.length() < 7 || passwordHash.charAt(0) != '$' || passwordHash.charAt(3) != '$') {
+            return false;
+        }
+        try {
+            return Integer.parseInt(passwordHash.substring(4, 6)) != bcryptCost;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                try {
+                    return task.get();
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    hashes.increment();
+                    hashNanos.add(elapsed);
+                    maxHashNanos.accumulateAndGet(elapsed, Math::max);
+                }
+            }, executor).thenApplyAsync(Function.identity(), callbackExecutor);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("服务繁忙，请稍后再试"));
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdown();
+    }
+
+    public Map<String, Object> stats() {
+        long count = hashes.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("bcryptCost", bcryptCost);
+        stats.put("threads", threads);
+        stats.put("active", executor.getActiveCount());
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("hashes", count);
+        stats.put("avgHashMillis", count == 0 ? 0 : hashNanos.sum() / count / 1_000_000.0);
+        stats.put("maxHashMillis", maxHashNanos.get() / 1_000_000.0);
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+}
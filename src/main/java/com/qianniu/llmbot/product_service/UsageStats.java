@@ -0,0 +1,10 @@
+package com.qianniu.llmbot.product_service;
+
+/*********************************************
+ * 使用量统计汇总表中的一行：key为汇总维度的值(user_id、bot_name、conversation_id或日期yyyy-MM-dd)
+ * token数为平台返回的实际值；firstAt/lastAt为该维度内最早/最新message的created_at(unix秒)
+ * **********************************************/
+
+public record UsageStats(String key, long messageCount, long queryTokens, long answerTokens, long totalTokens,
+                         long firstAt, long lastAt) {
+}
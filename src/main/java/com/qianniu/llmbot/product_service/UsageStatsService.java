@@ -0,0 +1,222 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*********************************************
+ * 使用量统计：按用户、模型(bot)、天汇总message条数和token数，以及按总token数分段的条数分布；会话统计读取conversations会话摘要表
+ * 1）message写入时在同一事务内增量更新汇总表(INSERT ... ON DUPLICATE KEY UPDATE)，批量写入先在内存中按汇总键合并，每张表一条批量语句；
+ *    汇总值与message一起提交或回滚，进程崩溃不会少计；写缓冲队列每批只对usage_model_stats等热点行加锁更新一次；
+ * 2）管理员统计接口只读取汇总表，不扫描messages表；
+ * 3）汇总值为累计值，归档迁移(messages -> messages_archive)不影响统计；rebuild按两张表全量重建(V7迁移使用等价的SQL回填)；
+ * 4）按天汇总使用analytics.zone_offset时区划分日期；token分段第n段为[2^(n-1), 2^n)，第0段为0；
+ * **********************************************/
+
+@Component
+@Transactional
+public class UsageStatsService {
+    private static final Logger logger = LoggerFactory.getLogger(UsageStatsService.class);
+
+    public static final int MAX_LIMIT = 200;
+    public static final int MAX_DAYS = 366;
+
+    private static final String COUNTER_COLUMNS = "message_count, query_tokens, answer_tokens, total_tokens, first_at, last_at";
+    private static final String SUM_COUNTERS = "SUM(message_count), SUM(query_tokens), SUM(answer_tokens), SUM(total_tokens), MIN(first_at), MAX(last_at)";
+    private static final String AGGREGATE_MESSAGES = "COUNT(*), COALESCE(SUM(query_token_number), 0), COALESCE(SUM(answer_token_number), 0), "
+            + "COALESCE(SUM(total_token_number), 0), MIN(created_at), MAX(created_at)";
+    private static final String ON_DUPLICATE_ADD = " ON DUPLICATE KEY UPDATE "
+            + "message_count = message_count + VALUES(message_count), "
+            + "query_tokens = query_tokens + VALUES(query_tokens), "
+            + "answer_tokens = answer_tokens + VALUES(answer_tokens), "
+            + "total_tokens = total_tokens + VALUES(total_tokens), "
+            + "first_at = LEAST(first_at, VALUES(first_at)), "
+            + "last_at = GREATEST(last_at, VALUES(last_at))";
+    //热表与归档表合并后的全部message，仅rebuild使用
+    private static final String ALL_MESSAGES = "(SELECT user_id, bot_name, created_at, query_token_number, answer_token_number, total_token_number FROM messages "
+            + "UNION ALL SELECT user_id, bot_name, created_at, query_token_number, answer_token_number, total_token_number FROM messages_archive) m";
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Value("${analytics.zone_offset:+08:00}") //按天汇总使用的时区
+    private ZoneOffset zoneOffset;
+
+    private final RowMapper<UsageStats> statsRowMapper = (rs, rowNum) -> new UsageStats(rs.getString(1),
+            rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getLong(5), rs.getLong(6), rs.getLong(7));
+
+    //将新写入的message累加到各汇总表，由MessageService在写入message的同一事务内调用
+    public void record(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        Map<List<Object>, Counters> users = new HashMap<>();
+        Map<List<Object>, Counters> models = new HashMap<>();
+        Map<List<Object>, Counters> days = new HashMap<>();
+        Map<List<Object>, Counters> buckets = new HashMap<>();
+        for (Message m : messages) {
+            users.computeIfAbsent(List.of(m.getUserId()), k -> new Counters()).add(m);
+            models.computeIfAbsent(List.of(m.getBotName()), k -> new Counters()).add(m);
+            days.computeIfAbsent(List.of(dayOf(m.getCreatedAt()), m.getBotName()), k -> new Counters()).add(m);
+            buckets.computeIfAbsent(List.of(m.getBotName(), tokenBucket(value(m.getTotalTokenNumber()))), k -> new Counters()).add(m);
+        }
+        upsert("usage_user_stats", "user_id", users);
+        upsert("usage_model_stats", "bot_name", models);
+        upsert("usage_daily_stats", "stat_date, bot_name", days);
+        upsert("usage_token_histogram", "bot_name, bucket", buckets);
+    }
+
+    //按messages与messages_archive全量重建汇总表；与写入并发时可能因锁冲突失败，建议在低峰期执行
+    public void rebuild() {
+        long start = System.currentTimeMillis();
+        for (String table : List.of("usage_user_stats", "usage_model_stats", "usage_daily_stats", "usage_token_histogram")) {
+            jdbcTemplate.update("DELETE FROM " + table);
+        }
+        jdbcTemplate.update("INSERT INTO usage_user_stats (user_id, " + COUNTER_COLUMNS + ") "
+                + "SELECT user_id, " + AGGREGATE_MESSAGES + " FROM " + ALL_MESSAGES + " GROUP BY user_id");
+        jdbcTemplate.update("INSERT INTO usage_model_stats (bot_name, " + COUNTER_COLUMNS + ") "
+                + "SELECT bot_name, " + AGGREGATE_MESSAGES + " FROM " + ALL_MESSAGES + " GROUP BY bot_name");
+        jdbcTemplate.update("INSERT INTO usage_daily_stats (stat_date, bot_name, " + COUNTER_COLUMNS + ") "
+                + "SELECT DATE_ADD('1970-01-01', INTERVAL (created_at + ?) DIV 86400 DAY) AS stat_day, bot_name, " + AGGREGATE_MESSAGES
+                + " FROM " + ALL_MESSAGES + " GROUP BY stat_day, bot_name", zoneOffset.getTotalSeconds());
+        //LENGTH(BIN(n))为n的二进制位数，与tokenBucket一致
+        jdbcTemplate.update("INSERT INTO usage_token_histogram (bot_name, bucket, " + COUNTER_COLUMNS + ") "
+                + "SELECT bot_name, CASE WHEN total_token_number > 0 THEN LENGTH(BIN(total_token_number)) ELSE 0 END AS token_bucket, " + AGGREGATE_MESSAGES
+                + " FROM " + ALL_MESSAGES + " GROUP BY bot_name, token_bucket");
+        logger.info("使用量统计汇总表重建完成，耗时{}ms", System.currentTimeMillis() - start);
+    }
+
+    //单个用户的累计使用量，不存在时抛出EmptyResultDataAccessException
+    @Transactional(readOnly = true)
+    public UsageStats getUserStats(String userId) {
+        return jdbcTemplate.queryForObject("SELECT user_id, " + COUNTER_COLUMNS + " FROM usage_user_stats WHERE user_id = ?", statsRowMapper, userId);
+    }
+
+    //累计总token数最多的前limit个用户
+    @Transactional(readOnly = true)
+    public List<UsageStats> getTopUsers(int limit) {
+        return jdbcTemplate.query("SELECT user_id, " + COUNTER_COLUMNS + " FROM usage_user_stats ORDER BY total_tokens DESC LIMIT ?",
+                statsRowMapper, clampLimit(limit));
+    }
+
+    //全部模型(bot)的累计使用量，按总token数由多到少
+    @Transactional(readOnly = true)
+    public List<UsageStats> getModelStats() {
+        return jdbcTemplate.query("SELECT bot_name, " + COUNTER_COLUMNS + " FROM usage_model_stats ORDER BY total_tokens DESC", statsRowMapper);
+    }
+
+    //[from, to]日期区间内的每日使用量，botName为null时合并全部模型
+    @Transactional(readOnly = true)
+    public List<UsageStats> getDailyStats(LocalDate from, LocalDate to, String botName) {
+        if (to.isBefore(from) || from.plusDays(MAX_DAYS - 1).isBefore(to)) {
+            throw new IllegalArgumentException("日期区间无效，from不能晚于to且区间不能超过" + MAX_DAYS + "天");
+        }
+        if (botName == null) {
+            return jdbcTemplate.query("SELECT stat_date, " + SUM_COUNTERS + " FROM usage_daily_stats WHERE stat_date BETWEEN ? AND ? "
+                    + "GROUP BY stat_date ORDER BY stat_date", statsRowMapper, from, to);
+        }
+        return jdbcTemplate.query("SELECT stat_date, " + COUNTER_COLUMNS + " FROM usage_daily_stats WHERE stat_date BETWEEN ? AND ? AND bot_name = ? "
+                + "ORDER BY stat_date", statsRowMapper, from, to, botName);
+    }
+
+    //单个会话的累计使用量(由ConversationService维护的conversations表)，不存在时抛出EmptyResultDataAccessException
+    @Transactional(readOnly = true)
+    public UsageStats getConversationStats(String conversationId) {
+        return jdbcTemplate.queryForObject("SELECT conversation_id, turn_count, query_tokens, answer_tokens, total_tokens, created_at, last_message_at "
+                + "FROM conversations WHERE conversation_id = ?", statsRowMapper, conversationId);
+    }
+
+    //按单条message总token数分段的条数分布，botName为null时合并全部模型；可代替按token数阈值扫描messages表的统计
+    @Transactional(readOnly = true)
+    public List<Map<String, Object>> getTokenHistogram(String botName) {
+        String sql = botName == null
+                ? "SELECT bucket, SUM(message_count), SUM(total_tokens) FROM usage_token_histogram GROUP BY bucket ORDER BY bucket"
+                : "SELECT bucket, message_count, total_tokens FROM usage_token_histogram WHERE bot_name = ? ORDER BY bucket";
+        RowMapper<Map<String, Object>> mapper = (rs, rowNum) -> {
+            int bucket = rs.getInt(1);
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("bucket", bucket);
+            row.put("minTokens", bucket == 0 ? 0L : 1L << (bucket - 1));
+            row.put("maxTokens", bucket == 0 ? 0L : (1L << bucket) - 1);
+            row.put("messageCount", rs.getLong(2));
+            row.put("totalTokens", rs.getLong(3));
+            return row;
+        };
+        return botName == null ? jdbcTemplate.query(sql, mapper) : jdbcTemplate.query(sql, mapper, botName);
+    }
+
+    //总token数所在的分段：0为第0段，其余为二进制位数
+    public static int tokenBucket(long totalTokens) {
+        return totalTokens > 0 ? 64 - Long.numberOfLeadingZeros(totalTokens) : 0;
+    }
+
+    private LocalDate dayOf(long createdAt) {
+        return LocalDate.ofEpochDay(Math.floorDiv(createdAt + zoneOffset.getTotalSeconds(), 86400));
+    }
+
+    private static int clampLimit(int limit) {
+        return Math.max(1, Math.min(limit, MAX_LIMIT));
+    }
+
+    private static long value(Integer n) {
+        return n == null ? 0 : n;
+    }
+
+    //按汇总键排序后批量写入，并发事务以相同顺序加锁，避免死锁
+    private void upsert(String table, String keyColumns, Map<List<Object>, Counters> deltas) {
+        int keyCount = keyColumns.split(",").length;
+        String placeholders = String.join(", ", Collections.nCopies(keyCount + 6, "?"));
+        String sql = "INSERT INTO " + table + " (" + keyColumns + ", " + COUNTER_COLUMNS + ") VALUES (" + placeholders + ")" + ON_DUPLICATE_ADD;
+        List<Object[]> rows = new ArrayList<>(deltas.size());
+        deltas.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey(Comparator.comparing(Object::toString)))
+                .forEach(e -> {
+                    Object[] row = Arrays.copyOf(e.getKey().toArray(), keyCount + 6);
+                    Counters c = e.getValue();
+                    row[keyCount] = c.messageCount;
+                    row[keyCount + 1] = c.queryTokens;
+                    row[keyCount + 2] = c.answerTokens;
+                    row[keyCount + 3] = c.totalTokens;
+                    row[keyCount + 4] = c.firstAt;
+                    row[keyCount + 5] = c.lastAt;
+                    rows.add(row);
+                });
+        jdbcTemplate.batchUpdate(sql, rows);
+    }
+
+    //同一汇总键下待累加的增量
+    private static final class Counters {
+        long messageCount;
+        long queryTokens;
+        long answerTokens;
+        long totalTokens;
+        long firstAt = Long.MAX_VALUE;
+        long lastAt = Long.MIN_VALUE;
+
+        void add(Message m) {
+            messageCount++;
+            queryTokens += value(m.getQueryTokenNumber());
+            answerTokens += value(m.getAnswerTokenNumber());
+            totalTokens += value(m.getTotalTokenNumber());
+            firstAt = Math.min(firstAt, m.getCreatedAt());
+            lastAt = Math.max(lastAt, m.getCreatedAt());
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.User;
+
+/*********************************************
+ * 用户鉴权相关的状态(users表的uuid、tokenVersion、role、membershipExpiry)，由UserAuthStateCache缓存
+ * 1）每个请求的token版本号校验、会员到期判断只读取该状态，不查询数据库；
+ * **********************************************/
+
+public record UserAuthState(String uuid, Integer tokenVersion, User.Role role, long membershipExpiry) {
+
+    //会员是否已到期，membershipExpiry为unix秒
+    public boolean isMembershipExpired() {
+        return System.currentTimeMillis() > membershipExpiry * 1000;
+    }
+}
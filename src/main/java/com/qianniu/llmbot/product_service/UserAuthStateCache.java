@@ -0,0 +1,131 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.cluster.InvalidationBus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*********************************************
+ * 用户鉴权状态的内存缓存(按email)，认证过滤器和对话请求的token版本号、uuid、会员到期校验不再查询数据库
+ * 1）条数有上限，超出时按LRU淘汰最久未访问的用户；每条记录最多保留ttl_seconds，覆盖其他节点或直接修改数据库的变更；
+ * 2）UserService修改role/tokenVersion时立即失效，事务结束(提交或回滚)后再失效一次，登出、充值在本节点立即生效；
+ * 3）加载：数据库读取与并发修改存在竞争，按email分段记录失效序号，加载期间同段有失效则放弃本次缓存；
+ * 4）订阅InvalidationBus的user主题，其他节点修改role/tokenVersion后本节点随之失效，不必等待ttl；
+ * **********************************************/
+
+@Component
+public class UserAuthStateCache {
+    public static final String INVALIDATION_TOPIC = "user"; //key为email
+    private static final int STRIPES = 1024; //失效序号分段数
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final boolean enabled;
+
+    private record Entry(UserAuthState state, long loadedAt) {
+    }
+
+    //按访问顺序排序的LinkedHashMap实现LRU，所有操作在this锁内完成
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final AtomicLongArray stripeInvalidateSeq = new AtomicLongArray(STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public UserAuthStateCache(InvalidationBus invalidationBus,
+                              @Value("${authcache.max_entries:100000}") int maxEntries,
+                              @Value("${authcache.ttl_seconds:300}") long ttlSeconds,
+                              @Value("${authcache.enabled:true}") boolean enabled) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = ttlSeconds * 1000;
+        this.enabled = enabled;
+        invalidationBus.subscribe(INVALIDATION_TOPIC, this::invalidate, this::invalidateAll);
+    }
+
+    //读取缓存的状态，不存在或已超过ttl时返回null
+    public UserAuthState get(String email) {
+        if (!enabled) {
+            return null;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(email);
+            if (entry == null || System.currentTimeMillis() - entry.loadedAt() > ttlMillis) {
+                if (entry != null) {
+                    entries.remove(email);
+                }
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return entry.state();
+        }
+    }
+
+    //数据库加载前调用，返回该email所在分段的失效序号，作为putLoaded的参数
+    public long beginLoad(String email) {
+        return stripeInvalidateSeq.get(stripe(email));
+    }
+
+    //从数据库加载的状态放入缓存；加载期间同分段有失效时放弃，避免缓存修改前的旧值
+    public void putLoaded(String email, UserAuthState state, long loadSeq) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            if (stripeInvalidateSeq.get(stripe(email)) != loadSeq) {
+                return;
+            }
+            entries.put(email, new Entry(state, System.currentTimeMillis()));
+            Iterator<String> iterator = entries.keySet().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    //使用户的缓存失效(role、tokenVersion等修改后)
+    public void invalidate(String email) {
+        synchronized (this) {
+            stripeInvalidateSeq.incrementAndGet(stripe(email));
+            entries.remove(email);
+            invalidations.increment();
+        }
+    }
+
+    //全部用户的缓存失效(可能漏掉其他节点的失效事件时)
+    public void invalidateAll() {
+        synchronized (this) {
+            for (int i = 0; i < STRIPES; i++) {
+                stripeInvalidateSeq.incrementAndGet(i);
+            }
+            invalidations.add(entries.size());
+            entries.clear();
+        }
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("users", entries.size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("ttlSeconds", ttlMillis / 1000);
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("invalidations", invalidations.sum());
+        return stats;
+    }
+
+    private static int stripe(String email) {
+        return (email.hashCode() & 0x7fffffff) % STRIPES;
+    }
+}
@@ -0,0 +1,51 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.User;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*********************************************
+ * users表结果集到User实体的映射，列名与User的@Column一致
+ * **********************************************/
+
+public class UserRowMapper extends ColumnIndexRowMapper<User> {
+    private static final int ID = 0;
+    private static final int UUID = 1;
+    private static final int EMAIL = 2;
+    private static final int PHONE = 3;
+    private static final int NAME = 4;
+    private static final int PASSWORD_HASH = 5;
+    private static final int ROLE = 6;
+    private static final int TOKEN_VERSION = 7;
+    private static final int COLLECT_MODELS = 8;
+    private static final int CREATED_AT = 9;
+    private static final int UPDATED_AT = 10;
+    private static final int LAST_LOGIN = 11;
+    private static final int MEMBERSHIP_EXPIRY = 12;
+
+    public UserRowMapper() {
+        super("id", "uuid", "email", "phone", "name", "passwordHash", "role", "tokenVersion",
+                "collectModels", "createdAt", "updatedAt", "lastLogin", "membershipExpiry");
+    }
+
+    @Override
+    protected User map(ResultSet rs, int[] indexes) throws SQLException {
+        User user = new User();
+        int i;
+        if ((i = indexes[ID]) != 0) user.setId(getLong(rs, i));
+        if ((i = indexes[UUID]) != 0) user.setUuid(rs.getString(i));
+        if ((i = indexes[EMAIL]) != 0) user.setEmail(rs.getString(i));
+        if ((i = indexes[PHONE]) != 0) user.setPhone(rs.getString(i));
+        if ((i = indexes[NAME]) != 0) user.setName(rs.getString(i));
+        if ((i = indexes[PASSWORD_HASH]) != 0) user.setPasswordHash(rs.getString(i));
+        if ((i = indexes[ROLE]) != 0) user.setRole(getInteger(rs, i));
+        if ((i = indexes[TOKEN_VERSION]) != 0) user.setTokenVersion(getInteger(rs, i));
+        if ((i = indexes[COLLECT_MODELS]) != 0) user.setCollectModels(rs.getString(i));
+        if ((i = indexes[CREATED_AT]) != 0) user.setCreatedAt(getLong(rs, i));
+        if ((i = indexes[UPDATED_AT]) != 0) user.setUpdatedAt(getLong(rs, i));
+        if ((i = indexes[LAST_LOGIN]) != 0) user.setLastLogin(getLong(rs, i));
+        if ((i = indexes[MEMBERSHIP_EXPIRY]) != 0) user.setMembershipExpiry(getLong(rs, i));
+        return user;
+    }
+}
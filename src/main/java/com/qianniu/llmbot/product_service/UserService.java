@@ -1,5 +1,7 @@
 package com.qianniu.llmbot.product_service;
 
+import com.qianniu.llmbot.JWTtoken.TokenDenylist;
+import com.qianniu.llmbot.cluster.InvalidationBus;
 import com.qianniu.llmbot.product_entity.Message;
 import com.qianniu.llmbot.product_entity.User;
 import com.qianniu.llmbot.product_entity.UserRegisterResponseDTO;
@@ -8,27 +10,39 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.jdbc.core.BeanPropertyRowMapper;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.sql.PreparedStatement;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /*********************************************
  * User Service中用户user的相关行为方法定义
  * 1) 新user注册、按照各字段查询user、判断相关字段是否存在；
  * 2）充值操作后会员角色字段、会员到期时间字段更新(未在Contrller中定义具体的请求响应函数)；登录成功的上次登录时间字段更新等；
+ * 3）鉴权状态(uuid、tokenVersion、role、membershipExpiry)经UserAuthStateCache缓存，每个请求的token校验不查询数据库；
+ *    修改role/tokenVersion时立即使缓存失效，事务结束后再失效一次，避免并发请求在提交前重新加载旧值；
+ * 4）注册直接插入，违反email/phone唯一索引时转换为DuplicateAccountException；注册的账号加入AccountExistenceFilter；
+ * 5）tokenVersion + 1(登出、充值、会员降级)的事务提交后写入TokenDenylist，access token校验不查询数据库；
+ * 6）会员到期降级由MembershipSweeper定时批量执行(按idx_membership索引范围查询)，请求路径只比较缓存中的到期时间；
+ * 7）鉴权状态的失效与token吊销在同一事务内经InvalidationBus通知其他节点；
  * **********************************************/
 
 @Component
@@ -41,19 +55,34 @@ public class UserService {
     private int supermemberDays;
 
     private static final Logger logger = LoggerFactory.getLogger(UserService.class);//日志记录器，日志输出时会自动标记类名（如 UserService），便于过滤和排查问题。
-    private final PasswordEncoder passwordEncoder = new BCryptPasswordEncoder(); //用于密码的编码器变量
 
     @Autowired
     JdbcTemplate jdbcTemplate;
 
-    RowMapper<User> userRowMapper = new BeanPropertyRowMapper<>(User.class);//将数据库查询结果集ResultSet的每一行自动映射到User实体实例中
+    @Autowired
+    UserAuthStateCache userAuthStateCache;
+
+    @Autowired
+    AccountExistenceFilter accountExistenceFilter;
+
+    @Autowired
+    TokenDenylist tokenDenylist;
+
+    @Autowired
+    InvalidationBus invalidationBus;
+
+    private static final Pattern DUPLICATE_KEY_PATTERN = Pattern.compile("for key '(?:[^'.]+\\.)?([^']+)'");
+
+    RowMapper<User> userRowMapper = new UserRowMapper();//将数据库查询结果集ResultSet的每一行按列序号映射到User实体实例中
 
     //按照id查询单个user，queryForObject只用于处理单行结果
+    @Transactional(readOnly = true)
     public User getUserById(Long id) {
         return jdbcTemplate.queryForObject("SELECT * FROM users WHERE id = ?", userRowMapper, id);
     }
 
     //按照uuid查询单个user,queryForObject只用于处理单行结果
+    @Transactional(readOnly = true)
     public User getUserByUuid(String uuid) {
         return jdbcTemplate.queryForObject("SELECT * FROM users WHERE uuid = ?", userRowMapper, uuid);
     }
@@ -65,7 +94,36 @@ public class UserService {
 
     //按照email查询uuid
     public String getUuidByEmail(String email) {
-        return jdbcTemplate.queryForObject("SELECT uuid FROM users WHERE email = ?",String.class, email);
+        return getAuthState(email).uuid();
+    }
+
+    //按照email查询鉴权状态，优先读取缓存；用户不存在时抛出EmptyResultDataAccessException(与queryForObject一致)，不缓存
+    //不使用readOnly事务：刚提交的修改需要从主库读取，避免从库延迟把旧值放入缓存
+    public UserAuthState getAuthState(String email) {
+        UserAuthState state = userAuthStateCache.get(email);
+        if (state != null) {
+            return state;
+        }
+        long loadSeq = userAuthStateCache.beginLoad(email);
+        state = jdbcTemplate.queryForObject("SELECT uuid, tokenVersion, role, membershipExpiry FROM users WHERE email = ?",
+                (rs, rowNum) -> new UserAuthState(rs.getString(1), rs.getInt(2),
+                        User.Role.fromValue(rs.getInt(3)), rs.getLong(4)), email);
+        userAuthStateCache.putLoaded(email, state, loadSeq);
+        return state;
+    }
+
+    //修改鉴权字段后调用：立即失效，并在事务结束(提交或回滚)后再失效一次；其他节点在事务提交后失效
+    private void invalidateAuthState(String email) {
+        userAuthStateCache.invalidate(email);
+        invalidationBus.publish(UserAuthStateCache.INVALIDATION_TOPIC, email);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    userAuthStateCache.invalidate(email);
+                }
+            });
+        }
     }
 
     //按照email充值设置会员role角色，用于recharge
@@ -87,17 +145,78 @@ public class UserService {
             }
         }
         updateUpdatedAt(email);//记录更新时间
+        invalidateAuthState(email);
         return jdbcTemplate.update("UPDATE users SET role = ?, membershipExpiry = ? WHERE email = ?", role, expiryTime, email);
     }
 
-    //按照email更新tokenVersion(+1)，用于logout
+    //按照email更新tokenVersion(+1)，用于logout；同时记录updatedAt，TokenDenylist启动时据此加载最近的吊销
     public int updateTokenVersionByEmail(String email) {
-        return jdbcTemplate.update("UPDATE users SET tokenVersion = tokenVersion + 1 WHERE email = ?", email);
+        invalidateAuthState(email);
+        int updated = jdbcTemplate.update("UPDATE users SET tokenVersion = tokenVersion + 1, updatedAt = UNIX_TIMESTAMP() WHERE email = ?", email);
+        revokeTokensAfterCommit(List.of(email));
+        return updated;
+    }
+
+    //tokenVersion更新后调用：读取新的版本号，事务提交后写入TokenDenylist(回滚时不吊销)
+    private void revokeTokensAfterCommit(List<String> emails) {
+        Map<String, Integer> versions = new HashMap<>();
+        jdbcTemplate.query("SELECT email, tokenVersion FROM users WHERE email IN (" + String.join(",", Collections.nCopies(emails.size(), "?")) + ")",
+                rs -> {
+                    versions.put(rs.getString(1), rs.getInt(2));
+                }, emails.toArray());
+        tokenDenylist.publish(versions);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    tokenDenylist.revoke(versions);
+                }
+            });
+        } else {
+            tokenDenylist.revoke(versions);
+        }
+    }
+
+    //查询已到期的会员email(membershipExpiry在(0, now]之间，按到期时间升序)，走idx_membership索引范围扫描
+    public List<String> getExpiredMemberEmails(long now, int limit) {
+        return jdbcTemplate.queryForList("SELECT email FROM users WHERE membershipExpiry BETWEEN 1 AND ? AND role IN (1, 2) "
+                + "ORDER BY membershipExpiry LIMIT ?", String.class, now, limit);
+    }
+
+    //查询将在(from, to]之间到期的会员，返回email与到期时间(unix秒)，用于MembershipSweeper的到期时间轮
+    @Transactional(readOnly = true)
+    public Map<String, Long> getMembersExpiringBetween(long from, long to) {
+        Map<String, Long> members = new HashMap<>();
+        jdbcTemplate.query("SELECT email, membershipExpiry FROM users WHERE membershipExpiry > ? AND membershipExpiry <= ? AND role IN (1, 2)",
+                rs -> {
+                    members.put(rs.getString(1), rs.getLong(2));
+                }, from, to);
+        return members;
+    }
+
+    //批量降级已到期的会员：一条UPDATE重置role、membershipExpiry并使旧token失效(tokenVersion + 1)
+    //WHERE条件再次校验到期时间，扫描之后刚续费的会员不会被降级；返回实际降级的行数
+    public int demoteExpiredMembers(List<String> emails, long now) {
+        if (emails.isEmpty()) {
+            return 0;
+        }
+        String placeholders = String.join(",", Collections.nCopies(emails.size(), "?"));
+        List<Object> args = new ArrayList<>(emails);
+        args.add(now);
+        int demoted = jdbcTemplate.update("UPDATE users SET role = 0, membershipExpiry = 0, tokenVersion = tokenVersion + 1, updatedAt = UNIX_TIMESTAMP() "
+                + "WHERE email IN (" + placeholders + ") AND role IN (1, 2) AND membershipExpiry BETWEEN 1 AND ?", args.toArray());
+        for (String email : emails) {
+            invalidateAuthState(email);
+        }
+        if (demoted > 0) {
+            revokeTokensAfterCommit(emails);
+        }
+        return demoted;
     }
 
     //按照email查询tokenVersion, 用于login后的token注入、token版本号校验
     public Integer getTokenVersionByEmail(String email) {
-        return jdbcTemplate.queryForObject("SELECT tokenVersion FROM users WHERE email = ?", Integer.class, email);
+        return getAuthState(email).tokenVersion();
     }
 
     //根据uuid更新collectModels字段
@@ -110,14 +229,25 @@ public class UserService {
         return jdbcTemplate.queryForObject("SELECT * FROM users WHERE phone = ?", userRowMapper, phone);
     }
 
-    //按照name查询多个user，query处理多行结果
-    public List<User> getUserByName(String name) {
-        return jdbcTemplate.query("SELECT * FROM users WHERE name = ?", userRowMapper, name);
+    //按照name分页查询user(按id升序)，cursor为上一页返回的游标，为空时查询第一页
+    @Transactional(readOnly = true)
+    public KeysetPage<User> getUserByName(String name, String cursor, int pageSize) {
+        return queryPage("name:" + name, "name = ?", name, cursor, pageSize);
+    }
+
+    //按照role分页查询user(按id升序)
+    @Transactional(readOnly = true)
+    public KeysetPage<User> getUserByRole(int role, String cursor, int pageSize) {
+        return queryPage("role:" + role, "role = ?", role, cursor, pageSize);
     }
 
-    //按照role查询多个user，query处理多行结果
-    public List<User> getUserByRole(int role) {
-        return jdbcTemplate.query("SELECT * FROM users WHERE role = ?", userRowMapper, role);
+    //keyset分页：二级索引(name/role)的叶子节点按主键id有序，WHERE条件 + id > ? 直接定位到上一页结束的位置
+    private KeysetPage<User> queryPage(String filter, String where, Object arg, String cursor, int pageSize) {
+        long[] after = PageCursor.decode(cursor, filter, 1);
+        int size = PageCursor.clampPageSize(pageSize);
+        List<User> rows = jdbcTemplate.query("SELECT * FROM users WHERE " + where + " AND id > ? ORDER BY id LIMIT ?",
+                userRowMapper, arg, after == null ? 0L : after[0], size + 1);
+        return KeysetPage.of(rows, size, last -> PageCursor.encode(filter, last.getId()));
     }
 
     //email是否已经存在
@@ -145,28 +275,37 @@ public class UserService {
         return jdbcTemplate.update("UPDATE users SET lastLogin = UNIX_TIMESTAMP() WHERE id = ?", userId);
     }
 
+    //按新的cost重新哈希后更新密码，旧哈希已被修改(如同时修改密码)时不覆盖
+    public int updatePasswordHashById(long userId, String oldPasswordHash, String newPasswordHash) {
+        return jdbcTemplate.update("UPDATE users SET passwordHash = ? WHERE id = ? AND passwordHash = ?", newPasswordHash, userId, oldPasswordHash);
+    }
+
     // 用于记录字段变化的时间
     public int updateUpdatedAt(String email) {
         return jdbcTemplate.update("UPDATE users SET updatedAt = UNIX_TIMESTAMP() WHERE email = ?", email);
     }
 
 
-    //新user注册，返回新用户user的脱敏信息
-    public UserRegisterResponseDTO registerUser(String email, String phone, String name, String password)
+    //违反唯一索引时MySQL的错误信息为 Duplicate entry 'xxx' for key 'users.email'(8.0)或 for key 'email'(5.7)，返回索引名
+    private static String duplicateKeyName(DuplicateKeyException e) {
+        Matcher matcher = DUPLICATE_KEY_PATTERN.matcher(String.valueOf(e.getMostSpecificCause().getMessage()));
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    //新user注册，返回新用户user的脱敏信息；passwordHash为PasswordHashingService哈希后的密码
+    public UserRegisterResponseDTO registerUser(String email, String phone, String name, String passwordHash)
     {
         logger.info("try register by {}...", email);
 
         if (StringUtils.isEmpty(name)) {
             name = email; // 如果用户名为空，默认使用邮箱
         }
-        String encodePassword = passwordEncoder.encode(password); //对明码加密
-
         User user = new User();
         user.setUuid(UUID.randomUUID().toString());  //随机唯一uuid
         user.setEmail(email);
         user.setPhone(phone);
         user.setName(name);
-        user.setPasswordHash(encodePassword);
+        user.setPasswordHash(passwordHash);
         user.setRole(0); // 默认普通用户
         long now = System.currentTimeMillis() / 1000; //系统函数默认为毫秒，数据库存储为秒
         user.setCreatedAt(now);
@@ -174,30 +313,42 @@ public class UserService {
         user.setLastLogin(0L); // 未登录
         user.setMembershipExpiry(0L); // 非会员
 
+        //不预先查询email/phone是否存在，直接插入，由唯一索引判定冲突
         KeyHolder holder = new GeneratedKeyHolder();
-        int affectedRows = jdbcTemplate.update(conn -> {
-            PreparedStatement ps = conn.prepareStatement(
-                    "INSERT INTO users (uuid,email, phone, name, passwordHash, role, createdAt, updatedAt, lastLogin, membershipExpiry) " +
-                            "VALUES (?,?, ?, ?, ?, ?, ?, ?, ?, ?)",
-                    Statement.RETURN_GENERATED_KEYS
-            );
-            ps.setString(1, user.getUuid());
-            ps.setString(2, user.getEmail());
-            ps.setString(3, user.getPhone());
-            ps.setString(4, user.getName());
-            ps.setString(5, user.getPasswordHash());
-            ps.setInt(6, user.getRole());
-            ps.setLong(7, user.getCreatedAt());
-            ps.setLong(8, user.getUpdatedAt());
-            ps.setLong(9, user.getLastLogin());
-            ps.setLong(10, user.getMembershipExpiry());
-            return ps;
-        }, holder);
+        int affectedRows;
+        try {
+            affectedRows = jdbcTemplate.update(conn -> {
+                PreparedStatement ps = conn.prepareStatement(
+                        "INSERT INTO users (uuid,email, phone, name, passwordHash, role, createdAt, updatedAt, lastLogin, membershipExpiry) " +
+                                "VALUES (?,?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                        Statement.RETURN_GENERATED_KEYS
+                );
+                ps.setString(1, user.getUuid());
+                ps.setString(2, user.getEmail());
+                ps.setString(3, user.getPhone());
+                ps.setString(4, user.getName());
+                ps.setString(5, user.getPasswordHash());
+                ps.setInt(6, user.getRole());
+                ps.setLong(7, user.getCreatedAt());
+                ps.setLong(8, user.getUpdatedAt());
+                ps.setLong(9, user.getLastLogin());
+                ps.setLong(10, user.getMembershipExpiry());
+                return ps;
+            }, holder);
+        } catch (DuplicateKeyException e) {
+            String key = duplicateKeyName(e);
+            if ("email".equals(key) || "phone".equals(key)) {
+                throw new DuplicateAccountException(key, e);
+            }
+            throw new RuntimeException("用户注册失败", e);
+        }
 
         if (affectedRows != 1 || holder.getKey() == null) {
             throw new RuntimeException("用户注册失败");
         }
         user.setId(holder.getKey().longValue());
+        accountExistenceFilter.add(user.getEmail(), user.getPhone()); //加入账号布隆过滤器
+        accountExistenceFilter.publish(user.getEmail(), user.getPhone()); //事务提交后其他节点加入各自的过滤器
 
         return UserRegisterResponseDTO.fromUser(user);//返回注册后脱敏user结果
     }
@@ -0,0 +1,173 @@
+package com.qianniu.llmbot.web;
+
+import com.qianniu.llmbot.product_service.UsageStatsService;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+
+/*********************************************
+ * 使用量统计的请求响应函数定义
+ * 1）所有路径仅ADMIN可访问，需要登录后携带jwt token；
+ * 2）只读取usage_*汇总表和conversations会话摘要表(message写入时增量更新)，不扫描messages表；
+ * 3）rebuild按messages与messages_archive全量重建汇总表，仅在汇总数据异常时手动执行；
+ * **********************************************/
+
+@RestController
+@RequestMapping(value = "/api/analytics") //基础路径为 "/api/analytics"，即后续所有的路径都自动添加 "/api/analytics/xxxxx"
+@Validated // 启用方法级参数校验
+public class AnalyticsController {
+    final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final UsageStatsService usageStatsService;
+
+    public AnalyticsController(UsageStatsService usageStatsService) {
+        this.usageStatsService = usageStatsService;
+    }
+
+    //单个用户的累计使用量
+    //localhost:8080/api/analytics/user?id=xxx
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/user", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getUserStats(@RequestParam @NotBlank(message = "user_id不能为空") @Size(max = 36, message = "user_id长度不能超过36个字符") String id) {
+        try {
+            return ok(usageStatsService.getUserStats(id));
+        } catch (EmptyResultDataAccessException e) {
+            return notFound("No usage found for user: " + id);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    //累计总token数最多的用户
+    //localhost:8080/api/analytics/topusers?limit=20
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/topusers", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getTopUsers(@RequestParam(defaultValue = "20") @Min(value = 1, message = "limit不能小于1") @Max(value = UsageStatsService.MAX_LIMIT, message = "limit不能大于200") int limit) {
+        try {
+            return ok(usageStatsService.getTopUsers(limit));
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    //全部模型的累计使用量
+    //localhost:8080/api/analytics/models
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/models", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getModelStats() {
+        try {
+            return ok(usageStatsService.getModelStats());
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    //日期区间内的每日使用量，bot为空时合并全部模型
+    //localhost:8080/api/analytics/daily?from=2025-06-01&to=2025-06-30&bot=ernie-speed-128k
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/daily", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getDailyStats(@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                           @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+                                           @RequestParam(required = false) @Size(max = 100, message = "bot_name长度不能超过100个字符") String bot) {
+        try {
+            return ok(usageStatsService.getDailyStats(from, to, bot == null || bot.isBlank() ? null : bot));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of(
+                            "status", HttpStatus.BAD_REQUEST.value(),
+                            "error", e.getMessage(),
+                            "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                    ));
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    //单个会话的累计使用量
+    //localhost:8080/api/analytics/conversation?id=botname_userid
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/conversation", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getConversationStats(@RequestParam @NotBlank(message = "conversation_id不能为空") @Size(max = 200, message = "conversation_id长度不能超过200个字符") String id) {
+        try {
+            return ok(usageStatsService.getConversationStats(id));
+        } catch (EmptyResultDataAccessException e) {
+            return notFound("No usage found for conversation: " + id);
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    //按单条message总token数分段的条数分布，bot为空时合并全部模型
+    //localhost:8080/api/analytics/tokens?bot=ernie-speed-128k
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/tokens", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getTokenHistogram(@RequestParam(required = false) @Size(max = 100, message = "bot_name长度不能超过100个字符") String bot) {
+        try {
+            return ok(usageStatsService.getTokenHistogram(bot == null || bot.isBlank() ? null : bot));
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    //全量重建汇总表(扫描messages与messages_archive)，建议在低峰期执行
+    //localhost:8080/api/analytics/rebuild
+    @PreAuthorize("hasRole('ADMIN')")
+    @PostMapping(value = "/rebuild", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> rebuild() {
+        try {
+            usageStatsService.rebuild();
+            return ok("usage stats rebuilt");
+        } catch (Exception e) {
+            logger.error("使用量统计汇总表重建失败", e);
+            return error(e);
+        }
+    }
+
+    private static ResponseEntity<?> ok(Object data) {
+        return ResponseEntity.ok(Map.of(
+                "status", HttpStatus.OK.value(),
+                "data", data,
+                "count", data instanceof List<?> list ? list.size() : 1,
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    private static ResponseEntity<?> notFound(String message) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                .body(Map.of(
+                        "status", HttpStatus.NOT_FOUND.value(),
+                        "message", message,
+                        "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                ));
+    }
+
+    private static ResponseEntity<?> error(Exception e) {
+        return ResponseEntity.internalServerError()
+                .body(Map.of(
+                        "status", HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                        "error", "An error occurred while fetching usage stats: " + e.getMessage(),
+                        "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                ));
+    }
+}
@@ -1,36 +1,47 @@
 package com.qianniu.llmbot.web;
 
+import com.qianniu.llmbot.JWTtoken.JwtPrincipal;
 import com.qianniu.llmbot.JWTtoken.JwtTokenUtil;
+import com.qianniu.llmbot.JWTtoken.TokenDenylist;
 import com.qianniu.llmbot.product_entity.User;
 import com.qianniu.llmbot.product_entity.UserLoginRequest;
 import com.qianniu.llmbot.product_entity.UserRegisterResponseDTO;
 import com.qianniu.llmbot.product_service.AuthService;
 import com.qianniu.llmbot.product_service.UserService;
-import io.jsonwebtoken.Claims;
 import io.micrometer.common.util.StringUtils;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.LockedException;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 
 /*********************************************
  * User请求响应的特例——login&logout请求响应定义，开放路径不用鉴权方便用户随时访问
  * Login登录功能：
  * 1）使用邮箱+密码、手机号+密码二选一都可登录验证密码；
- * 2）验证成功后，将user中Email(Name)、会员角色role一同封装生成jwt token;
+ * 2）验证成功后，将user中Email(Name)、会员角色role一同封装生成jwt access token(有效期短)，同时生成refresh token;
  * 3）最后返回登录login后的脱敏user信息；
+ * 4）密码校验在专用线程池中异步执行；按IP、账号限流时返回429，哈希队列已满时返回503；
+ *
+ * Refresh功能：
+ * 1）access token到期后用refresh token换取新的token，refresh token的版本号与数据库比较；
  *
  * Logout登出功能：
- * 1）将tokenVersion更新(+1)，确保前面的token失效
+ * 1）将tokenVersion更新(+1)，确保前面的token失效(写入TokenDenylist并发送给其他节点)
  * **********************************************/
 
 @RestController
@@ -41,70 +52,68 @@ public class AuthController {
     private final AuthService authService; //相比@Autowired注入组件，可避免运行时被修改，生产环境适用
     private final JwtTokenUtil jwtTokenUtil;
     private final UserService userService;
+    private final TokenDenylist tokenDenylist;
 
-    public AuthController(AuthService authService, JwtTokenUtil jwtTokenUtil, UserService userService) {
+    public AuthController(AuthService authService, JwtTokenUtil jwtTokenUtil, UserService userService, TokenDenylist tokenDenylist) {
         this.authService = authService;
         this.jwtTokenUtil = jwtTokenUtil ;
         this.userService = userService;
+        this.tokenDenylist = tokenDenylist;
     }
 
     //用户登录login请求：email账号+密码登录的加密鉴权，认证成功响应头中发送JWT token
+    //密码校验在哈希线程池中执行，返回CompletableFuture，请求线程在等待期间释放
     //POST请求，localhost:8080/api/user/login；请求体为{"email":"user@example.com", "phone":"+8613588288394", "password":"123456"}
     @PostMapping(value = "/login", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> logIn(@RequestBody @Valid UserLoginRequest request, @RequestHeader(value = "Authorization", required = false) String authHeader) {
+    public CompletableFuture<ResponseEntity<?>> logIn(@RequestBody @Valid UserLoginRequest request, @RequestHeader(value = "Authorization", required = false) String authHeader,
+                                                      HttpServletRequest servletRequest) {
         //开放路径手动校验，如果已经携带token且有效(Name非空&有效期内)，则不需要注册直接跳转首页
         if (StringUtils.isNotBlank(authHeader) && authHeader.startsWith("Bearer ")) {
             String jwtToken = authHeader.substring(7); //提取完整token
-            String jwtEmailName = jwtTokenUtil.getNameFromToken(jwtToken); //从token中获取携带的Name(email)
-
-            Claims claims = jwtTokenUtil.getAllClaimsFromToken(jwtToken);
-            Integer jwtTokenVersion = (Integer)claims.get("tokenVersion");//提取版本号
+            JwtPrincipal principal;
+            try {
+                principal = jwtTokenUtil.verify(jwtToken); //验证签名并解析，结果按token缓存
+            } catch (RuntimeException e) {
+                principal = null; //已过期、缺少类型的旧token或签名无效，视为未登录
+            }
 
             //如果token有效且版本号确认，则不需要登录，其他情况需要登录，尤其logout后旧版本的token需要登录更新
-            if (!(jwtEmailName == null || jwtEmailName.trim().isEmpty() || jwtTokenUtil.isTokenExpired(jwtToken)) && jwtTokenVersion.equals(userService.getTokenVersionByEmail(jwtEmailName))) {
-                return ResponseEntity.badRequest().body(Map.of(
+            if (principal != null && StringUtils.isNotBlank(principal.email()) && !principal.refresh()
+                    && !tokenDenylist.isRevoked(principal.email(), principal.tokenVersion())) {
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(Map.of(
                         "success", false,
                         "code", HttpStatus.BAD_REQUEST.value(),
                         "message", "已登录，无需新登录"
-                ));
+                )));
             }
         }
 
-        try {
-            // 邮箱或手机号登录
-            if (StringUtils.isBlank(request.getEmail()) && StringUtils.isBlank(request.getPhone())) {
-                return ResponseEntity.badRequest().body(Map.of(
-                        "success", false,
-                        "code", HttpStatus.BAD_REQUEST.value(),
-                        "message", "必须提供邮箱或手机号",
-                        "errors", Map.of("credentials", "邮箱或手机号不能同时为空")
-                ));
-            }
-
-            UserRegisterResponseDTO userDto;
+        // 邮箱或手机号登录
+        if (StringUtils.isBlank(request.getEmail()) && StringUtils.isBlank(request.getPhone())) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(Map.of(
+                    "success", false,
+                    "code", HttpStatus.BAD_REQUEST.value(),
+                    "message", "必须提供邮箱或手机号",
+                    "errors", Map.of("credentials", "邮箱或手机号不能同时为空")
+            )));
+        }
 
+        String clientIp = servletRequest.getRemoteAddr(); //经RemoteIpValve解析，负载均衡之后为X-Forwarded-For中的客户端IP
+        CompletableFuture<UserRegisterResponseDTO> login;
+        try {
             // 邮箱登录或手机号登录,获取最新的user信息(已脱敏)
             if (StringUtils.isNotBlank(request.getEmail())) {
-                userDto = authService.loginByEmail(request.getEmail(), request.getPassword());
+                login = authService.loginByEmail(request.getEmail(), request.getPassword(), clientIp);
             } else {
-                if (StringUtils.isBlank(request.getPhone())) {
-                    return ResponseEntity.badRequest().body(Map.of(
-                            "success", false,
-                            "code", HttpStatus.BAD_REQUEST.value(),
-                            "message", "手机号不能为空",
-                            "errors", Map.of("phone", "手机号不能为空")
-                    ));
-                }
-                userDto = authService.loginByPhone(request.getPhone(), request.getPassword());
+                login = authService.loginByPhone(request.getPhone(), request.getPassword(), clientIp);
             }
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(loginFailure(e, request));
+        }
 
-            // 将最新获取的user信息封装生成token
-            String token = jwtTokenUtil.generateToken(userDto.getEmail(),userDto.getRoleName(),userDto.getName(), userDto.getTokenVersion());
-
-            //生产环境下应该直接注入响应Header
-            HttpHeaders headers = new HttpHeaders();
-            headers.set("Authorization", "Bearer " + token);
-            headers.set("Access-Control-Expose-Headers", "Authorization"); // 允许前端读取
+        return login.<ResponseEntity<?>>thenApply(userDto -> {
+            // 将最新获取的user信息封装生成access token与refresh token，注入响应Header
+            HttpHeaders headers = jwtTokenUtil.tokenHeaders(userDto.getEmail(), userDto.getRoleName(), userDto.getName(), userDto.getTokenVersion());
 
             // 构建标准格式的响应体(删除显式token)
             Map<String, Object> responseBody = Map.of(
@@ -119,26 +128,93 @@ public class AuthController {
 
             //返回响应内容
             return ResponseEntity.ok().headers(headers).body(responseBody);
-        } catch (BadCredentialsException e) {
-            logger.warn("登录失败: 用户名或密码错误 - {}",
-                    StringUtils.isNotBlank(request.getEmail()) ? request.getEmail() : request.getPhone());
+        }).exceptionally(e -> loginFailure(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e, request));
+    }
+
+    //登录失败的响应：密码错误401、限流429、哈希线程池队列已满503，其他为500
+    private ResponseEntity<?> loginFailure(Throwable e, UserLoginRequest request) {
+        String account = StringUtils.isNotBlank(request.getEmail()) ? request.getEmail() : request.getPhone();
+        if (e instanceof BadCredentialsException) {
+            logger.warn("登录失败: 用户名或密码错误 - {}", account);
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(Map.of(
                     "success", false,
                     "code", HttpStatus.UNAUTHORIZED.value(),
                     "message", "登录失败",
                     "errors", Map.of("credentials", "用户名或密码错误")
             ));
-        } catch (Exception e) {
-            logger.error("登录失败: 服务器内部错误", e);
-            return ResponseEntity.internalServerError().body(Map.of(
+        }
+        if (e instanceof LockedException) {
+            logger.warn("登录失败: 尝试次数过多 - {}", account);
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(Map.of(
+                    "success", false,
+                    "code", HttpStatus.TOO_MANY_REQUESTS.value(),
+                    "message", e.getMessage()
+            ));
+        }
+        if (e instanceof RejectedExecutionException) {
+            logger.warn("登录失败: 密码哈希队列已满 - {}", account);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(Map.of(
                     "success", false,
-                    "code", HttpStatus.INTERNAL_SERVER_ERROR.value(),
-                    "message", "服务器内部错误"
+                    "code", HttpStatus.SERVICE_UNAVAILABLE.value(),
+                    "message", e.getMessage()
             ));
         }
+        logger.error("登录失败: 服务器内部错误", e);
+        return ResponseEntity.internalServerError().body(Map.of(
+                "success", false,
+                "code", HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                "message", "服务器内部错误"
+        ));
     }
 
 
+    //access token到期后用refresh token换取新的access token与refresh token，不需要重新login
+    //refresh token与数据库中的tokenVersion比较，登出、充值、会员降级后旧的refresh token失效
+    //POST请求，localhost:8080/api/user/refresh；请求头Authorization为Bearer refresh token
+    @PostMapping(value = "/refresh", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> refresh(@RequestHeader(value = "Authorization", required = false) String authHeader) {
+        if (StringUtils.isBlank(authHeader) || !authHeader.startsWith("Bearer ")) {
+            return refreshFailure("缺少refresh token");
+        }
+        JwtPrincipal principal;
+        try {
+            principal = jwtTokenUtil.verify(authHeader.substring(7)); //验证签名并解析
+        } catch (RuntimeException e) {
+            return refreshFailure(e.getMessage());
+        }
+        if (!principal.refresh() || principal.email() == null || principal.isExpired()) {
+            return refreshFailure("refresh token无效或已过期");
+        }
+        try {
+            //版本号与数据库比较(经UserAuthStateCache，本节点修改后立即失效)，同时检查吊销名单覆盖其他节点的修改
+            if (!principal.tokenVersion().equals(userService.getAuthState(principal.email()).tokenVersion())
+                    || tokenDenylist.isRevoked(principal.email(), principal.tokenVersion())) {
+                return refreshFailure("refresh token已失效，请重新登录");
+            }
+            UserRegisterResponseDTO userDto = UserRegisterResponseDTO.fromUser(userService.getUserByEmail(principal.email())); //获取最新的role、name
+            HttpHeaders headers = jwtTokenUtil.tokenHeaders(userDto.getEmail(), userDto.getRoleName(), userDto.getName(), userDto.getTokenVersion());
+            return ResponseEntity.ok().headers(headers).body(Map.of(
+                    "success", true,
+                    "code", HttpStatus.OK.value(),
+                    "message", "token已更新",
+                    "data", Map.of(
+                            "user", userDto,
+                            "tokenType", "Bearer"
+                    )
+            ));
+        } catch (EmptyResultDataAccessException e) {
+            return refreshFailure("用户不存在");
+        }
+    }
+
+    private ResponseEntity<?> refreshFailure(String message) {
+        return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(Map.of(
+                "success", false,
+                "code", HttpStatus.UNAUTHORIZED.value(),
+                "message", message
+        ));
+    }
+
     //拦截器鉴权通过时，允许用户logout请求：tokenVsersion+1，但不需要生成新token返回，等待用户主动login
     //GET请求，localhost:8080/api/user/logout
     @GetMapping(value = "/logout", produces = MediaType.APPLICATION_JSON_VALUE)
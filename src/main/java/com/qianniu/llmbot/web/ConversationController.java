@@ -0,0 +1,118 @@
+package com.qianniu.llmbot.web;
+
+import com.qianniu.llmbot.product_entity.Conversation;
+import com.qianniu.llmbot.product_service.ConversationService;
+import com.qianniu.llmbot.product_service.KeysetPage;
+import com.qianniu.llmbot.product_service.UserService;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.Authentication;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+
+/*********************************************
+ * 会话列表的请求响应函数定义，只读取conversations会话摘要表
+ * 1）/list：登录用户自己的会话列表(前端侧边栏)，用户身份取自jwt token，最新有消息的会话在前；
+ * 2）/getbyuserid：ADMIN查询指定用户的会话列表；
+ * 3）分页返回：size为每页条数(默认50，最大200)，响应中的nextCursor作为下一页请求的cursor参数，hasMore为false表示已是最后一页；
+ * 4）/rebuild：ADMIN按messages与messages_archive全量重建会话摘要，仅在摘要数据异常时手动执行；
+ * **********************************************/
+
+@RestController
+@RequestMapping(value = "/api/conversation") //基础路径为 "/api/conversation"，即后续所有的路径都自动添加 "/api/conversation/xxxxx"
+@Validated // 启用方法级参数校验
+public class ConversationController {
+    final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ConversationService conversationService;
+    private final UserService userService;
+
+    public ConversationController(ConversationService conversationService, UserService userService) {
+        this.conversationService = conversationService;
+        this.userService = userService;
+    }
+
+    //当前登录用户的会话列表
+    //localhost:8080/api/conversation/list?size=20(下一页附带&cursor=上一页返回的nextCursor)
+    @GetMapping(value = "/list", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> listOwnConversations(Authentication authentication,
+                                                  @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                                  @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size) {
+        try {
+            String userId = userService.getUuidByEmail(authentication.getName());
+            return page(conversationService.getConversationsByUserId(userId, cursor, size));
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    //指定用户的会话列表
+    //localhost:8080/api/conversation/getbyuserid?id=xxx&size=50
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/getbyuserid", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getConversationsByUserId(@RequestParam @NotBlank(message = "user_id不能为空") @Size(max = 36, message = "user_id长度不能超过36个字符") String id,
+                                                      @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                                      @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size) {
+        try {
+            return page(conversationService.getConversationsByUserId(id, cursor, size));
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    //全量重建会话摘要(扫描messages与messages_archive)，建议在低峰期执行
+    //localhost:8080/api/conversation/rebuild
+    @PreAuthorize("hasRole('ADMIN')")
+    @PostMapping(value = "/rebuild", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> rebuild() {
+        try {
+            conversationService.rebuild();
+            return ResponseEntity.ok(Map.of(
+                    "status", HttpStatus.OK.value(),
+                    "message", "conversations rebuilt",
+                    "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+            ));
+        } catch (Exception e) {
+            logger.error("conversations表重建失败", e);
+            return error(e);
+        }
+    }
+
+    private static ResponseEntity<?> page(KeysetPage<Conversation> page) {
+        return ResponseEntity.ok(Map.of(
+                "status", HttpStatus.OK.value(),
+                "data", page.items(),
+                "count", page.items().size(),
+                "nextCursor", page.hasMore() ? page.nextCursor() : "",
+                "hasMore", page.hasMore(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //IllegalArgumentException为无效的游标
+    private static ResponseEntity<?> error(Exception e) {
+        HttpStatus status = e instanceof IllegalArgumentException ? HttpStatus.BAD_REQUEST : HttpStatus.INTERNAL_SERVER_ERROR;
+        return ResponseEntity.status(status)
+                .body(Map.of(
+                        "status", status.value(),
+                        "error", status == HttpStatus.INTERNAL_SERVER_ERROR ? "An error occurred while fetching conversations: " + e.getMessage() : e.getMessage(),
+                        "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                ));
+    }
+}
@@ -0,0 +1,54 @@
+package com.qianniu.llmbot.web;
+
+import com.qianniu.llmbot.cluster.InvalidationBus;
+import com.qianniu.llmbot.cluster.InvalidationEvent;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+
+/*********************************************
+ * 节点之间的内部请求响应函数定义(多节点部署时由cluster.peers中的其他节点调用)
+ * 1）不使用jwt token鉴权，请求头X-Cluster-Secret必须与本节点的cluster.secret一致，未配置密钥时全部拒绝；
+ * 2）接收的数据按幂等方式合并，重复发送、乱序到达不影响结果；
+ * **********************************************/
+
+@RestController
+@RequestMapping(value = "/api/internal") //基础路径为 "/api/internal"，即后续所有的路径都自动添加 "/api/internal/xxxxx"
+public class InternalController {
+
+    private final InvalidationBus invalidationBus;
+
+    public InternalController(InvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+    }
+
+    //接收其他节点的缓存失效事件(鉴权状态、token吊销、模型目录)，cluster.bus_mode=peer时使用
+    //POST请求，localhost:8080/api/internal/invalidations；请求体为[{"origin":"node-a@1735660800000", "seq":12, "topic":"user", "key":"user@example.com"}]
+    @PostMapping(value = "/invalidations", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> receiveInvalidations(@RequestHeader(value = InvalidationBus.CLUSTER_SECRET_HEADER, required = false) String secret,
+                                                  @RequestBody List<InvalidationEvent> events) {
+        if (!invalidationBus.isClusterSecret(secret)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "集群密钥无效"));
+        }
+        return ResponseEntity.ok(Map.of("received", events.size(), "applied", invalidationBus.receive(events)));
+    }
+
+    //节点可用性检查，ConversationRouter据此维护会话哈希环的成员
+    //GET请求，localhost:8080/api/internal/ping
+    @GetMapping(value = "/ping", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> ping(@RequestHeader(value = InvalidationBus.CLUSTER_SECRET_HEADER, required = false) String secret) {
+        if (!invalidationBus.isClusterSecret(secret)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "集群密钥无效"));
+        }
+        return ResponseEntity.ok(Map.of("status", "ok"));
+    }
+}
@@ -4,17 +4,23 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qianniu.llmbot.ErrorHandler.ChunkErrorHandler;
 import com.qianniu.llmbot.JWTtoken.JwtTokenUtil;
+import com.qianniu.llmbot.JWTtoken.TokenDenylist;
+import com.qianniu.llmbot.cluster.ConversationRouter;
+import com.qianniu.llmbot.cluster.InvalidationBus;
 import com.qianniu.llmbot.model_entity.BD_TextModel;
 import com.qianniu.llmbot.model_service.BD_TextModelRequestService;
 import com.qianniu.llmbot.product_entity.*;
 import com.qianniu.llmbot.product_service.MessageService;
-import com.qianniu.llmbot.product_service.ModelService;
+import com.qianniu.llmbot.product_service.MessageWriteBehindQueue;
+import com.qianniu.llmbot.product_service.ModelCatalog;
+import com.qianniu.llmbot.product_service.ModelProfile;
 import com.qianniu.llmbot.product_service.UserService;
-import io.jsonwebtoken.Claims;
+import com.qianniu.llmbot.JWTtoken.JwtPrincipal;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
@@ -30,6 +36,7 @@ import java.util.*;
  * 2）在请求参数校验成功下，进行jwt token鉴定(token有效+权限登录)，需要手动操作鉴定；
  * 3）将接收的参数封装后，向第三方API发送请求，获得流式响应Chunk;将Chunk封装后返回到客户端；
  * 4）从流式响应Chunk中抽取相关信息，构建message存储到数据库中；
+ * 5）启用会话亲和路由时，会话属于其他节点的请求在鉴权后转发给该节点，历史记录在所属节点读取；
  * **********************************************/
 
 //******注意不同模型下的同名操作函数不要引用错依赖包*************
@@ -45,7 +52,10 @@ public class LLMbotController_BD {
     private final BD_TextModelRequestService bd_Text_ModelRequestService;
 
     private final MessageService messageService;
-    private final ModelService modelService;
+    private final ModelCatalog modelCatalog;
+
+    @Value("${history.max_turns:50}") //历史记录最多轮数(安全上限)
+    private int maxHistoryTurns;
 
     @Autowired
     private ChunkErrorHandler chunkErrorHandler;
@@ -53,14 +63,23 @@ public class LLMbotController_BD {
     @Autowired
     private JwtTokenUtil jwtTokenUtil;
 
+    @Autowired
+    private TokenDenylist tokenDenylist;
+
     @Autowired
     private UserService userService;
 
     @Autowired
-    public LLMbotController_BD(BD_TextModel bd_Text_Model, BD_TextModelRequestService bd_Text_ModelRequestService, ModelService modelService, MessageService messageService) {
+    private MessageWriteBehindQueue messageWriteBehindQueue;
+
+    @Autowired
+    private ConversationRouter conversationRouter;
+
+    @Autowired
+    public LLMbotController_BD(BD_TextModel bd_Text_Model, BD_TextModelRequestService bd_Text_ModelRequestService, ModelCatalog modelCatalog, MessageService messageService) {
         this.bd_Text_Model = bd_Text_Model;
         this.bd_Text_ModelRequestService = bd_Text_ModelRequestService;
-        this.modelService = modelService;
+        this.modelCatalog = modelCatalog;
         this.messageService = messageService;
     }
 
@@ -74,35 +93,21 @@ public class LLMbotController_BD {
     // 该路径的请求，明确输出类型为流式响应TEXT_EVENT_STREAM_VALUE
     // 请求路径：localhost:8080/api/chat/bdmodel
     @PostMapping(value = "/bdmodel", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<String> handleBDModelChat(@RequestBody ChatRequest chatRequest, @RequestHeader(value = "Authorization", required = false) String authHeader) {
+    public Flux<String> handleBDModelChat(@RequestBody ChatRequest chatRequest, @RequestHeader(value = "Authorization", required = false) String authHeader,
+                                          @RequestHeader(value = ConversationRouter.FORWARDED_HEADER, required = false) String forwardedBy,
+                                          @RequestHeader(value = InvalidationBus.CLUSTER_SECRET_HEADER, required = false) String clusterSecret) {
         // 流式响应手动校验ChatRequest中的content(user prompt)是否为空
         if (chatRequest.getContent() == null || chatRequest.getContent().trim().isEmpty()) {
             return Flux.just("错误：问题不能为空");
         }
 
-        //提取数据库中对应请求中携带的model信息,并注入到bd_Text_model实例中
+        //从模型目录中提取请求中携带的model信息(不可变)，整个请求只读取该配置
         String modelName = chatRequest.getModelName();
-        Model model = modelService.getModelByModelName(modelName);
-
-        ObjectMapper objectMapper = new ObjectMapper();
-        JsonNode modelParameters;
-        String modelAllowroles;
+        ModelProfile model; //内存中已编译的模型配置，不查询数据库、不解析JSON
 
         try {
-            String modelParametersString = model.getModelParameters(); //提取model_parameters参数
-            modelParameters = objectMapper.readTree(modelParametersString);
-            modelAllowroles = model.getModelAllowroles();//提取model_allowroles参数
-            bd_Text_Model.setModel(model.getModelName());
-            bd_Text_Model.setContentType(model.getModelType());
-            bd_Text_Model.setUrl(model.getModelUrl());
-            bd_Text_Model.setStream(modelParameters.get("stream").asBoolean());
-            bd_Text_Model.setIncludeUsage(modelParameters.get("include-usage").asBoolean());
-            bd_Text_Model.setTemperature(modelParameters.get("temperature").asDouble());
-            bd_Text_Model.setTopP(modelParameters.get("top-p").asDouble());
-            bd_Text_Model.setPenaltyScore(modelParameters.get("penalty-score").asDouble());
-            bd_Text_Model.setMaxTokens(modelParameters.get("max-tokens").asInt());
-            bd_Text_Model.setRecordNumbers(modelParameters.get("record-numbers").asInt());
-
+            model = modelCatalog.getProfile(modelName);
+            model.requireBD(); //参数格式在编译时已校验，不符合本平台格式时拒绝请求
         } catch (Exception e) {
             return Flux.just("错误：模型不存在");
         }
@@ -110,8 +115,8 @@ public class LLMbotController_BD {
         // 流式响应先手动鉴权token,并与请求中携带的UserEmail进行绑定认证
         String jwtToken; //提取完整token
         String jwtEmailName; //从token中获取携带的Name(email)
-        Claims claims;
-        List<String> jwtRole; //提取role信息：ROLE_NORMAL、ROLE_MEMBER、ROLE_SUPER_MEMBER、ROLE_ADMIN
+        JwtPrincipal principal; //验证一次签名，后续字段均取自principal
+        User.Role jwtRole; //token中的role(ROLE_NORMAL、ROLE_MEMBER、ROLE_SUPER_MEMBER、ROLE_ADMIN)只解析一次
         String jwtNickName;
         String jwtUUid;
         Integer jwtTokenVersion;
@@ -120,51 +125,53 @@ public class LLMbotController_BD {
         }else
         {
             jwtToken = authHeader.substring(7); //提取完整token
-            jwtEmailName= jwtTokenUtil.getNameFromToken(jwtToken); //从token中获取携带的Name(email)
-            claims = jwtTokenUtil.getAllClaimsFromToken(jwtToken);
-            jwtRole =(List<String>) claims.get("roles"); //提取role信息：ROLE_NORMAL、ROLE_MEMBER、ROLE_SUPER_MEMBER、ROLE_ADMIN
-            jwtNickName = (String) claims.get("nickName");
+            try {
+                principal = jwtTokenUtil.verify(jwtToken); //签名无效、缺少类型或已过期时抛出
+            } catch (RuntimeException e) {
+                return Flux.just(JwtTokenUtil.EXPIRED_MESSAGE.equals(e.getMessage())
+                        ? "错误：Token已过期，请使用refresh token换取新的access token！" : "错误：Token无效！");
+            }
+            jwtEmailName= principal.email(); //从token中获取携带的Name(email)
+            jwtRole = principal.role(); //提取role信息(已转换为枚举)
+            jwtNickName = principal.nickName();
             jwtUUid = userService.getUuidByEmail(jwtEmailName);
-            jwtTokenVersion = (Integer)claims.get("tokenVersion");//提取版本号
+            jwtTokenVersion = principal.tokenVersion();//提取版本号
 
             if (jwtEmailName == null || jwtEmailName.trim().isEmpty()) {
                 return Flux.just("错误：Token无效！");
             }
-            if(jwtTokenUtil.isTokenExpired(jwtToken)) //判断token是否过期
-            {
-                return Flux.just("错误：Token已过期！");
-            }
-            if (!model.getModelAllowroles().contains(jwtRole.get(0))) {
+            if (!model.isRoleAllowed(jwtRole)) { //模型允许角色位掩码与token角色按位与
                 return Flux.just("错误：用户权限不足！");
             }
-            if (!jwtTokenVersion.equals(userService.getTokenVersionByEmail(jwtEmailName))) {
+            if (principal.refresh()) { //refresh token只能用于换取access token
+                return Flux.just("错误：Token类型错误，请使用access token！");
+            }
+            if (tokenDenylist.isRevoked(jwtEmailName, jwtTokenVersion)) { //内存中的吊销名单，不查询数据库
                 return Flux.just("错误：Token为旧版本已失效！");
             }
 
             //排除校验会员时间的情况，即访问来自NORMAL或ADMIN不需要校验会员时间、响应向所有role开放权限也不需要
-            //会员超过对应时间，充值role、更新tokenVersion，并生成新token返回客户端，用户不需要login即可替换token
-            if(!(jwtRole.get(0).equals("ROLE_NORMAL") || jwtRole.get(0).equals("ROLE_ADMIN") || modelAllowroles.contains("ROLE_NORMAL"))) {
-                User userOld = userService.getUserByEmail(jwtEmailName); //获取当前user信息
-
-                //根据当前user信息判断会员过期，系统函数默认为毫秒，数据库存储为秒
-                if(System.currentTimeMillis() > (userOld.getMembershipExpiry() * 1000))
-                {
-                    userService.updateRoleByEmail(0, jwtEmailName); //更新user信息，重置role为NORMAL用户、重置membershipExpiry会员到期时间为0
-                    userService.updateTokenVersionByEmail(jwtEmailName); //更新用户 tokenVersion 版本号
-                    User userNew = userService.getUserByEmail(jwtEmailName); //查询更新后的user信息
-                    UserRegisterResponseDTO userDto = UserRegisterResponseDTO.fromUser(userNew); //user信息脱敏
-
-                    // 将user信息封装生成token，生产环境下应该直接注入响应Header
-                    String token = jwtTokenUtil.generateToken(userDto.getEmail(),userDto.getRoleName(),userDto.getName(), userDto.getTokenVersion());
-
-                    //将新token返回客户端，生产环境下应该即时注入响应Header
-                    //response.setHeader("Authorization", "Bearer " + newToken);
-                    //response.setHeader("Access-Control-Expose-Headers", "Authorization");
-                    return Flux.just("会员到期，已恢复为普通用户！新token为：" + token);
-                }
+            //会员到期只比较缓存中的到期时间；role重置与tokenVersion更新由MembershipSweeper批量执行，用户重新login后获取新token
+            if(jwtRole.isMembership() && !model.isRoleAllowed(User.Role.NORMAL)
+                    && userService.getAuthState(jwtEmailName).isMembershipExpired()) {
+                return Flux.just("错误：会员已到期，已恢复为普通用户，请重新登录！");
             }
         }
 
+        //会话亲和：会话属于其他节点时转发到该节点处理，响应流经本节点返回
+        String owner = conversationRouter.ownerOf(model.getModelName() + "_" + jwtUUid, forwardedBy, clusterSecret);
+        if (owner != null) {
+            return conversationRouter.forward(owner, "/api/chat/bdmodel", authHeader, chatRequest,
+                    () -> chatLocally(chatRequest, model, jwtUUid, jwtNickName));
+        }
+        return chatLocally(chatRequest, model, jwtUUid, jwtNickName);
+    }
+
+    //本节点处理对话：读取历史记录、向第三方API发送请求、返回流式响应并保存message
+    private Flux<String> chatLocally(ChatRequest chatRequest, ModelProfile model, String jwtUUid, String jwtNickName) {
+        final String botName = model.getModelName(); //订阅前取出，流结束时存储使用本次请求的模型
+        final int contentType = model.getModelType();
+        final int recordNumbers = model.requireBD().recordNumbers();
         final int[] tokenUsage = {0, 0, 0};  //用于LastChunk存储token使用量 prompt, completion, total
         StringBuilder botResponseContent = new StringBuilder();  //用于收集所有ChunkJson的容器
         List<Map<String, String>> chatHistory = new ArrayList<>(); //用户查询并封装聊天记录
@@ -172,27 +179,26 @@ public class LLMbotController_BD {
         //只有请求为非新开始对话，才会提取历史记录
         if (chatRequest.getIsNewChat() == null || chatRequest.getIsNewChat() != 1)
         {
-            // 确定要获取的历史记录数量
-            int historyMsgNumber = bd_Text_Model.getRecordNumbers(); // 默认使用数据库models表中的模型参数
+            // 历史记录按模型的token预算截取，轮数上限为模型参数record-numbers，不超过history.max_turns
+            int historyTurns = recordNumbers > 0 ? Math.min(recordNumbers, maxHistoryTurns) : maxHistoryTurns;
 
-            // 如果请求中指定了历史记录数量且小于配置的最大值，则使用请求的数量
+            // 如果请求中指定了历史记录数量且小于上限，则使用请求的数量
             if (chatRequest.getHisMsgNumber() != null
                     && chatRequest.getHisMsgNumber() > 0
-                    && chatRequest.getHisMsgNumber() < bd_Text_Model.getRecordNumbers()) {
-                historyMsgNumber = chatRequest.getHisMsgNumber();
+                    && chatRequest.getHisMsgNumber() < historyTurns) {
+                historyTurns = chatRequest.getHisMsgNumber();
             }
 
-            //根据conversion_id读取最新的N条Message记录，并在其中提取信息封装成chatHistory
-            //注意es8k模型带历史记录的格式要求：其实必须为role = user或system，中间role = user或assistant、末尾必须为role = user
-            //注入bd_ES8k模型的RecordNumbers固定参数(由yml配置读入)，即最多历史记录条数，与模型的最大输入token数相关
-            chatHistory= bd_Text_ModelRequestService.getHistoryMessage(bd_Text_Model.getModel() + "_" + jwtUUid, historyMsgNumber);
+            //根据conversion_id由新到旧读取Message记录，累计估算token数直到填满模型的history-tokens预算，并在其中提取信息封装成chatHistory
+            //注意模型带历史记录的格式要求：其实必须为role = user或system，中间role = user或assistant、末尾必须为role = user
+            chatHistory = bd_Text_ModelRequestService.getHistoryMessage(botName + "_" + jwtUUid, model.getHistoryTokens(), historyTurns);
         }
 
         //从请求参数chatRequest中提取最新的user prompt,叠加chatHistory、基础预定义参数共同构成第三方API的POST请求的完整body
-        Map<String, Object> buildRequestBody = bd_Text_ModelRequestService.buildCompleteRequest(bd_Text_Model.getBaseRequestParams(),chatRequest.getContent(),chatHistory);
+        Map<String, Object> buildRequestBody = bd_Text_ModelRequestService.buildCompleteRequest(bd_Text_Model.getBaseRequestParams(model),chatRequest.getContent(),chatHistory);
 
         //向第三方API发送POST请求获取流式响应Chunk,并构建全新的Chunk用于返回客户端；同时收集所有响应块中有效信息，注入到message表中
-        return bd_Text_ModelRequestService.sendRequest(bd_Text_Model.getUrl(), buildRequestBody)
+        return bd_Text_ModelRequestService.sendRequest(model.getModelUrl(), buildRequestBody)
                 .filter(chunk -> {
                     String trimmed = chunk.trim();
                     return !trimmed.isEmpty() && !trimmed.equals("[DONE]");  //忽略Last Chunk后的[Done]
@@ -206,7 +212,7 @@ public class LLMbotController_BD {
                             String responseChunk;
                             try {
                                 if (index == 0) {
-                                    responseChunk = chatResponseBD.buildFirstChunk(chatRequest, apiChunk, bd_Text_Model.getModel(), jwtUUid, jwtNickName);
+                                    responseChunk = chatResponseBD.buildFirstChunk(chatRequest, apiChunk, botName, jwtUUid, jwtNickName);
                                 } else if (chatResponseBD.isLastChunk(apiChunk)) {
                                     JsonNode rootNode = objectMapper.readTree(apiChunk);
                                     if (rootNode.has("usage")) {
@@ -228,7 +234,7 @@ public class LLMbotController_BD {
                             }
                         }).subscribeOn(Schedulers.boundedElastic())// 确保非阻塞
                 )
-                .doOnComplete(() -> asyncSaveToDatabase(chatRequest, bd_Text_Model.getModel(), jwtUUid, jwtNickName, botResponseContent, tokenUsage, bd_Text_Model.getContentType()));  //异步存储
+                .doOnComplete(() -> asyncSaveToDatabase(chatRequest, botName, jwtUUid, jwtNickName, botResponseContent, tokenUsage, contentType));  //异步存储
     }
 
     // 从每个chunkjson中提取"content"的内容并添加保存到StringBuilder botResponseContent容器中
@@ -250,11 +256,11 @@ public class LLMbotController_BD {
         }
     }
 
-    //异步存储，从请求参数、响应参数抽取message字段，异步存储到数据库中
+    //异步存储，从请求参数、响应参数抽取message字段，提交到写缓冲队列批量存储到数据库中
     private void asyncSaveToDatabase(ChatRequest request, String botName, String uUid, String nickName, StringBuilder content, int[] usage, int contentType) {
         Mono.fromRunnable(() -> {
             if (content.length() > 0) {
-                messageService.asyncMessageRegister(
+                messageWriteBehindQueue.submit(messageService.buildMessage(
                         botName,
                         uUid,
                         nickName,
@@ -265,10 +271,11 @@ public class LLMbotController_BD {
                         usage[0], //注意带历史记录的query_token_number，不是单纯的user prompt
                         content.toString(),
                         contentType,
-                        usage[1]
-                );
+                        usage[1],
+                        BD_TextModelRequestService.VOCABULARY
+                ));
             }
-        }).subscribeOn(Schedulers.boundedElastic()).subscribe();
+        }).subscribeOn(Schedulers.boundedElastic()).subscribe(); //队列满时submit可能短暂阻塞，不能在netty线程上执行
     }
 
 }
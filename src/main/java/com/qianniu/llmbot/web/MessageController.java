@@ -2,33 +2,53 @@ package com.qianniu.llmbot.web;
 
 
 import com.qianniu.llmbot.product_entity.Message;
+import com.qianniu.llmbot.product_service.ContentCodec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qianniu.llmbot.product_service.KeysetPage;
+import com.qianniu.llmbot.product_service.MessageExportFilter;
+import com.qianniu.llmbot.product_service.MessageExportFormat;
 import com.qianniu.llmbot.product_service.MessageService;
 import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Pattern;
 import jakarta.validation.constraints.Size;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.List;  // 导入 List 接口
 import java.time.LocalDateTime;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 /*********************************************
  * Message相关的各种请求响应函数定义
  * 1）message所有相关的请求响应均需要鉴权，即登录成功后携带jwt token；除此外查询响应，还需要权限等级校验(已在Filter过滤器中定义)；
+ * 2）列表查询分页返回：size为每页条数(默认50，最大200)，响应中的nextCursor作为下一页请求的cursor参数，hasMore为false表示已是最后一页；
+ * 3）export导出全部符合条件的记录，流式输出NDJSON/CSV，同时进行的导出数量有上限；
  * **********************************************/
 
 @RestController
@@ -37,9 +57,17 @@ import java.util.Map;
 public class MessageController {
     final Logger logger = LoggerFactory.getLogger(getClass());
 
+    private static final int MAX_CONCURRENT_EXPORTS = 2; //每个导出占用一个数据库连接直到输出完成
+    private static final int EXPORT_FLUSH_ROWS = 500;     //每输出N条刷新一次，客户端可持续收到数据
+
     private final MessageService messageService; //相比@Autowired注入组件，可避免运行时被修改，生产环境适用
-    public  MessageController(MessageService messageService) {
+    private final ContentCodec contentCodec;
+    private final ObjectMapper objectMapper;
+    private final Semaphore exportPermits = new Semaphore(MAX_CONCURRENT_EXPORTS);
+    public  MessageController(MessageService messageService, ContentCodec contentCodec, ObjectMapper objectMapper) {
         this.messageService = messageService;
+        this.contentCodec = contentCodec;
+        this.objectMapper = objectMapper;
     }
 
     //按照message_id查询message,url中附带id参数；指名该路径为非流式响应，全局配置更改为默认流式响应
@@ -60,12 +88,15 @@ public class MessageController {
     }
 
     //按照bot_name查询message,url中附带name参数；指名该路径为非流式响应，全局配置更改为默认流式响应
-    //localhost:8080/api/message/getbybotname?name=ernie-speed-128k，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数。
+    //localhost:8080/api/message/getbybotname?name=ernie-speed-128k&size=50(下一页附带&cursor=上一页返回的nextCursor)，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数。
     @PreAuthorize("hasRole('ADMIN')")
     @GetMapping(value = "/getbybotname", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> getMessageByBotName(@RequestParam @NotBlank(message = "bot_name不能为空") @Size(max = 100, message = "bot_name长度不能超过100个字符") String name) {
+    public ResponseEntity<?> getMessageByBotName(@RequestParam @NotBlank(message = "bot_name不能为空") @Size(max = 100, message = "bot_name长度不能超过100个字符") String name,
+                                         @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                         @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size) {
         try {
-            List<Message> messages = messageService.getMessageByBotName(name);
+            KeysetPage<Message> page = messageService.getMessageByBotName(name, cursor, size);
+            List<Message> messages = page.items();
             if (messages.isEmpty()) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND)
                         .body(Map.of(
@@ -78,9 +109,18 @@ public class MessageController {
                     "status", HttpStatus.OK.value(),
                     "data", messages,
                     "count", messages.size(),
+                    "nextCursor", page.hasMore() ? page.nextCursor() : "",
+                    "hasMore", page.hasMore(),
                     "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
             ));
 
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of(
+                            "status", HttpStatus.BAD_REQUEST.value(),
+                            "error", e.getMessage(),
+                            "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                    ));
         } catch (Exception e) {
             return ResponseEntity.internalServerError()
                     .body(Map.of(
@@ -92,13 +132,16 @@ public class MessageController {
     }
 
     //按照user_id查询message,url中附带id参数;指名该路径为非流式响应，全局配置更改为默认流式响应
-    //localhost:8080/api/message/getbyuserid?id=xxx，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数。
+    //localhost:8080/api/message/getbyuserid?id=xxx&size=50(下一页附带&cursor=上一页返回的nextCursor)，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数。
     @PreAuthorize("hasRole('ADMIN')")
     @GetMapping(value = "/getbyuserid", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> getMessageByUserID(@RequestParam @NotBlank(message = "user_id不能为空") String id)
+    public ResponseEntity<?> getMessageByUserID(@RequestParam @NotBlank(message = "user_id不能为空") String id,
+                                         @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                         @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size)
     {
         try {
-            List<Message> messages = messageService.getMessageByUserId(id);
+            KeysetPage<Message> page = messageService.getMessageByUserId(id, cursor, size);
+            List<Message> messages = page.items();
             if (messages.isEmpty()) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND)
                         .body(Map.of(
@@ -111,9 +154,18 @@ public class MessageController {
                     "status", HttpStatus.OK.value(),
                     "data", messages,
                     "count", messages.size(),
+                    "nextCursor", page.hasMore() ? page.nextCursor() : "",
+                    "hasMore", page.hasMore(),
                     "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
             ));
 
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of(
+                            "status", HttpStatus.BAD_REQUEST.value(),
+                            "error", e.getMessage(),
+                            "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                    ));
         } catch (Exception e) {
             return ResponseEntity.internalServerError()
                     .body(Map.of(
@@ -125,13 +177,16 @@ public class MessageController {
     }
 
     //按照conversation_id查询message,url中附带id参数; 指名该路径为非流式响应，全局配置更改为默认流式响应
-    //localhost:8080/api/message/getbycvsnid?id=ernie-speed-128k_xxx，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数。
+    //localhost:8080/api/message/getbycvsnid?id=ernie-speed-128k_xxx&size=50(下一页附带&cursor=上一页返回的nextCursor)，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数。
     @PreAuthorize("hasRole('ADMIN')")
     @GetMapping(value = "/getbycvsnid", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> getMessageByConversationID(@RequestParam @NotBlank(message = "conversation_id不能为空") @Size(max = 200, message = "conversation_id长度不能超过200个字符")String id)
+    public ResponseEntity<?> getMessageByConversationID(@RequestParam @NotBlank(message = "conversation_id不能为空") @Size(max = 200, message = "conversation_id长度不能超过200个字符")String id,
+                                         @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                         @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size)
     {
         try {
-            List<Message> messages = messageService.getMessageByConversationId(id);
+            KeysetPage<Message> page = messageService.getMessageByConversationId(id, cursor, size);
+            List<Message> messages = page.items();
             if (messages.isEmpty()) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND)
                         .body(Map.of(
@@ -144,9 +199,18 @@ public class MessageController {
                     "status", HttpStatus.OK.value(),
                     "data", messages,
                     "count", messages.size(),
+                    "nextCursor", page.hasMore() ? page.nextCursor() : "",
+                    "hasMore", page.hasMore(),
                     "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
             ));
 
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of(
+                            "status", HttpStatus.BAD_REQUEST.value(),
+                            "error", e.getMessage(),
+                            "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                    ));
         } catch (Exception e) {
             return ResponseEntity.internalServerError()
                     .body(Map.of(
@@ -158,13 +222,16 @@ public class MessageController {
     }
 
     //按照total_token_number查询message,url中附带number参数;指名该路径为非流式响应，全局配置更改为默认流式响应
-    //localhost:8080/api/message/getbyttnumber?number=500，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数。
+    //localhost:8080/api/message/getbyttnumber?number=500&size=50(下一页附带&cursor=上一页返回的nextCursor)，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数。
     @PreAuthorize("hasRole('ADMIN')")
     @GetMapping(value = "/getbyttnumber", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> getMessageByTotalTokenNumber(@RequestParam @NotNull(message = "total_token_number不能为空") int number)
+    public ResponseEntity<?> getMessageByTotalTokenNumber(@RequestParam @NotNull(message = "total_token_number不能为空") int number,
+                                         @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                         @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size)
     {
         try {
-            List<Message> messages = messageService.getMessageByUpTotalTokenNumber(number);
+            KeysetPage<Message> page = messageService.getMessageByUpTotalTokenNumber(number, cursor, size);
+            List<Message> messages = page.items();
             if (messages.isEmpty()) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND)
                         .body(Map.of(
@@ -177,9 +244,18 @@ public class MessageController {
                     "status", HttpStatus.OK.value(),
                     "data", messages,
                     "count", messages.size(),
+                    "nextCursor", page.hasMore() ? page.nextCursor() : "",
+                    "hasMore", page.hasMore(),
                     "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
             ));
 
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of(
+                            "status", HttpStatus.BAD_REQUEST.value(),
+                            "error", e.getMessage(),
+                            "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                    ));
         } catch (Exception e) {
             return ResponseEntity.internalServerError()
                     .body(Map.of(
@@ -191,13 +267,16 @@ public class MessageController {
     }
 
     //按照query_token_number查询message,url中附带id参数;指名该路径为非流式响应，全局配置更改为默认流式响应
-    //localhost:8080/api/message/getbyqynumber?number=20，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数
+    //localhost:8080/api/message/getbyqynumber?number=20&size=50(下一页附带&cursor=上一页返回的nextCursor)，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数
     @PreAuthorize("hasRole('ADMIN')")
     @GetMapping(value = "/getbyqynumber", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> getMessageByQueryTokenNumber(@RequestParam @NotNull(message = "query_token_number不能为空") int number)
+    public ResponseEntity<?> getMessageByQueryTokenNumber(@RequestParam @NotNull(message = "query_token_number不能为空") int number,
+                                         @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                         @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size)
     {
         try {
-            List<Message> messages = messageService.getMessageByUpQueryTokenNumber(number);
+            KeysetPage<Message> page = messageService.getMessageByUpQueryTokenNumber(number, cursor, size);
+            List<Message> messages = page.items();
             if (messages.isEmpty()) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND)
                         .body(Map.of(
@@ -210,9 +289,18 @@ public class MessageController {
                     "status", HttpStatus.OK.value(),
                     "data", messages,
                     "count", messages.size(),
+                    "nextCursor", page.hasMore() ? page.nextCursor() : "",
+                    "hasMore", page.hasMore(),
                     "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
             ));
 
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of(
+                            "status", HttpStatus.BAD_REQUEST.value(),
+                            "error", e.getMessage(),
+                            "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                    ));
         } catch (Exception e) {
             return ResponseEntity.internalServerError()
                     .body(Map.of(
@@ -224,13 +312,16 @@ public class MessageController {
     }
 
     //按照answer_token_number查询message,url中附带number参数;指名该路径为非流式响应，全局配置更改为默认流式响应
-    //localhost:8080/api/message/getbyawnumber?number=500，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数。
+    //localhost:8080/api/message/getbyawnumber?number=500&size=50(下一页附带&cursor=上一页返回的nextCursor)，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数。
     @PreAuthorize("hasRole('ADMIN')")
     @GetMapping(value = "/getbyawnumber", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> getMessageByAnswerTokenNumber(@RequestParam @NotNull(message = "answer_token_number不能为空") int number)
+    public ResponseEntity<?> getMessageByAnswerTokenNumber(@RequestParam @NotNull(message = "answer_token_number不能为空") int number,
+                                         @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                         @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size)
     {
         try {
-            List<Message> messages = messageService.getMessageByUpAnswerTokenNumber(number);
+            KeysetPage<Message> page = messageService.getMessageByUpAnswerTokenNumber(number, cursor, size);
+            List<Message> messages = page.items();
             if (messages.isEmpty()) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND)
                         .body(Map.of(
@@ -243,9 +334,18 @@ public class MessageController {
                     "status", HttpStatus.OK.value(),
                     "data", messages,
                     "count", messages.size(),
+                    "nextCursor", page.hasMore() ? page.nextCursor() : "",
+                    "hasMore", page.hasMore(),
                     "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
             ));
 
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of(
+                            "status", HttpStatus.BAD_REQUEST.value(),
+                            "error", e.getMessage(),
+                            "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                    ));
         } catch (Exception e) {
             return ResponseEntity.internalServerError()
                     .body(Map.of(
@@ -309,8 +409,8 @@ public class MessageController {
                         ));
             }
 
-            // 先按时间戳升序排序（确保最旧的消息在最前面）
-            messages.sort(Comparator.comparingLong(Message::getCreatedAt));
+            // 查询结果按message_id由新到旧，反转为由旧到新（确保最旧的消息在最前面）
+            Collections.reverse(messages);
 
             // 将每条消息拆分为一问一答两条记录
             List<Map<String, String>> formattedMessages = new ArrayList<>();
@@ -344,4 +444,99 @@ public class MessageController {
                     ));
         }
     }
+
+    //按条件导出message(热表和归档表)，NDJSON或CSV格式流式输出，数据库端使用流式结果集，内存占用不随导出条数增长
+    //条件均为可选：bot、user、conversation，以及created_at的时间范围[from, to)(unix秒)
+    //localhost:8080/api/message/export?format=csv&bot=ernie-speed-128k&from=1735660800&to=1738339200
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/export")
+    public ResponseEntity<?> exportMessages(@RequestParam(defaultValue = "ndjson") @Pattern(regexp = "ndjson|csv", message = "format只能为ndjson或csv") String format,
+                                            @RequestParam(required = false) @Size(max = 100, message = "bot_name长度不能超过100个字符") String bot,
+                                            @RequestParam(required = false) @Size(max = 36, message = "user_id长度不能超过36个字符") String user,
+                                            @RequestParam(required = false) @Size(max = 200, message = "conversation_id长度不能超过200个字符") String conversation,
+                                            @RequestParam(required = false) @Min(value = 0, message = "from不能小于0") Long from,
+                                            @RequestParam(required = false) @Min(value = 0, message = "to不能小于0") Long to) {
+        if (!exportPermits.tryAcquire()) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .body(Map.of(
+                            "status", HttpStatus.TOO_MANY_REQUESTS.value(),
+                            "error", "Too many exports in progress, please retry later",
+                            "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                    ));
+        }
+        MessageExportFormat exportFormat = MessageExportFormat.valueOf(format.toUpperCase());
+        MessageExportFilter filter = new MessageExportFilter(bot, user, conversation, from, to);
+        StreamingResponseBody body = out -> {
+            long start = System.currentTimeMillis();
+            try {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+                exportFormat.writeHeader(writer);
+                long[] written = {0};
+                long count = messageService.streamMessages(filter, message -> {
+                    try {
+                        exportFormat.writeRow(writer, message, objectMapper);
+                        if (++written[0] % EXPORT_FLUSH_ROWS == 0) {
+                            writer.flush();
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                writer.flush();
+                logger.info("message导出完成，条件: {}，共{}条，耗时{}ms", filter, count, System.currentTimeMillis() - start);
+            } catch (UncheckedIOException e) {
+                logger.warn("message导出中止(客户端断开)，条件: {}", filter);
+            } finally {
+                exportPermits.release();
+            }
+        };
+        String fileName = "messages-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss")) + "." + exportFormat.getExtension();
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(exportFormat.getContentType() + ";charset=UTF-8"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + fileName)
+                .body(body);
+    }
+
+    //message内容压缩效果报告：抽样最新的N条记录，统计存储/原文字节数、压缩比、解码平均耗时
+    //localhost:8080/api/message/compression/report?sample=1000
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/compression/report", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getCompressionReport(@RequestParam(defaultValue = "1000") @Min(1) @Max(100000) int sample) {
+        try {
+            return ResponseEntity.ok(Map.of(
+                    "status", HttpStatus.OK.value(),
+                    "data", messageService.compressionReport(sample),
+                    "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+            ));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError()
+                    .body(Map.of(
+                            "status", HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                            "error", "An error occurred while building compression report: " + e.getMessage(),
+                            "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                    ));
+        }
+    }
+
+    //从最新的N条记录训练新的压缩字典，之后写入的内容使用新字典，已有内容按各自的字典ID解码
+    //localhost:8080/api/message/compression/train?sample=5000
+    @PreAuthorize("hasRole('ADMIN')")
+    @PostMapping(value = "/compression/train", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> trainCompressionDictionary(@RequestParam(defaultValue = "5000") @Min(1) @Max(100000) int sample) {
+        try {
+            int dictId = contentCodec.trainDictionary(sample);
+            return ResponseEntity.ok(Map.of(
+                    "status", HttpStatus.OK.value(),
+                    "dictId", dictId,
+                    "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+            ));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError()
+                    .body(Map.of(
+                            "status", HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                            "error", "An error occurred while training dictionary: " + e.getMessage(),
+                            "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                    ));
+        }
+    }
 }
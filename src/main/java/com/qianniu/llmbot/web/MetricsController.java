@@ -0,0 +1,257 @@
+package com.qianniu.llmbot.web;
+
+import com.qianniu.llmbot.JWTtoken.JwtTokenUtil;
+import com.qianniu.llmbot.JWTtoken.TokenDenylist;
+import com.qianniu.llmbot.cluster.ConversationRouter;
+import com.qianniu.llmbot.cluster.InvalidationBus;
+import com.qianniu.llmbot.config.ReplicaRoutingDataSource;
+import com.qianniu.llmbot.model_service.AL_TextModelRequestService;
+import com.qianniu.llmbot.model_service.BD_TextModelRequestService;
+import com.qianniu.llmbot.product_service.AccountExistenceFilter;
+import com.qianniu.llmbot.product_service.ConversationHistoryCache;
+import com.qianniu.llmbot.product_service.LoginThrottle;
+import com.qianniu.llmbot.product_service.MembershipSweeper;
+import com.qianniu.llmbot.product_service.MessageArchiver;
+import com.qianniu.llmbot.product_service.MessageSearchIndex;
+import com.qianniu.llmbot.product_service.MessageWriteAheadLog;
+import com.qianniu.llmbot.product_service.MessageWriteBehindQueue;
+import com.qianniu.llmbot.product_service.ModelCatalog;
+import com.qianniu.llmbot.product_service.PasswordHashingService;
+import com.qianniu.llmbot.product_service.UserAuthStateCache;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+
+/*********************************************
+ * 运行时指标查询的请求响应函数定义
+ * 1）所有路径仅ADMIN可访问，需要登录后携带jwt token；
+ * 2）指标均为本节点内存中的实时统计，不查询数据库；
+ * **********************************************/
+
+@RestController
+@RequestMapping(value = "/api/metrics") //基础路径为 "/api/metrics"，即后续所有的路径都自动添加 "/api/metrics/xxxxx"
+public class MetricsController {
+
+    private final AL_TextModelRequestService al_Text_ModelRequestService;
+    private final BD_TextModelRequestService bd_Text_ModelRequestService;
+    private final ConversationHistoryCache conversationHistoryCache;
+    private final MessageWriteBehindQueue messageWriteBehindQueue;
+    private final MessageWriteAheadLog messageWriteAheadLog;
+    private final MessageArchiver messageArchiver;
+    private final MessageSearchIndex messageSearchIndex;
+    private final ModelCatalog modelCatalog;
+    private final JwtTokenUtil jwtTokenUtil;
+    private final TokenDenylist tokenDenylist;
+    private final UserAuthStateCache userAuthStateCache;
+    private final MembershipSweeper membershipSweeper;
+    private final PasswordHashingService passwordHashingService;
+    private final LoginThrottle loginThrottle;
+    private final AccountExistenceFilter accountExistenceFilter;
+    private final InvalidationBus invalidationBus;
+    private final ConversationRouter conversationRouter;
+    private final ObjectProvider<ReplicaRoutingDataSource> replicaRoutingDataSource; //replica.enabled=false时不存在
+
+    public MetricsController(AL_TextModelRequestService al_Text_ModelRequestService, BD_TextModelRequestService bd_Text_ModelRequestService,
+                             ConversationHistoryCache conversationHistoryCache, MessageWriteBehindQueue messageWriteBehindQueue,
+                             MessageWriteAheadLog messageWriteAheadLog, MessageArchiver messageArchiver, MessageSearchIndex messageSearchIndex, ModelCatalog modelCatalog, JwtTokenUtil jwtTokenUtil, TokenDenylist tokenDenylist,
+                             UserAuthStateCache userAuthStateCache, MembershipSweeper membershipSweeper,
+                             PasswordHashingService passwordHashingService, LoginThrottle loginThrottle,
+                             AccountExistenceFilter accountExistenceFilter, InvalidationBus invalidationBus, ConversationRouter conversationRouter,
+                             ObjectProvider<ReplicaRoutingDataSource> replicaRoutingDataSource) {
+        this.al_Text_ModelRequestService = al_Text_ModelRequestService;
+        this.bd_Text_ModelRequestService = bd_Text_ModelRequestService;
+        this.conversationHistoryCache = conversationHistoryCache;
+        this.messageWriteBehindQueue = messageWriteBehindQueue;
+        this.messageWriteAheadLog = messageWriteAheadLog;
+        this.messageArchiver = messageArchiver;
+        this.messageSearchIndex = messageSearchIndex;
+        this.modelCatalog = modelCatalog;
+        this.jwtTokenUtil = jwtTokenUtil;
+        this.tokenDenylist = tokenDenylist;
+        this.userAuthStateCache = userAuthStateCache;
+        this.membershipSweeper = membershipSweeper;
+        this.passwordHashingService = passwordHashingService;
+        this.loginThrottle = loginThrottle;
+        this.accountExistenceFilter = accountExistenceFilter;
+        this.invalidationBus = invalidationBus;
+        this.conversationRouter = conversationRouter;
+        this.replicaRoutingDataSource = replicaRoutingDataSource;
+    }
+
+    //各平台API Key池的实时状态：在途请求数、请求/成功/失败/429次数、冷却剩余时间
+    //localhost:8080/api/metrics/keypool
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/keypool", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getKeyPoolMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "alibailian", al_Text_ModelRequestService.getKeyPool().snapshot(),
+                "baiduqianfan", bd_Text_ModelRequestService.getKeyPool().snapshot(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //会话历史缓存的实时状态：缓存会话数、估算字节数、命中/未命中/淘汰次数
+    //localhost:8080/api/metrics/historycache
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/historycache", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getHistoryCacheMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "historycache", conversationHistoryCache.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //message写缓冲队列的实时状态：队列深度、批次数、平均/最大批量、调用线程代写次数、失败条数
+    //localhost:8080/api/metrics/writebehind
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/writebehind", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getWriteBehindMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "writebehind", messageWriteBehindQueue.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //message本地WAL的实时状态：下一个序号、检查点、未持久化条数、段文件数、重放/去重条数
+    //localhost:8080/api/metrics/wal
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/wal", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getWalMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "wal", messageWriteAheadLog.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //message归档任务的状态：保留天数、最近一次执行时间与归档条数、累计归档条数、已删除的分区数
+    //localhost:8080/api/metrics/archive
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/archive", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getArchiveMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "archive", messageArchiver.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //message搜索索引的状态：分片数、文档数、已索引/失败条数、搜索次数、是否正在补建、最近提交时间
+    //localhost:8080/api/metrics/search
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/search", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getSearchMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "search", messageSearchIndex.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //模型目录的状态：模型数、配置无效的模型、校验值、最近加载时间、加载/失败/校验次数
+    //localhost:8080/api/metrics/modelcatalog
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/modelcatalog", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getModelCatalogMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "modelcatalog", modelCatalog.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //已验证jwt token缓存的状态：缓存条数、命中/未命中/淘汰次数、验证失败次数；token吊销名单的条数、吊销/接收/拒绝次数
+    //localhost:8080/api/metrics/jwt
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/jwt", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getJwtMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "jwt", jwtTokenUtil.stats(),
+                "denylist", tokenDenylist.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //用户鉴权状态缓存的状态：缓存用户数、命中/未命中/淘汰/失效次数
+    //localhost:8080/api/metrics/authcache
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/authcache", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getAuthCacheMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "authcache", userAuthStateCache.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //会员到期降级任务的状态：时间轮待处理会员数、最近一次扫描时间、扫描/时间轮降级数、失败次数
+    //localhost:8080/api/metrics/membership
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/membership", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getMembershipMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "membership", membershipSweeper.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //密码哈希线程池与登录限流的状态：哈希耗时、队列长度、拒绝次数、按账号/IP限流次数
+    //localhost:8080/api/metrics/password
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/password", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getPasswordMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "hashing", passwordHashingService.stats(),
+                "throttle", loginThrottle.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //账号布隆过滤器的状态：容量、位数组填充率、已同步id、判定一定未注册/可能已注册的次数
+    //localhost:8080/api/metrics/accountfilter
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/accountfilter", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getAccountFilterMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "accountfilter", accountExistenceFilter.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //缓存失效总线的状态：模式、订阅的主题、发布/应用次数、整体失效次数与原因、传输方式的队列/序号/空缺统计
+    //localhost:8080/api/metrics/cluster
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/cluster", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getClusterMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "cluster", invalidationBus.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //会话亲和路由的状态：哈希环成员、不可用的节点、本地命中/转发/回落本地次数、本地命中率、最近一次成员变化移动的会话比例
+    //localhost:8080/api/metrics/affinity
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/affinity", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getAffinityMetrics() {
+        return ResponseEntity.ok(Map.of(
+                "affinity", conversationRouter.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //只读副本路由的状态：是否可用、复制延迟、最近检测时间、从库连接数与回落主库次数
+    //localhost:8080/api/metrics/replica
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/replica", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getReplicaMetrics() {
+        ReplicaRoutingDataSource routing = replicaRoutingDataSource.getIfAvailable();
+        return ResponseEntity.ok(Map.of(
+                "replica", routing == null ? Map.of("enabled", false) : routing.stats(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+}
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.qianniu.llmbot.product_entity.Model;
 import com.qianniu.llmbot.product_entity.ModelRegisterRequest;
 import com.qianniu.llmbot.product_entity.User;
+import com.qianniu.llmbot.product_service.ModelCatalog;
 import com.qianniu.llmbot.product_service.ModelService;
 import com.qianniu.llmbot.product_service.UserService;
 import jakarta.validation.Valid;
@@ -27,6 +28,7 @@ import java.util.Map;
 /*********************************************
  * Model相关的各种请求响应函数定义
  * 1）model所有相关的请求响应均需要鉴权，即登录成功后携带jwt token；除此外查询响应，还需要权限等级校验(已在Filter过滤器中定义)；
+ * 2）公开的模型名/平台模型列表读取ModelCatalog内存快照，不查询数据库；
  * **********************************************/
 
 @RestController
@@ -36,8 +38,10 @@ public class ModelController {
     final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final ModelService modelService; //相比@Autowired注入组件，可避免运行时被修改，生产环境适用
-    public ModelController(ModelService modelService) {
+    private final ModelCatalog modelCatalog;
+    public ModelController(ModelService modelService, ModelCatalog modelCatalog) {
         this.modelService=modelService;
+        this.modelCatalog=modelCatalog;
     }
 
     //进入Home即查询所有model并加载渲染列表，不需要登录的公开路径，在SecurityConfig配置文件、JwtAuthenticationFilter过滤器中均放开路径
@@ -45,7 +49,7 @@ public class ModelController {
     @GetMapping(value = "/getplatform", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> getPlatformsModels(@RequestParam String platform) {
         try {
-            List<String> platformModels = modelService.getModelsByPlatformName(platform);
+            List<String> platformModels = modelCatalog.getModelsByPlatformName(platform);
             if (platformModels.isEmpty()) {
                 return ResponseEntity.notFound().build(); // 返回404
             }
@@ -67,7 +71,7 @@ public class ModelController {
     @GetMapping(value = "/getnames", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> getModelNames() {
         try {
-            List<String> modelNames = modelService.getModelNames();
+            List<String> modelNames = modelCatalog.getModelNames();
             if (modelNames.isEmpty()) {
                 return ResponseEntity.notFound().build(); // 返回404
             }
@@ -207,8 +211,8 @@ public class ModelController {
                         .body(Collections.singletonMap("modelName", "该模型名称已被使用"));
             }
 
-            String allowRolesJson = request.getModelAllowRoles() != null ?
-                    request.getModelAllowRoles() : "[]";
+            // 允许角色已由@AssertTrue校验，按位掩码重新生成统一格式的JSON数组(ROLE_前缀、去重、按角色等级排序)
+            String allowRolesJson = User.Role.toJson(request.getModelAllowRoleMask());
 
             // 3. 注册模型
             Model model = modelService.registerModel(
@@ -216,7 +220,7 @@ public class ModelController {
                     request.getModelType(),
                     request.getModelUrl(),
                     request.getModelParameters(),
-                    request.getModelAllowRoles()
+                    allowRolesJson
             );
 
             // 4. 返回标准化响应
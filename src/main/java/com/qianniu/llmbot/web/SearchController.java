@@ -0,0 +1,133 @@
+package com.qianniu.llmbot.web;
+
+import com.qianniu.llmbot.product_entity.Message;
+import com.qianniu.llmbot.product_service.KeysetPage;
+import com.qianniu.llmbot.product_service.MessageSearchIndex;
+import com.qianniu.llmbot.product_service.UserService;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.Authentication;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+
+/*********************************************
+ * 对话历史全文搜索的请求响应函数定义
+ * 1）/messages：登录用户搜索自己的对话记录，用户身份取自jwt token，不能搜索其他用户；
+ * 2）/admin/messages：ADMIN搜索全部用户，可按user/bot/conversation筛选；
+ * 3）分页返回：size为每页条数(默认50，最大200)，响应中的nextCursor作为下一页请求的cursor参数，hasMore为false表示已是最后一页；
+ * 4）/rebuild：ADMIN在后台全量重建索引(读取messages与messages_archive)，重建期间搜索结果可能不完整；
+ * **********************************************/
+
+@RestController
+@RequestMapping(value = "/api/search") //基础路径为 "/api/search"，即后续所有的路径都自动添加 "/api/search/xxxxx"
+@Validated // 启用方法级参数校验
+public class SearchController {
+    final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final MessageSearchIndex messageSearchIndex;
+    private final UserService userService;
+
+    public SearchController(MessageSearchIndex messageSearchIndex, UserService userService) {
+        this.messageSearchIndex = messageSearchIndex;
+        this.userService = userService;
+    }
+
+    //搜索当前登录用户自己的对话记录
+    //localhost:8080/api/search/messages?q=数据库连接池&bot=ernie-speed-128k&size=20(下一页附带&cursor=上一页返回的nextCursor)
+    @GetMapping(value = "/messages", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> searchOwnMessages(Authentication authentication,
+                                               @RequestParam @NotBlank(message = "搜索内容不能为空") @Size(max = 100, message = "搜索内容不能超过100个字符") String q,
+                                               @RequestParam(required = false) @Size(max = 100, message = "bot_name长度不能超过100个字符") String bot,
+                                               @RequestParam(required = false) @Size(max = 200, message = "conversation_id长度不能超过200个字符") String conversation,
+                                               @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                               @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size) {
+        try {
+            String userId = userService.getUuidByEmail(authentication.getName());
+            return page(messageSearchIndex.search(userId, blankToNull(bot), blankToNull(conversation), q, cursor, size));
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    //ADMIN搜索全部用户的对话记录，user为空时不限用户
+    //localhost:8080/api/search/admin/messages?q=timeout&user=xxx&size=50
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping(value = "/admin/messages", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> searchAllMessages(@RequestParam @NotBlank(message = "搜索内容不能为空") @Size(max = 100, message = "搜索内容不能超过100个字符") String q,
+                                               @RequestParam(required = false) @Size(max = 36, message = "user_id长度不能超过36个字符") String user,
+                                               @RequestParam(required = false) @Size(max = 100, message = "bot_name长度不能超过100个字符") String bot,
+                                               @RequestParam(required = false) @Size(max = 200, message = "conversation_id长度不能超过200个字符") String conversation,
+                                               @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                               @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size) {
+        try {
+            return page(messageSearchIndex.search(blankToNull(user), blankToNull(bot), blankToNull(conversation), q, cursor, size));
+        } catch (Exception e) {
+            return error(e);
+        }
+    }
+
+    //后台全量重建索引，已在重建时返回409
+    //localhost:8080/api/search/rebuild
+    @PreAuthorize("hasRole('ADMIN')")
+    @PostMapping(value = "/rebuild", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> rebuild() {
+        if (!messageSearchIndex.startRebuild(null)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(Map.of(
+                            "status", HttpStatus.CONFLICT.value(),
+                            "error", messageSearchIndex.isEnabled() ? "索引正在重建" : "message搜索未启用",
+                            "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                    ));
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED)
+                .body(Map.of(
+                        "status", HttpStatus.ACCEPTED.value(),
+                        "message", "索引重建已开始，进度见/api/metrics/search",
+                        "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                ));
+    }
+
+    private static String blankToNull(String value) {
+        return value == null || value.isBlank() ? null : value;
+    }
+
+    private static ResponseEntity<?> page(KeysetPage<Message> page) {
+        return ResponseEntity.ok(Map.of(
+                "status", HttpStatus.OK.value(),
+                "data", page.items(),
+                "count", page.items().size(),
+                "nextCursor", page.hasMore() ? page.nextCursor() : "",
+                "hasMore", page.hasMore(),
+                "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+        ));
+    }
+
+    //IllegalArgumentException为无效的游标或搜索词，IllegalStateException为搜索未启用
+    private static ResponseEntity<?> error(Exception e) {
+        HttpStatus status = e instanceof IllegalArgumentException ? HttpStatus.BAD_REQUEST
+                : e instanceof IllegalStateException ? HttpStatus.SERVICE_UNAVAILABLE
+                : HttpStatus.INTERNAL_SERVER_ERROR;
+        return ResponseEntity.status(status)
+                .body(Map.of(
+                        "status", status.value(),
+                        "error", status == HttpStatus.INTERNAL_SERVER_ERROR ? "An error occurred while searching messages: " + e.getMessage() : e.getMessage(),
+                        "timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))
+                ));
+    }
+}
@@ -1,11 +1,17 @@
 package com.qianniu.llmbot.web;
 
+import com.qianniu.llmbot.JWTtoken.JwtPrincipal;
 import com.qianniu.llmbot.JWTtoken.JwtTokenUtil;
+import com.qianniu.llmbot.JWTtoken.TokenDenylist;
 import com.qianniu.llmbot.product_entity.User;
 import com.qianniu.llmbot.product_entity.UserRegisterRequest;
 import com.qianniu.llmbot.product_entity.UserRegisterResponseDTO;
+import com.qianniu.llmbot.product_service.AccountExistenceFilter;
+import com.qianniu.llmbot.product_service.DuplicateAccountException;
+import com.qianniu.llmbot.product_service.KeysetPage;
+import com.qianniu.llmbot.product_service.LoginThrottle;
+import com.qianniu.llmbot.product_service.PasswordHashingService;
 import com.qianniu.llmbot.product_service.UserService;
-import io.jsonwebtoken.Claims;
 import io.micrometer.common.util.StringUtils;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
@@ -19,6 +25,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.authentication.LockedException;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 
@@ -26,6 +33,9 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 /*********************************************
@@ -49,6 +59,18 @@ public class UserController {
     @Autowired
     private JwtTokenUtil jwtTokenUtil;
 
+    @Autowired
+    private TokenDenylist tokenDenylist;
+
+    @Autowired
+    private PasswordHashingService passwordHashingService;
+
+    @Autowired
+    private LoginThrottle loginThrottle;
+
+    @Autowired
+    private AccountExistenceFilter accountExistenceFilter;
+
 
     //按照id查询user,url中附带id参数
     //localhost:8080/api/user/getbyid?id=2，@RequestParam用于从URL中获取参数值(?后面的参数)并绑定到方法参数。
@@ -199,11 +221,19 @@ public class UserController {
     }
 
     //按照name查询user,url中附带name参数
-    //localhost:8080/api/user/getbyname?name=bob
+    //localhost:8080/api/user/getbyname?name=bob&size=50(下一页附带&cursor=上一页返回的nextCursor)
     @PreAuthorize("hasRole('ADMIN')")
     @GetMapping(value = "/getbyname", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> getUserByName(@RequestParam @NotBlank(message = "用户名不能为空") @Size(min = 2, max = 20, message = "用户名长度必须在2-20个字符之间") String name) {
-        List<User> users = userService.getUserByName(name);
+    public ResponseEntity<?> getUserByName(@RequestParam @NotBlank(message = "用户名不能为空") @Size(min = 2, max = 20, message = "用户名长度必须在2-20个字符之间") String name,
+                                       @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                       @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size) {
+        KeysetPage<User> page;
+        try {
+            page = userService.getUserByName(name, cursor, size);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Bad Request", "message", e.getMessage()));
+        }
+        List<User> users = page.items();
         if (users.isEmpty()) { // 检查是否为空
             Map<String, Object> errorResponse = Map.of(
                     "error", "Not Found",
@@ -223,17 +253,27 @@ public class UserController {
                 "success", true,
                 "code", 200,
                 "message", "请求成功",
-                "data", safeUsers  // 返回脱敏后的用户列表
+                "data", safeUsers,  // 返回脱敏后的用户列表
+                "nextCursor", page.hasMore() ? page.nextCursor() : "", // 下一页请求的cursor参数，为空表示已是最后一页
+                "hasMore", page.hasMore()
         );
         return ResponseEntity.ok(successResponse);
     }
 
     //按照role查询user,url中附带role参数
-    //localhost:8080/api/user/getbyrole?role=0
+    //localhost:8080/api/user/getbyrole?role=0&size=50(下一页附带&cursor=上一页返回的nextCursor)
     @PreAuthorize("hasRole('ADMIN')")
     @GetMapping(value = "/getbyrole", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> getUserByRole(@RequestParam @NotNull(message = "role不能为空")@Min(value = 0, message = "role值不能小于1") @Max(value = 3, message = "role不能大于3")  int role) {
-        List<User> users = userService.getUserByRole(role);
+    public ResponseEntity<?> getUserByRole(@RequestParam @NotNull(message = "role不能为空")@Min(value = 0, message = "role值不能小于1") @Max(value = 3, message = "role不能大于3")  int role,
+                                       @RequestParam(required = false) @Size(max = 200, message = "cursor长度不能超过200个字符") String cursor,
+                                       @RequestParam(defaultValue = "50") @Min(value = 1, message = "size不能小于1") @Max(value = 200, message = "size不能大于200") int size) {
+        KeysetPage<User> page;
+        try {
+            page = userService.getUserByRole(role, cursor, size);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Bad Request", "message", e.getMessage()));
+        }
+        List<User> users = page.items();
         if (users.isEmpty()) { // 检查是否为空
             Map<String, Object> errorResponse = Map.of(
                     "error", "Not Found",
@@ -253,7 +293,9 @@ public class UserController {
                 "success", true,
                 "code", 200,
                 "message", "请求成功",
-                "data", safeUsers  // 返回脱敏后的用户列表
+                "data", safeUsers,  // 返回脱敏后的用户列表
+                "nextCursor", page.hasMore() ? page.nextCursor() : "", // 下一页请求的cursor参数，为空表示已是最后一页
+                "hasMore", page.hasMore()
         );
         return ResponseEntity.ok(successResponse);
     }
@@ -270,81 +312,106 @@ public class UserController {
 
 
     //新用户注册，UserRegisterRequest会先校验新注册的用户信息是否有效，通过后才会传入userService.registerUser进行注册，并返回脱敏user
+    //密码哈希在PasswordHashingService线程池中执行，返回CompletableFuture；注册同样计入按IP的尝试次数
     //指名该路径为非流式响应，全局配置更改为默认流式响应
     //POST请求为localhost:8080/api/user/register；请求体为{"email":"user@example.com", "phone":"+8613912345678"(非必填), "name":"bob", "password":"12345678"}
     @PostMapping(value = "/register", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> registerUser(@RequestBody @Valid UserRegisterRequest request, @RequestHeader(value = "Authorization", required = false) String authHeader) {
+    public CompletableFuture<ResponseEntity<?>> registerUser(@RequestBody @Valid UserRegisterRequest request, @RequestHeader(value = "Authorization", required = false) String authHeader,
+                                                             HttpServletRequest servletRequest) {
        //开放路径手动校验，如果已经携带token且有效(Name非空&有效期内)，则不需要注册直接跳转首页
         if (StringUtils.isNotBlank(authHeader) && authHeader.startsWith("Bearer ")) {
             String jwtToken = authHeader.substring(7); //提取完整token
-            String jwtEmailName = jwtTokenUtil.getNameFromToken(jwtToken); //从token中获取携带的Name(email)
-
-            Claims claims = jwtTokenUtil.getAllClaimsFromToken(jwtToken);
-            Integer jwtTokenVersion = (Integer)claims.get("tokenVersion");//提取版本号
+            JwtPrincipal principal;
+            try {
+                principal = jwtTokenUtil.verify(jwtToken); //验证签名并解析，结果按token缓存
+            } catch (RuntimeException e) {
+                principal = null; //已过期、缺少类型的旧token或签名无效，视为未登录
+            }
 
             //如果token有效且版本号确认，则不需要登录，其他情况需要登录，尤其logout后旧版本的token需要登录更新
-            if (!(jwtEmailName == null || jwtEmailName.trim().isEmpty() || jwtTokenUtil.isTokenExpired(jwtToken)) && jwtTokenVersion.equals(userService.getTokenVersionByEmail(jwtEmailName))) {
-                return ResponseEntity.badRequest().body(Map.of(
+            if (principal != null && StringUtils.isNotBlank(principal.email()) && !principal.refresh()
+                    && !tokenDenylist.isRevoked(principal.email(), principal.tokenVersion())) {
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(Map.of(
                         "success", false,
                         "code", HttpStatus.BAD_REQUEST.value(),
                         "message", "已登录，无需新注册"
-                ));
+                )));
             }
         }
 
+        String phone;
+        String name;
         try {
-            if (userService.isEmailExist(request.getEmail())) {
-                logger.warn("注册失败：邮箱 {} 已被占用", request.getEmail());
-                return ResponseEntity.status(HttpStatus.CONFLICT)
-                        .body(Map.of(
-                                "success", false,
-                                "code", HttpStatus.CONFLICT.value(),
-                                "message", "注册失败",
-                                "errors", Map.of("email", "该邮箱已被注册")
-                        ));
+            loginThrottle.acquireIp(servletRequest.getRemoteAddr()); //按IP限流(RemoteIpValve解析后的客户端IP)，被限流时不提交密码哈希
+
+            //布隆过滤器判断一定未注册时不查询数据库；可能已注册时查询一次，冲突则不必计算密码哈希
+            //最终以插入时的唯一索引为准(并发注册同一账号时映射为409)
+            if (accountExistenceFilter.mightHaveEmail(request.getEmail()) && userService.isEmailExist(request.getEmail())) {
+                return CompletableFuture.completedFuture(registerFailure(new DuplicateAccountException("email", null), request));
             }
 
             // 处理 phone 字段，如果为空或空白则设为 null
-            String phone = StringUtils.isNotBlank(request.getPhone()) ? request.getPhone() : null;
-
-            if (StringUtils.isNotBlank(request.getPhone())) {
-                if (userService.isPhoneExist(request.getPhone())) {
-                    logger.warn("注册失败：手机号 {} 已被占用", request.getPhone());
-                    return ResponseEntity.status(HttpStatus.CONFLICT)
-                            .body(Map.of(
-                                    "success", false,
-                                    "code", HttpStatus.CONFLICT.value(),
-                                    "message", "注册失败",
-                                    "errors", Map.of("phone", "该手机号已被注册")
-                            ));
-                }
+            phone = StringUtils.isNotBlank(request.getPhone()) ? request.getPhone() : null;
+
+            if (phone != null && accountExistenceFilter.mightHavePhone(phone) && userService.isPhoneExist(phone)) {
+                return CompletableFuture.completedFuture(registerFailure(new DuplicateAccountException("phone", null), request));
             }
 
             //如果请求中name参数为空，则默认为email
-            String name = StringUtils.isNotBlank(request.getName()) ? request.getName() : request.getEmail();
+            name = StringUtils.isNotBlank(request.getName()) ? request.getName() : request.getEmail();
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(registerFailure(e, request));
+        }
 
-            UserRegisterResponseDTO response = userService.registerUser( request.getEmail(), phone, name, request.getPassword()); //registerUser返回脱敏user
-            return ResponseEntity.ok(Map.of(
-                    "success", true,
-                    "code", HttpStatus.OK.value(),
-                    "message", "注册成功",
-                    "data", response
+        return passwordHashingService.encode(request.getPassword()) //对明码加密
+                .<ResponseEntity<?>>thenApply(passwordHash -> {
+                    UserRegisterResponseDTO response = userService.registerUser(request.getEmail(), phone, name, passwordHash); //registerUser返回脱敏user
+                    return ResponseEntity.ok(Map.of(
+                            "success", true,
+                            "code", HttpStatus.OK.value(),
+                            "message", "注册成功",
+                            "data", response
+                    ));
+                })
+                .exceptionally(e -> registerFailure(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e, request));
+    }
+
+    //注册失败的响应：email/phone已注册409、限流429、哈希线程池队列已满503、其他运行时异常400
+    private ResponseEntity<?> registerFailure(Throwable e, UserRegisterRequest request) {
+        if (e instanceof DuplicateAccountException duplicate) {
+            boolean email = "email".equals(duplicate.getField());
+            logger.warn(email ? "注册失败：邮箱 {} 已被占用" : "注册失败：手机号 {} 已被占用", email ? request.getEmail() : request.getPhone());
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(Map.of(
+                            "success", false,
+                            "code", HttpStatus.CONFLICT.value(),
+                            "message", "注册失败",
+                            "errors", email ? Map.of("email", "该邮箱已被注册") : Map.of("phone", "该手机号已被注册")
+                    ));
+        }
+        if (e instanceof LockedException || e instanceof RejectedExecutionException) {
+            HttpStatus status = e instanceof LockedException ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE;
+            logger.warn("注册失败：{} - {}", e.getMessage(), request.getEmail());
+            return ResponseEntity.status(status).body(Map.of(
+                    "success", false,
+                    "code", status.value(),
+                    "message", e.getMessage()
             ));
-        } catch (RuntimeException e) {
+        }
+        if (e instanceof RuntimeException) {
             logger.error("Registration failed for email: {}", request.getEmail(), e);
             return ResponseEntity.badRequest().body(Map.of(
                     "success", false,
                     "code", HttpStatus.BAD_REQUEST.value(),
-                    "message", e.getMessage()
-            ));
-        } catch (Exception e) {
-            logger.error("Unexpected error during registration", e);
-            return ResponseEntity.internalServerError().body(Map.of(
-                    "success", false,
-                    "code", HttpStatus.INTERNAL_SERVER_ERROR.value(),
-                    "message", "Internal server error"
+                    "message", String.valueOf(e.getMessage())
             ));
         }
+        logger.error("Unexpected error during registration", e);
+        return ResponseEntity.internalServerError().body(Map.of(
+                "success", false,
+                "code", HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                "message", "Internal server error"
+        ));
     }
 
     //按照email为user充值,url中附带role参数，登录即可，不需要任何会员身份。更新role、tokenVersion, 然后生成新的token返回客户端，客户端用户不需要login即可自动替换旧版本token
@@ -360,13 +427,8 @@ public class UserController {
             User user = userService.getUserByEmail(jwtEmailName); //获取最新用户信息
             UserRegisterResponseDTO userDto = UserRegisterResponseDTO.fromUser(user); //user信息脱敏
 
-            // 将user信息封装生成token
-            String token = jwtTokenUtil.generateToken(userDto.getEmail(),userDto.getRoleName(),userDto.getName(), userDto.getTokenVersion());
-
-            //生产环境下应该直接注入响应Header
-            HttpHeaders headers = new HttpHeaders();
-            headers.set("Authorization", "Bearer " + token);
-            headers.set("Access-Control-Expose-Headers", "Authorization"); // 允许前端读取
+            // 将user信息封装生成access token与refresh token(旧版本的refresh token已失效)，注入响应Header
+            HttpHeaders headers = jwtTokenUtil.tokenHeaders(userDto.getEmail(), userDto.getRoleName(), userDto.getName(), userDto.getTokenVersion());
 
             // 构建标准格式的响应体(删除显式token)
             Map<String, Object> responseBody = Map.of(
@@ -378,7 +440,7 @@ public class UserController {
                             "tokenType", "Bearer"  // 保留tokenType信息，但不再返回token本身在body中
                     )
             );
-            return ResponseEntity.ok(responseBody);
+            return ResponseEntity.ok().headers(headers).body(responseBody);
         } catch (EmptyResultDataAccessException e) {
             Map<String, Object> errorResponse = Map.of(
                     "error", "Not Found",
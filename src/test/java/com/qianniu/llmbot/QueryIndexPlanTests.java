@@ -0,0 +1,81 @@
+package com.qianniu.llmbot;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*********************************************
+ * 检查MessageService/UserService的查询语句使用预期的索引(EXPLAIN的key列)
+ * 需要连接MySQL，设置环境变量LLMBOT_EXPLAIN_TESTS=true时执行；测试数据在事务内写入，结束后回滚
+ * **********************************************/
+
+@SpringBootTest
+@Transactional
+@EnabledIfEnvironmentVariable(named = "LLMBOT_EXPLAIN_TESTS", matches = "true")
+class QueryIndexPlanTests {
+
+    private static final long BASE_TIME = 1_700_000_000L;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    //空表或单行表时优化器会跳过索引选择，先写入一批分布较散的数据
+    @BeforeEach
+    void insertFixtures() {
+        for (int i = 0; i < 20; i++) {
+            jdbcTemplate.update("INSERT INTO users (uuid, email, phone, name, passwordHash, role, createdAt, updatedAt, membershipExpiry) "
+                            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                    uuid(i), "explain" + i + "@test.com", "+86139000000" + String.format("%02d", i), "explain-user-" + i,
+                    "hash", i == 0 ? 3 : i % 3, BASE_TIME, BASE_TIME, i % 3 == 0 ? 0 : BASE_TIME + i * 86400L);
+        }
+        for (int i = 0; i < 120; i++) {
+            jdbcTemplate.update("INSERT INTO messages (bot_name, user_id, user_name, conversation_id, query_content, answer_content, created_at, msg_uuid) "
+                            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)",
+                    "explain-bot-" + (i % 10), uuid(i % 20), "explain-user-" + (i % 20), "explain-conv-" + (i % 24),
+                    "query " + i, "answer " + i, BASE_TIME + i * 60L, "00000000-0000-0000-0001-" + String.format("%012d", i));
+        }
+    }
+
+    @Test
+    void messageQueriesUseIntendedIndexes() {
+        assertIndex("idx_conversation_message",
+                "SELECT * FROM messages WHERE conversation_id = ? AND message_id < ? ORDER BY message_id DESC LIMIT ?",
+                "explain-conv-3", Long.MAX_VALUE, 50);
+        assertIndex("idx_user_created", "SELECT * FROM messages WHERE user_id = ?", uuid(5));
+        assertIndex("idx_bot", "SELECT * FROM messages WHERE bot_name = ?", "explain-bot-7");
+        assertIndex("PRIMARY", "SELECT * FROM messages WHERE message_id = ?", 1L);
+        assertIndex("idx_msg_uuid", "SELECT msg_uuid FROM messages WHERE msg_uuid IN (?, ?)",
+                "00000000-0000-0000-0001-000000000001", "00000000-0000-0000-0001-000000000002");
+        assertIndex("idx_created_at", "SELECT message_id FROM messages WHERE created_at < ? ORDER BY created_at LIMIT ?",
+                BASE_TIME + 300, 1000);
+    }
+
+    @Test
+    void userQueriesUseIntendedIndexes() {
+        assertIndex("PRIMARY", "SELECT * FROM users WHERE id = ?", 1L);
+        assertIndex("uuid", "SELECT * FROM users WHERE uuid = ?", uuid(4));
+        assertIndex("email", "SELECT * FROM users WHERE email = ?", "explain4@test.com");
+        assertIndex("email", "SELECT tokenVersion FROM users WHERE email = ?", "explain4@test.com");
+        assertIndex("phone", "SELECT * FROM users WHERE phone = ?", "+8613900000004");
+        assertIndex("idx_name", "SELECT * FROM users WHERE name = ?", "explain-user-4");
+        assertIndex("idx_role", "SELECT * FROM users WHERE role = ?", 3);
+    }
+
+    private void assertIndex(String expectedKey, String sql, Object... args) {
+        List<Map<String, Object>> plan = jdbcTemplate.queryForList("EXPLAIN " + sql, args);
+        assertEquals(expectedKey, plan.get(0).get("key"), () -> sql + " -> " + plan);
+    }
+
+    private static String uuid(int i) {
+        return "00000000-0000-0000-0000-" + String.format("%012d", i);
+    }
+}
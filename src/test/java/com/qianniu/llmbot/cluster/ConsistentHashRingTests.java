@@ -0,0 +1,78 @@
+package com.qianniu.llmbot.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*********************************************
+ * 检查一致性哈希环的归属一致性、均匀度，以及成员变化时只移动必要的会话
+ * **********************************************/
+
+class ConsistentHashRingTests {
+
+    private static final int KEYS = 20000;
+    private static final List<String> NODES = List.of("http://10.0.0.1:8080", "http://10.0.0.2:8080", "http://10.0.0.3:8080");
+
+    @Test
+    void ownershipDoesNotDependOnMemberOrder() {
+        ConsistentHashRing ring = ConsistentHashRing.of(NODES, 160);
+        ConsistentHashRing reversed = ConsistentHashRing.of(List.of(NODES.get(2), NODES.get(0), NODES.get(1), NODES.get(0)), 160);
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(ring.ownerOf(key(i)), reversed.ownerOf(key(i)));
+        }
+        assertEquals(0.0, ring.movedFraction(reversed));
+    }
+
+    @Test
+    void keysAreSpreadEvenly() {
+        ConsistentHashRing ring = ConsistentHashRing.of(NODES, 160);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(ring.ownerOf(key(i)), 1, Integer::sum);
+        }
+        for (String node : NODES) {
+            double share = counts.getOrDefault(node, 0) / (double) KEYS;
+            assertTrue(Math.abs(share - 1.0 / NODES.size()) < 0.08, node + " -> " + share);
+        }
+    }
+
+    @Test
+    void addingNodeOnlyMovesKeysToIt() {
+        ConsistentHashRing before = ConsistentHashRing.of(NODES, 160);
+        String added = "http://10.0.0.4:8080";
+        ConsistentHashRing after = ConsistentHashRing.of(List.of(NODES.get(0), NODES.get(1), NODES.get(2), added), 160);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String owner = after.ownerOf(key(i));
+            if (!owner.equals(before.ownerOf(key(i)))) {
+                assertEquals(added, owner, "只会移动到新增的节点");
+                moved++;
+            }
+        }
+        double fraction = moved / (double) KEYS;
+        assertTrue(Math.abs(fraction - 0.25) < 0.08, "moved " + fraction);
+        assertEquals(before.movedFraction(after), fraction, 0.03);
+    }
+
+    @Test
+    void removingNodeOnlyMovesItsKeys() {
+        ConsistentHashRing before = ConsistentHashRing.of(NODES, 160);
+        ConsistentHashRing after = ConsistentHashRing.of(NODES.subList(0, 2), 160);
+        for (int i = 0; i < KEYS; i++) {
+            String owner = before.ownerOf(key(i));
+            if (!owner.equals(NODES.get(2))) {
+                assertEquals(owner, after.ownerOf(key(i)), "其他节点的会话归属不变");
+            }
+        }
+    }
+
+    //与对话请求相同的conversation_id格式：模型名_用户uuid
+    private static String key(int i) {
+        return "qwen-plus_" + String.format("00000000-0000-0000-0000-%012d", i);
+    }
+}
@@ -0,0 +1,363 @@
+package com.qianniu.llmbot.cluster;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/*********************************************
+ * 同一JVM内运行多个节点的InvalidationBus，检查两种传输方式的送达、去重、顺序与漏掉事件时的整体失效
+ * 1）peer模式：节点之间的HTTP请求由内存中的PeerNetwork代替，可以模拟请求失败与重复送达；
+ * 2）db模式：节点共用内存中的MemoryLog代替cache_invalidations表，可以模拟事务晚提交与回滚；
+ * 3）JdbcLog的事务边界用模拟的Connection(auto-commit为false，与连接池配置一致)检查；
+ * 不需要数据库和Spring上下文
+ * **********************************************/
+
+class InvalidationBusTests {
+
+    @AfterEach
+    void clearTransaction() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void peerEventsReachEveryOtherNodeExactlyOnce() {
+        PeerNetwork network = new PeerNetwork();
+        Node a = network.join("a", "b", "c");
+        Node b = network.join("b", "a", "c");
+        Node c = network.join("c", "a", "b");
+        network.duplicate = true; //每批请求送达两次，模拟超时后重试
+
+        a.bus.publish("user", "x@test.com");
+        a.bus.publish("model", "qwen-plus");
+
+        assertEquals(List.of("x@test.com"), b.users);
+        assertEquals(List.of("x@test.com"), c.users);
+        assertEquals(List.of("qwen-plus"), c.models);
+        assertTrue(a.users.isEmpty(), "发布节点自己的缓存由调用方失效");
+        assertEquals(0, b.resets.get());
+        assertEquals(2L, transportStats(b).get("duplicates"));
+    }
+
+    @Test
+    void peerEventsAreAppliedInPublishOrder() throws InterruptedException {
+        PeerNetwork network = new PeerNetwork();
+        Node a = network.join("a", "b");
+        Node b = network.join("b", "a");
+
+        int threads = 4;
+        int perThread = 250;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> publishers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            publishers.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    a.bus.publish("user", thread + ":" + i);
+                }
+            }));
+        }
+        publishers.forEach(Thread::start);
+        start.countDown();
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+
+        assertEquals(threads * perThread, b.users.size());
+        assertEquals(0, b.resets.get());
+        //同一线程发布的事件按发布顺序应用
+        Map<String, Integer> lastIndex = new HashMap<>();
+        for (String key : b.users) {
+            String[] parts = key.split(":");
+            int index = Integer.parseInt(parts[1]);
+            assertEquals(lastIndex.getOrDefault(parts[0], -1) + 1, index, key);
+            lastIndex.put(parts[0], index);
+        }
+    }
+
+    @Test
+    void peerLostBatchResetsReceiver() {
+        PeerNetwork network = new PeerNetwork();
+        Node a = network.join("a", "b");
+        Node b = network.join("b", "a");
+
+        network.dropIf = (peer, batch) -> batch.get(0).key().equals("lost@test.com");
+        a.bus.publish("user", "lost@test.com");
+        network.dropIf = (peer, batch) -> false;
+        a.bus.publish("user", "next@test.com");
+
+        assertEquals(List.of("next@test.com"), b.users);
+        assertEquals(1, b.resets.get(), "序号不连续时整体失效，覆盖丢失的事件");
+        assertEquals(1L, transportStats(a).get("dropped"));
+    }
+
+    @Test
+    void peerLostTailIsDetectedByHeartbeat() {
+        PeerNetwork network = new PeerNetwork();
+        Node a = network.join("a", "b");
+        Node b = network.join("b", "a");
+
+        a.bus.heartbeat();
+        assertEquals(0L, transportStats(b).get("heartbeats"), "尚未发布过事件时不发送心跳");
+
+        a.bus.publish("user", "first@test.com");
+        a.bus.heartbeat();
+        assertEquals(0, b.resets.get(), "已收到最新序号时心跳不触发整体失效");
+
+        network.dropIf = (peer, batch) -> batch.get(0).key() != null;
+        a.bus.publish("user", "lost@test.com"); //最后一批事件丢失，之后没有新的事件
+        network.dropIf = (peer, batch) -> false;
+        assertEquals(0, b.resets.get());
+
+        a.bus.heartbeat();
+        assertEquals(List.of("first@test.com"), b.users);
+        assertEquals(1, b.resets.get(), "心跳的序号大于已应用的序号时整体失效");
+
+        a.bus.heartbeat();
+        assertEquals(1, b.resets.get(), "同一空缺只整体失效一次");
+        assertEquals(3L, transportStats(b).get("heartbeats"));
+    }
+
+    @Test
+    void peerEventsInsideTransactionAreSentOnlyAfterCommit() {
+        PeerNetwork network = new PeerNetwork();
+        Node a = network.join("a", "b");
+        Node b = network.join("b", "a");
+
+        TransactionSynchronizationManager.initSynchronization();
+        a.bus.publish("user", "rollback@test.com");
+        List<TransactionSynchronization> rolledBack = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        rolledBack.forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+        assertTrue(b.users.isEmpty());
+
+        TransactionSynchronizationManager.initSynchronization();
+        a.bus.publish("user", "commit@test.com");
+        assertTrue(b.users.isEmpty(), "提交前其他节点不会重新加载到旧数据");
+        List<TransactionSynchronization> committed = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        committed.forEach(TransactionSynchronization::afterCommit);
+
+        assertEquals(List.of("commit@test.com"), b.users);
+        assertEquals(0, b.resets.get(), "回滚的事务不占用序号");
+    }
+
+    @Test
+    void dbEventsReachEveryOtherNodeExactlyOnce() {
+        MemoryLog log = new MemoryLog();
+        Node a = Node.db("a", log, 60_000);
+        Node b = Node.db("b", log, 60_000);
+        Node c = Node.db("c", log, 60_000);
+
+        a.bus.publish("user", "x@test.com");
+        c.bus.publish("model", "ernie-4.0");
+        for (Node node : List.of(a, b, c)) {
+            node.bus.poll();
+            node.bus.poll();
+        }
+
+        assertEquals(List.of("x@test.com"), b.users);
+        assertEquals(List.of("x@test.com"), c.users);
+        assertTrue(a.users.isEmpty());
+        assertEquals(List.of("ernie-4.0"), a.models);
+        assertEquals(List.of("ernie-4.0"), b.models);
+        assertTrue(c.models.isEmpty());
+    }
+
+    @Test
+    void dbLateCommitIsDeliveredAfterLaterSeq() {
+        MemoryLog log = new MemoryLog();
+        Node a = Node.db("a", log, 60_000);
+        Node b = Node.db("b", log, 60_000);
+        Node c = Node.db("c", log, 60_000);
+
+        log.holdCommits = true;
+        a.bus.publish("user", "slow@test.com"); //seq 1，事务尚未提交
+        log.holdCommits = false;
+        c.bus.publish("user", "fast@test.com"); //seq 2，已提交
+        b.bus.poll();
+        assertEquals(List.of("fast@test.com"), b.users);
+        assertEquals(1, transportStats(b).get("pendingGaps"));
+
+        log.commitPending();
+        b.bus.poll();
+        assertEquals(List.of("fast@test.com", "slow@test.com"), b.users);
+        assertEquals(0, transportStats(b).get("pendingGaps"));
+        assertEquals(0, b.resets.get());
+    }
+
+    @Test
+    void dbRolledBackGapResetsAfterTimeout() {
+        MemoryLog log = new MemoryLog();
+        Node a = Node.db("a", log, 0);
+        Node b = Node.db("b", log, 0);
+
+        log.holdCommits = true;
+        a.bus.publish("user", "rollback@test.com");
+        log.holdCommits = false;
+        a.bus.publish("user", "commit@test.com");
+        b.bus.poll();
+        log.rollbackPending();
+        b.bus.poll();
+
+        assertEquals(List.of("commit@test.com"), b.users);
+        assertEquals(1, b.resets.get(), "无法确认空缺的seq是否已回滚时整体失效");
+        assertEquals(0, transportStats(b).get("pendingGaps"));
+    }
+
+    @Test
+    void dbPurgeCommitsEachDeleteBatch() throws SQLException {
+        Connection connection = mock(Connection.class);
+        PreparedStatement statement = mock(PreparedStatement.class);
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.getAutoCommit()).thenReturn(false);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        when(statement.executeUpdate()).thenReturn(10000, 3);
+        DbPollingTransport.JdbcLog log = new DbPollingTransport.JdbcLog(new JdbcTemplate(dataSource),
+                new TransactionTemplate(new DataSourceTransactionManager(dataSource)));
+
+        assertEquals(10003, log.purgeBefore(1_700_000_000L));
+
+        InOrder order = inOrder(statement, connection);
+        order.verify(statement).executeUpdate();
+        order.verify(connection).commit();
+        order.verify(statement).executeUpdate();
+        order.verify(connection).commit();
+        verify(connection, never()).rollback();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> transportStats(Node node) {
+        return (Map<String, Object>) node.bus.stats().get("transport");
+    }
+
+    //一个节点：订阅user、model两个主题，记录收到的key与整体失效次数
+    private static final class Node {
+        final List<String> users = new CopyOnWriteArrayList<>();
+        final List<String> models = new CopyOnWriteArrayList<>();
+        final AtomicInteger resets = new AtomicInteger();
+        final InvalidationBus bus;
+
+        Node(String name, String mode, InvalidationTransport transport) {
+            bus = new InvalidationBus(name + "@1", mode, "secret", transport);
+            bus.subscribe("user", users::add, resets::incrementAndGet);
+            bus.subscribe("model", models::add, () -> { });
+        }
+
+        static Node db(String name, MemoryLog log, long gapTimeoutMillis) {
+            return new Node(name, "db", new DbPollingTransport(log, 2, gapTimeoutMillis, 3600));
+        }
+    }
+
+    //内存中的节点网络，send同步调用目标节点的receive
+    private static final class PeerNetwork {
+        final Map<String, InvalidationBus> nodes = new ConcurrentHashMap<>();
+        volatile BiPredicate<String, List<InvalidationEvent>> dropIf = (peer, batch) -> false;
+        volatile boolean duplicate;
+
+        //发送队列容纳单个测试中并发发布的全部事件，不会因溢出丢弃
+        Node join(String name, String... peers) {
+            Node node = new Node(name, "peer", new PeerTransport(List.of(peers), this::send, 10000, 10, 3_600_000));
+            nodes.put(name, node.bus);
+            return node;
+        }
+
+        CompletableFuture<?> send(String peer, List<InvalidationEvent> batch) {
+            if (dropIf.test(peer, batch)) {
+                return CompletableFuture.failedFuture(new IllegalStateException("连接失败"));
+            }
+            InvalidationBus target = nodes.get(peer);
+            target.receive(batch);
+            if (duplicate) {
+                target.receive(batch);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    //内存中的事件表：seq在append时分配，holdCommits期间写入的事件在commitPending之前不可见
+    private static final class MemoryLog implements DbPollingTransport.Log {
+        private final TreeMap<Long, InvalidationEvent> committed = new TreeMap<>();
+        private final List<InvalidationEvent> pending = new ArrayList<>();
+        private long nextSeq;
+        volatile boolean holdCommits;
+
+        @Override
+        public synchronized void append(InvalidationEvent event) {
+            InvalidationEvent stored = new InvalidationEvent(event.origin(), ++nextSeq, event.topic(), event.key());
+            if (holdCommits) {
+                pending.add(stored);
+            } else {
+                committed.put(stored.seq(), stored);
+            }
+        }
+
+        synchronized void commitPending() {
+            pending.forEach(event -> committed.put(event.seq(), event));
+            pending.clear();
+        }
+
+        synchronized void rollbackPending() {
+            pending.clear();
+        }
+
+        @Override
+        public synchronized long maxSeq() {
+            return committed.isEmpty() ? 0 : committed.lastKey();
+        }
+
+        @Override
+        public synchronized List<InvalidationEvent> readAfter(long seq, int limit) {
+            return committed.tailMap(seq, false).values().stream().limit(limit).toList();
+        }
+
+        @Override
+        public synchronized List<InvalidationEvent> readSeqs(Collection<Long> seqs) {
+            return seqs.stream().map(committed::get).filter(event -> event != null).toList();
+        }
+
+        @Override
+        public synchronized int purgeBefore(long createdAtSeconds) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.qianniu.llmbot.model_service;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.SignalType;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*********************************************
+ * 检查Key池的最少在途选择、429冷却(Retry-After与指数退避)、按响应流结束信号归还Key，以及keys/key配置的解析
+ * **********************************************/
+
+class ApiKeyPoolTests {
+
+    private static final String KEY_A = "sk-aaaaaaaaaaaa0001";
+    private static final String KEY_B = "sk-bbbbbbbbbbbb0002";
+    private static final String KEY_C = "sk-cccccccccccc0003";
+
+    @Test
+    void keyListPrefersKeysAndFallsBackToSingleKey() {
+        assertEquals(List.of(KEY_A, KEY_B), ApiKeyPool.keyList(Arrays.asList(KEY_A, " ", null, KEY_B), KEY_C));
+        assertEquals(List.of(KEY_C), ApiKeyPool.keyList(List.of(), KEY_C));
+        assertEquals(List.of(KEY_C), ApiKeyPool.keyList(null, KEY_C));
+        assertTrue(ApiKeyPool.keyList(List.of(""), null).isEmpty());
+    }
+
+    @Test
+    void rejectsPoolWithoutUsableKeys() {
+        assertThrows(IllegalArgumentException.class, () -> new ApiKeyPool("test", List.of(), 1000));
+        assertThrows(IllegalArgumentException.class, () -> new ApiKeyPool("test", List.of(" "), 1000));
+    }
+
+    @Test
+    void acquireSpreadsInFlightRequestsAcrossKeys() {
+        ApiKeyPool pool = new ApiKeyPool("test", List.of(KEY_A, KEY_B, KEY_C), 1000);
+        ApiKeyPool.KeySlot first = pool.acquire();
+        ApiKeyPool.KeySlot second = pool.acquire();
+        ApiKeyPool.KeySlot third = pool.acquire();
+        assertNotEquals(first.getKey(), second.getKey());
+        assertNotEquals(first.getKey(), third.getKey());
+        assertNotEquals(second.getKey(), third.getKey());
+
+        pool.release(second, SignalType.ON_COMPLETE);
+        assertEquals(second.getKey(), pool.acquire().getKey(), "归还后该Key的在途请求数最少");
+    }
+
+    @Test
+    void rateLimitedKeyIsSkippedWhileCoolingDown() {
+        ApiKeyPool pool = new ApiKeyPool("test", List.of(KEY_A, KEY_B), 60_000);
+        ApiKeyPool.KeySlot limited = pool.acquire();
+        pool.markRateLimited(limited, 0);
+        pool.release(limited, SignalType.ON_ERROR);
+        for (int i = 0; i < 3; i++) {
+            assertNotEquals(limited.getKey(), pool.acquire().getKey(), "冷却中的Key即使在途请求更少也不被选择");
+        }
+    }
+
+    @Test
+    void allKeysCoolingFallsBackToEarliestRecovery() {
+        ApiKeyPool pool = new ApiKeyPool("test", List.of(KEY_A, KEY_B), 1000);
+        ApiKeyPool.KeySlot a = pool.acquire();
+        ApiKeyPool.KeySlot b = pool.acquire();
+        pool.markRateLimited(a, 30_000);
+        pool.markRateLimited(b, 10_000);
+        pool.release(a, SignalType.ON_ERROR);
+        pool.release(b, SignalType.ON_ERROR);
+        assertEquals(b.getKey(), pool.acquire().getKey());
+    }
+
+    @Test
+    void cooldownUsesRetryAfterOrExponentialBackoff() {
+        ApiKeyPool pool = new ApiKeyPool("test", List.of(KEY_A), 1000);
+        ApiKeyPool.KeySlot slot = pool.acquire();
+
+        pool.markRateLimited(slot, 0);
+        assertCooldown(pool, 1000);
+        pool.markRateLimited(slot, 0);
+        assertCooldown(pool, 2000);
+        pool.markRateLimited(slot, 0);
+        assertCooldown(pool, 4000);
+        pool.markRateLimited(slot, 20_000);
+        assertCooldown(pool, 20_000); //Retry-After大于退避时间时使用Retry-After
+        pool.markRateLimited(slot, 1);
+        assertCooldown(pool, 16_000); //Retry-After小于退避时间时使用退避时间
+
+        for (int i = 0; i < 5; i++) {
+            pool.markRateLimited(slot, 0);
+        }
+        assertCooldown(pool, 32_000); //退避上限为基础冷却时间 * 2^5
+    }
+
+    @Test
+    void successfulReleaseResetsBackoff() {
+        ApiKeyPool pool = new ApiKeyPool("test", List.of(KEY_A), 1000);
+        ApiKeyPool.KeySlot slot = pool.acquire();
+        pool.markRateLimited(slot, 0);
+        pool.markRateLimited(slot, 0);
+        pool.release(slot, SignalType.ON_COMPLETE);
+
+        pool.markRateLimited(pool.acquire(), 0);
+        assertCooldown(pool, 1000);
+    }
+
+    @Test
+    void releaseCountsCompletionErrorAndCancelSeparately() {
+        ApiKeyPool pool = new ApiKeyPool("test", List.of(KEY_A), 1000);
+        pool.release(pool.acquire(), SignalType.ON_COMPLETE);
+        ApiKeyPool.KeySlot limited = pool.acquire();
+        pool.markRateLimited(limited, 0);
+        pool.release(limited, SignalType.ON_ERROR);
+        pool.release(pool.acquire(), SignalType.CANCEL);
+
+        ApiKeyPool.KeySlot again = pool.acquire();
+        pool.markRateLimited(again, 0);
+        assertCooldown(pool, 2000); //错误与取消都不清零连续429计数
+        pool.release(again, SignalType.CANCEL);
+
+        Map<String, Object> stats = pool.snapshot().get(0);
+        assertEquals(0, stats.get("inFlight"), "doFinally的每种信号都归还Key");
+        assertEquals(4L, stats.get("requests"));
+        assertEquals(1L, stats.get("successes"));
+        assertEquals(1L, stats.get("failures"));
+        assertEquals(2L, stats.get("rateLimited"));
+    }
+
+    @Test
+    void snapshotMasksKeys() {
+        ApiKeyPool pool = new ApiKeyPool("test", List.of(KEY_A, "short"), 1000);
+        List<Map<String, Object>> snapshot = pool.snapshot();
+        assertEquals("sk-aaa****0001", snapshot.get(0).get("key"));
+        assertEquals("****", snapshot.get(1).get("key"));
+        assertFalse((Boolean) snapshot.get(0).get("coolingDown"));
+    }
+
+    //冷却剩余时间在(expected - 500ms, expected]内
+    private static void assertCooldown(ApiKeyPool pool, long expectedMillis) {
+        long remaining = (long) pool.snapshot().get(0).get("cooldownRemainingMs");
+        assertTrue(remaining <= expectedMillis && remaining > expectedMillis - 500,
+                "冷却剩余" + remaining + "ms，预期约" + expectedMillis + "ms");
+    }
+}
@@ -0,0 +1,62 @@
+package com.qianniu.llmbot.model_service;
+
+import org.junit.jupiter.api.Test;
+
+import static com.qianniu.llmbot.model_service.TokenEstimator.Vocabulary.ERNIE;
+import static com.qianniu.llmbot.model_service.TokenEstimator.Vocabulary.QWEN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*********************************************
+ * 检查qwen与ERNIE两套折算系数下各类字符的token估算值，以及每轮消息的模板开销
+ * **********************************************/
+
+class TokenEstimatorTests {
+
+    private static final String CJK_20 = "今天天气很好我们一起去公园散步然后吃饭吧";
+
+    @Test
+    void emptyTextHasNoTokens() {
+        assertEquals(0, TokenEstimator.estimate(null, QWEN));
+        assertEquals(0, TokenEstimator.estimate("", ERNIE));
+        assertEquals(0, TokenEstimator.estimate("   \t ", QWEN), "空白不单独计数");
+    }
+
+    @Test
+    void cjkCharsUseVocabularyRatio() {
+        assertEquals(20, CJK_20.length());
+        assertEquals(14, TokenEstimator.estimate(CJK_20, QWEN)); //20 * 0.70
+        assertEquals(13, TokenEstimator.estimate(CJK_20, ERNIE)); //20 * 0.65
+        assertEquals(1, TokenEstimator.estimate("好", ERNIE), "不足1个token时向上取整");
+    }
+
+    @Test
+    void latinWordsAreCountedPerRun() {
+        assertEquals(2, TokenEstimator.estimate("hello", QWEN)); //5 / 4
+        assertEquals(2, TokenEstimator.estimate("hello", ERNIE)); //5 / 3.5
+        assertEquals(3, TokenEstimator.estimate("hello world", QWEN)); //两个单词各1.25
+        assertEquals(5, TokenEstimator.estimate("internationalization", QWEN)); //20 / 4
+        assertEquals(6, TokenEstimator.estimate("internationalization", ERNIE)); //20 / 3.5
+    }
+
+    @Test
+    void digitsAreSplitPerVocabulary() {
+        assertEquals(5, TokenEstimator.estimate("12345", QWEN)); //qwen逐位切分
+        assertEquals(2, TokenEstimator.estimate("12345", ERNIE)); //ERNIE约3位一个token
+        assertEquals(4, TokenEstimator.estimate("abc123", QWEN)); //0.75 + 3
+    }
+
+    @Test
+    void punctuationNewlinesAndEmojiAreCountedPerSymbol() {
+        assertEquals(3, TokenEstimator.estimate("!?;", QWEN));
+        assertEquals(2, TokenEstimator.estimate("a\n\n\nb", QWEN), "连续换行计1");
+        assertEquals(2, TokenEstimator.estimate("😀", ERNIE), "补充平面字符计2");
+    }
+
+    @Test
+    void turnAddsTemplateOverheadForBothMessages() {
+        assertEquals(38, TokenEstimator.estimateTurn(10, 20, QWEN));
+        assertEquals(36, TokenEstimator.estimateTurn(10, 20, ERNIE));
+        assertEquals(4, QWEN.getMessageOverhead());
+        assertEquals(3, ERNIE.getMessageOverhead());
+    }
+}
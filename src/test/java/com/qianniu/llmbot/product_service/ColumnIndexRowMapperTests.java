@@ -0,0 +1,177 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.Conversation;
+import com.qianniu.llmbot.product_entity.Message;
+import com.qianniu.llmbot.product_entity.Model;
+import com.qianniu.llmbot.product_entity.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*********************************************
+ * 检查按列序号映射的RowMapper与BeanPropertyRowMapper的映射结果一致
+ * 1）全部字段(SELECT *)与部分字段(列顺序不同、含NULL值)两种结果集，逐个比较实体的全部字段；
+ * 2）同一线程中交替映射两个结果集(嵌套查询、手动调用mapRow)时，每个结果集使用自己的列序号；
+ * 结果集为内存中的ResultSet代理，不需要数据库
+ * **********************************************/
+
+class ColumnIndexRowMapperTests {
+    private static final String[] MESSAGE_COLUMNS = {"message_id", "bot_name", "user_id", "user_name", "conversation_id", "total_token_number",
+            "query_content", "query_content_type", "query_token_number", "answer_content", "answer_content_type",
+            "answer_token_number", "created_at", "query_token_estimate", "answer_token_estimate", "msg_uuid"};
+
+    @Test
+    void messageMatchesBeanPropertyRowMapper() throws SQLException {
+        assertSameAsBeanProperty(new MessageRowMapper(), Message.class, MESSAGE_COLUMNS, new Object[][]{
+                {1L, "qwen-plus", "u1", "user@example.com", "c1", 512, "你好", 0, 12, "你好！", 0, 500, 1_700_000_000L, 12, 480, "m1"},
+                {2L, "ernie-4.0", "u2", "other@example.com", "c2", null, "", 1, null, "", 1, null, 1_700_000_100L, 0, 0, null}});
+        assertSameAsBeanProperty(new MessageRowMapper(), Message.class,
+                new String[]{"msg_uuid", "conversation_id", "created_at", "query_content", "message_id", "unknown_column"}, new Object[][]{
+                        {"m1", "c1", 1_700_000_000L, "你好", 1L, "x"},
+                        {null, "c2", null, null, 2L, null}});
+    }
+
+    @Test
+    void userMatchesBeanPropertyRowMapper() throws SQLException {
+        assertSameAsBeanProperty(new UserRowMapper(), User.class,
+                new String[]{"id", "uuid", "email", "phone", "name", "passwordHash", "role", "tokenVersion",
+                        "collectModels", "createdAt", "updatedAt", "lastLogin", "membershipExpiry"}, new Object[][]{
+                        {42L, "u1", "user@example.com", "+8613912345678", "user", "$2a$10$hash", 1, 3, "qwen-plus", 1L, 2L, 3L, 4L},
+                        {43L, "u2", "other@example.com", null, "other", "$2a$10$hash", 0, 0, "", 5L, 6L, null, 0L}});
+        assertSameAsBeanProperty(new UserRowMapper(), User.class,
+                new String[]{"email", "uuid", "role"}, new Object[][]{{"user@example.com", "u1", 3}});
+    }
+
+    @Test
+    void modelMatchesBeanPropertyRowMapper() throws SQLException {
+        assertSameAsBeanProperty(new ModelRowMapper(), Model.class,
+                new String[]{"model_id", "model_name", "model_type", "model_url", "model_parameters", "model_allowroles", "created_datetime"},
+                new Object[][]{{7L, "qwen-plus", 0, "https://example.com/v1", "{\"temperature\":0.7}", "[\"user\",\"admin\"]", "2025-06-01T10:00:00"},
+                        {8L, "wanx", 1, "https://example.com/v2", null, null, "2025-06-02T10:00:00"}});
+        assertSameAsBeanProperty(new ModelRowMapper(), Model.class,
+                new String[]{"model_name", "model_id"}, new Object[][]{{"qwen-plus", 7L}});
+    }
+
+    @Test
+    void conversationMatchesBeanPropertyRowMapper() throws SQLException {
+        assertSameAsBeanProperty(new ConversationRowMapper(), Conversation.class,
+                new String[]{"conversation_id", "user_id", "bot_name", "title", "created_at", "last_message_id", "last_message_at",
+                        "turn_count", "query_tokens", "answer_tokens", "total_tokens"},
+                new Object[][]{{"c1", "u1", "qwen-plus", "你好", 1L, 9L, 2L, 3L, 10L, 20L, 30L}});
+        assertSameAsBeanProperty(new ConversationRowMapper(), Conversation.class,
+                new String[]{"title", "conversation_id"}, new Object[][]{{"你好", "c1"}});
+    }
+
+    @Test
+    void interleavedResultSetsUseTheirOwnColumns() throws SQLException {
+        MessageRowMapper mapper = new MessageRowMapper();
+        RowMapper<Message> beanMapper = new BeanPropertyRowMapper<>(Message.class);
+        Object[][] outerRows = {
+                {1L, "qwen-plus", "u1", "user@example.com", "c1", 512, "q1", 0, 12, "a1", 0, 500, 1_700_000_000L, 12, 480, "m1"},
+                {2L, "qwen-plus", "u1", "user@example.com", "c1", 256, "q2", 0, 6, "a2", 0, 250, 1_700_000_100L, 6, 240, "m2"}};
+        String[] innerColumns = {"msg_uuid", "query_content", "message_id"};
+        Object[][] innerRows = {{"m9", "q9", 9L}, {"m10", "q10", 10L}};
+        ResultSet outer = resultSet(MESSAGE_COLUMNS, outerRows);
+        ResultSet inner = resultSet(innerColumns, innerRows);
+        ResultSet expectedOuter = resultSet(MESSAGE_COLUMNS, outerRows);
+        ResultSet expectedInner = resultSet(innerColumns, innerRows);
+
+        //streamMessages中每映射一行外层结果集，consumer可能再执行一次使用同一mapper的查询
+        for (int outerRow = 0; outerRow < outerRows.length; outerRow++) {
+            outer.next();
+            expectedOuter.next();
+            assertEquals(fieldsOf(beanMapper.mapRow(expectedOuter, outerRow)), fieldsOf(mapper.mapRow(outer, outerRow)));
+            inner.next();
+            expectedInner.next();
+            assertEquals(fieldsOf(beanMapper.mapRow(expectedInner, outerRow)), fieldsOf(mapper.mapRow(inner, outerRow)));
+        }
+    }
+
+    private static <T> void assertSameAsBeanProperty(RowMapper<T> mapper, Class<T> type, String[] columns, Object[][] rows) throws SQLException {
+        List<Map<String, Object>> expected = mapAll(new BeanPropertyRowMapper<>(type), resultSet(columns, rows));
+        List<Map<String, Object>> actual = mapAll(mapper, resultSet(columns, rows));
+        assertEquals(expected, actual, String.join(",", columns));
+    }
+
+    private static <T> List<Map<String, Object>> mapAll(RowMapper<T> mapper, ResultSet rs) throws SQLException {
+        List<Map<String, Object>> mapped = new ArrayList<>();
+        for (int rowNum = 0; rs.next(); rowNum++) {
+            mapped.add(fieldsOf(mapper.mapRow(rs, rowNum)));
+        }
+        return mapped;
+    }
+
+    //实体的全部字段值，uuid等带随机默认值的字段只在结果集包含该列时比较才有意义，因此默认值统一替换为null
+    private static Map<String, Object> fieldsOf(Object entity) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        try {
+            Object defaults = entity.getClass().getDeclaredConstructor().newInstance();
+            for (Field field : entity.getClass().getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                Object value = field.get(entity);
+                boolean randomDefault = field.getName().equals("uuid") && value != null && value.equals(field.get(defaults));
+                fields.put(field.getName(), randomDefault ? null : value);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+        return fields;
+    }
+
+    //只实现RowMapper用到的方法：next、按列序号取值、wasNull及列名元数据
+    private static ResultSet resultSet(String[] columns, Object[][] rows) {
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(ColumnIndexRowMapperTests.class.getClassLoader(),
+                new Class<?>[]{ResultSetMetaData.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "getColumnCount" -> columns.length;
+                    case "getColumnLabel", "getColumnName" -> columns[(Integer) args[0] - 1];
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+        int[] row = {-1};
+        boolean[] lastNull = new boolean[1];
+        return (ResultSet) Proxy.newProxyInstance(ColumnIndexRowMapperTests.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            return ++row[0] < rows.length;
+                        case "getMetaData":
+                            return metaData;
+                        case "wasNull":
+                            return lastNull[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            break;
+                    }
+                    if (args == null || !(args[0] instanceof Integer index)) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    Object value = rows[row[0]][index - 1];
+                    lastNull[0] = value == null;
+                    return switch (method.getName()) {
+                        case "getString" -> value == null ? null : value.toString();
+                        case "getLong" -> value == null ? 0L : ((Number) value).longValue();
+                        case "getInt" -> value == null ? 0 : ((Number) value).intValue();
+                        case "getObject" -> value;
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    };
+                });
+    }
+}
@@ -0,0 +1,194 @@
+package com.qianniu.llmbot.product_service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*********************************************
+ * 检查message内容编码的往返一致性与存储格式
+ * 1）旧数据(原文)、以\u0001开头的原文、短内容、不可压缩内容、按旧字典ID压缩的内容；
+ * 2）字典训练的结果大小与选取的片段；
+ * content_dictionaries表由mock的JdbcTemplate代替，不需要数据库
+ * **********************************************/
+
+class ContentCodecTests {
+    private static final int MIN_CHARS = 64;
+    private static final String TURN = "请帮我总结一下这段对话的要点，并给出三条可以执行的建议。The quick brown fox jumps over the lazy dog. ";
+
+    @Test
+    void legacyRowsAreReturnedAsIs() {
+        ContentCodec codec = codec(Map.of());
+        assertNull(codec.decode(null));
+        assertEquals("", codec.decode(""));
+        assertEquals(TURN, codec.decode(TURN), "压缩上线前写入的原文");
+        assertEquals("\u0001x:abc", codec.decode("\u0001x:abc"), "未知前缀按原文返回");
+    }
+
+    @Test
+    void contentBelowMinCharsIsStoredRaw() {
+        ContentCodec codec = codec(Map.of());
+        String shortContent = TURN.substring(0, MIN_CHARS - 1);
+        assertEquals(shortContent, codec.encode(shortContent));
+        assertEquals(shortContent, codec.decode(codec.encode(shortContent)));
+        assertNull(codec.encode(null));
+        assertEquals(0L, codec.stats().get("encodedValues"), "短内容不尝试压缩");
+
+        ContentCodec disabled = new ContentCodec(false, MIN_CHARS, 6);
+        assertEquals(TURN.repeat(10), disabled.encode(TURN.repeat(10)));
+    }
+
+    @Test
+    void contentStartingWithControlCharIsEscaped() {
+        ContentCodec codec = codec(Map.of());
+        for (String content : List.of("\u0001", "\u0001z0:AAAA", "\u0001r:已经带有前缀", "\u0001" + randomAscii(500, 1))) {
+            String stored = codec.encode(content);
+            assertEquals("\u0001r:" + content, stored, "以\\u0001开头的原文加前缀存储");
+            assertEquals(content, codec.decode(stored));
+        }
+        String compressible = "\u0001" + TURN.repeat(10);
+        String stored = codec.encode(compressible);
+        assertTrue(stored.startsWith("\u0001z0:"));
+        assertEquals(compressible, codec.decode(stored));
+    }
+
+    @Test
+    void incompressibleContentFallsBackToRaw() {
+        ContentCodec codec = codec(Map.of());
+        String content = randomAscii(1000, 2);
+        assertEquals(content, codec.encode(content), "压缩后(含base64)不比原文短时保存原文");
+        assertEquals(content, codec.decode(content));
+        assertEquals(1L, codec.stats().get("encodedValues"));
+        assertEquals(0L, codec.stats().get("compressedValues"));
+        assertEquals(0L, codec.stats().get("savedBytes"));
+    }
+
+    @Test
+    void compressedContentRoundTrips() {
+        ContentCodec codec = codec(Map.of());
+        String content = TURN.repeat(20);
+        String stored = codec.encode(content);
+        assertTrue(stored.startsWith("\u0001z0:"), "尚未训练字典时字典ID为0");
+        assertTrue(stored.length() < content.getBytes(StandardCharsets.UTF_8).length);
+        assertEquals(content, codec.decode(stored));
+        assertEquals(1L, codec.stats().get("compressedValues"));
+    }
+
+    @Test
+    void contentWrittenUnderOlderDictionaryIsDecoded() {
+        byte[] first = ContentCodec.buildDictionary(samples("第一版"));
+        byte[] second = ContentCodec.buildDictionary(samples("第二版"));
+        String content = "第一版" + TURN + TURN.substring(0, 20);
+
+        ContentCodec writer = codec(Map.of(1, first));
+        assertEquals(1, writer.getCurrentDictionaryId());
+        String stored = writer.encode(content);
+        assertTrue(stored.startsWith("\u0001z1:"), "存储格式为\\u0001z<字典ID>:<base64>");
+
+        //训练第二版字典后启动的节点：当前字典为2，字典1在首次遇到时按ID从数据库加载
+        ContentCodec reader = codec(Map.of(1, first, 2, second), Set.of(2));
+        assertEquals(2, reader.getCurrentDictionaryId());
+        assertEquals(1, reader.stats().get("dictionaries"));
+        assertEquals(content, reader.decode(stored));
+        assertEquals(2, reader.stats().get("dictionaries"));
+        assertTrue(reader.encode(content).startsWith("\u0001z2:"));
+
+        //字典ID为36进制
+        ContentCodec base36 = codec(Map.of(36, first));
+        String storedBase36 = base36.encode(content);
+        assertTrue(storedBase36.startsWith("\u0001z10:"));
+        assertEquals(content, codec(Map.of(36, first), Set.of()).decode(storedBase36));
+    }
+
+    @Test
+    void dictionaryImprovesCompressionOfSimilarContent() {
+        byte[] dictionary = ContentCodec.buildDictionary(samples(""));
+        String content = TURN + "请继续。";
+        String withoutDictionary = codec(Map.of()).encode(content);
+        String withDictionary = codec(Map.of(1, dictionary)).encode(content);
+        assertTrue(withDictionary.length() < withoutDictionary.length(), withDictionary.length() + " < " + withoutDictionary.length());
+    }
+
+    @Test
+    void buildDictionarySelectsRepeatedFragments() {
+        assertEquals(0, ContentCodec.buildDictionary(List.of()).length);
+        assertEquals(0, ContentCodec.buildDictionary(List.of("只出现一次的内容")).length, "出现少于3次的片段不选取");
+
+        byte[] dictionary = ContentCodec.buildDictionary(samples(""));
+        assertTrue(dictionary.length > 0 && dictionary.length <= 32 * 1024);
+        String text = new String(dictionary, StandardCharsets.UTF_8);
+        assertTrue(text.contains("brown fo") || text.contains("fox jump"), "重复出现的片段进入字典");
+
+        List<String> large = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            large.add(randomAscii(200, i).repeat(3));
+        }
+        assertTrue(ContentCodec.buildDictionary(large).length <= 32 * 1024, "字典不超过deflate窗口大小");
+        assertArrayEquals(ContentCodec.buildDictionary(samples("")), dictionary, "同样的样本训练出同样的字典");
+    }
+
+    //字典都已保存在content_dictionaries表中，启动时只加载loadedAtStartup中的字典，其余在首次遇到时加载
+    private static ContentCodec codec(Map<Integer, byte[]> stored, Set<Integer> loadedAtStartup) {
+        JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(1);
+            for (Map.Entry<Integer, byte[]> entry : new TreeMap<>(stored).entrySet()) {
+                if (!loadedAtStartup.contains(entry.getKey())) {
+                    continue;
+                }
+                ResultSet rs = mock(ResultSet.class);
+                when(rs.getInt("dict_id")).thenReturn(entry.getKey());
+                when(rs.getBytes("dictionary")).thenReturn(entry.getValue());
+                handler.processRow(rs);
+            }
+            return null;
+        }).when(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class));
+        when(jdbcTemplate.queryForObject(anyString(), eq(byte[].class), any(Object[].class)))
+                .thenAnswer(invocation -> stored.get((Integer) invocation.getArgument(2)));
+        ContentCodec codec = new ContentCodec(true, MIN_CHARS, 6);
+        codec.jdbcTemplate = jdbcTemplate;
+        codec.loadDictionaries();
+        return codec;
+    }
+
+    private static ContentCodec codec(Map<Integer, byte[]> stored) {
+        return codec(stored, stored.keySet());
+    }
+
+    private static List<String> samples(String prefix) {
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            samples.add(prefix + TURN + "第" + i + "轮");
+        }
+        return samples;
+    }
+
+    //可打印ASCII字符随机组成的内容，deflate几乎无法压缩
+    private static String randomAscii(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) (33 + random.nextInt(94)));
+        }
+        return sb.toString();
+    }
+}
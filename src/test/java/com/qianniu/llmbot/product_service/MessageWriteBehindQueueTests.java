@@ -0,0 +1,248 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.model_service.TokenEstimator;
+import com.qianniu.llmbot.product_entity.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*********************************************
+ * 检查写缓冲队列与WAL在数据库故障时的重试、交给WAL、重放顺序与去重
+ * 1）数据库由内存中的FakeDatabase代替，可以模拟暂时性错误、提交后确认丢失与单条数据错误；
+ * 2）刷写线程的攒批等待与退避时间设为1小时，写入只由测试调用flushPending/flushAll/replay触发；
+ * 不需要数据库和Spring上下文
+ * **********************************************/
+
+class MessageWriteBehindQueueTests {
+    private static final long HOUR = 3_600_000;
+
+    @TempDir
+    Path walDir;
+
+    private final FakeDatabase db = new FakeDatabase();
+    private final List<MessageWriteAheadLog> wals = new ArrayList<>();
+    private MessageWriteBehindQueue queue;
+
+    @AfterEach
+    void close() {
+        if (queue != null) {
+            queue.shutdown();
+        }
+        wals.forEach(MessageWriteAheadLog::close);
+    }
+
+    @Test
+    void transientFailureKeepsTurnsQueuedInOrder() {
+        MessageWriteAheadLog wal = openWal(5);
+        start(wal, HOUR);
+        queue.submit(message("a", "a1"));
+        queue.submit(message("b", "b1"));
+        queue.submit(message("a", "a2"));
+
+        db.transientFailures = 2; //批量写入与逐条写入的第一条都失败
+        assertEquals(List.of("a1", "a2"), queries(queue.flushPending("a")), "未写入的轮次返回给历史读取");
+        assertTrue(db.rows.isEmpty());
+
+        queue.submit(message("a", "a3"));
+        assertTrue(queue.flushPending("a").isEmpty());
+        assertEquals(List.of("a1", "a2", "a3"), queries(db.rows), "重试的message排在之后的轮次之前");
+
+        queue.flushAll();
+        assertEquals(List.of("a1", "a2", "a3", "b1"), queries(db.rows));
+        assertEquals(0L, wal.stats().get("unpersisted"));
+    }
+
+    @Test
+    void acknowledgementLostBatchIsNotWrittenTwice() {
+        start(openWal(5), HOUR);
+        queue.submit(message("a", "a1"));
+        queue.submit(message("a", "a2"));
+
+        db.commitThenFail = 1; //批量写入已提交，但返回暂时性错误
+        assertTrue(queue.flushPending("a").isEmpty());
+        assertEquals(List.of("a1", "a2"), queries(db.rows), "逐条写入按msg_uuid去重");
+    }
+
+    @Test
+    void outageLongerThanRetryWindowHoldsLaterTurnsBehindWal() {
+        MessageWriteAheadLog wal = openWal(5);
+        start(wal, 0); //第一次失败即超出重试时间
+        queue.submit(message("a", "a1"));
+
+        db.transientFailures = Integer.MAX_VALUE;
+        assertEquals(List.of("a1"), queries(queue.flushPending("a")));
+        assertTrue(wal.isHeld("a"));
+        assertEquals(List.of("a1"), queries(queue.flushPending("a")), "交给WAL后仍对历史读取可见");
+
+        db.transientFailures = 0;
+        queue.submit(message("a", "a2"));
+        queue.submit(message("b", "b1"));
+        queue.flushAll();
+        assertEquals(List.of("b1"), queries(db.rows), "a2排在WAL中的a1之后，不先写入");
+
+        replay(wal);
+        assertEquals(List.of("b1", "a1", "a2"), queries(db.rows));
+        assertFalse(wal.isHeld("a"));
+        assertEquals(0L, wal.stats().get("unpersisted"));
+    }
+
+    @Test
+    void rowErrorHoldsLaterTurnsUntilQuarantined() {
+        MessageWriteAheadLog wal = openWal(2);
+        start(wal, HOUR);
+        queue.submit(message("a", "a1"));
+        queue.submit(message("a", "a2"));
+        queue.submit(message("b", "b1"));
+
+        db.badQueries.add("a1");
+        queue.flushAll();
+        assertEquals(List.of("b1"), queries(db.rows), "单条数据错误不影响其他会话");
+        assertTrue(wal.isHeld("a"));
+
+        replay(wal);
+        assertEquals(List.of("b1"), queries(db.rows), "a1重放失败时不写入a2");
+
+        replay(wal);
+        assertEquals(List.of("b1", "a2"), queries(db.rows));
+        assertFalse(wal.isHeld("a"));
+        assertEquals(1L, wal.stats().get("quarantined"));
+        assertTrue(Files.exists(walDir.resolve("quarantine.log")));
+    }
+
+    @Test
+    void restartHoldsConversationsUntilReplayed() {
+        MessageWriteAheadLog previous = openWal(5);
+        previous.append(message("a", "a1"));
+        previous.append(message("a", "a2"));
+        previous.append(message("b", "b1"));
+        previous.close();
+
+        MessageWriteAheadLog wal = openWal(5);
+        assertTrue(wal.isHeld("a"));
+        assertTrue(wal.isHeld("b"));
+
+        db.transientFailures = Integer.MAX_VALUE;
+        assertEquals(List.of("a1", "a2"), queries(wal.replayConversation("a")), "数据库不可用时返回仍未写入的记录");
+
+        db.transientFailures = 0;
+        assertTrue(wal.replayConversation("a").isEmpty());
+        assertEquals(List.of("a1", "a2"), queries(db.rows), "只重放该会话的记录");
+        assertFalse(wal.isHeld("a"));
+        assertTrue(wal.isHeld("b"));
+    }
+
+    @Test
+    void replayDeduplicatesCommittedRecords() {
+        MessageWriteAheadLog previous = openWal(5);
+        Message committed = message("a", "a1");
+        previous.append(committed);
+        previous.append(message("a", "a2"));
+        previous.close();
+        db.rows.add(committed); //写入数据库后、检查点推进前宕机
+
+        MessageWriteAheadLog wal = openWal(5);
+        replay(wal);
+        assertEquals(List.of("a1", "a2"), queries(db.rows));
+        assertEquals(1L, wal.stats().get("replayDuplicates"));
+    }
+
+    private MessageWriteAheadLog openWal(int maxReplayAttempts) {
+        MessageWriteAheadLog wal = new MessageWriteAheadLog(db, true, walDir.toString(), 1 << 20, false, maxReplayAttempts);
+        try {
+            wal.open();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        wals.add(wal);
+        return wal;
+    }
+
+    private void start(MessageWriteAheadLog wal, long retryWindowMillis) {
+        queue = new MessageWriteBehindQueue(db, wal, true, 100, 100, HOUR, 50, HOUR, HOUR, retryWindowMillis);
+        queue.start();
+    }
+
+    private static void replay(MessageWriteAheadLog wal) {
+        try {
+            wal.replay();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private Message message(String conversationId, String query) {
+        return db.buildMessage("bot", "user", "name", conversationId, 10,
+                query, 0, 5, "answer", 0, 5, TokenEstimator.Vocabulary.QWEN);
+    }
+
+    private static List<String> queries(List<Message> messages) {
+        return messages.stream().map(Message::getQueryContent).toList();
+    }
+
+    //按写入顺序保存已提交的message，message_id按提交顺序递增
+    private static final class FakeDatabase extends MessageService {
+        final List<Message> rows = new ArrayList<>();
+        final Set<String> badQueries = new HashSet<>(); //写入时报数据错误的query
+        int transientFailures; //之后的写入调用中抛出暂时性错误的次数
+        int commitThenFail; //之后的写入调用中提交后再抛出暂时性错误的次数
+        long nextId = 1;
+
+        @Override
+        public Message insertMessage(Message message) {
+            commit(List.of(message), false);
+            return message;
+        }
+
+        @Override
+        public void batchRegisterMessages(List<Message> messages) {
+            commit(messages, false);
+        }
+
+        @Override
+        public int replayMessages(List<Message> messages) {
+            return commit(messages, true);
+        }
+
+        private synchronized int commit(List<Message> messages, boolean dedup) {
+            if (transientFailures > 0) {
+                transientFailures--;
+                throw new DataAccessResourceFailureException("数据库不可用");
+            }
+            for (Message m : messages) {
+                if (badQueries.contains(m.getQueryContent())) {
+                    throw new DataIntegrityViolationException("Data too long: " + m.getQueryContent());
+                }
+            }
+            Set<String> existing = new HashSet<>();
+            rows.forEach(m -> existing.add(m.getMsgUuid()));
+            int inserted = 0;
+            for (Message m : messages) {
+                if (dedup && existing.contains(m.getMsgUuid())) {
+                    continue;
+                }
+                m.setMessageId(nextId++);
+                rows.add(m);
+                inserted++;
+            }
+            if (commitThenFail > 0) {
+                commitThenFail--;
+                throw new DataAccessResourceFailureException("提交后连接断开");
+            }
+            return inserted;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.qianniu.llmbot.product_service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.qianniu.llmbot.product_entity.Model;
+import com.qianniu.llmbot.product_entity.ModelRegisterRequest;
+import com.qianniu.llmbot.product_entity.User;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*********************************************
+ * 检查model_allowroles的解析：注册校验(ModelRegisterRequest)与模型目录(ModelProfile)使用同一解析，结果一致
+ * **********************************************/
+
+class ModelProfileTests {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final String AL_PARAMETERS = "{\"stream\":true,\"incremental_output\":true,\"temperature\":0.7,\"top-p\":0.8,"
+            + "\"repetition_penalty\":1.1,\"result_format\":\"message\",\"enable_search\":false,\"max_tokens\":1500,\"record-numbers\":10}";
+
+    @Test
+    void validRoleArraysCompileToTheSameMask() {
+        int memberMask = User.Role.MEMBER.mask() | User.Role.SUPER_MEMBER.mask();
+        for (String json : List.of("[\"ROLE_MEMBER\",\"ROLE_SUPER_MEMBER\"]", "[\"MEMBER\", \"SUPER_MEMBER\"]",
+                " [ \"ROLE_SUPER_MEMBER\" ,\n \"ROLE_MEMBER\" ] ", "[\"ROLE_MEMBER\",\"ROLE_MEMBER\",\"SUPER_MEMBER\"]")) {
+            assertEquals(memberMask, User.Role.parseMask(json), json);
+            assertTrue(registerRequest(json).isModelAllowRolesValid(), json);
+            ModelProfile profile = compile(json);
+            assertEquals(memberMask, profile.getAllowRoleMask(), json);
+            assertNull(profile.getInvalidReason(), json);
+        }
+        assertEquals(0, User.Role.parseMask("[]"));
+        assertFalse(registerRequest("[]").isModelAllowRolesValid(), "至少包含一个角色");
+        assertEquals(memberMask, User.Role.parseMask(User.Role.toJson(memberMask)), "写入的JSON可以解析回原掩码");
+    }
+
+    @Test
+    void exactRoleMatch() {
+        ModelProfile profile = compile("[\"ROLE_SUPER_MEMBER\"]");
+        assertTrue(profile.isRoleAllowed(User.Role.SUPER_MEMBER));
+        assertFalse(profile.isRoleAllowed(User.Role.MEMBER), "ROLE_MEMBER不匹配ROLE_SUPER_MEMBER");
+        assertFalse(profile.isRoleAllowed(User.Role.ADMIN));
+    }
+
+    @Test
+    void invalidRoleJsonIsRejectedEverywhere() {
+        for (String json : List.of("ROLE_MEMBER", "[ROLE_MEMBER]", "[\"ROLE_MEMBER\",]", "[\"ROLE_MEMBER\", 1]", "[\"ROLE_GUEST\"]",
+                "[\"ROLE_MEMBER\", null]", "[[\"ROLE_MEMBER\"]]", "{\"role\":\"ROLE_MEMBER\"}", "null", "")) {
+            assertThrows(IllegalArgumentException.class, () -> User.Role.parseMask(json), json);
+            if (!json.isBlank()) { //空内容由@NotBlank校验
+                assertFalse(registerRequest(json).isModelAllowRolesValid(), json);
+            }
+            ModelProfile profile = compile(json);
+            assertEquals(0, profile.getAllowRoleMask(), json);
+            assertTrue(profile.getInvalidReason().startsWith("model_allowroles无效"), json);
+            for (User.Role role : User.Role.values()) {
+                assertFalse(profile.isRoleAllowed(role), json);
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> User.Role.parseMask(null));
+    }
+
+    private static ModelProfile compile(String allowRoles) {
+        Model model = new Model();
+        model.setModelId(1L);
+        model.setModelName("qwen-plus");
+        model.setModelUrl("https://example.com/v1");
+        model.setModelParameters(AL_PARAMETERS);
+        model.setModelAllowroles(allowRoles);
+        return ModelProfile.compile(model, OBJECT_MAPPER, 2000);
+    }
+
+    private static ModelRegisterRequest registerRequest(String allowRoles) {
+        ModelRegisterRequest request = new ModelRegisterRequest();
+        request.setModelAllowRoles(allowRoles);
+        return request;
+    }
+}
@@ -0,0 +1,150 @@
+package com.qianniu.llmbot.product_service;
+
+import com.qianniu.llmbot.product_entity.Message;
+import com.qianniu.llmbot.product_entity.Model;
+import com.qianniu.llmbot.product_entity.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/*********************************************
+ * BeanPropertyRowMapper与按列序号映射的RowMapper对比(每次调用映射ROWS行，模拟管理员接口的大结果集)
+ * 1）结果集为内存中的ResultSet代理，列与SELECT *的列顺序一致，两种mapper的取值开销相同，差异只来自映射本身；
+ * 2）运行：mvn test-compile后执行本类的main方法(classpath为target/classes、target/test-classes及test依赖)；
+ * **********************************************/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMapperBenchmark {
+    private static final int ROWS = 1000;
+
+    private final RowMapper<Message> messageBeanMapper = new BeanPropertyRowMapper<>(Message.class);
+    private final RowMapper<Message> messageColumnMapper = new MessageRowMapper();
+    private final RowMapper<User> userBeanMapper = new BeanPropertyRowMapper<>(User.class);
+    private final RowMapper<User> userColumnMapper = new UserRowMapper();
+    private final RowMapper<Model> modelBeanMapper = new BeanPropertyRowMapper<>(Model.class);
+    private final RowMapper<Model> modelColumnMapper = new ModelRowMapper();
+
+    private ResultSet messageRow;
+    private ResultSet userRow;
+    private ResultSet modelRow;
+
+    @Setup
+    public void setUp() {
+        messageRow = resultSet(
+                new String[]{"message_id", "bot_name", "user_id", "user_name", "conversation_id", "total_token_number",
+                        "query_content", "query_content_type", "query_token_number", "answer_content", "answer_content_type",
+                        "answer_token_number", "created_at", "query_token_estimate", "answer_token_estimate", "msg_uuid"},
+                new Object[]{123456L, "qwen-plus", "6f1c2b9e-3d4a-4f5b-8c7d-9e0f1a2b3c4d", "user@example.com",
+                        "qwen-plus_6f1c2b9e-3d4a-4f5b-8c7d-9e0f1a2b3c4d", 512, "请介绍一下杭州的景点", 0, 12,
+                        "杭州的主要景点有西湖、灵隐寺、千岛湖等。", 0, 500, 1_700_000_000L, 12, 480,
+                        "0d9c8b7a-6f5e-4d3c-2b1a-0f9e8d7c6b5a"});
+        userRow = resultSet(
+                new String[]{"id", "uuid", "email", "phone", "name", "passwordHash", "role", "tokenVersion",
+                        "collectModels", "createdAt", "updatedAt", "lastLogin", "membershipExpiry"},
+                new Object[]{42L, "6f1c2b9e-3d4a-4f5b-8c7d-9e0f1a2b3c4d", "user@example.com", "+8613912345678", "user",
+                        "$2a$10$abcdefghijklmnopqrstuuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ012", 1, 3, "qwen-plus,ernie-4.0",
+                        1_700_000_000L, 1_700_000_100L, 1_700_000_200L, 1_702_592_000L});
+        modelRow = resultSet(
+                new String[]{"model_id", "model_name", "model_type", "model_url", "model_parameters", "model_allowroles", "created_datetime"},
+                new Object[]{7L, "qwen-plus", 0, "https://dashscope.aliyuncs.com/compatible-mode/v1/chat/completions",
+                        "{\"temperature\":0.7}", "[0,1,2,3]", "2025-06-01T10:00:00"});
+    }
+
+    @Benchmark
+    public void messageBeanProperty(Blackhole blackhole) throws SQLException {
+        mapRows(messageBeanMapper, messageRow, blackhole);
+    }
+
+    @Benchmark
+    public void messageColumnIndex(Blackhole blackhole) throws SQLException {
+        mapRows(messageColumnMapper, messageRow, blackhole);
+    }
+
+    @Benchmark
+    public void userBeanProperty(Blackhole blackhole) throws SQLException {
+        mapRows(userBeanMapper, userRow, blackhole);
+    }
+
+    @Benchmark
+    public void userColumnIndex(Blackhole blackhole) throws SQLException {
+        mapRows(userColumnMapper, userRow, blackhole);
+    }
+
+    @Benchmark
+    public void modelBeanProperty(Blackhole blackhole) throws SQLException {
+        mapRows(modelBeanMapper, modelRow, blackhole);
+    }
+
+    @Benchmark
+    public void modelColumnIndex(Blackhole blackhole) throws SQLException {
+        mapRows(modelColumnMapper, modelRow, blackhole);
+    }
+
+    private static <T> void mapRows(RowMapper<T> mapper, ResultSet rs, Blackhole blackhole) throws SQLException {
+        for (int rowNum = 0; rowNum < ROWS; rowNum++) {
+            blackhole.consume(mapper.mapRow(rs, rowNum));
+        }
+    }
+
+    //只实现RowMapper用到的方法：按列序号取值、wasNull及列名元数据；每一行返回相同的值
+    private static ResultSet resultSet(String[] columns, Object[] values) {
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(RowMapperBenchmark.class.getClassLoader(),
+                new Class<?>[]{ResultSetMetaData.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "getColumnCount" -> columns.length;
+                    case "getColumnLabel", "getColumnName" -> columns[(Integer) args[0] - 1];
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+        boolean[] lastNull = new boolean[1];
+        return (ResultSet) Proxy.newProxyInstance(RowMapperBenchmark.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMetaData":
+                            return metaData;
+                        case "wasNull":
+                            return lastNull[0];
+                        default:
+                            break;
+                    }
+                    if (args == null || !(args[0] instanceof Integer index)) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    Object value = values[index - 1];
+                    lastNull[0] = value == null;
+                    return switch (method.getName()) {
+                        case "getString" -> value == null ? null : value.toString();
+                        case "getLong" -> value == null ? 0L : ((Number) value).longValue();
+                        case "getInt" -> value == null ? 0 : ((Number) value).intValue();
+                        case "getObject" -> value;
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    };
+                });
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RowMapperBenchmark.class.getSimpleName()).build()).run();
+    }
+}